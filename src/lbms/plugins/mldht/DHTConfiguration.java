@@ -30,5 +30,13 @@ public interface DHTConfiguration {
 	
 	public boolean allowMultiHoming();
 	
+	/**
+	 * Number of sockets each RPC server binds to its address and port with SO_REUSEPORT, the kernel spreads incoming datagrams over them
+	 * and each one is read and written by its own selector. Falls back to a single socket where SO_REUSEPORT is not available.
+	 */
+	public default int getSocketShards() {
+		return 1;
+	}
+	
 	
 }
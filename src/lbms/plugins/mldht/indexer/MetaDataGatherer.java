@@ -93,7 +93,7 @@ public class MetaDataGatherer {
 	
 	public MetaDataGatherer(InfoHashGatherer info) {
 		this.info = info;
-		connectionManager = new NIOConnectionManager("mlDHT Indexer NIO Selector ");
+		connectionManager = new NIOConnectionManager("mlDHT Indexer NIO Selector", NIOConnectionManager.DEFAULT_SELECTORS, null);
 		
 		initListeningService();
 		
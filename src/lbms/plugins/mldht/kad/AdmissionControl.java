@@ -0,0 +1,134 @@
+/*
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lbms.plugins.mldht.kad.utils.ThreadLocalUtils;
+
+/**
+ * Sheds incoming queries when the packet lane can't keep up, using BLUE active queue management on the time packets waited in the queue of the lane.
+ *
+ * A single drop pressure rises by a fixed step while the queue delay is above the target and decays while it is well below it, at most once per freeze
+ * interval. The pressure is spread over the {@link QueryClass}es from the cheapest to lose upwards: a class only starts losing queries once all cheaper
+ * classes are dropped entirely. Responses to our own calls are never subject to admission control.
+ */
+public class AdmissionControl {
+	
+	/**
+	 * in the order in which they are shed
+	 */
+	public enum QueryClass {
+		/** announces from nodes that are not in our routing table */
+		ANNOUNCE_FROM_UNKNOWN,
+		/** get_peers, find_node, announces from known nodes and anything else */
+		QUERY,
+		PING;
+		
+		public String label() {
+			return name().toLowerCase();
+		}
+	}
+	
+	private static final QueryClass[]	CLASSES				= QueryClass.values();
+	
+	static final long					DEFAULT_TARGET_DELAY	= TimeUnit.MILLISECONDS.toNanos(50);
+	// BLUE only reacts once per freeze time so that the effect of the last change can show up in the queue first
+	static final long					FREEZE_TIME			= TimeUnit.MILLISECONDS.toNanos(100);
+	// pressure is counted in steps to avoid rounding drift, one class goes from admitting everything to dropping everything in this many
+	static final int					STEPS_PER_CLASS		= 200;
+	// back off faster than we recover, as recommended for BLUE
+	static final int					INCREMENT			= 4;
+	static final int					DECREMENT			= 1;
+	
+	private volatile long				targetDelay;
+	private final AtomicLong			lastUpdate			= new AtomicLong(System.nanoTime() - FREEZE_TIME);
+	// only written by the thread that won the update
+	private volatile int				pressure;
+	
+	public AdmissionControl() {
+		this(DEFAULT_TARGET_DELAY);
+	}
+	
+	/**
+	 * @param targetDelay queue delay in nanoseconds above which queries are shed
+	 */
+	public AdmissionControl(long targetDelay) {
+		this.targetDelay = targetDelay;
+	}
+	
+	/**
+	 * @param targetDelay queue delay in nanoseconds above which queries are shed, Long.MAX_VALUE never sheds
+	 */
+	public void setTargetDelay(long targetDelay) {
+		this.targetDelay = targetDelay;
+	}
+	
+	/**
+	 * @param delay how long the current packet waited for the packet lane, in nanoseconds
+	 */
+	public void onQueueDelay(long delay, long now) {
+		boolean congested = delay > targetDelay;
+		boolean idle = delay < targetDelay / 4;
+		if (!congested && (!idle || pressure == 0))
+			return;
+		
+		long last = lastUpdate.get();
+		if (now - last < FREEZE_TIME || !lastUpdate.compareAndSet(last, now))
+			return;
+		
+		if (congested)
+			pressure = Math.min(CLASSES.length * STEPS_PER_CLASS, pressure + INCREMENT);
+		else
+			pressure = Math.max(0, pressure - DECREMENT);
+	}
+	
+	/**
+	 * @return true if any class is currently shedding, cheap enough to check before classifying the query
+	 */
+	public boolean isShedding() {
+		return pressure > 0;
+	}
+	
+	public double getDropProbability(QueryClass c) {
+		int steps = pressure - c.ordinal() * STEPS_PER_CLASS;
+		return Math.max(0, Math.min(STEPS_PER_CLASS, steps)) / (double) STEPS_PER_CLASS;
+	}
+	
+	/**
+	 * @return false if the query should be dropped
+	 */
+	public boolean admit(QueryClass c) {
+		double p = getDropProbability(c);
+		if (p <= 0.0)
+			return true;
+		return ThreadLocalUtils.getThreadLocalRandom().nextDouble() >= p;
+	}
+	
+	/**
+	 * @return 0 when admitting everything, the number of classes when dropping everything
+	 */
+	public double getPressure() {
+		return pressure / (double) STEPS_PER_CLASS;
+	}
+	
+	@Override
+	public String toString() {
+		return "admission control: pressure:" + String.format("%.3f", getPressure()) + " target delay:" + TimeUnit.NANOSECONDS.toMillis(targetDelay) + "ms";
+	}
+}
@@ -1,298 +1,499 @@
 /*
- *    This file is part of mlDHT. 
- * 
- *    mlDHT is free software: you can redistribute it and/or modify 
- *    it under the terms of the GNU General Public License as published by 
- *    the Free Software Foundation, either version 2 of the License, or 
- *    (at your option) any later version. 
- * 
- *    mlDHT is distributed in the hope that it will be useful, 
- *    but WITHOUT ANY WARRANTY; without even the implied warranty of 
- *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
- *    GNU General Public License for more details. 
- * 
- *    You should have received a copy of the GNU General Public License 
- *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>. 
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
  */
 package lbms.plugins.mldht.kad;
 
 import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.util.*;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 import lbms.plugins.mldht.kad.messages.MessageBase;
 
+/**
+ * Keeps recently responding nodes around lookup targets so that repeated lookups can skip the first hops.
+ *
+ * The keyspace is partitioned into buckets held in an immutable, sorted table. Buckets are only split if they cover
+ * a registered anchor (target) and merged again once the anchors expire. Splits and merges publish a new table
+ * atomically, so there never is a gap in the keyspace that concurrent inserts would have to wait for. Only one
+ * thread restructures at a time, others simply skip the split and fall back to replacing entries in place.
+ *
+ * Entries of a bucket are an immutable array swapped by CAS. A bucket that has been replaced by a split or merge is
+ * marked as retired, inserts racing with the restructuring notice the mark and retry against the new table,
+ * entries that slipped in before the mark are carried over.
+ *
+ * Memory is bounded by the number of anchors, the number of buckets and the fixed bucket size.
+ */
 public class AnnounceNodeCache {
-	
-	private static class CacheAnchorPoint extends Key {
-		public CacheAnchorPoint(Key k) {
-			// reuse array to save memory
-			hash = k.hash;
-		}
-		
-		long expirationTime;
-	}
-	
+
+	static final int			MAX_ANCHORS			= 8192;
+	static final int			MAX_BUCKETS			= 4096;
+	static final int			BUCKET_SIZE			= DHTConstants.MAX_CONCURRENT_REQUESTS;
+	// each hop of a lookup resolves roughly log2(k) bits of the target
+	private static final int	BITS_PER_HOP		= Integer.numberOfTrailingZeros(DHTConstants.MAX_ENTRIES_PER_BUCKET);
+
+	private static final KBucketEntry[]	EMPTY		= new KBucketEntry[0];
+	private static final KBucketEntry[]	RETIRED		= new KBucketEntry[0];
+
 	private static class CacheBucket {
-	
-		Prefix prefix;
-		ConcurrentLinkedQueue<KBucketEntry> entries = new ConcurrentLinkedQueue<KBucketEntry>();
-		
-		public CacheBucket(Prefix p) {
+
+		final Prefix prefix;
+		final AtomicReference<KBucketEntry[]> entries;
+
+		CacheBucket(Prefix p, KBucketEntry[] initial) {
 			prefix = p;
+			entries = new AtomicReference<KBucketEntry[]>(initial);
 		}
 	}
-	
-	ConcurrentSkipListMap<Key, CacheAnchorPoint> anchors = new ConcurrentSkipListMap<Key,CacheAnchorPoint>();
-	ConcurrentSkipListMap<Key, CacheBucket> cache = new ConcurrentSkipListMap<Key, AnnounceNodeCache.CacheBucket>();
-	
-	
+
+	private static class Anchor {
+		volatile long expirationTime;
+	}
+
+	private final ConcurrentSkipListMap<Key, Anchor>	anchors		= new ConcurrentSkipListMap<Key, Anchor>();
+	// the skip list's size() is linear
+	private final AtomicInteger							anchorCount	= new AtomicInteger();
+	// sorted by prefix, always covers the whole keyspace
+	private final AtomicReference<CacheBucket[]>		table;
+	private final AtomicBoolean							restructuring	= new AtomicBoolean();
+
+	private final LongAdder		seedHits		= new LongAdder();
+	private final LongAdder		seedMisses		= new LongAdder();
+	// the cache had entries, but none closer than the routing table
+	private final LongAdder		seedNoGain		= new LongAdder();
+	private final LongAdder		bitsSaved		= new LongAdder();
+	private final LongAdder		rejectedAnchors	= new LongAdder();
+	private final LongAdder		skippedSplits	= new LongAdder();
+
 	public AnnounceNodeCache() {
-		CacheBucket rootBucket = new CacheBucket(new Prefix());
-		cache.put(rootBucket.prefix, rootBucket);
+		table = new AtomicReference<CacheBucket[]>(new CacheBucket[] {new CacheBucket(new Prefix(), EMPTY)});
 	}
-	
+
 	public void register(Key target, boolean isFastLookup) {
-		CacheAnchorPoint anchor = new CacheAnchorPoint(target);
-		anchor.expirationTime = System.currentTimeMillis() + (isFastLookup ? DHTConstants.ANNOUNCE_CACHE_FAST_LOOKUP_AGE : DHTConstants.ANNOUNCE_CACHE_MAX_AGE); 
-		anchors.put(target,anchor);
+		long expiration = System.currentTimeMillis() + (isFastLookup ? DHTConstants.ANNOUNCE_CACHE_FAST_LOOKUP_AGE : DHTConstants.ANNOUNCE_CACHE_MAX_AGE);
+		Anchor anchor = anchors.get(target);
+		if (anchor == null) {
+			if (anchorCount.get() >= MAX_ANCHORS) {
+				rejectedAnchors.increment();
+				return;
+			}
+			anchor = new Anchor();
+			anchor.expirationTime = expiration;
+			Anchor existing = anchors.putIfAbsent(target, anchor);
+			if (existing == null) {
+				anchorCount.incrementAndGet();
+				return;
+			}
+			anchor = existing;
+		}
+		if (expiration > anchor.expirationTime)
+			anchor.expirationTime = expiration;
 	}
-	
+
 	private final RPCCallListener cl = new RPCCallListener() {
 		public void onTimeout(RPCCall c) {
 			Key nodeId = c.getExpectedID();
 			if (nodeId == null)
 				return;
-			
-			Entry<Key, CacheBucket> targetEntry = cache.floorEntry(nodeId);
-			
-			if (targetEntry == null || !targetEntry.getValue().prefix.isPrefixOf(nodeId))
-				return;
-			
-			for (Iterator<KBucketEntry> it = targetEntry.getValue().entries.iterator();it.hasNext();) {
-				KBucketEntry e = it.next();
-				// remove an entry if the id matches
-				// ignore the removal if we have heard from the node after the request has been issued, it might be a spurious failure
-				if (e.getID().equals(nodeId) && (e.getLastSeen() < c.getSentTime() || c.getSentTime() == -1))
-					it.remove();
-			}
 
-			
+			CacheBucket bucket = bucketFor(table.get(), nodeId);
+
+			while (true) {
+				KBucketEntry[] current = bucket.entries.get();
+				if (current == RETIRED) {
+					bucket = bucketFor(table.get(), nodeId);
+					continue;
+				}
+				int idx = -1;
+				for (int i = 0; i < current.length; i++) {
+					KBucketEntry e = current[i];
+					// remove an entry if the id matches
+					// ignore the removal if we have heard from the node after the request has been issued, it might be a spurious failure
+					if (e.getID().equals(nodeId) && (e.getLastSeen() < c.getSentTime() || c.getSentTime() == -1)) {
+						idx = i;
+						break;
+					}
+				}
+				if (idx == -1 || bucket.entries.compareAndSet(current, without(current, idx)))
+					return;
+			}
 		}
-		
+
 		public void onStall(RPCCall c) {
 			// TODO Auto-generated method stub
 		}
-		
+
 		public void onResponse(RPCCall c, MessageBase rsp) {
 			KBucketEntry kbe = new KBucketEntry(rsp.getOrigin(), rsp.getID());
 			kbe.signalResponse(c.getRTT());
 			add(kbe);
 		}
 	};
-	
+
 	public RPCCallListener getRPCListener() {
 		return cl;
 	}
 
-	/*
-	 * this insert procedure might cause minor inconsistencies (duplicate entries, too-large lists)
-	 * but those are self-healing under merge/split operations
+	private static KBucketEntry[] without(KBucketEntry[] entries, int idx) {
+		KBucketEntry[] result = new KBucketEntry[entries.length - 1];
+		System.arraycopy(entries, 0, result, 0, idx);
+		System.arraycopy(entries, idx + 1, result, idx, entries.length - idx - 1);
+		return result;
+	}
+
+	private static KBucketEntry[] with(KBucketEntry[] entries, KBucketEntry toAdd) {
+		KBucketEntry[] result = Arrays.copyOf(entries, entries.length + 1);
+		result[entries.length] = toAdd;
+		return result;
+	}
+
+	/**
+	 * @return index of the bucket covering the key
 	 */
+	private static int indexFor(CacheBucket[] buckets, Key k) {
+		int low = 0;
+		int high = buckets.length - 1;
+		// buckets are contiguous, so the covering one is the last one starting at or below the key
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (buckets[mid].prefix.compareTo(k) <= 0)
+				low = mid;
+			else
+				high = mid - 1;
+		}
+		return low;
+	}
+
+	private static CacheBucket bucketFor(CacheBucket[] buckets, Key k) {
+		return buckets[indexFor(buckets, k)];
+	}
+
+	private boolean coversAnchor(Prefix p) {
+		Key anchor = anchors.ceilingKey(p);
+		return anchor != null && p.isPrefixOf(anchor);
+	}
+
 	public void add(KBucketEntry entryToInsert) {
 		Key target = entryToInsert.getID();
-		
-		outer: while (true) {
-			Entry<Key, CacheBucket> targetEntry = cache.floorEntry(target);
-			
-			if (targetEntry == null || !targetEntry.getValue().prefix.isPrefixOf(target)) { // split/merge operation ongoing, retry
-				Thread.yield();
+
+		while (true) {
+			CacheBucket[] buckets = table.get();
+			CacheBucket targetBucket = bucketFor(buckets, target);
+			KBucketEntry[] current = targetBucket.entries.get();
+
+			if (current == RETIRED) // split/merge published a new table in the meantime
 				continue;
-			}
-			
-			CacheBucket targetBucket = targetEntry.getValue();
-			
-			int size = 0;
-			
-			for (Iterator<KBucketEntry> it = targetBucket.entries.iterator();it.hasNext();) {
-				KBucketEntry e = it.next();
-				size++;
-				if (e.getID().equals(entryToInsert.getID())) { // refresh timestamp, this is checked for removals
-					e.mergeInTimestamps(entryToInsert);	
-					break outer;
+
+			boolean known = false;
+			for (KBucketEntry e : current) {
+				if (e.getID().equals(target)) { // refresh timestamp, this is checked for removals
+					e.mergeInTimestamps(entryToInsert);
+					known = true;
+					break;
 				}
 			}
-			
-			if (size >= DHTConstants.MAX_CONCURRENT_REQUESTS) {
-				// cache entry full, see if we this bucket prefix covers any anchor
-				Map.Entry<Key, CacheAnchorPoint> anchorEntry = anchors.ceilingEntry(targetBucket.prefix);
-											
-				if (anchorEntry == null || !targetBucket.prefix.isPrefixOf(anchorEntry.getValue())) {
-					// if this bucket is full and cannot be split
-					for (Iterator<KBucketEntry> it=targetBucket.entries.iterator();it.hasNext();) {
-						KBucketEntry kbe = it.next();
-						if (entryToInsert.getRTT() < kbe.getRTT()) {
-							targetBucket.entries.add(entryToInsert);
-							it.remove();
-							break outer;
-						}
-					}
+			if (known)
+				return;
+
+			if (current.length < BUCKET_SIZE) {
+				if (targetBucket.entries.compareAndSet(current, with(current, entryToInsert)))
+					return;
+				continue;
+			}
+
+			// cache entry full, see if we this bucket prefix covers any anchor
+			if (coversAnchor(targetBucket.prefix) && buckets.length < MAX_BUCKETS) {
+				if (split(buckets, targetBucket))
+					continue;
+				skippedSplits.increment();
+			}
+
+			// if this bucket is full and cannot be split replace a slower entry
+			int slowest = -1;
+			for (int i = 0; i < current.length; i++) {
+				if (entryToInsert.getRTT() < current[i].getRTT()) {
+					slowest = i;
 					break;
 				}
-					
-				
-				synchronized (targetBucket) {
-					// check for concurrent split/merge
-					if (cache.get(targetBucket.prefix) != targetBucket)
-						continue;
-					// perform split operation
-					CacheBucket lowerBucket = new CacheBucket(targetBucket.prefix.splitPrefixBranch(false));
-					CacheBucket upperBucket = new CacheBucket(targetBucket.prefix.splitPrefixBranch(true));
-					
-					// remove old entry. this leads to a temporary gap in the cache-keyspace!
-					if (!cache.remove(targetEntry.getKey(),targetBucket))
-						continue;
+			}
+			if (slowest == -1)
+				return;
+			KBucketEntry[] replaced = current.clone();
+			replaced[slowest] = entryToInsert;
+			if (targetBucket.entries.compareAndSet(current, replaced))
+				return;
+		}
+	}
 
-					cache.put(upperBucket.prefix, upperBucket);
-					cache.put(lowerBucket.prefix, lowerBucket);
+	/**
+	 * @return false if another thread is restructuring or the table changed
+	 */
+	private boolean split(CacheBucket[] buckets, CacheBucket toSplit) {
+		if (!restructuring.compareAndSet(false, true))
+			return false;
+		try {
+			int idx = indexFor(buckets, toSplit.prefix);
+			if (table.get() != buckets || buckets[idx] != toSplit)
+				return true;
 
-					for (KBucketEntry e : targetBucket.entries)
-						add(e);
-				}
+			Prefix lowerPrefix = toSplit.prefix.splitPrefixBranch(false);
+			Prefix upperPrefix = toSplit.prefix.splitPrefixBranch(true);
+			List<KBucketEntry> lower = new ArrayList<KBucketEntry>();
+			List<KBucketEntry> upper = new ArrayList<KBucketEntry>();
+			KBucketEntry[] snapshot = toSplit.entries.get();
+			for (KBucketEntry e : snapshot)
+				(upperPrefix.isPrefixOf(e.getID()) ? upper : lower).add(e);
 
-				continue;
-			}
-			
-			targetBucket.entries.add(entryToInsert);
-			break;
-			
-			
+			CacheBucket[] newBuckets = new CacheBucket[buckets.length + 1];
+			System.arraycopy(buckets, 0, newBuckets, 0, idx);
+			newBuckets[idx] = new CacheBucket(lowerPrefix, lower.toArray(EMPTY));
+			newBuckets[idx + 1] = new CacheBucket(upperPrefix, upper.toArray(EMPTY));
+			System.arraycopy(buckets, idx + 1, newBuckets, idx + 2, buckets.length - idx - 1);
+
+			table.set(newBuckets);
+			retire(toSplit, snapshot);
+			return true;
+		} finally {
+			restructuring.set(false);
 		}
 	}
 
-	
+	/**
+	 * Marks a replaced bucket and carries over entries that were added after the new table was built
+	 */
+	private void retire(CacheBucket old, KBucketEntry[] snapshot) {
+		KBucketEntry[] last = old.entries.getAndSet(RETIRED);
+		if (last == snapshot)
+			return;
+		for (KBucketEntry e : last)
+			add(e);
+	}
+
+	/**
+	 * @param targetSize the number of nodes the caller wants, the cache returns up to about twice as many
+	 */
 	public List<KBucketEntry> get(Key target, int targetSize) {
 		ArrayList<KBucketEntry> closestSet = new ArrayList<KBucketEntry>(2 * targetSize);
-		
-		Map.Entry<Key, CacheBucket> ceil = cache.ceilingEntry(target);
-		Map.Entry<Key, CacheBucket> floor = cache.floorEntry(target);
-		
+
+		CacheBucket[] buckets = table.get();
+		int center = indexFor(buckets, target);
+		int floor = center;
+		int ceil = center + 1;
+
 		do
 		{
-			if (floor != null) {
-				closestSet.addAll(floor.getValue().entries);
-				floor = cache.lowerEntry(floor.getKey());
-			}
-				
-			if (ceil != null) {
-				closestSet.addAll(ceil.getValue().entries);
-				ceil = cache.higherEntry(ceil.getKey());
-			}
-		} while (closestSet.size() / 2 < targetSize && (floor != null || ceil != null));
-		
+			if (floor >= 0)
+				addEntries(closestSet, buckets[floor--]);
+
+			if (ceil < buckets.length)
+				addEntries(closestSet, buckets[ceil++]);
+		} while (closestSet.size() / 2 < targetSize && (floor >= 0 || ceil < buckets.length));
+
 		return closestSet;
 	}
-	
+
+	private static void addEntries(List<KBucketEntry> target, CacheBucket b) {
+		KBucketEntry[] entries = b.entries.get();
+		// a retired bucket's entries have been moved to the new table, which we did not see. skipping them is fine for a cache
+		for (KBucketEntry e : entries)
+			target.add(e);
+	}
+
+	/**
+	 * Accounts how much the cache helped a lookup. The distances are those of the closest node known to the routing table
+	 * and the closest node provided by the cache when the lookup started. Only seedings that got closer than the routing table count as hits.
+	 */
+	public void recordSeeding(Key target, KBucketEntry closestFromTable, KBucketEntry closestFromCache) {
+		if (closestFromCache == null) {
+			seedMisses.increment();
+			return;
+		}
+		int gained = bitsGained(target, closestFromTable, closestFromCache);
+		if (gained == 0) {
+			seedNoGain.increment();
+			return;
+		}
+		seedHits.increment();
+		bitsSaved.add(gained);
+	}
+
+	/**
+	 * @return number of additional leading bits shared with the target by the cache entry
+	 */
+	public static int bitsGained(Key target, KBucketEntry closestFromTable, KBucketEntry closestFromCache) {
+		if (closestFromCache == null)
+			return 0;
+		int cacheBits = Long.numberOfLeadingZeros(target.leadingDistanceBits(closestFromCache.getID()));
+		int tableBits = closestFromTable == null ? 0 : Long.numberOfLeadingZeros(target.leadingDistanceBits(closestFromTable.getID()));
+		return Math.max(0, cacheBits - tableBits);
+	}
+
+	public static double hopsSaved(int bitsGained) {
+		return (double) bitsGained / BITS_PER_HOP;
+	}
+
+	public long getSeedHits() {
+		return seedHits.sum();
+	}
+
+	public long getSeedMisses() {
+		return seedMisses.sum();
+	}
+
+	/**
+	 * @return number of lookups that got entries from the cache which were no closer to the target than the routing table's
+	 */
+	public long getSeedNoGain() {
+		return seedNoGain.sum();
+	}
+
+	/**
+	 * @return estimated number of lookup hops the cache saved, averaged over all lookups that got closer entries from the cache than from the routing table
+	 */
+	public double getAverageHopsSaved() {
+		long hits = seedHits.sum();
+		return hits == 0 ? 0 : hopsSaved((int) Math.min(Integer.MAX_VALUE, bitsSaved.sum())) / hits;
+	}
+
 	public void cleanup(long now) {
 		// first pass, eject old anchors
-		for (Iterator<CacheAnchorPoint> it = anchors.values().iterator();it.hasNext();)
-			if (now - it.next().expirationTime > 0)
+		for (Iterator<Anchor> it = anchors.values().iterator();it.hasNext();)
+			if (now - it.next().expirationTime > 0) {
 				it.remove();
-		
+				anchorCount.decrementAndGet();
+			}
+
 		Set<Key> seenIDs = new HashSet<Key>();
 		Set<InetAddress> seenIPs = new HashSet<InetAddress>();
-		
+
 		// 2nd pass, eject old and/or duplicate entries
-		for (Iterator<CacheBucket> it = cache.values().iterator();it.hasNext();) {
-			CacheBucket b = it.next();
-			
-			for (Iterator<KBucketEntry> it2 = b.entries.iterator();it2.hasNext();) {
-				KBucketEntry kbe = it2.next();
-				if (seenIDs.contains(kbe.getID()) || seenIPs.contains(kbe.getAddress().getAddress()) || now - kbe.getLastSeen() > DHTConstants.ANNOUNCE_CACHE_MAX_AGE)
-					it2.remove();
+		for (CacheBucket b : table.get()) {
+			KBucketEntry[] current = b.entries.get();
+			if (current == RETIRED)
+				continue;
+			List<KBucketEntry> kept = new ArrayList<KBucketEntry>(current.length);
+			for (KBucketEntry kbe : current) {
+				if (!seenIDs.contains(kbe.getID()) && !seenIPs.contains(kbe.getAddress().getAddress()) && now - kbe.getLastSeen() <= DHTConstants.ANNOUNCE_CACHE_MAX_AGE)
+					kept.add(kbe);
 				seenIDs.add(kbe.getID());
 				seenIPs.add(kbe.getAddress().getAddress());
 			}
-
+			// lost races will be cleaned up on the next pass
+			if (kept.size() != current.length)
+				b.entries.compareAndSet(current, kept.toArray(EMPTY));
 		}
 
-		
-		// merge buckets that aren't full or don't have anchors
-		
-		Entry<Key,CacheBucket> entry = cache.firstEntry();
-		if (entry == null)
+		merge();
+	}
+
+	/**
+	 * merge buckets that aren't full or don't have anchors
+	 */
+	private void merge() {
+		if (!restructuring.compareAndSet(false, true))
 			return;
-		
-		CacheBucket current = null;
-		CacheBucket next = entry.getValue();
+		try {
+			CacheBucket[] buckets = table.get();
+			List<CacheBucket> result = new ArrayList<CacheBucket>(Arrays.asList(buckets));
+			Set<CacheBucket> published = Collections.newSetFromMap(new IdentityHashMap<CacheBucket, Boolean>());
+			published.addAll(result);
+			// published bucket -> entries it had when it was merged
+			Map<CacheBucket, KBucketEntry[]> replaced = new IdentityHashMap<CacheBucket, KBucketEntry[]>();
 
-		while (true) {
-			current = next;
-			
-			entry = cache.higherEntry(current.prefix);
-			if (entry == null)
-				return;
-			next = entry.getValue();
-			
-			
-			if (!current.prefix.isSiblingOf(next.prefix))
-				continue;
-			
-			
-			Prefix parent = current.prefix.getParentPrefix();
-			Map.Entry<Key, CacheAnchorPoint> anchor = anchors.ceilingEntry(parent);
-			if (anchor == null || !parent.isPrefixOf(anchor.getValue()) || current.entries.size()+next.entries.size() < DHTConstants.MAX_CONCURRENT_REQUESTS) {
-				synchronized (current) {
-					synchronized (next) {
-						// check for concurrent split/merge
-						if (cache.get(current.prefix) != current || cache.get(next.prefix) != next)
-							continue;
-						
-						cache.remove(current.prefix, current);
-						cache.remove(next.prefix,next);
-						
-						cache.put(parent, new CacheBucket(parent));
-						
-						for (KBucketEntry e : current.entries)
-							add(e);
-						for (KBucketEntry e : next.entries)
-							add(e);
+			boolean merged = true;
+			// repeat to cascade merges up the tree
+			while (merged) {
+				merged = false;
+				for (int i = 0; i + 1 < result.size(); i++) {
+					CacheBucket current = result.get(i);
+					CacheBucket next = result.get(i + 1);
+					if (!current.prefix.isSiblingOf(next.prefix))
+						continue;
+					Prefix parent = current.prefix.getParentPrefix();
+					KBucketEntry[] currentEntries = current.entries.get();
+					KBucketEntry[] nextEntries = next.entries.get();
+					if (coversAnchor(parent) && currentEntries.length + nextEntries.length >= BUCKET_SIZE)
+						continue;
+
+					KBucketEntry[] combined = Arrays.copyOf(currentEntries, currentEntries.length + nextEntries.length);
+					System.arraycopy(nextEntries, 0, combined, currentEntries.length, nextEntries.length);
+					if (combined.length > BUCKET_SIZE) {
+						// keep the most responsive ones
+						Arrays.sort(combined, (a, b) -> Integer.compare(a.getRTT(), b.getRTT()));
+						combined = Arrays.copyOf(combined, BUCKET_SIZE);
 					}
+
+					// only buckets of the published table need to be retired, intermediate ones were never visible
+					if (published.contains(current))
+						replaced.put(current, currentEntries);
+					if (published.contains(next))
+						replaced.put(next, nextEntries);
+
+					result.set(i, new CacheBucket(parent, combined));
+					result.remove(i + 1);
+					merged = true;
 				}
-				
-				// move backwards if possible to cascade merges backwards if necessary
-				entry = cache.lowerEntry(current.prefix);
-				if (entry == null)
-					continue;
-				next = entry.getValue();
 			}
+
+			if (replaced.isEmpty())
+				return;
+
+			table.set(result.toArray(new CacheBucket[result.size()]));
+			for (Map.Entry<CacheBucket, KBucketEntry[]> e : replaced.entrySet())
+				retire(e.getKey(), e.getValue());
+		} finally {
+			restructuring.set(false);
 		}
-					
 	}
-	
-	
+
+
+	DiagnosticsSnapshot.Cache snapshot() {
+		CacheBucket[] buckets = table.get();
+		int entryCount = 0;
+		for (CacheBucket buck : buckets)
+			entryCount += buck.entries.get().length;
+		return new DiagnosticsSnapshot.Cache(anchorCount.get(), buckets.length, entryCount, seedHits.sum(), seedMisses.sum(), seedNoGain.sum(), getAverageHopsSaved());
+	}
+
 	public void printDiagnostics(PrintWriter b) {
-		b.append("anchors ("+anchors.size()+"):\n");
+		b.append("anchors ("+anchorCount.get()+", rejected "+rejectedAnchors.sum()+"):\n");
 		// no need to print out all anchors for now
-		//for (CacheAnchorPoint a : anchors.values())
+		//for (Anchor a : anchors.values())
 		//	b.println(a);
-		
-		int bucketCount = 0;
+
+		CacheBucket[] buckets = table.get();
 		int entryCount = 0;
-		for (CacheBucket buck : cache.values()) {
-			bucketCount++;
-			entryCount+= buck.entries.size();
-		}
-		
-		b.println("buckets ("+bucketCount+") / entries ("+entryCount+"):\n");
-		
-		for (CacheBucket buck : cache.values())
-			b.println(buck.prefix+" entries: "+buck.entries.size());
+		for (CacheBucket buck : buckets)
+			entryCount+= buck.entries.get().length;
+
+		long hits = seedHits.sum();
+		long misses = seedMisses.sum();
+		long noGain = seedNoGain.sum();
+		long seedings = hits + misses + noGain;
+		b.println("lookup seeding: hits "+hits+" no gain "+noGain+" misses "+misses+" hit rate "+(seedings > 0 ? hits * 100 / seedings : 0)+"% avg. hops saved per hit "+String.format("%.2f", getAverageHopsSaved())+" skipped splits "+skippedSplits.sum());
+		b.println("buckets ("+buckets.length+") / entries ("+entryCount+"):\n");
+
+		for (CacheBucket buck : buckets)
+			b.println(buck.prefix+" entries: "+buck.entries.get().length);
 
 	}
- 	
-	
+
+
 }
@@ -19,13 +19,14 @@ package lbms.plugins.mldht.kad;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.lang.Thread.UncaughtExceptionHandler;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumMap;
 import java.util.List;
@@ -33,8 +34,6 @@ import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -54,9 +53,12 @@ import lbms.plugins.mldht.kad.messages.PingRequest;
 import lbms.plugins.mldht.kad.messages.PingResponse;
 import lbms.plugins.mldht.kad.messages.UnknownTypeResponse;
 import lbms.plugins.mldht.kad.tasks.AnnounceTask;
+import lbms.plugins.mldht.kad.tasks.LookupAndAnnounceTask;
+import lbms.plugins.mldht.kad.tasks.LookupTracer;
 import lbms.plugins.mldht.kad.tasks.NodeLookup;
 import lbms.plugins.mldht.kad.tasks.PeerLookupTask;
 import lbms.plugins.mldht.kad.tasks.PingRefreshTask;
+import lbms.plugins.mldht.kad.tasks.ResultStream;
 import lbms.plugins.mldht.kad.tasks.Task;
 import lbms.plugins.mldht.kad.tasks.TaskListener;
 import lbms.plugins.mldht.kad.tasks.TaskManager;
@@ -64,6 +66,7 @@ import lbms.plugins.mldht.kad.utils.AddressUtils;
 import lbms.plugins.mldht.kad.utils.ByteWrapper;
 import lbms.plugins.mldht.kad.utils.PopulationEstimator;
 import lbms.plugins.mldht.utils.NIOConnectionManager;
+import lbms.plugins.mldht.utils.metrics.MetricsRegistry;
 
 /**
  * @author Damokles
@@ -98,38 +101,22 @@ public class DHT implements DHTBase {
 	private static DHTLogger				logger;
 	private static LogLevel					logLevel	= LogLevel.Info;
 
-	private static ScheduledThreadPoolExecutor	scheduler;
+	// incoming datagrams waiting for decoding before the packet lane sheds them, ~2 seconds worth at a busy node
+	public static final int						DEFAULT_PACKET_QUEUE_BOUND	= 16384;
+	
+	private static ExecutionLane				packetLane;
+	private static ExecutionLane				timerLane;
+	private static ExecutionLane				maintenanceLane;
 	private static ThreadGroup					executorGroup;
 	
 	static {
 		executorGroup = new ThreadGroup("mlDHT");
 		int threads = Math.max(Runtime.getRuntime().availableProcessors(),2);
-		/*scheduler = new ScheduledThreadPoolExecutor(threads, (ThreadFactory) r -> {
-			Thread t = new Thread(executorGroup, r, "mlDHT Scheduler");
-			
-			t.setUncaughtExceptionHandler((t1, e) -> DHT.log(e, LogLevel.Error));
-			t.setDaemon(true);
-			return t;
-		});*/
 		
-		scheduler = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
-			public Thread newThread (Runnable r) {
-				Thread t = new Thread(executorGroup, r, "mlDHT Executor");
-				t.setUncaughtExceptionHandler(new UncaughtExceptionHandler() {
-					@Override
-					public void uncaughtException(Thread t, Throwable e) {
-						DHT.log(e, LogLevel.Error);
-					}
-				});
-				t.setDaemon(true);
-				return t;
-			}
-		});
-		
-		scheduler.setCorePoolSize(threads);
-		scheduler.setMaximumPoolSize(threads*2);
-		scheduler.setKeepAliveTime(20, TimeUnit.SECONDS);
-		scheduler.allowCoreThreadTimeOut(true);
+		packetLane = new ExecutionLane("packets", executorGroup, threads, DEFAULT_PACKET_QUEUE_BOUND);
+		timerLane = new ExecutionLane("timers", executorGroup, Math.max(threads / 2, 2), 0);
+		// a single thread keeps table saves and database expiry from overlapping
+		maintenanceLane = new ExecutionLane("maintenance", executorGroup, 1, 0);
 
 		logger = new DHTLogger() {
 			public void log (String message, LogLevel l) {
@@ -167,11 +154,14 @@ public class DHT implements DHTBase {
 	private DHTStatus						status;
 	private PopulationEstimator				estimator;
 	private AnnounceNodeCache				cache;
+	private final LookupTracer				lookupTracer = new LookupTracer();
+	private final MetricsRegistry			metrics;
 	private NIOConnectionManager			connectionManager;
 	
 	RPCStats								serverStats;
 
 	private final DHTtype					type;
+	private final boolean					standalone;
 	private List<ScheduledFuture<?>>		scheduledActions = new ArrayList<ScheduledFuture<?>>();
 	
 	
@@ -182,19 +172,41 @@ public class DHT implements DHTBase {
 		if (dhts == null) {
 			dhts = new EnumMap<DHTtype,DHT>(DHTtype.class);
 			
-			dhts.put(DHTtype.IPV4_DHT, new DHT(DHTtype.IPV4_DHT));
-			dhts.put(DHTtype.IPV6_DHT, new DHT(DHTtype.IPV6_DHT));
+			dhts.put(DHTtype.IPV4_DHT, new DHT(DHTtype.IPV4_DHT, false));
+			dhts.put(DHTtype.IPV6_DHT, new DHT(DHTtype.IPV6_DHT, false));
 		}
 		
 		return dhts;
 	}
 	
+	/**
+	 * Creates a DHT that is independent of the ones returned by {@link #createDHTs()}, e.g. to run many nodes in one process.
+	 * 
+	 * It gets its own random node ID, does not persist its routing table and does not cross-seed with DHTs of the other address family.
+	 */
+	public static DHT createStandalone(DHTtype type) {
+		return new DHT(type, true);
+	}
+	
 	public static DHT getDHT(DHTtype type) {
-		return dhts.get(type);
+		return dhts != null ? dhts.get(type) : null;
+	}
+	
+	/**
+	 * @return the running DHT of the given type that shares the node ID with this one, this DHT itself if it is of that type, null if there is none
+	 */
+	public DHT getSiblingDHT(DHTtype t) {
+		if (t == type)
+			return this;
+		if (standalone)
+			return null;
+		DHT other = getDHT(t);
+		return other != null && other.isRunning() ? other : null;
 	}
 
-	private DHT(DHTtype type) {
+	private DHT(DHTtype type, boolean standalone) {
 		this.type = type;
+		this.standalone = standalone;
 		
 		stats = new DHTStats();
 		status = DHTStatus.Stopped;
@@ -202,6 +214,7 @@ public class DHT implements DHTBase {
 		statusListeners = new ArrayList<DHTStatusListener>(2);
 		indexingListeners = new ArrayList<DHTIndexingListener>();
 		estimator = new PopulationEstimator();
+		metrics = new MetricsRegistry("dht", type.shortName);
 	}
 	
 	public static interface IncomingMessageListener {
@@ -255,13 +268,16 @@ public class DHT implements DHTBase {
 		KClosestNodesSearch kns4 = null;
 		KClosestNodesSearch kns6 = null;
 		
+		DHT dht4 = getSiblingDHT(DHTtype.IPV4_DHT);
+		DHT dht6 = getSiblingDHT(DHTtype.IPV6_DHT);
+		
 		// add our local address of the respective DHT for cross-seeding, but not for local requests
-		if (r.doesWant4()) {
-			kns4 = new KClosestNodesSearch(r.getTarget(), DHTConstants.MAX_ENTRIES_PER_BUCKET, getDHT(DHTtype.IPV4_DHT));
+		if (r.doesWant4() && dht4 != null) {
+			kns4 = new KClosestNodesSearch(r.getTarget(), DHTConstants.MAX_ENTRIES_PER_BUCKET, dht4);
 			kns4.fill(DHTtype.IPV4_DHT != type);
 		}
-		if (r.doesWant6()) {
-			kns6 = new KClosestNodesSearch(r.getTarget(), DHTConstants.MAX_ENTRIES_PER_BUCKET, getDHT(DHTtype.IPV6_DHT));
+		if (r.doesWant6() && dht6 != null) {
+			kns6 = new KClosestNodesSearch(r.getTarget(), DHTConstants.MAX_ENTRIES_PER_BUCKET, dht6);
 			kns6.fill(DHTtype.IPV6_DHT != type);
 		}
 		
@@ -323,20 +339,23 @@ public class DHT implements DHTBase {
 		KClosestNodesSearch kns4 = null;
 		KClosestNodesSearch kns6 = null;
 		
-		if (r.doesWant4()) {
-			kns4 = new KClosestNodesSearch(r.getTarget(), DHTConstants.MAX_ENTRIES_PER_BUCKET, getDHT(DHTtype.IPV4_DHT));
+		DHT dht4 = getSiblingDHT(DHTtype.IPV4_DHT);
+		DHT dht6 = getSiblingDHT(DHTtype.IPV6_DHT);
+		
+		if (r.doesWant4() && dht4 != null) {
+			kns4 = new KClosestNodesSearch(r.getTarget(), DHTConstants.MAX_ENTRIES_PER_BUCKET, dht4);
 			// add our local address of the respective DHT for cross-seeding, but not for local requests
 			kns4.fill(DHTtype.IPV4_DHT != type);
 		}
 		
-		if (r.doesWant6()) {
+		if (r.doesWant6() && dht6 != null) {
 			
 			int targetNodesCount = DHTConstants.MAX_ENTRIES_PER_BUCKET;
 			// can't embed many nodes in v6 responses with filters
 			if (v6 && peerFilter != null)
 				targetNodesCount = Math.min(5, targetNodesCount);
 			
-			kns6 = new KClosestNodesSearch(r.getTarget(), targetNodesCount, getDHT(DHTtype.IPV6_DHT));
+			kns6 = new KClosestNodesSearch(r.getTarget(), targetNodesCount, dht6);
 			kns6.fill(DHTtype.IPV6_DHT != type);
 		}
 		
@@ -445,15 +464,44 @@ public class DHT implements DHTBase {
 		return lookupTask;
 	}
 	
+	/**
+	 * returns a non-enqueued task that announces to the closest nodes as soon as they are found instead of after the lookup has finished.
+	 * use the task-manager to actually start the task.
+	 */
+	public LookupAndAnnounceTask createLookupAndAnnounce (Key infoHash, boolean isSeed, int btPort) {
+		if (!isRunning()) {
+			return null;
+		}
+		
+		RPCServer srv = serverManager.getRandomActiveServer(false);
+		if (srv == null)
+			return null;
+		
+		return new LookupAndAnnounceTask(srv, node, infoHash, btPort, isSeed);
+	}
+	
 	public AnnounceTask announce(PeerLookupTask lookup, boolean isSeed, int btPort) {
 		if (!isRunning()) {
 			return null;
 		}
 		
 		// reuse the same server to make sure our tokens are still valid
-		AnnounceTask announce = new AnnounceTask(lookup.getRPC(), node, lookup.getInfoHash(), btPort);
+		return announce(lookup.getRPC(), lookup.getInfoHash(), lookup.getAnnounceCanidates(), isSeed, btPort);
+	}
+	
+	/**
+	 * Announces to nodes for which tokens were obtained earlier, e.g. by a previous lookup.
+	 * 
+	 * @param srv the server through which the tokens were obtained
+	 */
+	public AnnounceTask announce(RPCServer srv, Key infoHash, Collection<KBucketEntryAndToken> candidates, boolean isSeed, int btPort) {
+		if (!isRunning()) {
+			return null;
+		}
+		
+		AnnounceTask announce = new AnnounceTask(srv, node, infoHash, btPort);
 		announce.setSeed(isSeed);
-		for (KBucketEntryAndToken kbe : lookup.getAnnounceCanidates()) {
+		for (KBucketEntryAndToken kbe : candidates) {
 			announce.addToTodo(kbe);
 		}
 
@@ -462,6 +510,39 @@ public class DHT implements DHTBase {
 		return announce;
 	}
 	
+	/**
+	 * Starts a get_peers lookup which hands out peers as soon as they are received instead of after the whole lookup has finished.
+	 * 
+	 * @param bufferSize number of undelivered peers after which the lookup stops sending new requests until the subscriber requests more
+	 * @return the stream, or null if the request cannot be serviced
+	 */
+	public ResultStream<PeerAddressDBItem> streamPeers(Key infoHash, int bufferSize) {
+		PeerLookupTask lookup = createPeerLookup(infoHash.getHash());
+		if (lookup == null)
+			return null;
+		ResultStream<PeerAddressDBItem> stream = new ResultStream<PeerAddressDBItem>(bufferSize);
+		lookup.setResultStream(stream);
+		tman.addTask(lookup);
+		return stream;
+	}
+	
+	/**
+	 * Starts a node lookup which hands out nodes as soon as they respond.
+	 * The completion future carries the final closest set.
+	 * 
+	 * @return the stream, or null if the request cannot be serviced
+	 */
+	public ResultStream<KBucketEntry> streamClosestNodes(Key target, int bufferSize) {
+		RPCServer srv = serverManager.getRandomActiveServer(false);
+		if (!running || srv == null)
+			return null;
+		NodeLookup lookup = new NodeLookup(target, srv, node, false);
+		ResultStream<KBucketEntry> stream = new ResultStream<KBucketEntry>(bufferSize);
+		lookup.setResultStream(stream);
+		tman.addTask(lookup);
+		return stream;
+	}
+	
 	
 	public DHTConfiguration getConfig() {
 		return config;
@@ -482,10 +563,33 @@ public class DHT implements DHTBase {
 	public PopulationEstimator getEstimator() {
 		return estimator;
 	}
+	
+	public Database getDatabase() {
+		return db;
+	}
+
+	/**
+	 * @return an immutable snapshot of the current state, safe to call from any thread
+	 */
+	public DiagnosticsSnapshot getDiagnostics() {
+		return new DiagnosticsSnapshot(this);
+	}
+
+	public MetricsRegistry getMetrics() {
+		return metrics;
+	}
+
+	public LookupTracer getLookupTracer() {
+		return lookupTracer;
+	}
 
 	public DHTtype getType() {
 		return type;
 	}
+	
+	public boolean isStandalone() {
+		return standalone;
+	}
 
 	/*
 	 * (non-Javadoc)
@@ -526,6 +630,19 @@ public class DHT implements DHTBase {
 	 */
 	public void start(DHTConfiguration config)
 			throws SocketException {
+		start(config, null, null);
+	}
+	
+	/**
+	 * Starts the DHT with a single RPC server on a fixed address instead of picking the bind addresses from the network interfaces.
+	 * With a transport the server is not bound to a socket, datagrams go through the transport instead.
+	 * 
+	 * @param localAddress bind address of the server, reported as such if there is a transport
+	 * @param transport null to bind sockets to the local address
+	 * @see RPCServer#deliver(java.nio.ByteBuffer, InetSocketAddress)
+	 */
+	public void start(DHTConfiguration config, InetSocketAddress localAddress, DatagramTransport transport)
+			throws SocketException {
 		
 		if (running) {
 			return;
@@ -538,27 +655,34 @@ public class DHT implements DHTBase {
 		stats.resetStartedTimestamp();
 
 		tableFile = config.getNodeCachePath();
-		Node.initDataStore(config);
+		if (!standalone)
+			Node.initDataStore(config);
 
 		logInfo("Starting DHT on port " + getPort());
-		resolveBootstrapAddresses();
+		if (transport == null)
+			resolveBootstrapAddresses();
 		
-		serverStats = new RPCStats();
+		serverStats = new RPCStats(metrics);
 
 		cache = new AnnounceNodeCache();
 		stats.setRpcStats(serverStats);
-		connectionManager = new NIOConnectionManager("mlDHT "+type.shortName+" NIO Selector");
+		// detached servers don't need a selector, saves a thread and file descriptors per instance
+		if (transport == null)
+			connectionManager = new NIOConnectionManager("mlDHT "+type.shortName+" NIO Selector", NIOConnectionManager.DEFAULT_SELECTORS, metrics);
 		serverManager = new RPCServerManager(this);
+		if (localAddress != null)
+			serverManager.useTransport(localAddress, transport);
 		node = new Node(this);
 		db = new Database();
 		stats.setDbStats(db.getStats());
 		tman = new TaskManager(this);
+		registerGauges();
 		running = true;
 		
 		// these checks are fairly expensive on large servers (network interface enumeration)
 		// schedule them separately
 		//scheduledActions.add(scheduler.scheduleWithFixedDelay(serverManager::doBindChecks, 10, 10, TimeUnit.SECONDS));
-		scheduledActions.add(scheduler.scheduleWithFixedDelay(new Runnable() {
+		scheduledActions.add(getMaintenanceScheduler().scheduleWithFixedDelay(new Runnable() {
 			@Override
 			public void run() {
 				serverManager.doBindChecks();
@@ -573,7 +697,7 @@ public class DHT implements DHTBase {
 			if (running)
 				onStatsUpdate();
 		}, 5000, DHTConstants.DHT_UPDATE_INTERVAL, TimeUnit.MILLISECONDS));*/
-		scheduledActions.add(scheduler.scheduleAtFixedRate(new Runnable() {
+		scheduledActions.add(getScheduler().scheduleAtFixedRate(new Runnable() {
 			@Override
 			public void run() {
 				// maintenance that should run all the time, before the first queries
@@ -648,6 +772,18 @@ public class DHT implements DHTBase {
 	
 
 
+	private void registerGauges() {
+		metrics.gauge("mldht_routing_table_entries", "Entries in the routing table", () -> node.getNumEntriesInRoutingTable());
+		metrics.gauge("mldht_population_estimate", "Estimated number of reachable nodes in the DHT", () -> estimator.getEstimate());
+		metrics.gauge("mldht_database_keys", "Keys in the peer database", () -> db.getStats().getKeyCount());
+		metrics.gauge("mldht_database_items", "Items in the peer database", () -> db.getStats().getItemCount());
+		metrics.gauge("mldht_tasks_active", "Running tasks", () -> tman.getNumTasks());
+		metrics.gauge("mldht_tasks_queued", "Tasks waiting for a free slot", () -> tman.getQueuedTasks().length);
+		metrics.gauge("mldht_rpc_servers_active", "RPC servers that are currently reachable", () -> serverManager.getActiveServerCount());
+		for (ExecutionLane lane : getLanes())
+			lane.registerMetrics(metrics);
+	}
+
 	public void started () {
 		
 		// refresh everything during startup
@@ -668,11 +804,16 @@ public class DHT implements DHTBase {
 		
 		/*
 		if (type == DHTtype.IPV6_DHT) {
-			Task t = new KeyspaceCrawler(srv, node);
-			tman.addTask(t);
+			try {
+				// stays open for the lifetime of the crawl, lines() flushes it after every range
+				Writer writer = Files.newBufferedWriter(Paths.get("crawl.txt"), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+				new KeyspaceCrawler(this, 8, 100, CrawlSink.lines(writer), Paths.get("crawl.checkpoint")).start();
+			} catch (IOException e) {
+				log(e, LogLevel.Error);
+			}
 		}*/
 		
-		scheduledActions.add(scheduler.scheduleWithFixedDelay(
+		scheduledActions.add(getMaintenanceScheduler().scheduleWithFixedDelay(
 		/*() -> {
 			try {
 				update();
@@ -692,7 +833,7 @@ public class DHT implements DHTBase {
 		},
 		5000, DHTConstants.DHT_UPDATE_INTERVAL, TimeUnit.MILLISECONDS));
 		
-		scheduledActions.add(scheduler.scheduleWithFixedDelay(
+		scheduledActions.add(getMaintenanceScheduler().scheduleWithFixedDelay(
 		/*() -> {
 			try {
 				long now = System.currentTimeMillis();
@@ -716,7 +857,7 @@ public class DHT implements DHTBase {
 		}, 1000, DHTConstants.CHECK_FOR_EXPIRED_ENTRIES, TimeUnit.MILLISECONDS));
 		
 		// single ping to a random node per server to check socket liveness
-		scheduledActions.add(scheduler.scheduleWithFixedDelay(
+		scheduledActions.add(getScheduler().scheduleWithFixedDelay(
 		/*() -> {
 			for (RPCServer srv : serverManager.getAllServers()) {
 				if (srv.getNumActiveRPCCalls() > 0)
@@ -754,10 +895,10 @@ public class DHT implements DHTBase {
 		
 		
 		// deep lookup to make ourselves known to random parts of the keyspace
-		scheduledActions.add(scheduler.scheduleWithFixedDelay(() -> {
+		scheduledActions.add(getMaintenanceScheduler().scheduleWithFixedDelay(() -> {
 			try {
 				for (RPCServer srv : serverManager.getAllServers())
-					findNode(Key.createRandomKey(), false, false, srv).setInfo("Random Refresh Lookup");
+					findNode(Key.createRandomKey(), false, false, SendPriority.MAINTENANCE, srv).setInfo("Random Refresh Lookup");
 			} catch (RuntimeException e1) {
 				log(e1, LogLevel.Fatal);
 			}
@@ -789,7 +930,8 @@ public class DHT implements DHTBase {
 		
 		for (ScheduledFuture<?> future : scheduledActions)
 			future.cancel(false);
-		scheduler.getQueue().removeAll(scheduledActions);
+		for (ExecutionLane lane : getLanes())
+			lane.purge(scheduledActions);
 		scheduledActions.clear();
 
 		serverManager.destroy();
@@ -923,7 +1065,7 @@ public class DHT implements DHTBase {
 
 			for (RPCServer srv : serverManager.getAllServers()) {
 				finishCount.incrementAndGet();
-				NodeLookup nl = findNode(srv.getDerivedID(), true, true, srv);
+				NodeLookup nl = findNode(srv.getDerivedID(), true, true, SendPriority.MAINTENANCE, srv);
 				if (nl == null) {
 					bootstrapping = false;
 					break;
@@ -956,12 +1098,13 @@ public class DHT implements DHTBase {
 	}
 
 	private NodeLookup findNode (Key id, boolean isBootstrap,
-			boolean isPriority, RPCServer server) {
+			boolean isPriority, SendPriority sendPriority, RPCServer server) {
 		if (!running || server == null) {
 			return null;
 		}
 
 		NodeLookup at = new NodeLookup(id, server, node, isBootstrap);
+		at.setPriority(sendPriority);
 		tman.addTask(at, isPriority);
 		return at;
 	}
@@ -972,7 +1115,7 @@ public class DHT implements DHTBase {
 	 * @param id The id of the key to search
 	 */
 	public NodeLookup findNode (Key id) {
-		return findNode(id, false, false,serverManager.getRandomActiveServer(true));
+		return findNode(id, false, false, SendPriority.LOOKUP, serverManager.getRandomActiveServer(true));
 	}
 
 	/*
@@ -982,7 +1125,7 @@ public class DHT implements DHTBase {
 	 */
 	public NodeLookup fillBucket (Key id, KBucket bucket) {
 		bucket.updateRefreshTimer();
-		return findNode(id, false, true, serverManager.getRandomActiveServer(true));
+		return findNode(id, false, true, SendPriority.MAINTENANCE, serverManager.getRandomActiveServer(true));
 	}
 
 	public void sendError (MessageBase origMsg, int code, String msg) {
@@ -1076,7 +1219,7 @@ public class DHT implements DHTBase {
 		
 		w.append("-----------------------\n");
 		w.append("Stats\n");
-		w.append("Reachable node estimate: "+ estimator.getEstimate()+'\n');
+		w.append("Reachable node estimate: "+ estimator.getEstimate()+" (95% window interval "+estimator.getEstimateLowerBound()+" - "+estimator.getEstimateUpperBound()+")\n");
 		w.append(stats.toString());
 		w.append("-----------------------\n");
 		w.append("Routing table\n");
@@ -1091,6 +1234,7 @@ public class DHT implements DHTBase {
 		w.append("-----------------------\n");
 		w.append("Tasks\n");
 		w.append(tman.toString());
+		w.append(lookupTracer.toString()+'\n');
 		w.append("\n\n\n");
 	}
 
@@ -1123,10 +1267,28 @@ public class DHT implements DHTBase {
 	}
 
 	/**
-	 * @return the scheduler
+	 * @return the scheduler for timeouts and short callbacks, e.g. task updates. Nothing that blocks or scans large structures belongs here
 	 */
 	public static ScheduledExecutorService getScheduler () {
-		return scheduler;
+		return timerLane.getScheduler();
+	}
+	
+	/**
+	 * @return the scheduler for periodic maintenance and disk I/O, e.g. bucket checks, database expiry and table saves
+	 */
+	public static ScheduledExecutorService getMaintenanceScheduler () {
+		return maintenanceLane.getScheduler();
+	}
+	
+	/**
+	 * @return the lane that decodes and handles incoming datagrams. It sheds datagrams once its queue bound is reached
+	 */
+	public static ExecutionLane getPacketLane () {
+		return packetLane;
+	}
+	
+	public static List<ExecutionLane> getLanes () {
+		return Arrays.asList(packetLane, timerLane, maintenanceLane);
 	}
 
 	public static void log (String message, LogLevel level) {
@@ -1165,6 +1327,33 @@ public class DHT implements DHTBase {
 		return level.compareTo(logLevel) < 1;
 	}
 
+	/**
+	 * @param subsystem short name such as "rpc", the logger may have a threshold for it that differs from the global level
+	 */
+	public static boolean isLogLevelEnabled (LogLevel level, String subsystem) {
+		LogLevel threshold = logger.getLevel(subsystem);
+		return level.compareTo(threshold != null ? threshold : logLevel) < 1;
+	}
+
+	/**
+	 * Logs with deferred formatting, nothing is converted to a string unless the level is enabled for the subsystem.
+	 * Each <code>{}</code> in the template is replaced by the next argument, which must not be modified afterwards.
+	 */
+	public static void log (LogLevel level, String subsystem, String template, Object arg0) {
+		if (isLogLevelEnabled(level, subsystem))
+			logger.log(level, subsystem, template, arg0);
+	}
+
+	public static void log (LogLevel level, String subsystem, String template, Object arg0, Object arg1) {
+		if (isLogLevelEnabled(level, subsystem))
+			logger.log(level, subsystem, template, arg0, arg1);
+	}
+
+	public static void log (LogLevel level, String subsystem, String template, Object arg0, Object arg1, Object arg2) {
+		if (isLogLevelEnabled(level, subsystem))
+			logger.log(level, subsystem, template, arg0, arg1, arg2);
+	}
+
 	public static enum LogLevel {
 		Fatal, Error, Info, Debug, Verbose
 	}
@@ -34,6 +34,7 @@ public class DHTConstants {
 	public static final int		BUCKET_REFRESH_INTERVAL					= 15 * 60 * 1000;
 	public static final int		MAX_CONCURRENT_REQUESTS					= 10;
 	public static final	int		MAX_CONCURRENT_REQUESTS_LOWPRIO			= 3;
+	public static final int		MAX_LOOKUP_CANDIDATES					= MAX_ENTRIES_PER_BUCKET * 16;
 	public static final int		RECEIVE_BUFFER_SIZE						= 5 * 1024;
 
 	public static final int		CHECK_FOR_EXPIRED_ENTRIES				= 5 * 60 * 1000;
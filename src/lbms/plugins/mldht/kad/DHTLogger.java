@@ -26,4 +26,40 @@ public interface DHTLogger {
 	public void log (String message, LogLevel l);
 
 	public void log (Throwable t, LogLevel l);
+
+	/**
+	 * @return threshold for the subsystem, null to use the global log level
+	 */
+	default LogLevel getLevel (String subsystem) {
+		return null;
+	}
+
+	/**
+	 * Deferred formatting, each <code>{}</code> in the template is replaced by the next argument.
+	 * Implementations may format on a different thread, arguments must not be modified after the call.
+	 */
+	default void log (LogLevel level, String subsystem, String template, Object arg0) {
+		log(level, subsystem, template, arg0, null, null);
+	}
+
+	default void log (LogLevel level, String subsystem, String template, Object arg0, Object arg1) {
+		log(level, subsystem, template, arg0, arg1, null);
+	}
+
+	default void log (LogLevel level, String subsystem, String template, Object arg0, Object arg1, Object arg2) {
+		StringBuilder b = new StringBuilder(template.length() + 64);
+		if (subsystem != null)
+			b.append('[').append(subsystem).append("] ");
+		Object[] args = {arg0, arg1, arg2};
+		int start = 0;
+		for (Object a : args) {
+			int idx = template.indexOf("{}", start);
+			if (idx < 0)
+				break;
+			b.append(template, start, idx).append(a);
+			start = idx + 2;
+		}
+		b.append(template, start, template.length());
+		log(b.toString(), level);
+	}
 }
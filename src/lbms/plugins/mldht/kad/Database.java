@@ -30,6 +30,7 @@ import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.jfr.FlightRecorderEvents;
 import lbms.plugins.mldht.kad.utils.ByteWrapper;
 import lbms.plugins.mldht.kad.utils.ThreadLocalUtils;
 
@@ -173,14 +174,18 @@ public class Database {
 		ItemSet insertCanidate = new ItemSet(dbi);
 		
 		keyEntries = items.putIfAbsent(key, insertCanidate);
+		boolean newKey = keyEntries == null;
 		
-		if (keyEntries == null) { // this only happens when inserting new keys... the load of .size should be bearable
+		if (newKey) { // this only happens when inserting new keys... the load of .size should be bearable
 			keyEntries = insertCanidate;
 			stats.setKeyCount(items.size());
 		}
 		
 		if (keyEntries.add(dbi))
 			stats.setItemCount(stats.getItemCount() + 1);
+		
+		if (FlightRecorderEvents.ENABLED)
+			FlightRecorderEvents.databaseStore(key, newKey, keyEntries.size());
 	}
 
 	/**
@@ -254,6 +259,8 @@ public class Database {
 	 */
 	void expire(long now) {
 		
+		int keysBefore = items.size();
+		int itemsBefore = stats.getItemCount();
 		int itemCount = 0;
 		for (ItemSet dbl : items.values()) {
 			dbl.expire();
@@ -262,6 +269,8 @@ public class Database {
 		
 		items.entrySet().removeIf(e -> e.getValue().isEmpty());
 		
+		if (FlightRecorderEvents.ENABLED)
+			FlightRecorderEvents.databaseExpire(keysBefore - items.size(), itemsBefore - itemCount, items.size(), itemCount);
 
 		stats.setKeyCount(items.size());
 		stats.setItemCount(itemCount);
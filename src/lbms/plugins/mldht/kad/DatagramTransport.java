@@ -0,0 +1,38 @@
+/*
+ *    This file is part of mlDHT.
+ * 
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ * 
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ * 
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Stand-in for the UDP socket of a {@link RPCServer}, e.g. to replay captured traffic or to run nodes against an in-memory network.
+ *
+ * Incoming datagrams are handed to {@link RPCServer#deliver(ByteBuffer, InetSocketAddress)} by the owner of the transport.
+ */
+public interface DatagramTransport {
+
+	/**
+	 * Called by a single thread at a time, in the order the messages were queued.
+	 *
+	 * @param data encoded message, the buffer must not be retained after returning
+	 * @return number of bytes sent, 0 if the datagram was dropped
+	 */
+	public int send(ByteBuffer data, InetSocketAddress destination) throws IOException;
+
+}
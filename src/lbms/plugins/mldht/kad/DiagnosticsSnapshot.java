@@ -0,0 +1,531 @@
+/*
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import lbms.plugins.mldht.kad.messages.MessageBase.Method;
+import lbms.plugins.mldht.kad.messages.MessageBase.Type;
+import lbms.plugins.mldht.kad.tasks.Task;
+import lbms.plugins.mldht.kad.tasks.TaskManager;
+import lbms.plugins.mldht.utils.metrics.Histogram;
+import the8472.bencode.BEncoder;
+
+/**
+ * Immutable point-in-time view of a DHT: stats, routing table, RPC servers, tasks, database and lookup cache.
+ *
+ * The parts are collected one after another from copy-on-write structures and counters without taking the locks of the
+ * live objects, so they are individually consistent but may be a few milliseconds apart from each other.
+ *
+ * Serializes to JSON for humans and log shippers and to bencoding for compact storage or transfer. Bencoding has no booleans
+ * and no floating point numbers, they are encoded as 0/1 integers and decimal strings respectively.
+ */
+public final class DiagnosticsSnapshot {
+
+	interface Part {
+		Map<String, Object> toMap();
+	}
+
+	public static final class MethodStats implements Part {
+		public final String	method;
+		public final long	sentRequests;
+		public final long	receivedResponses;
+		public final long	receivedErrors;
+		public final long	timeouts;
+		public final long	receivedRequests;
+		public final long	sentResponses;
+
+		MethodStats(RPCStats s, Method m) {
+			method = m.name().toLowerCase(Locale.ROOT);
+			sentRequests = s.getSentMessageCount(m, Type.REQ_MSG);
+			receivedResponses = s.getReceivedMessageCount(m, Type.RSP_MSG);
+			receivedErrors = s.getReceivedMessageCount(m, Type.ERR_MSG);
+			timeouts = s.getTimeoutMessageCount(m);
+			receivedRequests = s.getReceivedMessageCount(m, Type.REQ_MSG);
+			sentResponses = s.getSentMessageCount(m, Type.RSP_MSG);
+		}
+
+		public Map<String, Object> toMap() {
+			Map<String, Object> m = new LinkedHashMap<String, Object>();
+			m.put("method", method);
+			m.put("sentRequests", sentRequests);
+			m.put("receivedResponses", receivedResponses);
+			m.put("receivedErrors", receivedErrors);
+			m.put("timeouts", timeouts);
+			m.put("receivedRequests", receivedRequests);
+			m.put("sentResponses", sentResponses);
+			return m;
+		}
+	}
+
+	public static final class Stats implements Part {
+		public final long				populationEstimate;
+		public final long				populationLowerBound;
+		public final long				populationUpperBound;
+		public final long				receivedPackets;
+		public final long				sentPackets;
+		public final long				receivedBytes;
+		public final long				sentBytes;
+		public final List<MethodStats>	methods;
+
+		Stats(DHT dht) {
+			populationEstimate = dht.getEstimator().getEstimate();
+			populationLowerBound = dht.getEstimator().getEstimateLowerBound();
+			populationUpperBound = dht.getEstimator().getEstimateUpperBound();
+			receivedPackets = dht.getStats().getNumReceivedPackets();
+			sentPackets = dht.getStats().getNumSentPackets();
+			RPCStats rpc = dht.serverStats;
+			receivedBytes = rpc.getReceivedBytes();
+			sentBytes = rpc.getSentBytes();
+			List<MethodStats> l = new ArrayList<MethodStats>();
+			for (Method m : Method.values())
+				l.add(new MethodStats(rpc, m));
+			methods = Collections.unmodifiableList(l);
+		}
+
+		public Map<String, Object> toMap() {
+			Map<String, Object> m = new LinkedHashMap<String, Object>();
+			m.put("populationEstimate", populationEstimate);
+			m.put("populationLowerBound", populationLowerBound);
+			m.put("populationUpperBound", populationUpperBound);
+			m.put("receivedPackets", receivedPackets);
+			m.put("sentPackets", sentPackets);
+			m.put("receivedBytes", receivedBytes);
+			m.put("sentBytes", sentBytes);
+			m.put("methods", toMaps(methods));
+			return m;
+		}
+	}
+
+	public static final class Bucket implements Part {
+		public final String	prefix;
+		public final int	depth;
+		public final int	entries;
+		public final int	replacements;
+
+		Bucket(Node.RoutingTableEntry e) {
+			prefix = e.prefix.toString();
+			depth = e.prefix.getDepth();
+			entries = e.getBucket().getNumEntries();
+			replacements = e.getBucket().getNumReplacements();
+		}
+
+		public Map<String, Object> toMap() {
+			Map<String, Object> m = new LinkedHashMap<String, Object>();
+			m.put("prefix", prefix);
+			m.put("depth", depth);
+			m.put("entries", entries);
+			m.put("replacements", replacements);
+			return m;
+		}
+	}
+
+	public static final class RoutingTable implements Part {
+		public final int			entries;
+		public final List<Bucket>	buckets;
+
+		RoutingTable(Node node) {
+			entries = node.getNumEntriesInRoutingTable();
+			List<Bucket> l = new ArrayList<Bucket>();
+			for (Node.RoutingTableEntry e : node.getBuckets())
+				l.add(new Bucket(e));
+			buckets = Collections.unmodifiableList(l);
+		}
+
+		public Map<String, Object> toMap() {
+			Map<String, Object> m = new LinkedHashMap<String, Object>();
+			m.put("entries", entries);
+			m.put("buckets", toMaps(buckets));
+			return m;
+		}
+	}
+
+	public static final class StageLatency implements Part {
+		public final String	stage;
+		public final long	count;
+		public final double	meanMicros;
+		public final long	p50Micros;
+		public final long	p90Micros;
+		public final long	p99Micros;
+		public final long	maxMicros;
+
+		StageLatency(PipelineTimings.Stage s, Histogram h) {
+			stage = s.name().toLowerCase(Locale.ROOT);
+			count = h.getCount();
+			meanMicros = h.getMean();
+			p50Micros = h.getQuantile(0.5);
+			p90Micros = h.getQuantile(0.9);
+			p99Micros = h.getQuantile(0.99);
+			maxMicros = h.getQuantile(1.0);
+		}
+
+		public Map<String, Object> toMap() {
+			Map<String, Object> m = new LinkedHashMap<String, Object>();
+			m.put("stage", stage);
+			m.put("count", count);
+			m.put("meanUs", meanMicros);
+			m.put("p50Us", p50Micros);
+			m.put("p90Us", p90Micros);
+			m.put("p99Us", p99Micros);
+			m.put("maxUs", maxMicros);
+			return m;
+		}
+	}
+
+	public static final class Server implements Part {
+		public final String		address;
+		public final int		port;
+		public final String		derivedId;
+		public final boolean	reachable;
+		public final int		activeCalls;
+		public final int		queuedCalls;
+		public final int		sendQueueLength;
+		public final int		received;
+		public final int		sent;
+		public final long		stallTimeout;
+		public final List<StageLatency>	stages;
+
+		Server(RPCServer srv) {
+			address = srv.getBindAddress().getHostAddress();
+			port = srv.getPort();
+			derivedId = srv.getDerivedID().toString(false);
+			reachable = srv.isReachable();
+			activeCalls = srv.getNumActiveRPCCalls();
+			queuedCalls = srv.getCallQueueLength();
+			sendQueueLength = srv.getSendQueueLength();
+			received = srv.getNumReceived();
+			sent = srv.getNumSent();
+			stallTimeout = srv.getTimeoutFilter().getStallTimeout();
+			List<StageLatency> l = new ArrayList<StageLatency>();
+			for (PipelineTimings.Stage s : PipelineTimings.Stage.values())
+				l.add(new StageLatency(s, srv.getPipelineTimings().get(s)));
+			stages = Collections.unmodifiableList(l);
+		}
+
+		public Map<String, Object> toMap() {
+			Map<String, Object> m = new LinkedHashMap<String, Object>();
+			m.put("address", address);
+			m.put("port", port);
+			m.put("derivedId", derivedId);
+			m.put("reachable", reachable);
+			m.put("activeCalls", activeCalls);
+			m.put("queuedCalls", queuedCalls);
+			m.put("sendQueueLength", sendQueueLength);
+			m.put("received", received);
+			m.put("sent", sent);
+			m.put("stallTimeoutMs", stallTimeout);
+			m.put("stages", toMaps(stages));
+			return m;
+		}
+	}
+
+	public static final class TaskInfo implements Part {
+		public final int		id;
+		public final String		type;
+		public final String		target;
+		public final boolean	queued;
+		public final int		sentRequests;
+		public final int		responses;
+		public final int		failedRequests;
+		public final int		todo;
+		public final long		age;
+		public final String		info;
+
+		TaskInfo(Task t, long now) {
+			id = t.getTaskID();
+			type = t.getClass().getSimpleName();
+			target = t.getTargetKey() != null ? t.getTargetKey().toString(false) : null;
+			queued = t.isQueued();
+			sentRequests = t.getSentReqs();
+			responses = t.getRecvResponses();
+			failedRequests = t.getFailedReqs();
+			todo = t.getTodoCount();
+			age = queued || t.getStartTime() <= 0 ? 0 : now - t.getStartTime();
+			info = t.getInfo();
+		}
+
+		public Map<String, Object> toMap() {
+			Map<String, Object> m = new LinkedHashMap<String, Object>();
+			m.put("id", id);
+			m.put("type", type);
+			if (target != null)
+				m.put("target", target);
+			m.put("queued", queued);
+			m.put("sentRequests", sentRequests);
+			m.put("responses", responses);
+			m.put("failedRequests", failedRequests);
+			m.put("todo", todo);
+			m.put("ageMs", age);
+			if (info != null)
+				m.put("info", info);
+			return m;
+		}
+	}
+
+	public static final class Cache implements Part {
+		public final int	anchors;
+		public final int	buckets;
+		public final int	entries;
+		public final long	seedHits;
+		public final long	seedMisses;
+		public final long	seedNoGain;
+		public final double	averageHopsSaved;
+
+		Cache(int anchors, int buckets, int entries, long seedHits, long seedMisses, long seedNoGain, double averageHopsSaved) {
+			this.anchors = anchors;
+			this.buckets = buckets;
+			this.entries = entries;
+			this.seedHits = seedHits;
+			this.seedMisses = seedMisses;
+			this.seedNoGain = seedNoGain;
+			this.averageHopsSaved = averageHopsSaved;
+		}
+
+		public Map<String, Object> toMap() {
+			Map<String, Object> m = new LinkedHashMap<String, Object>();
+			m.put("anchors", anchors);
+			m.put("buckets", buckets);
+			m.put("entries", entries);
+			m.put("seedHits", seedHits);
+			m.put("seedMisses", seedMisses);
+			m.put("seedNoGain", seedNoGain);
+			m.put("averageHopsSaved", averageHopsSaved);
+			return m;
+		}
+	}
+
+	public final String				type;
+	public final long				timestamp;
+	public final boolean			running;
+	public final long				uptime;
+	public final int				activeServers;
+	public final Stats				stats;
+	public final RoutingTable		routingTable;
+	public final List<Server>		servers;
+	public final List<TaskInfo>		tasks;
+	public final int				databaseKeys;
+	public final int				databaseItems;
+	public final Cache				cache;
+
+	/**
+	 * use {@link DHT#getDiagnostics()}
+	 */
+	DiagnosticsSnapshot(DHT dht) {
+		type = dht.getType().shortName;
+		timestamp = System.currentTimeMillis();
+		running = dht.isRunning();
+		uptime = running ? timestamp - dht.getStats().getStartedTimestamp().toEpochMilli() : 0;
+
+		if (!running) {
+			activeServers = 0;
+			stats = null;
+			routingTable = null;
+			servers = Collections.emptyList();
+			tasks = Collections.emptyList();
+			databaseKeys = 0;
+			databaseItems = 0;
+			cache = null;
+			return;
+		}
+
+		activeServers = dht.getServerManager().getActiveServerCount();
+		stats = new Stats(dht);
+		routingTable = new RoutingTable(dht.getNode());
+
+		List<Server> srvs = new ArrayList<Server>();
+		for (RPCServer srv : dht.getServerManager().getAllServers())
+			srvs.add(new Server(srv));
+		servers = Collections.unmodifiableList(srvs);
+
+		TaskManager tman = dht.getTaskManager();
+		List<TaskInfo> t = new ArrayList<TaskInfo>();
+		for (Task task : tman.getActiveTasks())
+			t.add(new TaskInfo(task, timestamp));
+		for (Task task : tman.getQueuedTasks())
+			t.add(new TaskInfo(task, timestamp));
+		tasks = Collections.unmodifiableList(t);
+
+		databaseKeys = dht.getDatabase().getStats().getKeyCount();
+		databaseItems = dht.getDatabase().getStats().getItemCount();
+		cache = dht.getCache().snapshot();
+	}
+
+	public int getActiveTaskCount() {
+		int n = 0;
+		for (TaskInfo t : tasks)
+			if (!t.queued)
+				n++;
+		return n;
+	}
+
+	private static List<Object> toMaps(List<? extends Part> parts) {
+		List<Object> l = new ArrayList<Object>(parts.size());
+		for (Part p : parts)
+			l.add(p.toMap());
+		return l;
+	}
+
+	/**
+	 * @return the snapshot as a tree of maps, lists, strings, numbers and booleans
+	 */
+	public Map<String, Object> toMap() {
+		Map<String, Object> m = new LinkedHashMap<String, Object>();
+		m.put("type", type);
+		m.put("timestamp", timestamp);
+		m.put("running", running);
+		m.put("uptimeMs", uptime);
+		if (!running)
+			return m;
+		m.put("activeServers", activeServers);
+		m.put("stats", stats.toMap());
+		m.put("routingTable", routingTable.toMap());
+		m.put("servers", toMaps(servers));
+		m.put("tasks", toMaps(tasks));
+		Map<String, Object> db = new LinkedHashMap<String, Object>();
+		db.put("keys", databaseKeys);
+		db.put("items", databaseItems);
+		m.put("database", db);
+		m.put("cache", cache.toMap());
+		return m;
+	}
+
+	public void writeJSON(Appendable out) throws IOException {
+		writeJSON(out, toMap());
+	}
+
+	public String toJSON() {
+		StringBuilder b = new StringBuilder(4096);
+		try {
+			writeJSON(b);
+		} catch (IOException e) {
+			// StringBuilder does not throw
+			throw new RuntimeException(e);
+		}
+		return b.toString();
+	}
+
+	static void writeJSON(Appendable out, Object o) throws IOException {
+		if (o == null) {
+			out.append("null");
+		} else if (o instanceof Map) {
+			out.append('{');
+			boolean first = true;
+			for (Map.Entry<?, ?> e : ((Map<?, ?>) o).entrySet()) {
+				if (!first)
+					out.append(',');
+				first = false;
+				writeJSONString(out, e.getKey().toString());
+				out.append(':');
+				writeJSON(out, e.getValue());
+			}
+			out.append('}');
+		} else if (o instanceof List) {
+			out.append('[');
+			boolean first = true;
+			for (Object e : (List<?>) o) {
+				if (!first)
+					out.append(',');
+				first = false;
+				writeJSON(out, e);
+			}
+			out.append(']');
+		} else if (o instanceof Double) {
+			double d = (Double) o;
+			out.append(Double.isNaN(d) || Double.isInfinite(d) ? "null" : String.format(Locale.ROOT, "%.3f", d));
+		} else if (o instanceof Number || o instanceof Boolean) {
+			out.append(o.toString());
+		} else {
+			writeJSONString(out, o.toString());
+		}
+	}
+
+	private static void writeJSONString(Appendable out, String s) throws IOException {
+		out.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '"':
+					out.append("\\\"");
+					break;
+				case '\\':
+					out.append("\\\\");
+					break;
+				case '\n':
+					out.append("\\n");
+					break;
+				case '\r':
+					out.append("\\r");
+					break;
+				case '\t':
+					out.append("\\t");
+					break;
+				default:
+					if (c < 0x20)
+						out.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+					else
+						out.append(c);
+			}
+		}
+		out.append('"');
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object toBencodable(Object o) {
+		if (o instanceof Map) {
+			Map<String, Object> m = new LinkedHashMap<String, Object>();
+			for (Map.Entry<String, Object> e : ((Map<String, Object>) o).entrySet())
+				if (e.getValue() != null)
+					m.put(e.getKey(), toBencodable(e.getValue()));
+			return m;
+		}
+		if (o instanceof List) {
+			List<Object> l = new ArrayList<Object>();
+			for (Object e : (List<Object>) o)
+				l.add(toBencodable(e));
+			return l;
+		}
+		if (o instanceof Boolean)
+			return ((Boolean) o) ? 1L : 0L;
+		if (o instanceof Double)
+			return String.format(Locale.ROOT, "%.3f", (Double) o);
+		return o;
+	}
+
+	/**
+	 * @return the bencoded snapshot, positioned at the start of the data
+	 */
+	@SuppressWarnings("unchecked")
+	public ByteBuffer toBencoded() {
+		Map<String, Object> root = (Map<String, Object>) toBencodable(toMap());
+		int size = 16 * 1024;
+		while (true) {
+			try {
+				return new BEncoder().encode(root, size);
+			} catch (BufferOverflowException e) {
+				size *= 2;
+			}
+		}
+	}
+}
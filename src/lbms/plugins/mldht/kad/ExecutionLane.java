@@ -0,0 +1,154 @@
+/*
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad;
+
+import java.util.Collection;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.utils.metrics.MetricsRegistry;
+
+/**
+ * A thread pool dedicated to one kind of work so that it can't be starved by the others, see {@link DHT#getPacketLane()},
+ * {@link DHT#getScheduler()} and {@link DHT#getMaintenanceScheduler()}.
+ *
+ * {@link #execute(Runnable)} sheds work once the configured number of tasks is waiting, it throws a {@link RejectedExecutionException}
+ * which the caller is expected to handle by dropping the work. {@link #executeUnbounded(Runnable)} and the scheduler never shed.
+ */
+public class ExecutionLane implements Executor {
+
+	private final String						name;
+	private final ScheduledThreadPoolExecutor	pool;
+	private final int							defaultThreads;
+	private final int							defaultQueueBound;
+	// 0 = unbounded
+	private volatile int						queueBound;
+	private final AtomicInteger					queued		= new AtomicInteger();
+	private final AtomicLong					rejected	= new AtomicLong();
+
+	ExecutionLane(String name, ThreadGroup group, int threads, int queueBound) {
+		this.name = name;
+		this.queueBound = queueBound;
+		defaultThreads = threads;
+		defaultQueueBound = queueBound;
+		String threadName = "mlDHT " + name;
+		pool = new ScheduledThreadPoolExecutor(threads, r -> {
+			Thread t = new Thread(group, r, threadName);
+			t.setUncaughtExceptionHandler((t1, e) -> DHT.log(e, LogLevel.Error));
+			t.setDaemon(true);
+			return t;
+		});
+		pool.setKeepAliveTime(20, TimeUnit.SECONDS);
+		pool.allowCoreThreadTimeOut(true);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @param queueBound tasks that may wait for a thread before {@link #execute(Runnable)} sheds work, 0 for no limit
+	 */
+	public void configure(int threads, int queueBound) {
+		if (threads < 1 || queueBound < 0)
+			throw new IllegalArgumentException("invalid lane configuration " + threads + " threads, " + queueBound + " queue bound");
+		pool.setCorePoolSize(threads);
+		this.queueBound = queueBound;
+	}
+
+	public int getDefaultThreads() {
+		return defaultThreads;
+	}
+
+	public int getDefaultQueueBound() {
+		return defaultQueueBound;
+	}
+
+	public ScheduledExecutorService getScheduler() {
+		return pool;
+	}
+
+	/**
+	 * @throws RejectedExecutionException if the queue bound is reached
+	 */
+	@Override
+	public void execute(Runnable r) {
+		int bound = queueBound;
+		if (bound > 0 && queued.get() >= bound) {
+			rejected.incrementAndGet();
+			throw new RejectedExecutionException(name + " lane is saturated");
+		}
+		executeUnbounded(r);
+	}
+
+	/**
+	 * for work that must not be lost, it still counts towards the queue bound
+	 */
+	public void executeUnbounded(Runnable r) {
+		queued.incrementAndGet();
+		pool.execute(() -> {
+			queued.decrementAndGet();
+			r.run();
+		});
+	}
+
+	public int getThreadCount() {
+		return pool.getCorePoolSize();
+	}
+
+	public int getBusyThreads() {
+		return pool.getActiveCount();
+	}
+
+	/**
+	 * @return tasks that could run but wait for a thread, including scheduled tasks that are due
+	 */
+	public int getReadyTasks() {
+		int ready = 0;
+		for (Runnable r : pool.getQueue())
+			if (r instanceof Delayed && ((Delayed) r).getDelay(TimeUnit.NANOSECONDS) <= 0)
+				ready++;
+		return ready;
+	}
+
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	void registerMetrics(MetricsRegistry metrics) {
+		metrics.gauge("mldht_executor_threads", "Threads configured for the execution lane", () -> getThreadCount(), "lane", name);
+		metrics.gauge("mldht_executor_busy_threads", "Threads of the execution lane that are running a task", () -> getBusyThreads(), "lane", name);
+		metrics.gauge("mldht_executor_ready_tasks", "Tasks of the execution lane that are due but wait for a thread", () -> getReadyTasks(), "lane", name);
+		metrics.gauge("mldht_executor_queue_bound", "Waiting tasks at which the execution lane sheds work, 0 if unbounded", () -> queueBound, "lane", name);
+	}
+
+	void purge(Collection<?> tasks) {
+		pool.getQueue().removeAll(tasks);
+	}
+
+	@Override
+	public String toString() {
+		return name + " lane: threads:" + getThreadCount() + " busy:" + getBusyThreads() + " queued:" + queued.get() + "/" + (queueBound == 0 ? "unbounded" : queueBound) + " rejected:" + rejected.get();
+	}
+}
@@ -284,7 +284,7 @@ public class KBucket implements Externalizable {
 		if (activeServer == null)
 			return false;
 		
-		new RPCCall(activeServer, p).setExpectedID(entry.getID()).addListener(listener).addListener(new RPCCallListener() {
+		new RPCCall(activeServer, p).setExpectedID(entry.getID()).setPriority(SendPriority.MAINTENANCE).addListener(listener).addListener(new RPCCallListener() {
 			public void onTimeout(RPCCall c) {
 				pendingPings.remove(entry.getID());
 			}
@@ -254,6 +254,24 @@ public class Key implements Radixable<Key>, Serializable {
 
 		return distance(this, x);
 	}
+
+	/**
+	 * @return the leading 64 bits of the XOR distance between this key and x, to be compared as unsigned long.
+	 * Does not allocate, unlike {@link #distance(Key)}
+	 */
+	public long leadingDistanceBits(Key x) {
+		long bits = 0;
+		for (int i = 0; i < 8; i++)
+			bits = bits << 8 | ((hash[i] ^ x.hash[i]) & 0xFF);
+		return bits;
+	}
+
+	/**
+	 * @return the leading 64 bits of this key
+	 */
+	public long leadingBits() {
+		return leadingDistanceBits(MIN_KEY);
+	}
 	
 	/**
 	 * calculates log2(this - otherKey % 2^161).<br />
@@ -38,6 +38,7 @@ import java.util.concurrent.ThreadLocalRandom;
 
 import lbms.plugins.mldht.DHTConfiguration;
 import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.jfr.FlightRecorderEvents;
 import lbms.plugins.mldht.kad.messages.MessageBase;
 import lbms.plugins.mldht.kad.messages.MessageBase.Type;
 import lbms.plugins.mldht.kad.tasks.NodeLookup;
@@ -86,12 +87,15 @@ public class Node {
 	private volatile Map<InetAddress, RoutingTableEntry> knownNodes = new HashMap<InetAddress, RoutingTableEntry>();
 	
 	private static Map<String,Serializable> dataStore;
+	// standalone DHTs neither share nor persist their ID
+	private final Key standaloneID;
 
 	/**
 	 * @param srv
 	 */
 	public Node(DHT dht) {
 		this.dht = dht;
+		standaloneID = dht.isStandalone() ? Key.createRandomKey() : null;
 		num_receives = 0;
 		numEntries = 0;
 		
@@ -243,6 +247,8 @@ public class Node {
 			newTable.add(new RoutingTableEntry(entry.prefix.splitPrefixBranch(true), new KBucket(this)));
 			Collections.sort(newTable);
 			routingTableCOW = newTable;
+			if (FlightRecorderEvents.ENABLED)
+				FlightRecorderEvents.routingTableSplit(entry.prefix, newTable.size());
 			for (KBucketEntry e : entry.bucket.getEntries())
 				insertEntry(e, true);
 			for (KBucketEntry e : entry.bucket.getReplacementEntries())
@@ -279,6 +285,8 @@ public class Node {
 	 * @return OurID
 	 */
 	public Key getRootID () {
+		if (standaloneID != null)
+			return standaloneID;
 		if (dataStore != null)
 			return (Key)dataStore.get("commonKey");
 		// return a fake key if we're not initialized yet
@@ -367,6 +375,8 @@ public class Node {
 						newTable.add(new RoutingTableEntry(e2.prefix.getParentPrefix(), e2.getBucket()));
 						Collections.sort(newTable);
 						routingTableCOW = newTable;
+						if (FlightRecorderEvents.ENABLED)
+							FlightRecorderEvents.routingTableMerge(e2.prefix.getParentPrefix(), "empty_sibling", newTable.size());
 						i--;continue;
 					}
 
@@ -377,6 +387,8 @@ public class Node {
 						newTable.add(new RoutingTableEntry(e1.prefix.getParentPrefix(), e1.getBucket()));
 						Collections.sort(newTable);
 						routingTableCOW = newTable;
+						if (FlightRecorderEvents.ENABLED)
+							FlightRecorderEvents.routingTableMerge(e1.prefix.getParentPrefix(), "empty_sibling", newTable.size());
 						i--;continue;
 
 					}
@@ -389,6 +401,8 @@ public class Node {
 						newTable.add(new RoutingTableEntry(e1.prefix.getParentPrefix(), new KBucket(this)));
 						Collections.sort(newTable);
 						routingTableCOW = newTable;
+						if (FlightRecorderEvents.ENABLED)
+							FlightRecorderEvents.routingTableMerge(e1.prefix.getParentPrefix(), "underfull", newTable.size());
 						// no need to carry over replacements. there shouldn't be any, otherwise the bucket(s) would be full
 						for (KBucketEntry e : e1.bucket.getEntries())
 							insertEntry(e, true);
@@ -505,7 +519,8 @@ public class Node {
 	 * @throws IOException
 	 */
 	void saveTable(File file) throws IOException {
-		
+		if (standaloneID != null)
+			return;
 		
 		Path saveTo = file.toPath();
 		
@@ -568,6 +583,8 @@ public class Node {
 	 * @throws IOException
 	 */
 	void loadTable () {
+		if (standaloneID != null)
+			return;
 
 		try {
 			Map<String,Serializable> table = (Map<String,Serializable>)dataStore.get("table"+dht.getType().name());
@@ -0,0 +1,109 @@
+/*
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A set of lock-free FIFO queues, one per {@link SendPriority}, each with its own bound. {@link #poll()} always serves the most important
+ * class first.
+ *
+ * Sizes are tracked separately from the queues and may briefly be off by the number of concurrent producers, the bound is never exceeded.
+ */
+public class OutboundQueue<T> {
+	
+	private static final SendPriority[]	CLASSES	= SendPriority.values();
+	
+	private final Queue<T>[]			queues;
+	private final AtomicIntegerArray	sizes	= new AtomicIntegerArray(CLASSES.length);
+	
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public OutboundQueue() {
+		queues = new Queue[CLASSES.length];
+		for (int i = 0; i < CLASSES.length; i++)
+			queues[i] = new ConcurrentLinkedQueue<T>();
+	}
+	
+	/**
+	 * @return false if the class already is at its bound
+	 */
+	public boolean offer(T item, SendPriority p) {
+		int i = p.ordinal();
+		if (sizes.incrementAndGet(i) > p.bound) {
+			sizes.decrementAndGet(i);
+			return false;
+		}
+		queues[i].add(item);
+		return true;
+	}
+	
+	/**
+	 * @return the oldest item of the most important non-empty class, null if all are empty
+	 */
+	public T poll() {
+		for (int i = 0; i < queues.length; i++) {
+			T item = poll(i);
+			if (item != null)
+				return item;
+		}
+		return null;
+	}
+	
+	public T poll(SendPriority p) {
+		return poll(p.ordinal());
+	}
+	
+	private T poll(int i) {
+		T item = queues[i].poll();
+		if (item != null)
+			sizes.decrementAndGet(i);
+		return item;
+	}
+	
+	public T peek(SendPriority p) {
+		return queues[p.ordinal()].peek();
+	}
+	
+	public void clear() {
+		for (int i = 0; i < queues.length; i++)
+			while (poll(i) != null);
+	}
+	
+	public boolean hasRoom(SendPriority p) {
+		return sizes.get(p.ordinal()) < p.bound;
+	}
+	
+	public boolean isEmpty() {
+		for (Queue<T> q : queues)
+			if (!q.isEmpty())
+				return false;
+		return true;
+	}
+	
+	public int size(SendPriority p) {
+		return Math.max(0, sizes.get(p.ordinal()));
+	}
+	
+	public int size() {
+		int total = 0;
+		for (SendPriority p : CLASSES)
+			total += size(p);
+		return total;
+	}
+}
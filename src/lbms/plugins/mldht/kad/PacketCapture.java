@@ -0,0 +1,267 @@
+/*
+ *    This file is part of mlDHT.
+ * 
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ * 
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ * 
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+
+/**
+ * Records the datagrams of a {@link RPCServer} to a file, see {@link RPCServer#setCapture(PacketCapture)}.
+ *
+ * Incoming datagrams are recorded before any filtering, outgoing ones once they have been handed to the socket.
+ * The capture can be fed back into a server with {@link PacketReplay}.
+ *
+ * Binary format, big endian: magic "MLPC", version (1 byte), start time (epoch millis, 8 bytes), local address length (1 byte, 0 if unknown),
+ * local address, local port (2 bytes), then per datagram until the end of the file:
+ * direction (1 byte, 0 incoming, 1 outgoing), time delta to the previous datagram in microseconds (unsigned varint),
+ * address length (1 byte), remote address, remote port (2 bytes), payload length (unsigned varint), payload
+ */
+public class PacketCapture implements Closeable {
+
+	public enum Direction {
+		INCOMING, OUTGOING
+	}
+
+	private static final int			VERSION			= 1;
+	private static final Direction[]	DIRECTIONS		= Direction.values();
+
+	private final Path					file;
+	private final long					startNanos		= System.nanoTime();
+	// guarded by this
+	private final DataOutputStream		out;
+	private byte[]						scratch			= new byte[DHTConstants.RECEIVE_BUFFER_SIZE];
+	private long						lastMicros;
+	private long						records;
+	private long						bytes;
+	private boolean						closed;
+
+	/**
+	 * @param localAddress address of the capturing server, may be null
+	 */
+	public PacketCapture(Path file, InetSocketAddress localAddress) throws IOException {
+		this.file = file;
+		out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024));
+		out.writeBytes("MLPC");
+		out.writeByte(VERSION);
+		out.writeLong(System.currentTimeMillis());
+		writeAddress(out, localAddress);
+	}
+
+	private static void writeAddress(DataOutputStream out, InetSocketAddress addr) throws IOException {
+		if (addr == null) {
+			out.writeByte(0);
+			out.writeShort(0);
+			return;
+		}
+		byte[] raw = addr.getAddress().getAddress();
+		out.writeByte(raw.length);
+		out.write(raw);
+		out.writeShort(addr.getPort());
+	}
+
+	private static InetSocketAddress readAddress(DataInputStream in) throws IOException {
+		int length = in.readUnsignedByte();
+		byte[] raw = new byte[length];
+		in.readFully(raw);
+		int port = in.readUnsignedShort();
+		if (length == 0)
+			return null;
+		return new InetSocketAddress(InetAddress.getByAddress(raw), port);
+	}
+
+	private static void writeVarLong(DataOutputStream out, long v) throws IOException {
+		while ((v & ~0x7FL) != 0) {
+			out.writeByte((int) (v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.writeByte((int) v);
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			v |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return v;
+		}
+		throw new IOException("malformed varint");
+	}
+
+	/**
+	 * Appends a datagram to the capture. The position of the buffer is not modified.
+	 * Write errors are logged and end the capture.
+	 */
+	public synchronized void record(Direction direction, InetSocketAddress remote, ByteBuffer data) {
+		if (closed)
+			return;
+		int length = data.remaining();
+		try {
+			long micros = (System.nanoTime() - startNanos) / 1000;
+			out.writeByte(direction.ordinal());
+			writeVarLong(out, micros - lastMicros);
+			lastMicros = micros;
+			writeAddress(out, remote);
+			writeVarLong(out, length);
+			if (data.hasArray()) {
+				out.write(data.array(), data.arrayOffset() + data.position(), length);
+			} else {
+				if (scratch.length < length)
+					scratch = new byte[length];
+				data.duplicate().get(scratch, 0, length);
+				out.write(scratch, 0, length);
+			}
+			records++;
+			bytes += length;
+		} catch (IOException e) {
+			DHT.log(new IOException("packet capture to " + file + " failed", e), LogLevel.Error);
+			closeQuietly();
+		}
+	}
+
+	public synchronized long getRecordCount() {
+		return records;
+	}
+
+	public synchronized long getByteCount() {
+		return bytes;
+	}
+
+	private void closeQuietly() {
+		closed = true;
+		try {
+			out.close();
+		} catch (IOException e) {
+			DHT.log(e, LogLevel.Error);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		out.close();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "packet capture " + file + " datagrams:" + records + " bytes:" + bytes + (closed ? " closed" : "");
+	}
+
+	public static class Record {
+		public final Direction			direction;
+		/**
+		 * microseconds since the start of the capture
+		 */
+		public final long				time;
+		public final InetSocketAddress	address;
+		public final ByteBuffer			data;
+
+		Record(Direction direction, long time, InetSocketAddress address, ByteBuffer data) {
+			this.direction = direction;
+			this.time = time;
+			this.address = address;
+			this.data = data;
+		}
+
+		@Override
+		public String toString() {
+			return direction + " " + time + "us " + address + " length:" + data.remaining();
+		}
+	}
+
+	public static class Reader implements Closeable {
+
+		private final DataInputStream		in;
+		private final long					startTime;
+		private final InetSocketAddress		localAddress;
+		private long						time;
+
+		public Reader(Path file) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024));
+			byte[] magic = new byte[4];
+			in.readFully(magic);
+			if (magic[0] != 'M' || magic[1] != 'L' || magic[2] != 'P' || magic[3] != 'C') {
+				in.close();
+				throw new IOException(file + " is not a packet capture");
+			}
+			int version = in.readUnsignedByte();
+			if (version != VERSION) {
+				in.close();
+				throw new IOException("unsupported packet capture version " + version);
+			}
+			startTime = in.readLong();
+			localAddress = readAddress(in);
+		}
+
+		/**
+		 * @return epoch millis at which the capture was started
+		 */
+		public long getStartTime() {
+			return startTime;
+		}
+
+		/**
+		 * @return address of the capturing server, null if unknown
+		 */
+		public InetSocketAddress getLocalAddress() {
+			return localAddress;
+		}
+
+		/**
+		 * @return the next datagram, null at the end of the capture
+		 */
+		public Record next() throws IOException {
+			int direction = in.read();
+			if (direction < 0)
+				return null;
+			if (direction >= DIRECTIONS.length)
+				throw new IOException("invalid direction " + direction);
+			try {
+				time += readVarLong(in);
+				InetSocketAddress addr = readAddress(in);
+				long length = readVarLong(in);
+				if (length > DHTConstants.RECEIVE_BUFFER_SIZE)
+					throw new IOException("datagram of " + length + " bytes exceeds the receive buffer");
+				byte[] payload = new byte[(int) length];
+				in.readFully(payload);
+				return new Record(DIRECTIONS[direction], time, addr, ByteBuffer.wrap(payload));
+			} catch (EOFException e) {
+				// the capturing process may have been killed mid-write
+				return null;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ *    This file is part of mlDHT.
+ * 
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ * 
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ * 
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import lbms.plugins.mldht.DHTConfiguration;
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+
+/**
+ * Feeds the incoming datagrams of a {@link PacketCapture} into a server, e.g. to benchmark the receive path offline.
+ *
+ * Datagrams are processed on the calling thread in the order they were captured and go through the same filters as socket reads,
+ * followed by decoding and message handling. Outgoing datagrams in the capture are skipped, whatever the server sends in response goes to its
+ * {@link DatagramTransport}. Responses in the capture will not match any of the server's calls and are dropped as unexpected.
+ *
+ * Note that the spam throttle works on wall-clock time, replaying faster than recorded makes it drop more datagrams.
+ */
+public class PacketReplay {
+
+	private final RPCServer		target;
+	private double				speed;
+
+	private long				replayed;
+	private long				replayedBytes;
+	private long				skipped;
+	private long				elapsedNanos;
+
+	public PacketReplay(RPCServer target) {
+		this.target = target;
+	}
+
+	/**
+	 * @param speed multiple of the recorded pacing, 1 replays in real time, 0 replays as fast as possible
+	 */
+	public void setSpeed(double speed) {
+		if (!(speed >= 0))
+			throw new IllegalArgumentException("speed must not be negative");
+		this.speed = speed;
+	}
+
+	public void run(PacketCapture.Reader reader) throws IOException {
+		long start = System.nanoTime();
+		PacketCapture.Record r;
+		while ((r = reader.next()) != null) {
+			if (r.direction != PacketCapture.Direction.INCOMING || r.address == null) {
+				skipped++;
+				continue;
+			}
+
+			if (speed > 0) {
+				long due = start + (long) (TimeUnit.MICROSECONDS.toNanos(r.time) / speed);
+				long delay;
+				while ((delay = due - System.nanoTime()) > 0)
+					LockSupport.parkNanos(delay);
+			}
+
+			replayedBytes += r.data.remaining();
+			target.received(r.data, r.address, Runnable::run);
+			replayed++;
+		}
+		elapsedNanos += System.nanoTime() - start;
+	}
+
+	public long getReplayedCount() {
+		return replayed;
+	}
+
+	public long getReplayedBytes() {
+		return replayedBytes;
+	}
+
+	@Override
+	public String toString() {
+		double seconds = elapsedNanos / 1e9;
+		return "replayed " + replayed + " datagrams (" + replayedBytes + " bytes, " + skipped + " skipped) in " + String.format("%.3f", seconds) + "s, " +
+				String.format("%.0f", seconds > 0 ? replayed / seconds : 0) + " datagrams/s";
+	}
+
+	/**
+	 * Replays a capture into a DHT that is not connected to the network.
+	 *
+	 * usage: PacketReplay &lt;capture file&gt; [speed]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("usage: PacketReplay <capture file> [speed, 0 = as fast as possible]");
+			System.exit(1);
+		}
+
+		Path storage = Files.createTempDirectory("mldht-replay");
+
+		try (PacketCapture.Reader reader = new PacketCapture.Reader(Paths.get(args[0]))) {
+			InetSocketAddress local = reader.getLocalAddress();
+			if (local == null)
+				local = new InetSocketAddress(InetAddress.getByAddress(new byte[4]), 49001);
+			DHTtype type = local.getAddress().getAddress().length == 4 ? DHTtype.IPV4_DHT : DHTtype.IPV6_DHT;
+			int port = local.getPort();
+
+			DHTConfiguration config = new DHTConfiguration() {
+				public boolean noRouterBootstrap() {
+					return true;
+				}
+
+				public boolean isPersistingID() {
+					return false;
+				}
+
+				public File getNodeCachePath() {
+					return storage.resolve("nodes.cache").toFile();
+				}
+
+				public int getListeningPort() {
+					return port;
+				}
+
+				public boolean allowMultiHoming() {
+					return false;
+				}
+			};
+
+			AtomicLong responses = new AtomicLong();
+			AtomicLong responseBytes = new AtomicLong();
+			DatagramTransport sink = (ByteBuffer data, InetSocketAddress destination) -> {
+				responses.incrementAndGet();
+				responseBytes.addAndGet(data.remaining());
+				return data.remaining();
+			};
+
+			DHT dht = DHT.createDHTs().get(type);
+			dht.start(config, local, sink);
+			RPCServer srv = dht.getServerManager().getAllServers().get(0);
+
+			PacketReplay replay = new PacketReplay(srv);
+			replay.setSpeed(args.length > 1 ? Double.parseDouble(args[1]) : 0);
+			replay.run(reader);
+
+			System.out.println(replay);
+			System.out.println("sent " + responses + " datagrams (" + responseBytes + " bytes)");
+			System.out.println(srv.getStats());
+			dht.stop();
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad;
+
+import lbms.plugins.mldht.utils.metrics.Histogram;
+import lbms.plugins.mldht.utils.metrics.MetricsRegistry;
+
+/**
+ * Per-stage latency histograms of the datagram pipeline of a single {@link RPCServer}, in microseconds.
+ *
+ * Stages are delimited by {@link System#nanoTime()} timestamps taken at the hand-over points, so each datagram costs a few
+ * timestamps and histogram updates but no allocations. Comparing the queue stages shows whether the executor or the socket is
+ * the bottleneck under load.
+ */
+public class PipelineTimings {
+
+	public enum Stage {
+		/** from the selector wakeup until the datagram has been read off the socket, includes earlier datagrams of the same wakeup */
+		READ,
+		/** from the read until a thread of {@link DHT#getPacketLane()} picks up the datagram */
+		EXECUTOR_QUEUE,
+		/** bdecoding and message parsing */
+		DECODE,
+		/** call matching and the message handlers. replies are usually written right away, so this includes their {@link #SEND} stage */
+		HANDLER,
+		/** requests waiting for a free call slot */
+		CALL_QUEUE,
+		/** outgoing messages waiting to be written to the socket */
+		SEND_QUEUE,
+		/** encoding and writing a single outgoing message */
+		SEND;
+
+		final String	label	= name().toLowerCase();
+	}
+
+	static final String				METRIC_NAME	= "mldht_pipeline_stage_seconds";
+	// anything above that is a stall, precision doesn't matter anymore
+	static final long				MAX_MICROS	= 10 * 1000 * 1000;
+	private static final Stage[]	STAGES		= Stage.values();
+
+	private final Histogram[]		histograms	= new Histogram[STAGES.length];
+
+	PipelineTimings(MetricsRegistry metrics, String serverLabel) {
+		for (Stage s : STAGES)
+			histograms[s.ordinal()] = metrics.histogram(METRIC_NAME, "Time spent by datagrams in each stage of the server pipeline", MAX_MICROS, 0.000001, "server", serverLabel, "stage", s.label);
+	}
+
+	void unregister(MetricsRegistry metrics, String serverLabel) {
+		for (Stage s : STAGES)
+			metrics.remove(METRIC_NAME, "server", serverLabel, "stage", s.label);
+	}
+
+	/**
+	 * @return the current time, so that it can serve as the start of the next stage
+	 */
+	long record(Stage stage, long startNanos) {
+		long now = System.nanoTime();
+		record(stage, startNanos, now);
+		return now;
+	}
+
+	void record(Stage stage, long startNanos, long endNanos) {
+		histograms[stage.ordinal()].record((endNanos - startNanos) / 1000);
+	}
+
+	public Histogram get(Stage stage) {
+		return histograms[stage.ordinal()];
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder b = new StringBuilder();
+		for (Stage s : STAGES)
+			b.append(s.label).append(" (us): ").append(histograms[s.ordinal()]).append('\n');
+		return b.toString();
+	}
+}
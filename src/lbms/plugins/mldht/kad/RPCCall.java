@@ -22,6 +22,8 @@ import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.jfr.FlightRecorderEvents;
+import lbms.plugins.mldht.kad.messages.AbstractLookupRequest;
 import lbms.plugins.mldht.kad.messages.MessageBase;
 import lbms.plugins.mldht.kad.messages.MessageBase.Method;
 import lbms.plugins.mldht.kad.messages.MessageBase.Type;
@@ -42,6 +44,9 @@ public class RPCCall {
 	private long					sentTime		= -1;
 	private long					responseTime	= -1;
 	private Key						expectedID;
+	private SendPriority			priority		= SendPriority.LOOKUP;
+	// when the call was put into the call queue of the server
+	long							queuedNanos;
 	
 
 	public RPCCall (RPCServer srv, MessageBase msg) {
@@ -56,6 +61,18 @@ public class RPCCall {
 		return this;
 	}
 	
+	/**
+	 * @param priority traffic class of the request in the queues of the server, has to be set before the call is started
+	 */
+	public RPCCall setPriority(SendPriority priority) {
+		this.priority = priority;
+		return this;
+	}
+	
+	public SendPriority getPriority() {
+		return priority;
+	}
+	
 	public boolean matchesExpectedID(Key id) {
 		return expectedID == null || id.equals(expectedID);
 	}
@@ -115,10 +132,18 @@ public class RPCCall {
 	}
 	
 
-	void sent() {
+	/**
+	 * called right before the request is handed to the socket, a response on loopback can be processed before the send call returns.
+	 * only the first attempt counts if the socket was full
+	 */
+	synchronized void sent() {
+		if (sentTime != -1)
+			return;
 		awaitingResponse = true;
 		sentTime = System.currentTimeMillis();
 		
+		if (FlightRecorderEvents.ENABLED)
+			FlightRecorderEvents.rpcSent(msg.getMethod(), msg.getDestination(), msg instanceof AbstractLookupRequest ? ((AbstractLookupRequest) msg).getTarget() : null, rpc.getNumActiveRPCCalls());
 		
 		timeoutTimer = DHT.getScheduler().schedule(new Runnable() {
 			public void run () {
@@ -147,6 +172,9 @@ public class RPCCall {
 		TimeUnit.MICROSECONDS);
 	}
 
+	/**
+	 * also used for calls that were never dispatched, those have no transaction ID
+	 */
 	void sendFailed() {
 		// fudge it, never sent it in the first place
 		awaitingResponse = true;
@@ -158,6 +186,8 @@ public class RPCCall {
 			return;
 		awaitingResponse = false;
 		responseTime = System.currentTimeMillis();
+		if (FlightRecorderEvents.ENABLED)
+			FlightRecorderEvents.rpcResponded(msg.getMethod(), msg.getDestination(), responseTime - sentTime, stalled);
 		
 		if (listeners != null) {
 			for (int i = 0; i < listeners.size(); i++) {
@@ -175,7 +205,10 @@ public class RPCCall {
 			return;
 		awaitingResponse = false;
 		
-		DHT.logDebug("RPCCall timed out ID: " + new String(msg.getMTID()));
+		byte[] mtid = msg.getMTID();
+		DHT.logDebug(mtid != null ? "RPCCall timed out ID: " + new String(mtid) : "RPCCall to " + msg.getDestination() + " failed before it was sent");
+		if (FlightRecorderEvents.ENABLED && sentTime != -1)
+			FlightRecorderEvents.rpcTimedOut(msg.getMethod(), msg.getDestination(), System.currentTimeMillis() - sentTime);
 
 		for (int i = 0; i < listeners.size(); i++) {
 			try {
@@ -194,6 +227,8 @@ public class RPCCall {
 		stalled = true;
 		
 		DHT.logDebug("RPCCall stalled ID: " + new String(msg.getMTID()));
+		if (FlightRecorderEvents.ENABLED)
+			FlightRecorderEvents.rpcStalled(msg.getMethod(), msg.getDestination(), System.currentTimeMillis() - sentTime);
 		if (listeners != null) {
 			for (int i = 0; i < listeners.size(); i++) {
 				try {
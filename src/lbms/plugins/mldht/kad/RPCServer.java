@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.SocketOption;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
@@ -29,24 +30,27 @@ import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
+import lbms.plugins.mldht.kad.AdmissionControl.QueryClass;
 import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.jfr.FlightRecorderEvents;
 import lbms.plugins.mldht.kad.messages.ErrorMessage;
 import lbms.plugins.mldht.kad.messages.ErrorMessage.ErrorCode;
 import lbms.plugins.mldht.kad.messages.FindNodeResponse;
 import lbms.plugins.mldht.kad.messages.MessageBase;
 import lbms.plugins.mldht.kad.messages.MessageBase.Type;
-import lbms.plugins.mldht.kad.messages.AnnounceRequest;
-import lbms.plugins.mldht.kad.messages.FindNodeRequest;
-import lbms.plugins.mldht.kad.messages.GetPeersRequest;
 import lbms.plugins.mldht.kad.messages.MessageDecoder;
 import lbms.plugins.mldht.kad.messages.MessageException;
 import lbms.plugins.mldht.kad.messages.PingRequest;
@@ -55,8 +59,12 @@ import lbms.plugins.mldht.kad.utils.AddressUtils;
 import lbms.plugins.mldht.kad.utils.ByteWrapper;
 import lbms.plugins.mldht.kad.utils.ResponseTimeoutFilter;
 import lbms.plugins.mldht.kad.utils.ThreadLocalUtils;
+import lbms.plugins.mldht.utils.ByteBufferPool;
 import lbms.plugins.mldht.utils.NIOConnectionManager;
 import lbms.plugins.mldht.utils.Selectable;
+import lbms.plugins.mldht.utils.metrics.Counter;
+import lbms.plugins.mldht.utils.metrics.Histogram;
+import lbms.plugins.mldht.utils.metrics.MetricsRegistry;
 import the8472.bencode.Utils;
 
 /**
@@ -65,12 +73,23 @@ import the8472.bencode.Utils;
  */
 public class RPCServer {
 	
+	static final String								LOG_SUBSYSTEM = "rpc";
+	// socket buffers also account for kernel metadata, roughly a kilobyte per datagram on linux
+	static final int								DATAGRAM_OVERHEAD_ESTIMATE = 1024;
+	// encoded messages whose buffers are kept for reuse, bursts beyond that allocate
+	static final int								SEND_BUFFER_POOL_SIZE = 256;
+	
 	private InetAddress								addr;
 	private DHT										dht;
 	private RPCServerManager						manager;
 	private ConcurrentMap<ByteWrapper, RPCCall>		calls;
-	private Queue<RPCCall>							call_queue;
-	private Queue<EnqueuedSend>						pipeline;
+	private OutboundQueue<RPCCall>					call_queue;
+	// only used with a transport, sockets have their own queues
+	private OutboundQueue<EnqueuedSend>				pipeline;
+	// explicit accounting, sizing the queue itself would be O(n)
+	private final AtomicInteger						queuedPackets	= new AtomicInteger();
+	private final AtomicLong						queuedBytes		= new AtomicLong();
+	private final ByteBufferPool					sendBuffers;
 	private volatile int							numReceived;
 	private volatile int							numSent;
 	private int										port;
@@ -80,6 +99,20 @@ public class RPCServer {
 	private Key										derivedId;
 	private InetSocketAddress						consensusExternalAddress;
 	private SpamThrottle 							throttle = new SpamThrottle();
+	private final String							metricsLabel;
+	private final Histogram							rttMetric;
+	private final PipelineTimings					timings;
+	private final Counter							droppedJunk;
+	private final Counter							droppedThrottled;
+	private final Counter							droppedOverload;
+	private final Counter							droppedUndecodable;
+	private final Counter							droppedInvalid;
+	private final Counter							droppedMismatched;
+	private final Counter							droppedUnexpected;
+	private final Counter[]							outboundDropped	= new Counter[SendPriority.values().length];
+	private final Counter[]							outboundDeferred	= new Counter[SendPriority.values().length];
+	private final AdmissionControl					admission		= new AdmissionControl();
+	private final Counter[]							queriesShed		= new Counter[QueryClass.values().length];
 	
 	private LinkedHashMap<InetAddress, InetSocketAddress> originPairs  = new LinkedHashMap<InetAddress, InetSocketAddress>(64, 0.75f, true) {
 		@Override
@@ -96,20 +129,58 @@ public class RPCServer {
 	private long	timeOfLastReceiveCountChange = 0;
 	
 
-	private SocketHandler sel;
+	// all sockets share this server's identity and call table. more than one only with SO_REUSEPORT
+	private volatile SocketHandler[] shards = new SocketHandler[0];
+	private final AtomicBoolean stopped = new AtomicBoolean();
+	// null before java 9
+	private static final SocketOption<Boolean> REUSE_PORT = reusePortOption();
+	private DatagramTransport transport;
+	private final Object transportWriteLock = new Object();
+	private volatile PacketCapture capture;
 
 	public RPCServer (RPCServerManager manager, InetAddress addr, int port, RPCStats stats) {
 		this.port = port;
 		this.dht = manager.dht;
 		timeoutFilter = new ResponseTimeoutFilter();
-		pipeline = new ConcurrentLinkedQueue<EnqueuedSend>();
+		pipeline = new OutboundQueue<EnqueuedSend>();
+		sendBuffers = new ByteBufferPool(dht.getType().MAX_PACKET_SIZE, SEND_BUFFER_POOL_SIZE, true);
 		calls = new ConcurrentHashMap<ByteWrapper, RPCCall>(80,0.75f,3);
-		call_queue = new ConcurrentLinkedQueue<RPCCall>();
+		call_queue = new OutboundQueue<RPCCall>();
 		this.stats = stats;
 		this.addr = addr;
 		this.manager = manager;
 		// reserve an ID
 		derivedId = dht.getNode().registerServer(this);
+
+		MetricsRegistry metrics = dht.getMetrics();
+		metricsLabel = addr.getHostAddress();
+		rttMetric = metrics.histogram("mldht_rpc_rtt_seconds", "Round trip time of requests that received a response", DHTConstants.RPC_CALL_TIMEOUT_MAX, 0.001, "server", metricsLabel);
+		timings = new PipelineTimings(metrics, metricsLabel);
+		droppedJunk = droppedCounter(metrics, "junk");
+		droppedThrottled = droppedCounter(metrics, "throttled");
+		droppedOverload = droppedCounter(metrics, "overload");
+		droppedUndecodable = droppedCounter(metrics, "invalid_bencoding");
+		droppedInvalid = droppedCounter(metrics, "invalid_message");
+		droppedMismatched = droppedCounter(metrics, "mtid_mismatch");
+		droppedUnexpected = droppedCounter(metrics, "unexpected_response");
+		metrics.gauge("mldht_rpc_send_queue_length", "Messages waiting to be written to the socket", () -> queuedPackets.get(), "server", metricsLabel);
+		metrics.gauge("mldht_rpc_send_queue_bytes", "Encoded bytes waiting to be written to the socket", () -> queuedBytes.get(), "server", metricsLabel);
+		metrics.gauge("mldht_rpc_call_queue_length", "Requests waiting for a free call slot", () -> call_queue.size(), "server", metricsLabel);
+		metrics.gauge("mldht_rpc_active_calls", "Requests waiting for a response", () -> calls.size(), "server", metricsLabel);
+		for (SendPriority p : SendPriority.values()) {
+			outboundDropped[p.ordinal()] = metrics.counter("mldht_rpc_outbound_dropped_total", "Outbound messages dropped because the queue of their class was full", "server", metricsLabel, "class", p.label());
+			outboundDeferred[p.ordinal()] = metrics.counter("mldht_rpc_outbound_deferred_total", "Requests that waited in the call queue because the send queue of their class was full", "server", metricsLabel, "class", p.label());
+			metrics.gauge("mldht_rpc_outbound_queue_length", "Outbound messages waiting per class and queue", () -> getSendQueueLength(p), "server", metricsLabel, "class", p.label(), "queue", "send");
+			metrics.gauge("mldht_rpc_outbound_queue_length", "Outbound messages waiting per class and queue", () -> call_queue.size(p), "server", metricsLabel, "class", p.label(), "queue", "call");
+		}
+		for (QueryClass c : QueryClass.values()) {
+			queriesShed[c.ordinal()] = metrics.counter("mldht_rpc_queries_shed_total", "Incoming queries dropped by admission control", "server", metricsLabel, "class", c.label());
+			metrics.gauge("mldht_rpc_admission_drop_probability", "Current probability that admission control drops an incoming query", () -> admission.getDropProbability(c), "server", metricsLabel, "class", c.label());
+		}
+	}
+
+	private static Counter droppedCounter(MetricsRegistry metrics, String reason) {
+		return metrics.counter("mldht_packets_dropped_total", "Incoming packets that were discarded", "reason", reason);
 	}
 	
 	public DHT getDHT() {
@@ -128,9 +199,10 @@ public class RPCServer {
 	 * @return external addess, if known (only ipv6 for now)
 	 */
 	public InetAddress getPublicAddress() {
-		if (sel == null)
+		SocketHandler[] s = shards;
+		if (s.length == 0)
 			return null;
-		InetAddress addr = ((DatagramChannel)sel.getChannel()).socket().getLocalAddress();
+		InetAddress addr = ((DatagramChannel)s[0].getChannel()).socket().getLocalAddress();
 		if (dht.getType().PREFERRED_ADDRESS_TYPE.isInstance(addr) && AddressUtils.isGlobalUnicast(addr))
 			return addr;
 		return null;
@@ -148,19 +220,107 @@ public class RPCServer {
 	 */
 	public void start() {
 		DHT.logInfo("Starting RPC Server");
-		sel = new SocketHandler();
+		timeoutFilter.reset();
+		
+		int count = dht.config.getSocketShards();
+		if (count > 1 && !isReusePortSupported()) {
+			DHT.logInfo("SO_REUSEPORT is not supported on this platform, using a single socket for " + addr);
+			count = 1;
+		}
+		
+		List<SocketHandler> opened = new ArrayList<SocketHandler>(count);
+		int bindPort = port;
+		for (int i = 0; i < count; i++) {
+			SocketHandler s = new SocketHandler(i, bindPort, count > 1);
+			if (s.channel == null || !s.channel.isOpen())
+				break;
+			opened.add(s);
+			// the remaining shards have to share the port the first one got if it was ephemeral
+			bindPort = s.channel.socket().getLocalPort();
+		}
+		shards = opened.toArray(new SocketHandler[opened.size()]);
 		startTime = Instant.now();
 	}
 	
-	public void stop() {
-		try {
-			sel.close();
+	/**
+	 * @return true if several sockets can be bound to the same address and port, see {@link lbms.plugins.mldht.DHTConfiguration#getSocketShards()}
+	 */
+	public static boolean isReusePortSupported() {
+		if (REUSE_PORT == null)
+			return false;
+		try (DatagramChannel chan = DatagramChannel.open()) {
+			return chan.supportedOptions().contains(REUSE_PORT);
 		} catch (IOException e) {
-			DHT.log(e, LogLevel.Error);
+			return false;
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> reusePortOption() {
+		// only exists on java 9 and later
+		try {
+			return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+	
+	public int getShardCount() {
+		return shards.length;
+	}
+	
+	/**
+	 * @return datagrams read by each socket, the kernel decides which one gets a datagram
+	 */
+	public long[] getShardReceiveCounts() {
+		SocketHandler[] s = shards;
+		long[] counts = new long[s.length];
+		for (int i = 0; i < s.length; i++)
+			counts[i] = s[i].datagramsRead.get();
+		return counts;
+	}
+	
+	/**
+	 * Starts the server without a socket, outgoing datagrams go to the transport and incoming ones have to be passed to {@link #deliver(ByteBuffer, InetSocketAddress)}
+	 */
+	public void start(DatagramTransport transport) {
+		DHT.logInfo("Starting RPC Server on a detached transport");
+		this.transport = transport;
+		timeoutFilter.reset();
+		startTime = Instant.now();
+	}
+	
+	public void stop() {
+		if (!stopped.compareAndSet(false, true))
+			return;
+		for (SocketHandler s : shards) {
+			try {
+				s.close();
+			} catch (IOException e) {
+				DHT.log(e, LogLevel.Error);
+			}
 		}
 		dht.getNode().removeServer(this);
 		manager.serverRemoved(this);
 		pipeline.clear();
+		queuedPackets.set(0);
+		queuedBytes.set(0);
+		MetricsRegistry metrics = dht.getMetrics();
+		for (String name : new String[] {"mldht_rpc_rtt_seconds", "mldht_rpc_send_queue_length", "mldht_rpc_send_queue_bytes", "mldht_rpc_call_queue_length", "mldht_rpc_active_calls"})
+			metrics.remove(name, "server", metricsLabel);
+		for (int i = 0; i < shards.length; i++)
+			metrics.remove("mldht_rpc_shard_datagrams_total", "server", metricsLabel, "shard", Integer.toString(i));
+		for (SendPriority p : SendPriority.values()) {
+			metrics.remove("mldht_rpc_outbound_dropped_total", "server", metricsLabel, "class", p.label());
+			metrics.remove("mldht_rpc_outbound_deferred_total", "server", metricsLabel, "class", p.label());
+			metrics.remove("mldht_rpc_outbound_queue_length", "server", metricsLabel, "class", p.label(), "queue", "send");
+			metrics.remove("mldht_rpc_outbound_queue_length", "server", metricsLabel, "class", p.label(), "queue", "call");
+		}
+		for (QueryClass c : QueryClass.values()) {
+			metrics.remove("mldht_rpc_queries_shed_total", "server", metricsLabel, "class", c.label());
+			metrics.remove("mldht_rpc_admission_drop_probability", "server", metricsLabel, "class", c.label());
+		}
+		timings.unregister(metrics, metricsLabel);
 	}
 
 
@@ -168,23 +328,76 @@ public class RPCServer {
 	 * @see lbms.plugins.mldht.kad.RPCServerBase#doCall(lbms.plugins.mldht.kad.messages.MessageBase)
 	 */
 	void doCall (RPCCall c) {
+		SendPriority p = c.getPriority();
+		boolean slotAvailable = calls.size() < DHTConstants.MAX_ACTIVE_CALLS;
+		boolean sendRoom = hasSendRoom(c);
+		
+		if (slotAvailable && sendRoom) {
+			dispatch(c);
+			return;
+		}
+		
+		if (!sendRoom && p.overflow == SendPriority.Overflow.DROP) {
+			outboundDropped[p.ordinal()].inc();
+			failUndispatched(c);
+			return;
+		}
 		
+		c.queuedNanos = System.nanoTime();
+		if (!call_queue.offer(c, p)) {
+			outboundDropped[p.ordinal()].inc();
+			failUndispatched(c);
+			return;
+		}
+		
+		if (!sendRoom)
+			outboundDeferred[p.ordinal()].inc();
+		else
+			DHT.logInfo("Queueing RPC call, no slots available at the moment");
+	}
+	
+	/**
+	 * The call never got a transaction ID or a slot. Its listeners are notified on another thread since the caller,
+	 * usually a task, is still in the middle of issuing requests and would otherwise recurse into itself.
+	 */
+	private void failUndispatched(RPCCall c) {
+		DHT.getScheduler().execute(c::sendFailed);
+	}
+	
+	private void dispatch(RPCCall c) {
 		while (true) {
-			
-			if (calls.size() >= DHTConstants.MAX_ACTIVE_CALLS) {
-				DHT.logInfo("Queueing RPC call, no slots available at the moment");
-				call_queue.add(c);
-				break;
-			}
 			byte[] mtid = new byte[6];
 			ThreadLocalUtils.getThreadLocalRandom().nextBytes(mtid);
 			if (calls.putIfAbsent(new ByteWrapper(mtid),c) == null) {
 				dispatchCall(c, mtid);
-				break;
+				return;
 			}
 		}
 	}
 	
+	private boolean hasSendRoom(RPCCall c) {
+		OutboundQueue<EnqueuedSend> q = sendQueueFor(c.getRequest().getDestination());
+		return q == null || q.hasRoom(c.getPriority());
+	}
+	
+	/**
+	 * @return null if the server has neither a transport nor a socket
+	 */
+	private OutboundQueue<EnqueuedSend> sendQueueFor(InetSocketAddress destination) {
+		if (transport != null)
+			return pipeline;
+		SocketHandler shard = shardFor(destination);
+		return shard == null ? null : shard.sendQueue;
+	}
+	
+	private SocketHandler shardFor(InetSocketAddress destination) {
+		SocketHandler[] s = shards;
+		if (s.length == 0)
+			return null;
+		// a destination sticks to one socket so that its packets leave in order
+		return s[Math.floorMod(destination.hashCode(), s.length)];
+	}
+	
 	private final RPCCallListener rpcListener = new RPCCallListener() {
 		
 		public void onTimeout(RPCCall c) {
@@ -206,7 +419,7 @@ public class RPCServer {
 		PingRequest pr = new PingRequest();
 		pr.setID(derivedId);
 		pr.setDestination(addr);
-		new RPCCall(this, pr).start();
+		new RPCCall(this, pr).setPriority(SendPriority.MAINTENANCE).start();
 	}
 
 	/* (non-Javadoc)
@@ -261,7 +474,9 @@ public class RPCServer {
 		return isReachable;
 	}
 	
-	private void handlePacket(ByteBuffer p, SocketAddress soa) {
+	private void handlePacket(ByteBuffer p, SocketAddress soa, long queuedNanos) {
+		long dequeued = timings.record(PipelineTimings.Stage.EXECUTOR_QUEUE, queuedNanos);
+		admission.onQueueDelay(dequeued - queuedNanos, dequeued);
 		InetSocketAddress source = (InetSocketAddress) soa;
 		
 		// ignore port 0, can't respond to them anyway and responses to requests from port 0 will be useless too
@@ -276,8 +491,8 @@ public class RPCServer {
 			bedata = ThreadLocalUtils.getDecoder().decode(p);
 			
 			try {
-				if (DHT.isLogLevelEnabled(LogLevel.Verbose)) {
-					DHT.logVerbose("received: " + Utils.prettyPrint(bedata) + " from: " + source);
+				if (DHT.isLogLevelEnabled(LogLevel.Verbose, LOG_SUBSYSTEM)) {
+					DHT.log(LogLevel.Verbose, LOG_SUBSYSTEM, "received: {} from: {}", Utils.prettyPrint(bedata), source);
 				}
 			} catch (Exception e) {
 				DHT.log(e, LogLevel.Error);
@@ -286,6 +501,9 @@ public class RPCServer {
 			p.rewind();
 			DHT.logError("failed to decode message  " + Utils.stripToAscii(p) + " (length:"+p.remaining()+") from: " + source);
 			DHT.log(e, LogLevel.Debug);
+			droppedUndecodable.inc();
+			if (FlightRecorderEvents.ENABLED)
+				FlightRecorderEvents.packetDropped(source, p.remaining(), "invalid_bencoding");
 			MessageBase err = new ErrorMessage(new byte[] {0,0,0,0}, ErrorCode.ProtocolError.code,"invalid bencoding: "+e.getMessage());
 			err.setDestination(source);
 			sendMessage(err);
@@ -299,6 +517,9 @@ public class RPCServer {
 			if (bedata.containsKey(MessageBase.TRANSACTION_KEY) && bedata.get(MessageBase.TRANSACTION_KEY) instanceof byte[])
 				mtid = (byte[]) bedata.get("t");
 			DHT.log(e.getMessage(), LogLevel.Debug);
+			droppedInvalid.inc();
+			if (FlightRecorderEvents.ENABLED)
+				FlightRecorderEvents.packetDropped(source, p.limit(), "invalid_message");
 			MessageBase err = new ErrorMessage(mtid, e.errorCode.code,e.getMessage());
 			err.setDestination(source);
 			sendMessage(err);
@@ -310,15 +531,26 @@ public class RPCServer {
 		if (msg == null)
 			return;
 		
-		if (DHT.isLogLevelEnabled(LogLevel.Debug))
-			DHT.logDebug("RPC received message from "+source.getAddress().getHostAddress() + ":" + source.getPort() +" | "+msg.toString());
+		long decoded = timings.record(PipelineTimings.Stage.DECODE, dequeued);
+		
+		DHT.log(LogLevel.Debug, LOG_SUBSYSTEM, "RPC received message from {} | {}", source, msg);
 		stats.addReceivedMessageToCount(msg);
 		msg.setOrigin(source);
 		msg.setServer(this);
 		
 		// just respond to incoming requests, no need to match them to pending requests
 		if (msg.getType() == Type.REQ_MSG) {
+			if (admission.isShedding()) {
+				QueryClass c = classify(msg);
+				if (!admission.admit(c)) {
+					queriesShed[c.ordinal()].inc();
+					if (FlightRecorderEvents.ENABLED)
+						FlightRecorderEvents.packetDropped(source, p.limit(), "shed");
+					return;
+				}
+			}
 			handleMessage(msg);
+			timings.record(PipelineTimings.Stage.HANDLER, decoded);
 			return;
 		}
 		
@@ -335,10 +567,13 @@ public class RPCServer {
 				calls.remove(new ByteWrapper(msg.getMTID()),c);
 				msg.setAssociatedCall(c);
 				c.response(msg);
+				if (c.getRTT() >= 0)
+					rttMetric.record(c.getRTT());
 
 				doQueuedCalls();
 				// apply after checking for a proper response
 				handleMessage(msg);
+				timings.record(PipelineTimings.Stage.HANDLER, decoded);
 				
 				return;
 			}
@@ -352,6 +587,9 @@ public class RPCServer {
 			// either a bug or an attack -> drop message
 			
 			DHT.logError("mtid matched, IP did not, ignoring message, request: " + c.getRequest().getDestination() + " -> response: " + msg.getOrigin());
+			droppedMismatched.inc();
+			if (FlightRecorderEvents.ENABLED)
+				FlightRecorderEvents.packetDropped(source, p.limit(), "mtid_mismatch");
 			
 			return;
 		}
@@ -360,7 +598,11 @@ public class RPCServer {
 		// -> did not expect this response
 		if (msg.getType() == Type.RSP_MSG && Duration.between(startTime, Instant.now()).getSeconds() > 2*60) {
 			byte[] mtid = msg.getMTID();
-			DHT.logDebug("Cannot find RPC call for response: "+ Utils.prettyPrint(mtid));
+			if (DHT.isLogLevelEnabled(LogLevel.Debug, LOG_SUBSYSTEM))
+				DHT.log(LogLevel.Debug, LOG_SUBSYSTEM, "Cannot find RPC call for response: {}", Utils.prettyPrint(mtid));
+			droppedUnexpected.inc();
+			if (FlightRecorderEvents.ENABLED)
+				FlightRecorderEvents.packetDropped(source, p.limit(), "unexpected_response");
 			ErrorMessage err = new ErrorMessage(mtid, ErrorCode.ServerError.code, "received a response message whose transaction ID did not match a pending request or transaction expired");
 			err.setDestination(msg.getOrigin());
 			sendMessage(err);
@@ -369,12 +611,36 @@ public class RPCServer {
 
 		if (msg.getType() == Type.ERR_MSG) {
 			handleMessage(msg);
+			timings.record(PipelineTimings.Stage.HANDLER, decoded);
 			return;
 		}
 		
 		DHT.logError("not sure how to handle message " + msg);
 	}
 	
+	private QueryClass classify(MessageBase req) {
+		switch (req.getMethod()) {
+			case PING:
+				return QueryClass.PING;
+			case ANNOUNCE_PEER:
+				return isKnownNode(req) ? QueryClass.QUERY : QueryClass.ANNOUNCE_FROM_UNKNOWN;
+			default:
+				return QueryClass.QUERY;
+		}
+	}
+	
+	private boolean isKnownNode(MessageBase req) {
+		Key id = req.getID();
+		InetSocketAddress origin = req.getOrigin();
+		if (id == null)
+			return false;
+		return dht.getNode().findBucketForId(id).getBucket().findByIPorID(origin.getAddress(), id).filter(e -> e.getID().equals(id) && e.getAddress().equals(origin)).isPresent();
+	}
+	
+	public AdmissionControl getAdmissionControl() {
+		return admission;
+	}
+	
 	private void handleMessage(MessageBase msg) {
 		if (msg.getType() == Type.RSP_MSG && msg.getPublicIP() != null)
 			updatePublicIPConsensus(msg.getOrigin().getAddress(), msg.getPublicIP());
@@ -406,9 +672,235 @@ public class RPCServer {
 		return consensusExternalAddress;
 	}
 
+	/**
+	 * @param capture receives all datagrams passing through this server from now on, null to stop capturing. The caller remains responsible for closing it
+	 */
+	public void setCapture(PacketCapture capture) {
+		this.capture = capture;
+	}
+	
+	public PacketCapture getCapture() {
+		return capture;
+	}
+	
+	public PipelineTimings getPipelineTimings() {
+		return timings;
+	}
+	
+	/**
+	 * @return local address of the socket, null if the server has no socket
+	 */
+	public InetSocketAddress getLocalSocketAddress() {
+		SocketHandler[] s = shards;
+		if (s.length == 0)
+			return null;
+		try {
+			return (InetSocketAddress) s[0].channel.getLocalAddress();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * @return SO_RCVBUF as reported by the OS, which may be double the requested value on linux. -1 if the server has no socket
+	 */
+	public int getReceiveBufferSize() {
+		SocketHandler[] s = shards;
+		if (s.length == 0)
+			return -1;
+		try {
+			return s[0].channel.getOption(StandardSocketOptions.SO_RCVBUF);
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * applies to all sockets of the server
+	 * 
+	 * @return the smallest size reported by the OS after the change, the OS may cap it
+	 */
+	public int setReceiveBufferSize(int bytes) throws IOException {
+		SocketHandler[] s = shards;
+		if (s.length == 0)
+			throw new IOException("server has no socket");
+		int actual = Integer.MAX_VALUE;
+		for (SocketHandler h : s) {
+			h.channel.setOption(StandardSocketOptions.SO_RCVBUF, bytes);
+			actual = Math.min(actual, h.channel.getOption(StandardSocketOptions.SO_RCVBUF));
+		}
+		return actual;
+	}
+	
+	/**
+	 * The socket receive buffer usage is estimated from the datagrams that were read during a single selector wakeup, plus a per-datagram
+	 * allowance for kernel bookkeeping. Approaching the buffer size hints at overflows where the kernel drop counters are not available.
+	 * 
+	 * @return the largest estimate of any socket since the previous call, 0 if the server has no socket
+	 */
+	public int drainReadBacklogPeak() {
+		int peak = 0;
+		for (SocketHandler s : shards)
+			peak = Math.max(peak, s.backlogPeak.getAndSet(0));
+		return peak;
+	}
+	
+	/**
+	 * Processes a datagram that did not come from the socket, e.g. from a {@link DatagramTransport}. It is subject to the same filtering as socket reads.
+	 */
+	public void deliver(ByteBuffer data, InetSocketAddress source) {
+		received(data, source, DHT.getPacketLane());
+	}
+	
+	void received(ByteBuffer data, InetSocketAddress soa, Executor executor) {
+		received(data, soa, executor, System.nanoTime());
+	}
+	
+	/**
+	 * Common receive path of the socket, detached transports and {@link PacketReplay}
+	 * 
+	 * @param data datagram between position and limit, it is copied before the executor gets to see it
+	 * @param readNanos when the datagram was read, start of the executor queue stage
+	 */
+	private void received(ByteBuffer data, InetSocketAddress soa, Executor executor, long readNanos) {
+		PacketCapture cap = capture;
+		if (cap != null)
+			cap.record(PacketCapture.Direction.INCOMING, soa, data);
+		
+		int length = data.remaining();
+		
+		// * no conceivable DHT message is smaller than 10 bytes
+		// * all DHT messages start with a 'd' for dictionary
+		// * port 0 is reserved
+		// -> immediately discard junk on the read loop, don't even allocate a buffer for it
+		if (length < 10 || data.get(data.position()) != 'd' || soa.getPort() == 0) {
+			droppedJunk.inc();
+			if (FlightRecorderEvents.ENABLED)
+				FlightRecorderEvents.packetDropped(soa, length, "junk");
+			return;
+		}
+		if (throttle.isSpam(soa.getAddress())) {
+			droppedThrottled.inc();
+			if (FlightRecorderEvents.ENABLED)
+				FlightRecorderEvents.packetDropped(soa, length, "throttled");
+			return;
+		}
+		if (FlightRecorderEvents.ENABLED)
+			FlightRecorderEvents.packetReceived(soa, length);
+		
+		// copy from the read buffer since we hand off to another thread
+		ByteBuffer buf = ByteBuffer.allocate(length).put(data);
+		buf.flip();
+		
+		try {
+			executor.execute(() -> {handlePacket(buf, soa, readNanos);});
+		} catch (RejectedExecutionException e) {
+			// shed load before decoding, the remote side treats it like any other packet loss
+			droppedOverload.inc();
+			if (FlightRecorderEvents.ENABLED)
+				FlightRecorderEvents.packetDropped(soa, length, "overload");
+			return;
+		}
+		numReceived++;
+		stats.addReceivedBytes(buf.limit() + dht.getType().HEADER_LENGTH);
+	}
+	
 	private void fillPipe(EnqueuedSend es) {
-		pipeline.add(es);
-		sel.writeEvent();
+		// encode on the producer's thread, the writer only has to copy the bytes into the socket
+		if (!es.encode()) {
+			if (es.associatedCall != null)
+				es.associatedCall.sendFailed();
+			return;
+		}
+		queuedPackets.incrementAndGet();
+		queuedBytes.addAndGet(es.buf.remaining());
+		if (transport != null) {
+			if (enqueue(pipeline, es))
+				writeToTransport();
+			return;
+		}
+		
+		SocketHandler shard = shardFor(es.toSend.getDestination());
+		if (shard == null) {
+			dequeued(es);
+			if (es.associatedCall != null)
+				es.associatedCall.sendFailed();
+			return;
+		}
+		if (enqueue(shard.sendQueue, es))
+			shard.flush();
+	}
+	
+	/**
+	 * @return false if the class of the message was full, the message has been dropped
+	 */
+	private boolean enqueue(OutboundQueue<EnqueuedSend> queue, EnqueuedSend es) {
+		SendPriority p = es.priority();
+		if (queue.offer(es, p))
+			return true;
+		outboundDropped[p.ordinal()].inc();
+		dequeued(es);
+		if (es.associatedCall != null)
+			es.associatedCall.sendFailed();
+		return false;
+	}
+	
+	/**
+	 * accounting and buffer release once a message has left the queue, whether it was sent or not
+	 */
+	private void dequeued(EnqueuedSend es) {
+		queuedPackets.decrementAndGet();
+		queuedBytes.addAndGet(-es.buf.limit());
+		es.release();
+	}
+	
+	private void writeToTransport() {
+		synchronized (transportWriteLock) {
+			EnqueuedSend es;
+			while ((es = pipeline.poll()) != null) {
+				try {
+					long dequeued = System.nanoTime();
+					if (es.associatedCall != null)
+						es.associatedCall.sent();
+					int bytesSent = transport.send(es.buf.duplicate(), es.toSend.getDestination());
+					recordSend(es, dequeued);
+					sent(es, es.buf, bytesSent);
+				} catch (IOException e) {
+					DHT.log(new IOException(addr+" -> "+es.toSend.getDestination(), e), LogLevel.Error);
+					if (es.associatedCall != null)
+						es.associatedCall.sendFailed();
+				}
+				dequeued(es);
+			}
+		}
+	}
+	
+	private void recordSend(EnqueuedSend es, long dequeued) {
+		timings.record(PipelineTimings.Stage.SEND_QUEUE, es.enqueuedNanos, dequeued);
+		timings.record(PipelineTimings.Stage.SEND, dequeued);
+	}
+	
+	/**
+	 * bookkeeping after a message has been handed to the socket or transport
+	 */
+	private void sent(EnqueuedSend es, ByteBuffer buf, int bytesSent) {
+		PacketCapture cap = capture;
+		if (cap != null) {
+			ByteBuffer sentData = buf.duplicate();
+			sentData.rewind();
+			cap.record(PacketCapture.Direction.OUTGOING, es.toSend.getDestination(), sentData);
+		}
+		
+		if (DHT.isLogLevelEnabled(LogLevel.Verbose, LOG_SUBSYSTEM)) {
+			DHT.log(LogLevel.Verbose, LOG_SUBSYSTEM, "sent: {} to {}", prettyPrint(es.toSend.getBase()), es.toSend.getDestination());
+		}
+		
+		stats.addSentMessageToCount(es.toSend);
+		stats.addSentBytes(bytesSent + dht.getType().HEADER_LENGTH);
+		if (DHT.isLogLevelEnabled(LogLevel.Debug, LOG_SUBSYSTEM))
+			DHT.log(LogLevel.Debug, LOG_SUBSYSTEM, "RPC send message to {} | {} | length: {}", es.toSend.getDestination(), es.toSend, bytesSent);
+		
+		numSent++;
 	}
 		
 
@@ -429,6 +921,40 @@ public class RPCServer {
 		fillPipe(new EnqueuedSend(msg));
 	}
 	
+	public int getSendQueueLength() {
+		return queuedPackets.get();
+	}
+	
+	public long getSendQueueBytes() {
+		return queuedBytes.get();
+	}
+
+	public int getCallQueueLength() {
+		return call_queue.size();
+	}
+	
+	public int getCallQueueLength(SendPriority p) {
+		return call_queue.size(p);
+	}
+	
+	public int getSendQueueLength(SendPriority p) {
+		int length = pipeline.size(p);
+		for (SocketHandler s : shards)
+			length += s.sendQueue.size(p);
+		return length;
+	}
+	
+	/**
+	 * @return messages of the class that were dropped because a queue was full
+	 */
+	public long getOutboundDropped(SendPriority p) {
+		return outboundDropped[p.ordinal()].get();
+	}
+	
+	public long getOutboundDeferred(SendPriority p) {
+		return outboundDeferred[p.ordinal()].get();
+	}
+
 	public ResponseTimeoutFilter getTimeoutFilter() {
 		return timeoutFilter;
 	}
@@ -454,13 +980,16 @@ public class RPCServer {
 	}*/
 
 	private void doQueuedCalls () {
-		while (call_queue.peek() != null && calls.size() < DHTConstants.MAX_ACTIVE_CALLS) {
+		// most important class first, a class whose send queue is full waits and lets the less important ones through
+		for (SendPriority p : SendPriority.values()) {
 			RPCCall c;
-
-			if ((c = call_queue.poll()) == null)
-				return;
-			
-			doCall(c);
+			while ((c = call_queue.peek(p)) != null && calls.size() < DHTConstants.MAX_ACTIVE_CALLS && hasSendRoom(c)) {
+				if ((c = call_queue.poll(p)) == null)
+					break;
+				
+				timings.record(PipelineTimings.Stage.CALL_QUEUE, c.queuedNanos);
+				dispatch(c);
+			}
 		}
 	}
 	
@@ -483,19 +1012,31 @@ public class RPCServer {
 		private static final int CLOSED = 4;
 		
 		private final AtomicInteger writeState = new AtomicInteger(WRITE_STATE_IDLE);
+		// message the socket did not accept, goes out before the rest of the queue. only touched by the thread in WRITE_STATE_WRITING
+		private EnqueuedSend stalled;
+		private final OutboundQueue<EnqueuedSend> sendQueue = new OutboundQueue<EnqueuedSend>();
+		private final Counter datagramsRead;
 		
-		public SocketHandler() {
+		public SocketHandler(int shard, int bindPort, boolean reusePort) {
+			datagramsRead = dht.getMetrics().counter("mldht_rpc_shard_datagrams_total", "Datagrams read from each socket of a server", "server", metricsLabel, "shard", Integer.toString(shard));
 			try {
-				timeoutFilter.reset();
-	
 				channel = DatagramChannel.open();
 				channel.configureBlocking(false);
 				channel.setOption(StandardSocketOptions.SO_RCVBUF, 2*1024*1024);
 				channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
-				channel.bind(new InetSocketAddress(addr, port));
+				if (reusePort)
+					channel.setOption(REUSE_PORT, true);
+				channel.bind(new InetSocketAddress(addr, bindPort));
 				dht.getConnectionManager().register(this);
 			} catch (IOException e) {
 				e.printStackTrace();
+				if (channel != null) {
+					try {
+						channel.close();
+					} catch (IOException e2) {
+						DHT.log(e2, LogLevel.Debug);
+					}
+				}
 			}
 		}
 		
@@ -503,11 +1044,13 @@ public class RPCServer {
 
 		@Override
 		public void selectionEvent(SelectionKey key) throws IOException {
-			// schedule async writes first before spending thread time on reads
-			if (key.isValid() && key.isWritable()) {
-				writeState.set(WRITE_STATE_IDLE);
-				connectionManager.interestOpsChanged(this);
-				DHT.getScheduler().execute(this::writeEvent);
+			// the socket has room again, flush the backlog right here before spending time on reads
+			if (key.isValid() && key.isWritable() && writeState.compareAndSet(WRITE_STATE_AWAITING_NIO_NOTIFICATION, WRITE_STATE_WRITING)) {
+				if (drain()) {
+					// we're on the selector thread, drop OP_WRITE directly
+					updateSelection();
+					flush();
+				}
 			}
 			
 			if (key.isValid() && key.isReadable())
@@ -516,8 +1059,11 @@ public class RPCServer {
 		}
 		
 		private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(DHTConstants.RECEIVE_BUFFER_SIZE);
+		// estimated socket buffer usage at the busiest wakeup since the last drain
+		private final AtomicInteger backlogPeak = new AtomicInteger();
 		
 		private void readEvent() throws IOException {
+			int backlog = 0;
 			
 			while (true) {
 				readBuffer.clear();
@@ -525,100 +1071,75 @@ public class RPCServer {
 				if (soa == null)
 					break;
 				
-				// * no conceivable DHT message is smaller than 10 bytes
-				// * all DHT messages start with a 'd' for dictionary
-				// * port 0 is reserved
-				// -> immediately discard junk on the read loop, don't even allocate a buffer for it
-				if (readBuffer.position() < 10 || readBuffer.get(0) != 'd' || soa.getPort() == 0)
-					continue;
-				if (throttle.isSpam(soa.getAddress()))
-					continue;
+				backlog += readBuffer.position() + DATAGRAM_OVERHEAD_ESTIMATE;
+				datagramsRead.inc();
 				
-				// copy from the read buffer since we hand off to another thread
+				long read = timings.record(PipelineTimings.Stage.READ, connectionManager.getWakeupTime());
 				readBuffer.flip();
-				ByteBuffer buf = ByteBuffer.allocate(readBuffer.limit()).put(readBuffer);
-				buf.flip();
-				
-				DHT.getScheduler().execute(() -> {handlePacket(buf, soa);});
-				numReceived++;
-				stats.addReceivedBytes(buf.limit() + dht.getType().HEADER_LENGTH);
+				received(readBuffer, soa, DHT.getPacketLane(), read);
 			}
+			
+			if (backlog > backlogPeak.get())
+				backlogPeak.accumulateAndGet(backlog, Math::max);
 		}
 		
-		public void writeEvent() {
-			
-			// simply assume nobody else is writing and attempt to do it
-			// if it fails it's the current writer's job to double-check after releasing the write lock
-			int currentState = WRITE_STATE_IDLE;
-			
-			if (writeState.compareAndSet(currentState, WRITE_STATE_WRITING)) {
+		/**
+		 * Called after queuing a message. Writes on the calling thread unless another thread is already writing or the socket is full,
+		 * in the latter case the selector thread takes over once the socket becomes writable.
+		 */
+		void flush() {
+			while (writeState.compareAndSet(WRITE_STATE_IDLE, WRITE_STATE_WRITING)) {
 				// we are now the exclusive writer for this socket
+				if (!drain())
+					return;
+				// a producer may have queued after our last poll but before we released the socket, it relies on us to pick it up
+				if (sendQueue.isEmpty())
+					return;
+			}
+		}
+		
+		/**
+		 * Writes as many queued messages as the socket accepts, must be called in WRITE_STATE_WRITING.
+		 * 
+		 * @return true if the queue was drained and the socket released, false if the socket is full and we wait for the selector
+		 */
+		private boolean drain() {
+			while (true) {
+				EnqueuedSend es = stalled;
+				stalled = null;
+				if (es == null)
+					es = sendQueue.poll();
+				if (es == null)
+					break;
 				
-				while (true) {
-					
-					EnqueuedSend es = pipeline.poll();
-					
-					if (es == null)
-						break;
-					
-					MessageBase msg = es.toSend;
-					if (msg instanceof FindNodeRequest)
-						System.out.println("FindNodeRequest is sent...");
-					else if (msg instanceof AnnounceRequest)
-						System.out.println("AnnounceRequest is sent...");
-					else if (msg instanceof GetPeersRequest)
-						System.out.println("GetPeersRequest is sent...");
-					else if (msg instanceof PingRequest)
-						System.out.println("PingRequest is sent...");
+				try {
+					long dequeued = System.nanoTime();
+					if (es.associatedCall != null)
+						es.associatedCall.sent();
+					int bytesSent = channel.send(es.buf, es.toSend.getDestination());
 					
-					try {
-						ByteBuffer buf = es.getBuffer();
-						
-						int bytesSent = channel.send(buf, es.toSend.getDestination());
-						
-						if (bytesSent == 0) {
-							pipeline.add(es);
-							// wakeup -> updates selections -> will wait for write OP
-							connectionManager.interestOpsChanged(this);
-							
-							writeState.set(WRITE_STATE_AWAITING_NIO_NOTIFICATION);
-							return;
-						}
-						
-						if (DHT.isLogLevelEnabled(LogLevel.Verbose)) {
-							DHT.logVerbose("sent: " + prettyPrint(es.toSend.getBase())+ " to " + es.toSend.getDestination());
-						}
-						
-						if (es.associatedCall != null)
-							es.associatedCall.sent();
-						
-						stats.addSentMessageToCount(es.toSend);
-						stats.addSentBytes(bytesSent + dht.getType().HEADER_LENGTH);
-						if (DHT.isLogLevelEnabled(LogLevel.Debug))
-							DHT.logDebug("RPC send message to " + es.toSend.getDestination() + " | "+ es.toSend.toString() + " | length: " +bytesSent);
-					} catch (IOException e) {
-						DHT.log(new IOException(addr+" -> "+es.toSend.getDestination(), e), LogLevel.Error);
-						if (es.associatedCall != null) { // need to notify listeners
-							es.associatedCall.sendFailed();
-						}
-						break;
+					if (bytesSent == 0) {
+						stalled = es;
+						writeState.set(WRITE_STATE_AWAITING_NIO_NOTIFICATION);
+						// wakeup -> updates selections -> will wait for write OP
+						connectionManager.interestOpsChanged(this);
+						return false;
 					}
 					
-					numSent++;
+					recordSend(es, dequeued);
+					sent(es, es.buf, bytesSent);
+				} catch (IOException e) {
+					DHT.log(new IOException(addr+" -> "+es.toSend.getDestination(), e), LogLevel.Error);
+					if (es.associatedCall != null) { // need to notify listeners
+						es.associatedCall.sendFailed();
+					}
 				}
-				
-				// release claim on the socket
-				writeState.set(WRITE_STATE_IDLE);
-				
-				// check if we might have to pick it up again due to races
-				// schedule async to avoid infinite stacks
-				if (pipeline.peek() != null)
-					DHT.getScheduler().execute(this::writeEvent);
-
-			
+				dequeued(es);
 			}
 			
-	
+			// release claim on the socket
+			writeState.set(WRITE_STATE_IDLE);
+			return true;
 		}
 		
 		@Override
@@ -638,7 +1159,11 @@ public class RPCServer {
 				return;
 			writeState.set(CLOSED);
 			stop();
-			connectionManager.deRegister(this);
+			dht.getConnectionManager().deRegister(this);
+			channel.close();
+			EnqueuedSend es;
+			while ((es = sendQueue.poll()) != null)
+				dequeued(es);
 		}
 		
 		@Override
@@ -661,6 +1186,7 @@ public class RPCServer {
 		MessageBase toSend;
 		RPCCall associatedCall;
 		ByteBuffer buf;
+		final long enqueuedNanos = System.nanoTime();
 		
 		public EnqueuedSend(MessageBase msg) {
 			toSend = msg;
@@ -678,12 +1204,20 @@ public class RPCServer {
 			}
 		}
 		
-		ByteBuffer getBuffer() throws IOException {
-			if (buf != null)
-				return buf;
+		/**
+		 * encodes the message into a pooled buffer
+		 * 
+		 * @return false if the message could not be encoded, e.g. because it exceeds the maximum packet size
+		 */
+		boolean encode() {
+			buf = sendBuffers.acquire();
 			try {
-				return buf = ByteBuffer.wrap(toSend.encode(dht.getType().MAX_PACKET_SIZE));
+				toSend.encode(buf);
+				buf.flip();
+				return true;
 			} catch (Exception e) {
+				sendBuffers.release(buf);
+				buf = null;
 				byte[] t = new byte[0];
 				try {
 					t = toSend.encode(4096);
@@ -692,11 +1226,22 @@ public class RPCServer {
 				}
 				
 				DHT.logError("encode failed for " + toSend.toString() + " 2nd encode attempt: (" + t.length + ") bytes. base map was:" + Utils.prettyPrint(toSend.getBase())  );
-				
-				
-				throw new IOException(e) ;
+				DHT.log(e, LogLevel.Debug);
+				return false;
 			}
 		}
+		
+		void release() {
+			sendBuffers.release(buf);
+			buf = null;
+		}
+		
+		SendPriority priority() {
+			if (associatedCall != null)
+				return associatedCall.getPriority();
+			// requests without a call are fire-and-forget pings
+			return toSend.getType() == Type.REQ_MSG ? SendPriority.MAINTENANCE : SendPriority.RESPONSE;
+		}
 	}
 	
 }
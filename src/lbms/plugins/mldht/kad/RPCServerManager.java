@@ -2,6 +2,7 @@ package lbms.plugins.mldht.kad;
 
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.util.ArrayList;
@@ -27,6 +28,14 @@ public class RPCServerManager {
 	private ConcurrentHashMap<InetAddress,RPCServer> interfacesInUse = new ConcurrentHashMap<InetAddress, RPCServer>();
 	private List<InetAddress> validBindAddresses = Collections.emptyList();
 	private volatile RPCServer[] activeServers = new RPCServer[0];
+	// if set only a single server is started on this address, its datagrams go through the transport if there is one
+	private InetSocketAddress transportAddress;
+	private DatagramTransport transport;
+	
+	void useTransport(InetSocketAddress localAddress, DatagramTransport transport) {
+		this.transportAddress = localAddress;
+		this.transport = transport;
+	}
 	
 	public void refresh(long now) {
 		if (destroyed)
@@ -67,6 +76,8 @@ public class RPCServerManager {
 	}
 	
 	public void doBindChecks() {
+		if (transportAddress != null)
+			return;
 		updateBindAddrs();
 		getAllServers().forEach(srv -> {
 			if (!validBindAddresses.contains(srv.getBindAddress())) {
@@ -81,6 +92,18 @@ public class RPCServerManager {
 		boolean multihome = dht.config.allowMultiHoming();
 		Class<? extends InetAddress> addressType = dht.getType().PREFERRED_ADDRESS_TYPE;
 		
+		if (transportAddress != null) {
+			if (interfacesInUse.isEmpty()) {
+				RPCServer srv = new RPCServer(this, transportAddress.getAddress(), transportAddress.getPort(), dht.serverStats);
+				if (transport != null)
+					srv.start(transport);
+				else
+					srv.start();
+				interfacesInUse.put(transportAddress.getAddress(), srv);
+			}
+			return;
+		}
+		
 		
 		if (multihome) {
 			// we only consider global unicast addresses in multihoming mode
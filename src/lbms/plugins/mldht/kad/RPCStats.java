@@ -16,9 +16,13 @@
  */
 package lbms.plugins.mldht.kad;
 
+import java.util.concurrent.atomic.LongAdder;
+
 import lbms.plugins.mldht.kad.messages.MessageBase;
 import lbms.plugins.mldht.kad.messages.MessageBase.Method;
 import lbms.plugins.mldht.kad.messages.MessageBase.Type;
+import lbms.plugins.mldht.utils.metrics.Counter;
+import lbms.plugins.mldht.utils.metrics.MetricsRegistry;
 
 /**
  * @author Damokles
@@ -26,24 +30,36 @@ import lbms.plugins.mldht.kad.messages.MessageBase.Type;
  */
 public class RPCStats {
 
-	private long	receivedBytes;
-	private long	sentBytes;
-
-	private long	tmpReceivedBytes;
-	private long	tmpSentBytes;
-	private long	receivedBytesPerSec;
-	private long	sentBytesPerSec;
-	private long	tmpReceivedTimestamp;
-	private long	tmpSentTimestamp;
-
-	private long[][]	sentMessages;
-	private long[][]	receivedMessages;
-	private long[]	timeoutMessages;
-
-	protected RPCStats () {
-		sentMessages = new long[Method.values().length][Type.values().length];
-		receivedMessages = new long[Method.values().length][Type.values().length];
-		timeoutMessages = new long[Method.values().length];
+	private final Counter	receivedBytes;
+	private final Counter	sentBytes;
+
+	private final LongAdder	tmpReceivedBytes = new LongAdder();
+	private final LongAdder	tmpSentBytes = new LongAdder();
+	private volatile long	receivedBytesPerSec;
+	private volatile long	sentBytesPerSec;
+	private volatile long	tmpReceivedTimestamp;
+	private volatile long	tmpSentTimestamp;
+
+	// shared with the metrics registry, every thread handling packets increments them
+	private final Counter[][]	sentMessages;
+	private final Counter[][]	receivedMessages;
+	private final Counter[]	timeoutMessages;
+
+	protected RPCStats (MetricsRegistry metrics) {
+		sentMessages = new Counter[Method.values().length][Type.values().length];
+		receivedMessages = new Counter[Method.values().length][Type.values().length];
+		timeoutMessages = new Counter[Method.values().length];
+		for (Method m : Method.values()) {
+			String method = m.name().toLowerCase();
+			for (Type t : Type.values()) {
+				String type = t.name().toLowerCase();
+				sentMessages[m.ordinal()][t.ordinal()] = metrics.counter("mldht_messages_sent_total", "Sent messages by method and type", "method", method, "type", type);
+				receivedMessages[m.ordinal()][t.ordinal()] = metrics.counter("mldht_messages_received_total", "Received and successfully parsed messages by method and type", "method", method, "type", type);
+			}
+			timeoutMessages[m.ordinal()] = metrics.counter("mldht_requests_timed_out_total", "Outgoing requests that did not receive a response", "method", method);
+		}
+		receivedBytes = metrics.counter("mldht_received_bytes_total", "Received bytes including IP and UDP headers");
+		sentBytes = metrics.counter("mldht_sent_bytes_total", "Sent bytes including IP and UDP headers");
 	}
 	
 	@Override
@@ -52,16 +68,16 @@ public class RPCStats {
 		b.append("### local RPCs\n");
 		b.append("REQ | RSP / Error / Timeout\n");
 		for (Method m : Method.values()) {
-			b.append(m).append('\t').append(sentMessages[m.ordinal()][Type.REQ_MSG.ordinal()]).append('|').append(receivedMessages[m.ordinal()][Type.RSP_MSG.ordinal()]).append('/').append(receivedMessages[m.ordinal()][Type.ERR_MSG.ordinal()]).append('/').append(timeoutMessages[m.ordinal()]).append('\n');
+			b.append(m).append('\t').append(sentMessages[m.ordinal()][Type.REQ_MSG.ordinal()].get()).append('|').append(receivedMessages[m.ordinal()][Type.RSP_MSG.ordinal()].get()).append('/').append(receivedMessages[m.ordinal()][Type.ERR_MSG.ordinal()].get()).append('/').append(timeoutMessages[m.ordinal()].get()).append('\n');
 		}
 		b.append("### remote RPCs\n");
 		b.append("REQ / RSP\n");
 		for (Method m : Method.values()) {
-			b.append(m).append('\t').append(receivedMessages[m.ordinal()][Type.REQ_MSG.ordinal()]).append('/').append(sentMessages[m.ordinal()][Type.RSP_MSG.ordinal()]).append('\n');
+			b.append(m).append('\t').append(receivedMessages[m.ordinal()][Type.REQ_MSG.ordinal()].get()).append('/').append(sentMessages[m.ordinal()][Type.RSP_MSG.ordinal()].get()).append('\n');
 		}
 		b.append("### non-associated errors\n");
 		b.append("RX / TX");
-		b.append('\t').append(receivedMessages[Method.UNKNOWN.ordinal()][Type.ERR_MSG.ordinal()]).append('/').append(sentMessages[Method.UNKNOWN.ordinal()][Type.ERR_MSG.ordinal()]).append('\n');
+		b.append('\t').append(receivedMessages[Method.UNKNOWN.ordinal()][Type.ERR_MSG.ordinal()].get()).append('/').append(sentMessages[Method.UNKNOWN.ordinal()][Type.ERR_MSG.ordinal()].get()).append('\n');
 
 		
 		return b.toString();
@@ -71,14 +87,14 @@ public class RPCStats {
 	 * @return the receivedBytes
 	 */
 	public long getReceivedBytes () {
-		return receivedBytes;
+		return receivedBytes.get();
 	}
 
 	/**
 	 * @return the sentBytes
 	 */
 	public long getSentBytes () {
-		return sentBytes;
+		return sentBytes.get();
 	}
 
 	/**
@@ -88,8 +104,7 @@ public class RPCStats {
 		long now = System.currentTimeMillis();
 		long d = now - tmpReceivedTimestamp;
 		if (d > 950) {
-			receivedBytesPerSec = (int) (tmpReceivedBytes * 1000 / d);
-			tmpReceivedBytes = 0;
+			receivedBytesPerSec = tmpReceivedBytes.sumThenReset() * 1000 / d;
 			tmpReceivedTimestamp = now;
 		}
 		return receivedBytesPerSec;
@@ -102,8 +117,7 @@ public class RPCStats {
 		long now = System.currentTimeMillis();
 		long d = now - tmpSentTimestamp;
 		if (d > 950) {
-			sentBytesPerSec = (int) (tmpSentBytes * 1000 / d);
-			tmpSentBytes = 0;
+			sentBytesPerSec = tmpSentBytes.sumThenReset() * 1000 / d;
 			tmpSentTimestamp = now;
 		}
 		return sentBytesPerSec;
@@ -117,7 +131,7 @@ public class RPCStats {
 	 * @return count
 	 */
 	public long getSentMessageCount (Method m, Type t) {
-		return sentMessages[m.ordinal()][t.ordinal()];
+		return sentMessages[m.ordinal()][t.ordinal()].get();
 	}
 
 	/**
@@ -128,7 +142,7 @@ public class RPCStats {
 	 * @return count
 	 */
 	public long getReceivedMessageCount (Method m, Type t) {
-		return receivedMessages[m.ordinal()][t.ordinal()];
+		return receivedMessages[m.ordinal()][t.ordinal()].get();
 	}
 
 	/**
@@ -138,42 +152,42 @@ public class RPCStats {
 	 * @return count
 	 */
 	public long getTimeoutMessageCount (Method m) {
-		return timeoutMessages[m.ordinal()];
+		return timeoutMessages[m.ordinal()].get();
 	}
 
 	/**
 	 * @param receivedBytes the receivedBytes to add
 	 */
 	protected void addReceivedBytes (long receivedBytes) {
-		tmpReceivedBytes += receivedBytes;
-		this.receivedBytes += receivedBytes;
+		tmpReceivedBytes.add(receivedBytes);
+		this.receivedBytes.add(receivedBytes);
 	}
 
 	/**
 	 * @param sentBytes the sentBytes to add
 	 */
 	protected void addSentBytes (long sentBytes) {
-		tmpSentBytes += sentBytes;
-		this.sentBytes += sentBytes;
+		tmpSentBytes.add(sentBytes);
+		this.sentBytes.add(sentBytes);
 	}
 
 	protected void addSentMessageToCount (MessageBase msg) {
-		sentMessages[msg.getMethod().ordinal()][msg.getType().ordinal()]++;
+		sentMessages[msg.getMethod().ordinal()][msg.getType().ordinal()].inc();
 	}
 
 	protected void addSentMessageToCount (Method m, Type t) {
-		sentMessages[m.ordinal()][t.ordinal()]++;
+		sentMessages[m.ordinal()][t.ordinal()].inc();
 	}
 
 	protected void addReceivedMessageToCount (MessageBase msg) {
-		receivedMessages[msg.getMethod().ordinal()][msg.getType().ordinal()]++;
+		receivedMessages[msg.getMethod().ordinal()][msg.getType().ordinal()].inc();
 	}
 
 	protected void addReceivedMessageToCount (Method m, Type t) {
-		receivedMessages[m.ordinal()][t.ordinal()]++;
+		receivedMessages[m.ordinal()][t.ordinal()].inc();
 	}
 
 	protected void addTimeoutMessageToCount (MessageBase msg) {
-		timeoutMessages[msg.getMethod().ordinal()]++;
+		timeoutMessages[msg.getMethod().ordinal()].inc();
 	}
 }
@@ -0,0 +1,53 @@
+/*
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad;
+
+/**
+ * Classes of outbound traffic, in the order in which the queues of an {@link RPCServer} serve them.
+ *
+ * Each class has its own bound per queue. What happens to a request beyond the bound of the send queue depends on the {@link Overflow} policy,
+ * requests beyond the bound of the call queue and responses beyond the bound of the send queue are always dropped.
+ */
+public enum SendPriority {
+	/** responses and errors to other nodes' queries, they are worthless once the querying node timed out */
+	RESPONSE(Overflow.DROP, 4096),
+	/** pings, bucket refreshes and bootstrap lookups that keep the routing table alive */
+	MAINTENANCE(Overflow.DEFER, 1024),
+	/** lookups and announces somebody is waiting for */
+	LOOKUP(Overflow.DEFER, 2048),
+	/** crawls, bulk peer lookups and re-announces */
+	BULK(Overflow.DEFER, 512);
+	
+	public enum Overflow {
+		/** fail right away */
+		DROP,
+		/** wait in the call queue until the send queue has room again */
+		DEFER
+	}
+	
+	public final Overflow	overflow;
+	public final int		bound;
+	
+	private SendPriority(Overflow overflow, int bound) {
+		this.overflow = overflow;
+		this.bound = bound;
+	}
+	
+	public String label() {
+		return name().toLowerCase();
+	}
+}
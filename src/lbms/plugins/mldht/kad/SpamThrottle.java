@@ -3,13 +3,14 @@ package lbms.plugins.mldht.kad;
 import java.net.InetAddress;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class SpamThrottle {
 	
-	private HashMap<InetAddress, Integer> hitcounter = new HashMap<>();
+	// shared by the read loops of all sockets of a server
+	private ConcurrentHashMap<InetAddress, Integer> hitcounter = new ConcurrentHashMap<>();
 	
-	private Instant lastDecayTime = Instant.now();
+	private volatile Instant lastDecayTime = Instant.now();
 	
 	private static final int BURST = 10;
 	private static final int PER_SECOND = 2;
@@ -27,12 +28,16 @@ public class SpamThrottle {
 	
 	public void decay() {
 		Instant now = Instant.now();
-		long delta = Duration.between(lastDecayTime, now).getSeconds();
-		if (delta < 1)
+		if (Duration.between(lastDecayTime, now).getSeconds() < 1)
 			return;
-		lastDecayTime = lastDecayTime.plusSeconds(delta);
-		
-		hitcounter.replaceAll((k, v) -> (int) (v - delta * PER_SECOND));
-		hitcounter.entrySet().removeIf(entry -> entry.getValue() <= 0);
+		synchronized (this) {
+			long delta = Duration.between(lastDecayTime, now).getSeconds();
+			if (delta < 1)
+				return;
+			lastDecayTime = lastDecayTime.plusSeconds(delta);
+			
+			hitcounter.replaceAll((k, v) -> (int) (v - delta * PER_SECOND));
+			hitcounter.entrySet().removeIf(entry -> entry.getValue() <= 0);
+		}
 	}
 }
@@ -0,0 +1,363 @@
+/*
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.utils.metrics.Counter;
+import lbms.plugins.mldht.utils.metrics.MetricsRegistry;
+
+/**
+ * Watches the sockets of a DHT for datagrams the kernel dropped because the receive buffer was full and raises SO_RCVBUF
+ * when it happens, up to a configured maximum.
+ *
+ * On linux the per-socket drop counters and receive queues come from /proc/net/udp and /proc/net/udp6, the system-wide
+ * RcvbufErrors from /proc/net/snmp and /proc/net/snmp6. Where those are not available a socket counts as overflowing when a
+ * single selector wakeup drained most of its buffer, see {@link RPCServer#drainReadBacklogPeak()}.
+ *
+ * Buffer sizes are those reported by the OS, which are twice the requested value on linux. Growth is capped by net.core.rmem_max,
+ * that is logged once per socket.
+ */
+public class UdpDropMonitor {
+
+	public static final Path	DEFAULT_PROC_NET	= Paths.get("/proc/net");
+	public static final int		DEFAULT_MIN_BUFFER	= 2 * 1024 * 1024;
+	public static final int		DEFAULT_MAX_BUFFER	= 16 * 1024 * 1024;
+	// fraction of the buffer a single wakeup has to drain to be treated as overflow without kernel counters
+	static final double			BACKLOG_THRESHOLD	= 0.75;
+
+	public static final class SocketStats {
+		public final InetSocketAddress	local;
+		public final long				rxQueue;
+		/** -1 if the kernel does not report drops */
+		public final long				drops;
+
+		SocketStats(InetSocketAddress local, long rxQueue, long drops) {
+			this.local = local;
+			this.rxQueue = rxQueue;
+			this.drops = drops;
+		}
+
+		@Override
+		public String toString() {
+			return local + " rx_queue:" + rxQueue + " drops:" + drops;
+		}
+	}
+
+	private class ServerState {
+		final String			label;
+		final Counter			drops;
+		final Counter			resizes;
+		volatile long			rxQueue;
+		long					lastDrops	= -1;
+		boolean					capped;
+
+		ServerState(RPCServer srv) {
+			label = srv.getBindAddress().getHostAddress();
+			MetricsRegistry metrics = dht.getMetrics();
+			drops = metrics.counter("mldht_udp_socket_drops_total", "Datagrams the kernel dropped on the socket because the receive buffer was full", "server", label);
+			resizes = metrics.counter("mldht_udp_receive_buffer_resizes_total", "Times the receive buffer was enlarged after drops", "server", label);
+			metrics.gauge("mldht_udp_receive_buffer_bytes", "SO_RCVBUF as reported by the OS", () -> srv.getReceiveBufferSize(), "server", label);
+			metrics.gauge("mldht_udp_receive_queue_bytes", "Bytes waiting in the socket receive queue at the last check", () -> rxQueue, "server", label);
+		}
+
+		void unregister() {
+			MetricsRegistry metrics = dht.getMetrics();
+			for (String name : new String[] {"mldht_udp_socket_drops_total", "mldht_udp_receive_buffer_resizes_total", "mldht_udp_receive_buffer_bytes", "mldht_udp_receive_queue_bytes"})
+				metrics.remove(name, "server", label);
+		}
+	}
+
+	private final DHT						dht;
+	private final Path						procNet;
+	private final int						minBuffer;
+	private final int						maxBuffer;
+	private final Counter					systemErrors;
+	private long							lastSystemErrors	= -1;
+	// only accessed from poll(), which does not run concurrently with itself
+	private final Map<RPCServer, ServerState>	states			= new HashMap<RPCServer, ServerState>();
+	private ScheduledFuture<?>				timer;
+
+	/**
+	 * @param procNet usually {@link #DEFAULT_PROC_NET}
+	 */
+	public UdpDropMonitor(DHT dht, Path procNet, int minBuffer, int maxBuffer) {
+		if (minBuffer > maxBuffer)
+			throw new IllegalArgumentException("minimum buffer size exceeds maximum");
+		this.dht = dht;
+		this.procNet = procNet;
+		this.minBuffer = minBuffer;
+		this.maxBuffer = maxBuffer;
+		systemErrors = dht.getMetrics().counter("mldht_udp_rcvbuf_errors_total", "System-wide datagrams dropped for lack of receive buffer space since monitoring started, all sockets of the address family");
+	}
+
+	public void start(long intervalMillis) {
+		timer = DHT.getMaintenanceScheduler().scheduleWithFixedDelay(() -> {
+			try {
+				poll();
+			} catch (Exception e) {
+				DHT.log(e, LogLevel.Error);
+			}
+		}, 0, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public void stop() {
+		if (timer != null)
+			timer.cancel(false);
+		synchronized (this) {
+			states.values().forEach(ServerState::unregister);
+			states.clear();
+		}
+	}
+
+	public boolean isProcfsAvailable() {
+		return Files.isReadable(procNet.resolve(socketTableName()));
+	}
+
+	private String socketTableName() {
+		return dht.getType() == DHTtype.IPV6_DHT ? "udp6" : "udp";
+	}
+
+	/**
+	 * Checks all sockets once and enlarges the buffers of those that overflowed
+	 */
+	public synchronized void poll() {
+		List<SocketStats> sockets = Collections.emptyList();
+		if (isProcfsAvailable()) {
+			try {
+				sockets = parseSocketTable(Files.readAllLines(procNet.resolve(socketTableName()), StandardCharsets.US_ASCII), ByteOrder.nativeOrder());
+			} catch (IOException e) {
+				DHT.log(e, LogLevel.Debug);
+			}
+		}
+
+		long errors = readSystemRcvbufErrors();
+		if (errors >= 0) {
+			if (lastSystemErrors >= 0 && errors > lastSystemErrors)
+				systemErrors.add(errors - lastSystemErrors);
+			lastSystemErrors = errors;
+		}
+
+		List<RPCServer> servers = dht.getServerManager().getAllServers();
+		states.entrySet().removeIf(e -> {
+			if (servers.contains(e.getKey()))
+				return false;
+			e.getValue().unregister();
+			return true;
+		});
+
+		for (RPCServer srv : servers) {
+			InetSocketAddress local = srv.getLocalSocketAddress();
+			if (local == null)
+				continue;
+			ServerState state = states.computeIfAbsent(srv, ServerState::new);
+			int buffer = srv.getReceiveBufferSize();
+			int backlog = srv.drainReadBacklogPeak();
+
+			SocketStats stats = findSocket(sockets, local);
+			boolean overflow;
+			if (stats != null && stats.drops >= 0) {
+				state.rxQueue = stats.rxQueue;
+				long newDrops = state.lastDrops < 0 ? 0 : stats.drops - state.lastDrops;
+				state.lastDrops = stats.drops;
+				if (newDrops > 0)
+					state.drops.add(newDrops);
+				overflow = newDrops > 0;
+			} else {
+				overflow = backlog >= buffer * BACKLOG_THRESHOLD;
+			}
+
+			if (buffer < minBuffer)
+				resize(srv, state, buffer, minBuffer);
+			else if (overflow)
+				grow(srv, state, buffer);
+		}
+	}
+
+	private void grow(RPCServer srv, ServerState state, int current) {
+		if (state.capped)
+			return;
+		if (current >= maxBuffer) {
+			state.capped = true;
+			DHT.logInfo("UDP receive buffer of " + state.label + " overflows but already is at the configured maximum of " + maxBuffer + " bytes");
+			return;
+		}
+		resize(srv, state, current, (int) Math.min(maxBuffer, current * 2L));
+	}
+
+	private void resize(RPCServer srv, ServerState state, int current, int target) {
+		try {
+			int actual = srv.setReceiveBufferSize(target);
+			if (actual <= current) {
+				state.capped = true;
+				DHT.logInfo("the OS refused to grow the UDP receive buffer of " + state.label + " beyond " + actual + " bytes, raise net.core.rmem_max to allow more");
+				return;
+			}
+			state.resizes.inc();
+			DHT.logInfo("UDP receive buffer of " + state.label + " enlarged from " + current + " to " + actual + " bytes");
+		} catch (IOException e) {
+			DHT.log(e, LogLevel.Error);
+		}
+	}
+
+	/**
+	 * @return -1 if unavailable
+	 */
+	private long readSystemRcvbufErrors() {
+		try {
+			if (dht.getType() == DHTtype.IPV6_DHT) {
+				Path p = procNet.resolve("snmp6");
+				if (Files.isReadable(p))
+					return parseKeyValues(Files.readAllLines(p, StandardCharsets.US_ASCII)).getOrDefault("Udp6RcvbufErrors", -1L);
+			} else {
+				Path p = procNet.resolve("snmp");
+				if (Files.isReadable(p))
+					return parseSnmp(Files.readAllLines(p, StandardCharsets.US_ASCII), "Udp").getOrDefault("RcvbufErrors", -1L);
+			}
+		} catch (IOException e) {
+			DHT.log(e, LogLevel.Debug);
+		}
+		return -1;
+	}
+
+	/**
+	 * Parses the header/value line pairs of /proc/net/snmp
+	 *
+	 * @param protocol e.g. "Udp"
+	 */
+	public static Map<String, Long> parseSnmp(List<String> lines, String protocol) {
+		Map<String, Long> result = new HashMap<String, Long>();
+		String prefix = protocol + ":";
+		for (int i = 0; i + 1 < lines.size(); i++) {
+			if (!lines.get(i).startsWith(prefix) || !lines.get(i + 1).startsWith(prefix))
+				continue;
+			String[] names = lines.get(i).substring(prefix.length()).trim().split("\\s+");
+			String[] values = lines.get(i + 1).substring(prefix.length()).trim().split("\\s+");
+			for (int j = 0; j < Math.min(names.length, values.length); j++)
+				result.put(names[j], Long.parseLong(values[j]));
+			break;
+		}
+		return result;
+	}
+
+	/**
+	 * Parses the name/value lines of /proc/net/snmp6
+	 */
+	public static Map<String, Long> parseKeyValues(List<String> lines) {
+		Map<String, Long> result = new HashMap<String, Long>();
+		for (String line : lines) {
+			String[] fields = line.trim().split("\\s+");
+			if (fields.length == 2)
+				result.put(fields[0], Long.parseLong(fields[1]));
+		}
+		return result;
+	}
+
+	/**
+	 * Parses /proc/net/udp or /proc/net/udp6
+	 *
+	 * @param order byte order of the host that wrote the table, addresses are printed as 32bit words in host order
+	 */
+	public static List<SocketStats> parseSocketTable(List<String> lines, ByteOrder order) {
+		List<SocketStats> result = new ArrayList<SocketStats>();
+		if (lines.isEmpty())
+			return result;
+		String[] header = lines.get(0).trim().split("\\s+");
+		boolean hasDrops = header[header.length - 1].equals("drops");
+
+		for (String line : lines.subList(1, lines.size())) {
+			String[] fields = line.trim().split("\\s+");
+			if (fields.length < 5)
+				continue;
+			String[] local = fields[1].split(":");
+			String[] queues = fields[4].split(":");
+			try {
+				InetAddress addr = InetAddress.getByAddress(decodeAddress(local[0], order));
+				int port = Integer.parseInt(local[1], 16);
+				long rxQueue = Long.parseLong(queues[1], 16);
+				long drops = hasDrops ? Long.parseLong(fields[fields.length - 1]) : -1;
+				result.add(new SocketStats(new InetSocketAddress(addr, port), rxQueue, drops));
+			} catch (UnknownHostException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				DHT.log("unparseable socket table line: " + line, LogLevel.Debug);
+			}
+		}
+		return result;
+	}
+
+	private static byte[] decodeAddress(String hex, ByteOrder order) {
+		ByteBuffer buf = ByteBuffer.allocate(hex.length() / 2).order(order);
+		for (int i = 0; i < hex.length(); i += 8)
+			buf.putInt((int) Long.parseLong(hex.substring(i, i + 8), 16));
+		return buf.array();
+	}
+
+	/**
+	 * Sockets sharing a port through SO_REUSEPORT are summed up into a single entry.
+	 * 
+	 * @return the socket bound to exactly that address, or to the wildcard address with the same port. null if there is none
+	 */
+	public static SocketStats findSocket(List<SocketStats> sockets, InetSocketAddress local) {
+		List<SocketStats> exact = new ArrayList<>();
+		List<SocketStats> wildcard = new ArrayList<>();
+		for (SocketStats s : sockets) {
+			if (s.local.getPort() != local.getPort())
+				continue;
+			if (s.local.getAddress().equals(local.getAddress()))
+				exact.add(s);
+			else if (s.local.getAddress().isAnyLocalAddress())
+				wildcard.add(s);
+		}
+		return merge(exact.isEmpty() ? wildcard : exact);
+	}
+
+	private static SocketStats merge(List<SocketStats> group) {
+		if (group.size() <= 1)
+			return group.isEmpty() ? null : group.get(0);
+		long rxQueue = 0;
+		long drops = 0;
+		for (SocketStats s : group) {
+			rxQueue += s.rxQueue;
+			drops = drops < 0 || s.drops < 0 ? -1 : drops + s.drops;
+		}
+		return new SocketStats(group.get(0).local, rxQueue, drops);
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder b = new StringBuilder("udp drop monitor: procfs:").append(isProcfsAvailable()).append(" system rcvbuf errors:").append(systemErrors);
+		states.forEach((srv, s) -> b.append(" [").append(s.label).append(" buffer:").append(srv.getReceiveBufferSize()).append(" drops:").append(s.drops).append(" resizes:").append(s.resizes).append(']'));
+		return b.toString();
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad.jfr;
+
+import java.net.InetSocketAddress;
+
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.Prefix;
+import lbms.plugins.mldht.kad.messages.MessageBase.Method;
+
+/**
+ * Java 8 compatible view of {@link JfrEmitter}, which is only compiled on JDK 11+ and loaded reflectively
+ */
+interface EventSink {
+
+	void packetReceived(InetSocketAddress source, int length);
+
+	void packetDropped(InetSocketAddress source, int length, String reason);
+
+	void rpcSent(Method method, InetSocketAddress destination, Key target, int activeCalls);
+
+	void rpcStalled(Method method, InetSocketAddress destination, long elapsedMillis);
+
+	void rpcResponded(Method method, InetSocketAddress destination, long rttMillis, boolean stalled);
+
+	void rpcTimedOut(Method method, InetSocketAddress destination, long elapsedMillis);
+
+	void taskStarted(Object task, int taskId, Key target);
+
+	void taskFinished(Object task, int taskId, Key target, long durationMillis, int sent, int responses, int failed);
+
+	void databaseStore(Key key, boolean newKey, int itemsForKey);
+
+	void databaseExpire(int expiredKeys, int expiredItems, int remainingKeys, int remainingItems);
+
+	void routingTableSplit(Prefix prefix, int buckets);
+
+	void routingTableMerge(Prefix prefix, String reason, int buckets);
+}
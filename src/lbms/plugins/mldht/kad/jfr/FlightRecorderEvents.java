@@ -0,0 +1,129 @@
+/*
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad.jfr;
+
+import java.net.InetSocketAddress;
+
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.Prefix;
+import lbms.plugins.mldht.kad.messages.MessageBase.Method;
+
+/**
+ * Emits Java Flight Recorder events for the packet, RPC, task, database and routing table stages.
+ *
+ * Events are only emitted if the JVM was started with <code>-Dmldht.jfr=true</code> and provides the <code>jdk.jfr</code> module.
+ * The emitter is compiled separately on JDK 11+ and loaded reflectively, builds on JDK 8 simply lack it.
+ * Otherwise every method is a no-op guarded by a constant and compiled away by the JIT. Call sites must not do any work
+ * to prepare the arguments, the conversion to event fields happens in here and only if the recording asks for the event.
+ *
+ * Events can be enabled and thresholded individually in a recording, their names start with <code>mldht.</code>
+ */
+public final class FlightRecorderEvents {
+
+	public static final String	PROPERTY	= "mldht.jfr";
+
+	private static final EventSink	SINK		= Boolean.getBoolean(PROPERTY) ? load() : null;
+
+	/**
+	 * call sites check this before calling any of the methods so that disabled events cost nothing
+	 */
+	public static final boolean	ENABLED		= SINK != null;
+
+	private FlightRecorderEvents() {}
+
+	private static EventSink load() {
+		try {
+			return (EventSink) Class.forName("lbms.plugins.mldht.kad.jfr.JfrEmitter").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+
+	public static void packetReceived(InetSocketAddress source, int length) {
+		if (ENABLED)
+			SINK.packetReceived(source, length);
+	}
+
+	/**
+	 * @param reason short identifier, e.g. "throttled"
+	 */
+	public static void packetDropped(InetSocketAddress source, int length, String reason) {
+		if (ENABLED)
+			SINK.packetDropped(source, length, reason);
+	}
+
+	/**
+	 * @param target lookup target, null for requests without one
+	 * @param activeCalls calls awaiting a response on the sending server
+	 */
+	public static void rpcSent(Method method, InetSocketAddress destination, Key target, int activeCalls) {
+		if (ENABLED)
+			SINK.rpcSent(method, destination, target, activeCalls);
+	}
+
+	public static void rpcStalled(Method method, InetSocketAddress destination, long elapsedMillis) {
+		if (ENABLED)
+			SINK.rpcStalled(method, destination, elapsedMillis);
+	}
+
+	public static void rpcResponded(Method method, InetSocketAddress destination, long rttMillis, boolean stalled) {
+		if (ENABLED)
+			SINK.rpcResponded(method, destination, rttMillis, stalled);
+	}
+
+	public static void rpcTimedOut(Method method, InetSocketAddress destination, long elapsedMillis) {
+		if (ENABLED)
+			SINK.rpcTimedOut(method, destination, elapsedMillis);
+	}
+
+	/**
+	 * @param task passed as object so that no string is built for disabled events
+	 */
+	public static void taskStarted(Object task, int taskId, Key target) {
+		if (ENABLED)
+			SINK.taskStarted(task, taskId, target);
+	}
+
+	public static void taskFinished(Object task, int taskId, Key target, long durationMillis, int sent, int responses, int failed) {
+		if (ENABLED)
+			SINK.taskFinished(task, taskId, target, durationMillis, sent, responses, failed);
+	}
+
+	public static void databaseStore(Key key, boolean newKey, int itemsForKey) {
+		if (ENABLED)
+			SINK.databaseStore(key, newKey, itemsForKey);
+	}
+
+	public static void databaseExpire(int expiredKeys, int expiredItems, int remainingKeys, int remainingItems) {
+		if (ENABLED)
+			SINK.databaseExpire(expiredKeys, expiredItems, remainingKeys, remainingItems);
+	}
+
+	public static void routingTableSplit(Prefix prefix, int buckets) {
+		if (ENABLED)
+			SINK.routingTableSplit(prefix, buckets);
+	}
+
+	/**
+	 * @param prefix the prefix of the merged bucket
+	 * @param reason short identifier, e.g. "empty_sibling"
+	 */
+	public static void routingTableMerge(Prefix prefix, String reason, int buckets) {
+		if (ENABLED)
+			SINK.routingTableMerge(prefix, reason, buckets);
+	}
+}
@@ -0,0 +1,374 @@
+/*
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad.jfr;
+
+import java.net.InetSocketAddress;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.Prefix;
+import lbms.plugins.mldht.kad.messages.MessageBase.Method;
+
+/**
+ * The only class touching <code>jdk.jfr</code>. It is compiled separately by the <code>jfr</code> build profile on JDK 11+
+ * and instantiated reflectively by {@link FlightRecorderEvents} only if {@link FlightRecorderEvents#PROPERTY} is set.
+ *
+ * Each method allocates the event first and bails out if the recording does not want it, escape analysis removes the allocation in that case.
+ */
+final class JfrEmitter implements EventSink {
+
+	JfrEmitter() {}
+
+	private static String address(InetSocketAddress addr) {
+		return addr == null ? null : addr.getAddress().getHostAddress() + ":" + addr.getPort();
+	}
+
+	private static String method(Method m) {
+		return m == null ? null : m.name().toLowerCase();
+	}
+
+	/**
+	 * leading 64 bits in hex, enough to group by keyspace region
+	 */
+	private static String prefix(Key k) {
+		return k == null ? null : k.toString(false).substring(0, 16);
+	}
+
+	@Name("mldht.PacketReceived")
+	@Label("Packet Received")
+	@Category({"mlDHT", "Network"})
+	@StackTrace(false)
+	static class PacketReceived extends Event {
+		@Label("Source")
+		String	source;
+		@Label("Length")
+		@DataAmount
+		int		length;
+	}
+
+	@Name("mldht.PacketDropped")
+	@Label("Packet Dropped")
+	@Description("Incoming packet discarded before or during parsing")
+	@Category({"mlDHT", "Network"})
+	@StackTrace(false)
+	static class PacketDropped extends Event {
+		@Label("Source")
+		String	source;
+		@Label("Length")
+		@DataAmount
+		int		length;
+		@Label("Reason")
+		String	reason;
+	}
+
+	@Name("mldht.RPCSent")
+	@Label("RPC Sent")
+	@Category({"mlDHT", "RPC"})
+	@StackTrace(false)
+	static class RPCSent extends Event {
+		@Label("Method")
+		String	method;
+		@Label("Destination")
+		String	destination;
+		@Label("Target Prefix")
+		String	target;
+		@Label("Active Calls")
+		int		activeCalls;
+	}
+
+	@Name("mldht.RPCStalled")
+	@Label("RPC Stalled")
+	@Description("No response within the adaptive stall timeout, the task may issue another request in its place")
+	@Category({"mlDHT", "RPC"})
+	@StackTrace(false)
+	static class RPCStalled extends Event {
+		@Label("Method")
+		String	method;
+		@Label("Destination")
+		String	destination;
+		@Label("Elapsed")
+		@Timespan(Timespan.MILLISECONDS)
+		long	elapsed;
+	}
+
+	@Name("mldht.RPCResponded")
+	@Label("RPC Responded")
+	@Category({"mlDHT", "RPC"})
+	@StackTrace(false)
+	static class RPCResponded extends Event {
+		@Label("Method")
+		String	method;
+		@Label("Destination")
+		String	destination;
+		@Label("RTT")
+		@Timespan(Timespan.MILLISECONDS)
+		long	rtt;
+		@Label("Stalled")
+		boolean	stalled;
+	}
+
+	@Name("mldht.RPCTimedOut")
+	@Label("RPC Timed Out")
+	@Category({"mlDHT", "RPC"})
+	@StackTrace(false)
+	static class RPCTimedOut extends Event {
+		@Label("Method")
+		String	method;
+		@Label("Destination")
+		String	destination;
+		@Label("Elapsed")
+		@Timespan(Timespan.MILLISECONDS)
+		long	elapsed;
+	}
+
+	@Name("mldht.TaskStarted")
+	@Label("Task Started")
+	@Category({"mlDHT", "Tasks"})
+	@StackTrace(false)
+	static class TaskStarted extends Event {
+		@Label("Type")
+		String	type;
+		@Label("Task ID")
+		int		taskId;
+		@Label("Target Prefix")
+		String	target;
+	}
+
+	@Name("mldht.TaskFinished")
+	@Label("Task Finished")
+	@Category({"mlDHT", "Tasks"})
+	@StackTrace(false)
+	static class TaskFinished extends Event {
+		@Label("Type")
+		String	type;
+		@Label("Task ID")
+		int		taskId;
+		@Label("Target Prefix")
+		String	target;
+		@Label("Task Duration")
+		@Timespan(Timespan.MILLISECONDS)
+		long	taskDuration;
+		@Label("Sent Requests")
+		int		sent;
+		@Label("Responses")
+		int		responses;
+		@Label("Failed Requests")
+		int		failed;
+	}
+
+	@Name("mldht.DatabaseStore")
+	@Label("Database Store")
+	@Category({"mlDHT", "Database"})
+	@StackTrace(false)
+	static class DatabaseStore extends Event {
+		@Label("Key Prefix")
+		String	key;
+		@Label("New Key")
+		boolean	newKey;
+		@Label("Items For Key")
+		int		itemsForKey;
+	}
+
+	@Name("mldht.DatabaseExpire")
+	@Label("Database Expire")
+	@Category({"mlDHT", "Database"})
+	@StackTrace(false)
+	static class DatabaseExpire extends Event {
+		@Label("Expired Keys")
+		int		expiredKeys;
+		@Label("Expired Items")
+		int		expiredItems;
+		@Label("Remaining Keys")
+		int		remainingKeys;
+		@Label("Remaining Items")
+		int		remainingItems;
+	}
+
+	@Name("mldht.RoutingTableSplit")
+	@Label("Routing Table Split")
+	@Category({"mlDHT", "Routing Table"})
+	@StackTrace(false)
+	static class RoutingTableSplit extends Event {
+		@Label("Prefix")
+		String	prefix;
+		@Label("Depth")
+		int		depth;
+		@Label("Buckets")
+		int		buckets;
+	}
+
+	@Name("mldht.RoutingTableMerge")
+	@Label("Routing Table Merge")
+	@Category({"mlDHT", "Routing Table"})
+	@StackTrace(false)
+	static class RoutingTableMerge extends Event {
+		@Label("Prefix")
+		String	prefix;
+		@Label("Depth")
+		int		depth;
+		@Label("Reason")
+		String	reason;
+		@Label("Buckets")
+		int		buckets;
+	}
+
+	@Override
+	public void packetReceived(InetSocketAddress source, int length) {
+		PacketReceived e = new PacketReceived();
+		if (!e.isEnabled())
+			return;
+		e.source = address(source);
+		e.length = length;
+		e.commit();
+	}
+
+	@Override
+	public void packetDropped(InetSocketAddress source, int length, String reason) {
+		PacketDropped e = new PacketDropped();
+		if (!e.isEnabled())
+			return;
+		e.source = address(source);
+		e.length = length;
+		e.reason = reason;
+		e.commit();
+	}
+
+	@Override
+	public void rpcSent(Method method, InetSocketAddress destination, Key target, int activeCalls) {
+		RPCSent e = new RPCSent();
+		if (!e.isEnabled())
+			return;
+		e.method = method(method);
+		e.destination = address(destination);
+		e.target = prefix(target);
+		e.activeCalls = activeCalls;
+		e.commit();
+	}
+
+	@Override
+	public void rpcStalled(Method method, InetSocketAddress destination, long elapsed) {
+		RPCStalled e = new RPCStalled();
+		if (!e.isEnabled())
+			return;
+		e.method = method(method);
+		e.destination = address(destination);
+		e.elapsed = elapsed;
+		e.commit();
+	}
+
+	@Override
+	public void rpcResponded(Method method, InetSocketAddress destination, long rtt, boolean stalled) {
+		RPCResponded e = new RPCResponded();
+		if (!e.isEnabled())
+			return;
+		e.method = method(method);
+		e.destination = address(destination);
+		e.rtt = rtt;
+		e.stalled = stalled;
+		e.commit();
+	}
+
+	@Override
+	public void rpcTimedOut(Method method, InetSocketAddress destination, long elapsed) {
+		RPCTimedOut e = new RPCTimedOut();
+		if (!e.isEnabled())
+			return;
+		e.method = method(method);
+		e.destination = address(destination);
+		e.elapsed = elapsed;
+		e.commit();
+	}
+
+	@Override
+	public void taskStarted(Object task, int taskId, Key target) {
+		TaskStarted e = new TaskStarted();
+		if (!e.isEnabled())
+			return;
+		e.type = task.getClass().getSimpleName();
+		e.taskId = taskId;
+		e.target = prefix(target);
+		e.commit();
+	}
+
+	@Override
+	public void taskFinished(Object task, int taskId, Key target, long duration, int sent, int responses, int failed) {
+		TaskFinished e = new TaskFinished();
+		if (!e.isEnabled())
+			return;
+		e.type = task.getClass().getSimpleName();
+		e.taskId = taskId;
+		e.target = prefix(target);
+		e.taskDuration = duration;
+		e.sent = sent;
+		e.responses = responses;
+		e.failed = failed;
+		e.commit();
+	}
+
+	@Override
+	public void databaseStore(Key key, boolean newKey, int itemsForKey) {
+		DatabaseStore e = new DatabaseStore();
+		if (!e.isEnabled())
+			return;
+		e.key = prefix(key);
+		e.newKey = newKey;
+		e.itemsForKey = itemsForKey;
+		e.commit();
+	}
+
+	@Override
+	public void databaseExpire(int expiredKeys, int expiredItems, int remainingKeys, int remainingItems) {
+		DatabaseExpire e = new DatabaseExpire();
+		if (!e.isEnabled())
+			return;
+		e.expiredKeys = expiredKeys;
+		e.expiredItems = expiredItems;
+		e.remainingKeys = remainingKeys;
+		e.remainingItems = remainingItems;
+		e.commit();
+	}
+
+	@Override
+	public void routingTableSplit(Prefix prefix, int buckets) {
+		RoutingTableSplit e = new RoutingTableSplit();
+		if (!e.isEnabled())
+			return;
+		e.prefix = prefix.toString();
+		e.depth = prefix.getDepth();
+		e.buckets = buckets;
+		e.commit();
+	}
+
+	@Override
+	public void routingTableMerge(Prefix prefix, String reason, int buckets) {
+		RoutingTableMerge e = new RoutingTableMerge();
+		if (!e.isEnabled())
+			return;
+		e.prefix = prefix.toString();
+		e.depth = prefix.getDepth();
+		e.reason = reason;
+		e.buckets = buckets;
+		e.commit();
+	}
+}
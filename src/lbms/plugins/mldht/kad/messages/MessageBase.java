@@ -84,6 +84,15 @@ public abstract class MessageBase {
 		return out;
 	}
 	
+	/**
+	 * BEncode the message into an existing buffer, starting at its position
+	 * @throws java.nio.BufferOverflowException if the message does not fit
+	 */
+	public void encode(ByteBuffer target)
+	{
+		new BEncoder().encodeInto(getBase(), target);
+	}
+	
 	public Map<String, Object> getBase() {
 		Map<String, Object> base = new TreeMap<String, Object>();
 		Map<String, Object> inner = getInnerMap();
@@ -0,0 +1,275 @@
+/*
+ *    This file is part of mlDHT.
+ * 
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ * 
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ * 
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad.sim;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.DatagramTransport;
+import lbms.plugins.mldht.kad.RPCServer;
+
+/**
+ * In-memory datagram network connecting {@link RPCServer}s that were started on a {@link DatagramTransport}.
+ *
+ * Every datagram is delayed by a random latency and may be lost. Endpoints behind a NAT behave like a port-restricted cone NAT:
+ * their address is reachable, but only by remote addresses they have sent to within the last {@link #NAT_MAPPING_TIMEOUT} milliseconds.
+ *
+ * Datagrams are delivered in real time by a single thread.
+ */
+public class SimulatedNetwork {
+
+	public static final long							NAT_MAPPING_TIMEOUT	= 60 * 1000;
+
+	private final ConcurrentMap<InetSocketAddress, Endpoint>	endpoints	= new ConcurrentHashMap<InetSocketAddress, Endpoint>();
+	private final DelayQueue<InFlight>					inFlight			= new DelayQueue<InFlight>();
+	private final Thread								deliveryThread;
+	private volatile boolean							closed;
+
+	private volatile int								minLatency			= 20;
+	private volatile int								latencyJitter		= 80;
+	private volatile double								lossRate;
+
+	private final AtomicLong							delivered			= new AtomicLong();
+	private final AtomicLong							lost				= new AtomicLong();
+	private final AtomicLong							natFiltered			= new AtomicLong();
+	private final AtomicLong							unreachable			= new AtomicLong();
+
+	public SimulatedNetwork() {
+		deliveryThread = new Thread(this::deliveryLoop, "mlDHT Simulated Network");
+		deliveryThread.setDaemon(true);
+		deliveryThread.start();
+	}
+
+	/**
+	 * One-way latency is drawn uniformly from [min, min + jitter] for every datagram
+	 */
+	public void setLatency(int minMillis, int jitterMillis) {
+		if (minMillis < 0 || jitterMillis < 0)
+			throw new IllegalArgumentException("latency must not be negative");
+		minLatency = minMillis;
+		latencyJitter = jitterMillis;
+	}
+
+	public void setLossRate(double lossRate) {
+		if (!(lossRate >= 0 && lossRate <= 1))
+			throw new IllegalArgumentException("loss rate must be within [0,1]");
+		this.lossRate = lossRate;
+	}
+
+	public Endpoint attach(InetSocketAddress address, boolean behindNat) {
+		Endpoint e = new Endpoint(address, behindNat);
+		if (endpoints.putIfAbsent(address, e) != null)
+			throw new IllegalStateException(address + " is already in use");
+		return e;
+	}
+
+	/**
+	 * Datagrams to a detached endpoint are silently discarded, like those to a host that went offline
+	 */
+	public void detach(Endpoint e) {
+		endpoints.remove(e.address, e);
+	}
+
+	public void close() {
+		closed = true;
+		deliveryThread.interrupt();
+		inFlight.clear();
+	}
+
+	private void deliveryLoop() {
+		while (!closed) {
+			InFlight d;
+			try {
+				d = inFlight.take();
+			} catch (InterruptedException e) {
+				continue;
+			}
+			try {
+				deliver(d);
+			} catch (Exception e) {
+				DHT.log(e, LogLevel.Error);
+			}
+		}
+	}
+
+	private void deliver(InFlight d) {
+		Endpoint target = endpoints.get(d.destination);
+		RPCServer srv = target != null ? target.server : null;
+		if (srv == null) {
+			unreachable.incrementAndGet();
+			return;
+		}
+		if (target.behindNat && !target.hasMapping(d.source, System.currentTimeMillis())) {
+			natFiltered.incrementAndGet();
+			return;
+		}
+		target.receivedPackets.increment();
+		target.receivedBytes.add(d.payload.length);
+		delivered.incrementAndGet();
+		srv.deliver(ByteBuffer.wrap(d.payload), d.source);
+	}
+
+	public int getEndpointCount() {
+		return endpoints.size();
+	}
+
+	public long getDeliveredCount() {
+		return delivered.get();
+	}
+
+	public long getLostCount() {
+		return lost.get();
+	}
+
+	public long getNatFilteredCount() {
+		return natFiltered.get();
+	}
+
+	public long getUnreachableCount() {
+		return unreachable.get();
+	}
+
+	@Override
+	public String toString() {
+		return "simulated network: endpoints:" + endpoints.size() + " latency:" + minLatency + "+" + latencyJitter + "ms loss:" + lossRate +
+				" delivered:" + delivered + " lost:" + lost + " nat filtered:" + natFiltered + " unreachable:" + unreachable + " in flight:" + inFlight.size();
+	}
+
+	public class Endpoint implements DatagramTransport {
+
+		private final InetSocketAddress					address;
+		private final boolean							behindNat;
+		// remote address -> time of the last datagram sent to it, only tracked behind a NAT
+		private final ConcurrentMap<InetSocketAddress, Long>	mappings	= new ConcurrentHashMap<InetSocketAddress, Long>();
+		private volatile RPCServer						server;
+
+		final LongAdder									sentPackets		= new LongAdder();
+		final LongAdder									sentBytes		= new LongAdder();
+		final LongAdder									receivedPackets	= new LongAdder();
+		final LongAdder									receivedBytes	= new LongAdder();
+
+		Endpoint(InetSocketAddress address, boolean behindNat) {
+			this.address = address;
+			this.behindNat = behindNat;
+		}
+
+		/**
+		 * Incoming datagrams are discarded until a server is set
+		 */
+		public void setServer(RPCServer server) {
+			this.server = server;
+		}
+
+		public InetSocketAddress getAddress() {
+			return address;
+		}
+
+		public boolean isBehindNat() {
+			return behindNat;
+		}
+
+		boolean hasMapping(InetSocketAddress remote, long now) {
+			Long last = mappings.get(remote);
+			if (last == null)
+				return false;
+			if (now - last > NAT_MAPPING_TIMEOUT) {
+				mappings.remove(remote, last);
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public int send(ByteBuffer data, InetSocketAddress destination) {
+			int length = data.remaining();
+			sentPackets.increment();
+			sentBytes.add(length);
+			if (behindNat)
+				mappings.put(destination, System.currentTimeMillis());
+
+			ThreadLocalRandom rnd = ThreadLocalRandom.current();
+			double loss = lossRate;
+			if (closed || (loss > 0 && rnd.nextDouble() < loss)) {
+				lost.incrementAndGet();
+				// the sender can't tell the difference
+				return length;
+			}
+
+			byte[] payload = new byte[length];
+			data.get(payload);
+			int jitter = latencyJitter;
+			long latency = minLatency + (jitter > 0 ? rnd.nextInt(jitter + 1) : 0);
+			inFlight.add(new InFlight(address, destination, payload, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(latency)));
+			return length;
+		}
+
+		public long getSentPackets() {
+			return sentPackets.sum();
+		}
+
+		public long getSentBytes() {
+			return sentBytes.sum();
+		}
+
+		public long getReceivedPackets() {
+			return receivedPackets.sum();
+		}
+
+		public long getReceivedBytes() {
+			return receivedBytes.sum();
+		}
+
+		@Override
+		public String toString() {
+			return address + (behindNat ? " (NAT)" : "") + " tx:" + sentPackets + "/" + sentBytes + "B rx:" + receivedPackets + "/" + receivedBytes + "B";
+		}
+	}
+
+	private static class InFlight implements Delayed {
+		final InetSocketAddress		source;
+		final InetSocketAddress		destination;
+		final byte[]				payload;
+		final long					due;
+
+		InFlight(InetSocketAddress source, InetSocketAddress destination, byte[] payload, long due) {
+			this.source = source;
+			this.destination = destination;
+			this.payload = payload;
+			this.due = due;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed o) {
+			return Long.compare(due, ((InFlight) o).due);
+		}
+	}
+}
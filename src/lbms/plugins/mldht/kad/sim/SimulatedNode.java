@@ -0,0 +1,98 @@
+/*
+ *    This file is part of mlDHT.
+ * 
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ * 
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ * 
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad.sim;
+
+import java.net.InetSocketAddress;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.RPCServer;
+import lbms.plugins.mldht.kad.sim.SimulatedNetwork.Endpoint;
+
+/**
+ * A standalone {@link DHT} attached to a {@link SimulatedNetwork}
+ */
+public class SimulatedNode {
+
+	private final DHT			dht;
+	private final Endpoint		endpoint;
+	private final RPCServer		server;
+	private final long			startTime	= System.currentTimeMillis();
+	private volatile long		bootstrapTime	= -1;
+
+	SimulatedNode(DHT dht, Endpoint endpoint, RPCServer server) {
+		this.dht = dht;
+		this.endpoint = endpoint;
+		this.server = server;
+	}
+
+	public DHT getDHT() {
+		return dht;
+	}
+
+	public Endpoint getEndpoint() {
+		return endpoint;
+	}
+
+	public RPCServer getServer() {
+		return server;
+	}
+
+	public InetSocketAddress getAddress() {
+		return endpoint.getAddress();
+	}
+
+	/**
+	 * @return the ID used in messages, which is what other nodes store in their routing tables
+	 */
+	public Key getID() {
+		return server.getDerivedID();
+	}
+
+	public boolean isBehindNat() {
+		return endpoint.isBehindNat();
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public int getRoutingTableSize() {
+		return dht.isRunning() ? dht.getNode().getNumEntriesInRoutingTable() : 0;
+	}
+
+	/**
+	 * @return milliseconds from the start of the node until its routing table was first seen filled by {@link Simulation#awaitBootstrap(int, long)}, -1 if it wasn't yet
+	 */
+	public long getBootstrapTime() {
+		return bootstrapTime;
+	}
+
+	boolean checkBootstrap(int minEntries, long now) {
+		if (bootstrapTime >= 0)
+			return true;
+		if (getRoutingTableSize() < minEntries)
+			return false;
+		bootstrapTime = now - startTime;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return getID().toString(false) + " " + endpoint + " routing table:" + getRoutingTableSize();
+	}
+}
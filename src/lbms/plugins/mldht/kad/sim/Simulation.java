@@ -0,0 +1,344 @@
+/*
+ *    This file is part of mlDHT.
+ * 
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ * 
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ * 
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad.sim;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+import lbms.plugins.mldht.DHTConfiguration;
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.DHTConstants;
+import lbms.plugins.mldht.kad.KBucketEntry;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.RPCServer;
+import lbms.plugins.mldht.kad.sim.SimulatedNetwork.Endpoint;
+import lbms.plugins.mldht.kad.tasks.NodeLookup;
+import lbms.plugins.mldht.kad.tasks.ResultStream;
+
+/**
+ * Runs many standalone IPv4 DHT nodes in one process on top of a {@link SimulatedNetwork}.
+ *
+ * New nodes bootstrap by pinging a few random reachable nodes, from there on the regular maintenance of each DHT takes over.
+ * All timers are those of the DHTs themselves, so the simulation runs in real time.
+ */
+public class Simulation {
+
+	public static final int				SEED_NODES		= 3;
+	private static final int			PORT			= 6881;
+
+	private final SimulatedNetwork		network;
+	// guarded by this
+	private final List<SimulatedNode>	nodes			= new ArrayList<SimulatedNode>();
+	// guarded by this
+	private int							nextAddress		= 1;
+	private ScheduledFuture<?>			churnTimer;
+	private long						replaced;
+
+	private final DHTConfiguration		config			= new DHTConfiguration() {
+		public boolean noRouterBootstrap() {
+			return true;
+		}
+
+		public boolean isPersistingID() {
+			return false;
+		}
+
+		public File getNodeCachePath() {
+			return null;
+		}
+
+		public int getListeningPort() {
+			return PORT;
+		}
+
+		public boolean allowMultiHoming() {
+			return false;
+		}
+	};
+
+	public Simulation(SimulatedNetwork network) {
+		this.network = network;
+	}
+
+	public SimulatedNetwork getNetwork() {
+		return network;
+	}
+
+	private synchronized InetSocketAddress allocateAddress() throws UnknownHostException {
+		int n = nextAddress++;
+		// 11.0.0.0/8 is globally routable, so the nodes won't discard each other as bogons
+		byte[] raw = new byte[] {11, (byte) (n >>> 16), (byte) (n >>> 8), (byte) n};
+		return new InetSocketAddress(InetAddress.getByAddress(raw), PORT);
+	}
+
+	/**
+	 * Starts a new node and lets it bootstrap from up to {@link #SEED_NODES} random reachable nodes
+	 */
+	public SimulatedNode addNode(boolean behindNat) throws SocketException, UnknownHostException {
+		InetSocketAddress addr = allocateAddress();
+		Endpoint endpoint = network.attach(addr, behindNat);
+		DHT dht = DHT.createStandalone(DHTtype.IPV4_DHT);
+		dht.start(config, addr, endpoint);
+		RPCServer srv = dht.getServerManager().getAllServers().get(0);
+		endpoint.setServer(srv);
+		SimulatedNode node = new SimulatedNode(dht, endpoint, srv);
+
+		List<SimulatedNode> seeds = reachableNodes();
+		Collections.shuffle(seeds);
+		for (SimulatedNode seed : seeds.subList(0, Math.min(SEED_NODES, seeds.size())))
+			dht.addDHTNode(seed.getAddress().getAddress().getHostAddress(), seed.getAddress().getPort());
+
+		synchronized (this) {
+			nodes.add(node);
+		}
+		return node;
+	}
+
+	public void removeNode(SimulatedNode node) {
+		synchronized (this) {
+			if (!nodes.remove(node))
+				return;
+		}
+		network.detach(node.getEndpoint());
+		node.getDHT().stop();
+	}
+
+	/**
+	 * Replaces randomly picked nodes with new ones that have fresh IDs and addresses, but the same NAT status
+	 */
+	public void churn(int count) throws SocketException, UnknownHostException {
+		for (int i = 0; i < count; i++) {
+			SimulatedNode victim;
+			synchronized (this) {
+				if (nodes.isEmpty())
+					return;
+				victim = nodes.get(ThreadLocalRandom.current().nextInt(nodes.size()));
+			}
+			removeNode(victim);
+			addNode(victim.isBehindNat());
+			replaced++;
+		}
+	}
+
+	/**
+	 * @param replacementsPerSecond average rate at which nodes are replaced, 0 stops the churn
+	 */
+	public synchronized void setChurnRate(double replacementsPerSecond) {
+		if (churnTimer != null)
+			churnTimer.cancel(false);
+		churnTimer = null;
+		if (replacementsPerSecond <= 0)
+			return;
+		long interval = Math.max(1, (long) (1000 / replacementsPerSecond));
+		churnTimer = DHT.getScheduler().scheduleWithFixedDelay(() -> {
+			try {
+				churn(1);
+			} catch (Exception e) {
+				DHT.log(e, LogLevel.Error);
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized List<SimulatedNode> getNodes() {
+		return new ArrayList<SimulatedNode>(nodes);
+	}
+
+	/**
+	 * @return nodes that can receive unsolicited datagrams
+	 */
+	public synchronized List<SimulatedNode> reachableNodes() {
+		return nodes.stream().filter(n -> !n.isBehindNat()).collect(Collectors.toCollection(ArrayList::new));
+	}
+
+	/**
+	 * Samples the routing tables of all nodes until each holds at least the given number of entries
+	 *
+	 * @return number of nodes that are still not bootstrapped when the timeout expires
+	 * @see SimulatedNode#getBootstrapTime()
+	 */
+	public int awaitBootstrap(int minEntries, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (true) {
+			long now = System.currentTimeMillis();
+			int pending = 0;
+			for (SimulatedNode n : getNodes())
+				if (!n.checkBootstrap(minEntries, now))
+					pending++;
+			if (pending == 0 || now >= deadline)
+				return pending;
+			Thread.sleep(Math.min(50, deadline - now));
+		}
+	}
+
+	public SimulatedNode randomNode() {
+		synchronized (this) {
+			return nodes.get(ThreadLocalRandom.current().nextInt(nodes.size()));
+		}
+	}
+
+	/**
+	 * Runs a node lookup and compares the result with the actual closest nodes. Nodes behind a NAT only count if they responded,
+	 * since the others can't be reached by the lookup.
+	 */
+	public LookupResult lookup(SimulatedNode from, Key target, long timeoutMillis) throws InterruptedException, TimeoutException {
+		ResultStream<KBucketEntry> stream = new ResultStream<KBucketEntry>(Integer.MAX_VALUE);
+		stream.subscribe(e -> {}).request(Long.MAX_VALUE);
+
+		NodeLookup lookup = new NodeLookup(target, from.getServer(), from.getDHT().getNode(), false);
+		lookup.setResultStream(stream);
+		from.getDHT().getTaskManager().addTask(lookup);
+
+		List<KBucketEntry> found;
+		try {
+			found = stream.getCompletion().get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e);
+		}
+
+		Set<Key> foundIDs = new HashSet<Key>();
+		for (KBucketEntry e : found)
+			foundIDs.add(e.getID());
+
+		List<Key> expected = getNodes().stream()
+				.filter(n -> n != from && (!n.isBehindNat() || foundIDs.contains(n.getID())))
+				.map(SimulatedNode::getID)
+				.sorted(new Key.DistanceOrder(target))
+				.limit(DHTConstants.MAX_ENTRIES_PER_BUCKET)
+				.collect(Collectors.toList());
+		int matches = 0;
+		for (Key k : expected)
+			if (foundIDs.contains(k))
+				matches++;
+
+		return new LookupResult(target, lookup.getFinishedTime() - lookup.getStartTime(), lookup.getSentReqs(), lookup.getRecvResponses(), lookup.getFailedReqs(),
+				expected.isEmpty() ? 1.0 : matches * 1.0 / expected.size());
+	}
+
+	public void close() {
+		setChurnRate(0);
+		for (SimulatedNode n : getNodes())
+			removeNode(n);
+		network.close();
+	}
+
+	@Override
+	public String toString() {
+		List<SimulatedNode> current = getNodes();
+		long now = System.currentTimeMillis();
+		int nat = 0;
+		long tables = 0;
+		double txRate = 0, rxRate = 0, txBytesRate = 0;
+		for (SimulatedNode n : current) {
+			if (n.isBehindNat())
+				nat++;
+			tables += n.getRoutingTableSize();
+			double uptime = Math.max(1, now - n.getStartTime()) / 1000.0;
+			txRate += n.getEndpoint().getSentPackets() / uptime;
+			rxRate += n.getEndpoint().getReceivedPackets() / uptime;
+			txBytesRate += n.getEndpoint().getSentBytes() / uptime;
+		}
+		int count = Math.max(1, current.size());
+		return String.format("simulation: nodes:%d (NAT:%d) replaced:%d avg routing table:%.1f per node: tx %.2f pkt/s %.0f B/s rx %.2f pkt/s%n%s",
+				current.size(), nat, replaced, tables * 1.0 / count, txRate / count, txBytesRate / count, rxRate / count, network);
+	}
+
+	public static class LookupResult {
+		public final Key		target;
+		public final long		duration;
+		public final int		requests;
+		public final int		responses;
+		public final int		failures;
+		/**
+		 * fraction of the actual closest reachable nodes that the lookup found
+		 */
+		public final double		accuracy;
+
+		LookupResult(Key target, long duration, int requests, int responses, int failures, double accuracy) {
+			this.target = target;
+			this.duration = duration;
+			this.requests = requests;
+			this.responses = responses;
+			this.failures = failures;
+			this.accuracy = accuracy;
+		}
+
+		@Override
+		public String toString() {
+			return "lookup " + target.toString(false) + " " + duration + "ms requests:" + requests + " responses:" + responses + " failures:" + failures + " accuracy:" + accuracy;
+		}
+	}
+
+	/**
+	 * usage: Simulation &lt;nodes&gt; [NAT fraction] [loss rate] [lookups]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("usage: Simulation <nodes> [NAT fraction] [loss rate] [lookups]");
+			System.exit(1);
+		}
+		int count = Integer.parseInt(args[0]);
+		double natFraction = args.length > 1 ? Double.parseDouble(args[1]) : 0;
+		double loss = args.length > 2 ? Double.parseDouble(args[2]) : 0;
+		int lookups = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+
+		DHT.setLogLevel(LogLevel.Error);
+		SimulatedNetwork network = new SimulatedNetwork();
+		network.setLossRate(loss);
+		Simulation sim = new Simulation(network);
+
+		for (int i = 0; i < count; i++)
+			sim.addNode(i > 0 && ThreadLocalRandom.current().nextDouble() < natFraction);
+
+		sim.awaitBootstrap(Math.min(DHTConstants.MAX_ENTRIES_PER_BUCKET, count - 1), 60 * 1000);
+		long bootstrapped = 0, bootstrapTime = 0;
+		for (SimulatedNode n : sim.getNodes()) {
+			if (n.getBootstrapTime() >= 0) {
+				bootstrapped++;
+				bootstrapTime += n.getBootstrapTime();
+			}
+		}
+		System.out.println("bootstrapped " + bootstrapped + "/" + count + " nodes, average " + (bootstrapped > 0 ? bootstrapTime / bootstrapped : -1) + "ms");
+
+		double accuracy = 0, requests = 0, duration = 0;
+		for (int i = 0; i < lookups; i++) {
+			LookupResult r = sim.lookup(sim.randomNode(), Key.createRandomKey(), DHTConstants.TASK_TIMEOUT);
+			accuracy += r.accuracy;
+			requests += r.requests;
+			duration += r.duration;
+		}
+		System.out.printf("%d lookups: avg accuracy %.3f, %.1f requests, %.0fms%n", lookups, accuracy / lookups, requests / lookups, duration / lookups);
+		System.out.println(sim);
+		sim.close();
+		System.exit(0);
+	}
+}
@@ -0,0 +1,362 @@
+/*
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad.tasks;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.DHTConstants;
+import lbms.plugins.mldht.kad.KBucketEntry;
+import lbms.plugins.mldht.kad.KBucketEntryAndToken;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.RPCServer;
+import lbms.plugins.mldht.utils.ExponentialWeightendMovingAverage;
+import lbms.plugins.mldht.utils.RateLimiter;
+
+/**
+ * Periodically (re-)announces a large set of torrents.
+ *
+ * Announce times are spread uniformly over the interval when a torrent is registered and jittered on every cycle
+ * so that registrations made in bulk do not stay synchronized. Due announces go into a backlog that is worked off
+ * in keyspace order, so consecutive lookups can be seeded from each other.
+ *
+ * The tokens of the manager's own lookups and of ones {@link #offerTokens(PeerLookupTask) offered} by the embedder are kept for
+ * {@link DHTConstants#TOKEN_TIMEOUT}. That is much shorter than the interval, so they only pay off for announces that happen
+ * out of cycle: a registration whose port or seed state changes and a registration for which tokens are offered are announced
+ * right away, which skips the lookup entirely while the tokens are still valid.
+ *
+ * Torrents without usable tokens are handled by a {@link LookupAndAnnounceTask}.
+ *
+ * All traffic is accounted against a packets-per-second budget. Lookup costs are estimated from previous lookups and corrected once they finish.
+ */
+public class AnnounceManager {
+
+	public static final long		DEFAULT_INTERVAL		= 30 * 60 * 1000;
+	private static final double		JITTER					= 0.1;
+	private static final int		MAX_ACTIVE				= 32;
+	private static final int		NEIGHBORHOOD_SIZE		= 64;
+	private static final int		ANNOUNCE_COST			= DHTConstants.MAX_ENTRIES_PER_BUCKET;
+
+	private static class Registration {
+		final Key		infoHash;
+		volatile int	port;
+		volatile boolean seed;
+		long			nextAnnounce;
+		boolean			inTimeline;
+		// set by tick(), cleared by done()
+		volatile boolean running;
+
+		Registration(Key infoHash, int port, boolean seed) {
+			this.infoHash = infoHash;
+			this.port = port;
+			this.seed = seed;
+		}
+	}
+
+	private static class Tokens {
+		final RPCServer						srv;
+		final List<KBucketEntryAndToken>	candidates;
+		final long							obtained;
+
+		Tokens(RPCServer srv, List<KBucketEntryAndToken> candidates, long obtained) {
+			this.srv = srv;
+			this.candidates = candidates;
+			this.obtained = obtained;
+		}
+	}
+
+	private final DHT									dht;
+	private final long									interval;
+	private final RateLimiter							budget;
+	private final ConcurrentHashMap<Key, Registration>	registrations	= new ConcurrentHashMap<Key, Registration>();
+	private final PriorityQueue<Registration>			timeline		= new PriorityQueue<Registration>((a, b) -> Long.compare(a.nextAnnounce, b.nextAnnounce));
+	private final ConcurrentSkipListSet<Key>			backlog			= new ConcurrentSkipListSet<Key>();
+	private final ConcurrentHashMap<Key, Tokens>		tokens			= new ConcurrentHashMap<Key, Tokens>();
+	private final LookupSeeds							seeds			= new LookupSeeds(NEIGHBORHOOD_SIZE);
+	private final ExponentialWeightendMovingAverage		lookupCost		= new ExponentialWeightendMovingAverage().setWeight(0.05).setValue(4 * DHTConstants.MAX_ENTRIES_PER_BUCKET);
+	private volatile Key								cursor			= Key.createRandomKey();
+	private ScheduledFuture<?>							timer;
+
+	private final AtomicInteger							active			= new AtomicInteger();
+	private final AtomicLong							announces		= new AtomicLong();
+	private final AtomicLong							lookups			= new AtomicLong();
+	private final AtomicLong							tokenReuses		= new AtomicLong();
+	private final AtomicLong							budgetStalls	= new AtomicLong();
+	private final AtomicLong							packetsSpent	= new AtomicLong();
+	private final ExponentialWeightendMovingAverage		lateness		= new ExponentialWeightendMovingAverage().setWeight(0.05);
+
+	public AnnounceManager(DHT dht, double packetsPerSecond) {
+		this(dht, packetsPerSecond, DEFAULT_INTERVAL);
+	}
+
+	/**
+	 * @param interval re-announce interval in milliseconds
+	 */
+	public AnnounceManager(DHT dht, double packetsPerSecond, long interval) {
+		this.dht = dht;
+		this.interval = interval;
+		this.budget = new RateLimiter(packetsPerSecond);
+	}
+
+	public void start() {
+		timer = DHT.getScheduler().scheduleWithFixedDelay(() -> {
+			try {
+				tick();
+			} catch (Exception e) {
+				DHT.log(e, LogLevel.Error);
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+	}
+
+	public void stop() {
+		if (timer != null)
+			timer.cancel(false);
+	}
+
+	public void setPacketsPerSecond(double pps) {
+		budget.setRate(pps);
+	}
+
+	/**
+	 * Adds a torrent or updates port and seed state of an existing registration.
+	 * The first announce of a new registration happens at a random point within the interval.
+	 */
+	public void register(Key infoHash, int port, boolean seed) {
+		Registration r = new Registration(infoHash, port, seed);
+		Registration existing = registrations.putIfAbsent(infoHash, r);
+		if (existing != null) {
+			boolean changed = existing.port != port || existing.seed != seed;
+			existing.port = port;
+			existing.seed = seed;
+			// peers should learn about the change now, not at the end of the interval
+			if (changed)
+				backlog.add(infoHash);
+			return;
+		}
+		synchronized (timeline) {
+			r.nextAnnounce = System.currentTimeMillis() + (long) (ThreadLocalRandom.current().nextDouble() * interval);
+			r.inTimeline = true;
+			timeline.add(r);
+		}
+	}
+
+	/**
+	 * Stops future announces. Stale timeline entries are skipped lazily.
+	 */
+	public void unregister(Key infoHash) {
+		registrations.remove(infoHash);
+		backlog.remove(infoHash);
+		tokens.remove(infoHash);
+	}
+
+	/**
+	 * Announces a registered torrent using the tokens of a finished lookup instead of waiting for its next cycle, which restarts its interval
+	 */
+	public void offerTokens(PeerLookupTask lookup) {
+		if (lookup.isNoAnnounce() || !registrations.containsKey(lookup.getInfoHash()))
+			return;
+		if (rememberTokens(lookup))
+			backlog.add(lookup.getInfoHash());
+	}
+
+	private boolean rememberTokens(PeerLookupTask lookup) {
+		List<KBucketEntryAndToken> candidates = lookup.getAnnounceCanidates();
+		if (candidates.isEmpty())
+			return false;
+		tokens.put(lookup.getInfoHash(), new Tokens(lookup.getRPC(), new ArrayList<KBucketEntryAndToken>(candidates), System.currentTimeMillis()));
+		return true;
+	}
+
+	private void tick() {
+		long now = System.currentTimeMillis();
+
+		synchronized (timeline) {
+			Registration r;
+			while ((r = timeline.peek()) != null && r.nextAnnounce <= now) {
+				timeline.poll();
+				r.inTimeline = false;
+				if (registrations.get(r.infoHash) == r)
+					backlog.add(r.infoHash);
+			}
+		}
+
+		for (Iterator<Tokens> it = tokens.values().iterator(); it.hasNext();)
+			if (now - it.next().obtained > DHTConstants.TOKEN_TIMEOUT)
+				it.remove();
+
+		if (!dht.isRunning())
+			return;
+
+		while (active.get() < MAX_ACTIVE) {
+			Key next = pollNext();
+			if (next == null)
+				break;
+			Registration r = registrations.get(next);
+			// done() reschedules running ones anyway
+			if (r == null || r.running)
+				continue;
+
+			Tokens t = tokens.remove(next);
+			if (t != null && (now - t.obtained > DHTConstants.TOKEN_TIMEOUT || !dht.getServerManager().getAllServers().contains(t.srv)))
+				t = null;
+
+			int cost = t != null ? ANNOUNCE_COST : ANNOUNCE_COST + (int) lookupCost.getAverage();
+			// lookups can cost more than one second worth of packets at low rates, so borrow instead of waiting for the full amount
+			if (!budget.tryBorrow(cost)) {
+				if (t != null)
+					tokens.put(next, t);
+				backlog.add(next);
+				budgetStalls.incrementAndGet();
+				break;
+			}
+
+			// out of cycle announces are early, not late
+			lateness.updateAverage(Math.max(0, now - r.nextAnnounce));
+			active.incrementAndGet();
+			r.running = true;
+			if (t != null) {
+				tokenReuses.incrementAndGet();
+				announce(r, t.srv, t.candidates);
+			} else {
+				lookupAndAnnounce(r, cost - ANNOUNCE_COST);
+			}
+		}
+	}
+
+	private Key pollNext() {
+		Key next = backlog.ceiling(cursor);
+		if (next == null)
+			next = backlog.pollFirst();
+		else if (!backlog.remove(next))
+			return pollNext();
+		if (next != null)
+			cursor = next;
+		return next;
+	}
+
+	private void lookupAndAnnounce(Registration r, int estimatedCost) {
+		LookupAndAnnounceTask task = dht.createLookupAndAnnounce(r.infoHash, r.seed, r.port);
+		if (task == null) {
+			budget.consume(-estimatedCost - ANNOUNCE_COST);
+			done(r);
+			return;
+		}
+		task.setLowPriority(true);
+		seeds.seed(task);
+		lookups.incrementAndGet();
+		task.addListener(t -> {
+			// announces are part of the same task
+			int lookupPackets = task.getSentReqs() - task.getAnnounceCount();
+			budget.consume(task.getSentReqs() - estimatedCost - ANNOUNCE_COST);
+			packetsSpent.addAndGet(task.getSentReqs());
+			synchronized (lookupCost) {
+				lookupCost.updateAverage(lookupPackets);
+			}
+			if (task.getAnnounceCount() > 0)
+				announces.incrementAndGet();
+
+			seeds.remember(r.infoHash, new ArrayList<KBucketEntry>(task.getClosestSet()));
+			// for out of cycle announces within the token lifetime
+			if (registrations.get(r.infoHash) == r)
+				rememberTokens(task);
+			done(r);
+		});
+		dht.getTaskManager().addTask(task);
+	}
+
+	private void announce(Registration r, RPCServer srv, List<KBucketEntryAndToken> candidates) {
+		AnnounceTask task = dht.announce(srv, r.infoHash, candidates, r.seed, r.port);
+		if (task == null) {
+			done(r);
+			return;
+		}
+		task.addListener(t -> {
+			announces.incrementAndGet();
+			packetsSpent.addAndGet(t.getSentReqs());
+			budget.consume(t.getSentReqs() - ANNOUNCE_COST);
+			done(r);
+		});
+	}
+
+	private void done(Registration r) {
+		active.decrementAndGet();
+		r.running = false;
+		if (registrations.get(r.infoHash) != r)
+			return;
+		long jitter = (long) ((ThreadLocalRandom.current().nextDouble() * 2 - 1) * JITTER * interval);
+		synchronized (timeline) {
+			// the interval restarts after an out of cycle announce
+			if (r.inTimeline)
+				timeline.remove(r);
+			r.nextAnnounce = System.currentTimeMillis() + interval + jitter;
+			r.inTimeline = true;
+			timeline.add(r);
+		}
+	}
+
+	public int getRegisteredCount() {
+		return registrations.size();
+	}
+
+	/**
+	 * @return number of torrents whose announce is due but has not been started yet
+	 */
+	public int getBacklog() {
+		return backlog.size();
+	}
+
+	public int getActiveCount() {
+		return active.get();
+	}
+
+	public long getAnnounceCount() {
+		return announces.get();
+	}
+
+	public long getLookupCount() {
+		return lookups.get();
+	}
+
+	public long getTokenReuseCount() {
+		return tokenReuses.get();
+	}
+
+	/**
+	 * @return average delay between an announce becoming due and being started, in milliseconds
+	 */
+	public double getAverageLateness() {
+		return lateness.getAverage(0);
+	}
+
+	@Override
+	public String toString() {
+		return "announce manager: registered:" + registrations.size() + " backlog:" + backlog.size() + " active:" + active.get() +
+				" announces:" + announces + " lookups:" + lookups + " token reuses:" + tokenReuses + " budget stalls:" + budgetStalls +
+				" packets:" + packetsSpent + " est. lookup cost:" + (int) lookupCost.getAverage() + " avg lateness:" + (long) getAverageLateness() + "ms";
+	}
+}
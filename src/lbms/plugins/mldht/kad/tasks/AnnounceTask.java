@@ -60,12 +60,12 @@ public class AnnounceTask extends Task {
 	void update () {
 
 		while (canDoRequest()) {
-			KBucketEntryAndToken e;
-			synchronized (todo) {
-				e = (KBucketEntryAndToken) todo.pollFirst();
-			}
+			KBucketEntryAndToken e = (KBucketEntryAndToken) todo.pollFirst();
 
-			if (e == null || hasVisited(e))
+			if (e == null)
+				break;
+
+			if (hasVisited(e))
 				continue;
 
 			AnnounceRequest anr = new AnnounceRequest(targetKey, port, e.getToken());
@@ -75,11 +75,7 @@ public class AnnounceTask extends Task {
 			if (rpcCall(anr,e.getID(),null))
 				visited(e);
 			else
-			{
-				synchronized (todo) {
-					todo.add(e);
-				}
-			}
+				todo.add(e);
 				
 
 		}
@@ -0,0 +1,245 @@
+/*
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad.tasks;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lbms.plugins.mldht.kad.AnnounceNodeCache;
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.DHTConstants;
+import lbms.plugins.mldht.kad.KBucketEntry;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.PeerAddressDBItem;
+
+/**
+ * Resolves large numbers of infohashes without flooding the task queues.
+ *
+ * Pending targets are kept in key order and picked up by a cursor that sweeps through the keyspace from a random pivot,
+ * so consecutive lookups land close to each other. Each new lookup is seeded with the final closest set of the nearest
+ * recently finished lookup and the targets ahead of the cursor are registered with the {@link lbms.plugins.mldht.kad.AnnounceNodeCache}
+ * so it retains nodes in that region.
+ *
+ * Lookups run at low priority and are only started while the sum of their outstanding requests stays within the RPC budget.
+ * Peers are handed to the {@link ResultHandler} as they arrive. Targets that can't be started because the DHT is not running
+ * or has no server available are retried on the timer lane with increasing delays.
+ */
+public class BulkPeerLookup {
+
+	public interface ResultHandler {
+		void peerFound(Key infoHash, PeerAddressDBItem peer);
+
+		default void lookupFinished(Key infoHash, List<KBucketEntry> closestSet) {}
+	}
+
+	// number of recent closest sets kept around for seeding
+	private static final int					NEIGHBORHOOD_SIZE	= 64;
+	// number of pending targets ahead of the cursor that are registered with the node cache
+	private static final int					CACHE_WARM_AHEAD	= 16;
+	// delay before pending targets are retried when no lookup could be started, doubles up to the maximum while that persists
+	private static final long					MIN_RETRY_DELAY		= 1000;
+	private static final long					MAX_RETRY_DELAY		= 60 * 1000;
+
+	private final DHT							dht;
+	private final ResultHandler					handler;
+	private final int							rpcBudget;
+	private final int							maxActiveLookups;
+
+	private final ConcurrentSkipListSet<Key>	pending				= new ConcurrentSkipListSet<Key>();
+	private final Set<PeerLookupTask>			active				= ConcurrentHashMap.newKeySet();
+	private final LookupSeeds					seeds				= new LookupSeeds(NEIGHBORHOOD_SIZE);
+	private volatile Key						cursor				= Key.createRandomKey();
+	private volatile boolean					cancelled;
+
+	private final AtomicInteger					scheduling			= new AtomicInteger();
+	private final AtomicBoolean					retryArmed			= new AtomicBoolean();
+	private volatile long						retryDelay			= MIN_RETRY_DELAY;
+	private final AtomicLong					submitted			= new AtomicLong();
+	private final AtomicLong					completed			= new AtomicLong();
+	private final AtomicLong					seeded				= new AtomicLong();
+	private final AtomicLong					peersFound			= new AtomicLong();
+
+	/**
+	 * @param rpcBudget maximum number of outstanding requests summed over all lookups of this instance
+	 */
+	public BulkPeerLookup(DHT dht, int rpcBudget, ResultHandler handler) {
+		if (rpcBudget < DHTConstants.MAX_CONCURRENT_REQUESTS_LOWPRIO)
+			throw new IllegalArgumentException("budget must at least allow a single lookup");
+		this.dht = dht;
+		this.handler = handler;
+		this.rpcBudget = rpcBudget;
+		this.maxActiveLookups = rpcBudget / DHTConstants.MAX_CONCURRENT_REQUESTS_LOWPRIO;
+	}
+
+	public void add(Key infoHash) {
+		if (pending.add(infoHash))
+			submitted.incrementAndGet();
+		schedule();
+	}
+
+	public void addAll(Collection<Key> infoHashes) {
+		for (Key k : infoHashes)
+			if (pending.add(k))
+				submitted.incrementAndGet();
+		schedule();
+	}
+
+	/**
+	 * Drops all pending targets and kills running lookups
+	 */
+	public void cancel() {
+		cancelled = true;
+		pending.clear();
+		for (PeerLookupTask t : active)
+			t.kill();
+	}
+
+	public boolean isIdle() {
+		return pending.isEmpty() && active.isEmpty();
+	}
+
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	public int getActiveCount() {
+		return active.size();
+	}
+
+	public long getCompletedCount() {
+		return completed.get();
+	}
+
+	private int outstandingRequests() {
+		int sum = 0;
+		for (PeerLookupTask t : active)
+			sum += t.getNumOutstandingRequestsExcludingStalled();
+		return sum;
+	}
+
+	/**
+	 * @return next target at or after the cursor, wrapping around at the end of the keyspace
+	 */
+	private Key pollNext() {
+		Key next = pending.ceiling(cursor);
+		if (next == null)
+			next = pending.pollFirst();
+		else if (!pending.remove(next))
+			return pollNext();
+		if (next != null)
+			cursor = next;
+		return next;
+	}
+
+	private void schedule() {
+		// only one thread schedules, others just flag that another pass is needed
+		if (scheduling.getAndIncrement() != 0)
+			return;
+		int missed = 1;
+		do {
+			while (!cancelled && dht.isRunning() && active.size() < maxActiveLookups && outstandingRequests() + DHTConstants.MAX_CONCURRENT_REQUESTS_LOWPRIO <= rpcBudget) {
+				Key target = pollNext();
+				if (target == null)
+					break;
+				if (!startLookup(target)) {
+					// server not available, try again later
+					pending.add(target);
+					break;
+				}
+				retryDelay = MIN_RETRY_DELAY;
+			}
+			warmCache();
+			missed = scheduling.addAndGet(-missed);
+		} while (missed != 0);
+		armRetry();
+	}
+
+	/**
+	 * Running lookups schedule the next ones when they complete. Without any there is nothing that would pick up the pending targets.
+	 */
+	private void armRetry() {
+		if (cancelled || pending.isEmpty() || !active.isEmpty() || !retryArmed.compareAndSet(false, true))
+			return;
+		long delay = retryDelay;
+		retryDelay = Math.min(delay * 2, MAX_RETRY_DELAY);
+		DHT.getScheduler().schedule(() -> {
+			retryArmed.set(false);
+			schedule();
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void warmCache() {
+		// not started yet or already stopped
+		AnnounceNodeCache cache = dht.getCache();
+		if (cache == null)
+			return;
+		Iterator<Key> it = pending.tailSet(cursor).iterator();
+		for (int i = 0; i < CACHE_WARM_AHEAD && it.hasNext(); i++)
+			cache.register(it.next(), true);
+	}
+
+	private boolean startLookup(Key target) {
+		PeerLookupTask task = dht.createPeerLookup(target.getHash());
+		if (task == null)
+			return false;
+		task.setLowPriority(true);
+		task.setNoAnnounce(true);
+
+		if (seeds.seed(task))
+			seeded.incrementAndGet();
+
+		ResultStream<PeerAddressDBItem> stream = new ResultStream<PeerAddressDBItem>(Integer.MAX_VALUE);
+		stream.subscribe(peer -> {
+			peersFound.incrementAndGet();
+			handler.peerFound(target, peer);
+		});
+		stream.request(Long.MAX_VALUE);
+		task.setResultStream(stream);
+		stream.getCompletion().whenComplete((closest, ex) -> {
+			active.remove(task);
+			completed.incrementAndGet();
+			if (closest != null) {
+				seeds.remember(target, closest);
+				try {
+					handler.lookupFinished(target, closest);
+				} catch (Exception e) {
+					DHT.log(e, LogLevel.Error);
+				}
+			}
+			schedule();
+		});
+
+		active.add(task);
+		dht.getTaskManager().addTask(task);
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "bulk lookup: submitted:" + submitted + " pending:" + pending.size() + " active:" + active.size() + "/" + maxActiveLookups +
+				" completed:" + completed + " seeded:" + seeded + " peers:" + peersFound + " cursor:" + cursor;
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad.tasks;
+
+import java.util.Collection;
+
+import lbms.plugins.mldht.kad.KBucketEntry;
+import lbms.plugins.mldht.kad.Key;
+
+/**
+ * Fixed-capacity todo list of a task.
+ *
+ * Entries are kept in an array sorted by their XOR distance to the target, closest first.
+ * The leading 64 bits of the distance are computed once on insertion, full keys only have to be compared on ties.
+ * Once the capacity is reached new entries displace the most distant one or are dropped if they are the most distant themselves.
+ *
+ * All methods are atomic. Tasks may hold its monitor to serialize their update loop.
+ */
+public class CandidateQueue {
+
+	private final Key					target;
+	private final KBucketEntry[]		entries;
+	private final long[]				distances;
+	private int							head;
+	private int							size;
+	private int							dropped;
+
+	public CandidateQueue(Key target, int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be positive");
+		this.target = target;
+		entries = new KBucketEntry[capacity];
+		distances = new long[capacity];
+	}
+
+	/**
+	 * @return the insertion point relative to head if not found, -(index + 1) relative to head if an entry with the same ID is present
+	 */
+	private int search(KBucketEntry e, long dist) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = Long.compareUnsigned(distances[head + mid], dist);
+			if (cmp == 0)
+				cmp = target.threeWayDistance(entries[head + mid].getID(), e.getID());
+			if (cmp < 0)
+				low = mid + 1;
+			else if (cmp > 0)
+				high = mid - 1;
+			else
+				return -(mid + 1);
+		}
+		return low;
+	}
+
+	/**
+	 * @return true if the entry was inserted, false if it was a duplicate or too distant to fit
+	 */
+	public synchronized boolean add(KBucketEntry e) {
+		long dist = target.leadingDistanceBits(e.getID());
+		int idx = search(e, dist);
+		if (idx < 0)
+			return false;
+		int capacity = entries.length;
+		if (size == capacity) {
+			if (idx == size) {
+				dropped++;
+				return false;
+			}
+			// evict the tail
+			size--;
+			entries[head + size] = null;
+			dropped++;
+		}
+
+		if (head + size == capacity) {
+			// compact towards the front so there is room at the tail
+			System.arraycopy(entries, head, entries, 0, size);
+			System.arraycopy(distances, head, distances, 0, size);
+			for (int i = size; i < head + size; i++)
+				entries[i] = null;
+			head = 0;
+		}
+
+		int pos = head + idx;
+		System.arraycopy(entries, pos, entries, pos + 1, size - idx);
+		System.arraycopy(distances, pos, distances, pos + 1, size - idx);
+		entries[pos] = e;
+		distances[pos] = dist;
+		size++;
+		return true;
+	}
+
+	public synchronized void addAll(Collection<? extends KBucketEntry> c) {
+		for (KBucketEntry e : c)
+			add(e);
+	}
+
+	public synchronized boolean contains(KBucketEntry e) {
+		return search(e, target.leadingDistanceBits(e.getID())) < 0;
+	}
+
+	/**
+	 * @return closest entry, or null if empty
+	 */
+	public synchronized KBucketEntry first() {
+		return size > 0 ? entries[head] : null;
+	}
+
+	/**
+	 * @return most distant entry, or null if empty. This is the one that gets evicted next
+	 */
+	public synchronized KBucketEntry last() {
+		return size > 0 ? entries[head + size - 1] : null;
+	}
+
+	/**
+	 * Removes and returns the closest entry
+	 * @return the entry or null if empty
+	 */
+	public synchronized KBucketEntry pollFirst() {
+		if (size == 0)
+			return null;
+		KBucketEntry e = entries[head];
+		entries[head] = null;
+		size--;
+		head = size == 0 ? 0 : head + 1;
+		return e;
+	}
+
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return entries.length;
+	}
+
+	/**
+	 * @return number of entries that were rejected or evicted due to the capacity limit
+	 */
+	public synchronized int getDropped() {
+		return dropped;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return size + "/" + entries.length + (dropped > 0 ? " dropped:" + dropped : "");
+	}
+}
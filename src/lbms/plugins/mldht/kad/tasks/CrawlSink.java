@@ -0,0 +1,74 @@
+/*
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad.tasks;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.Prefix;
+
+/**
+ * Receives the nodes found by a {@link KeyspaceCrawler}. Only nodes that actually responded are reported.
+ *
+ * Implementations are called from the RPC threads and may be invoked concurrently for different ranges.
+ */
+public interface CrawlSink {
+
+	/**
+	 * @param version client version string of the node, null if it did not send one
+	 */
+	void nodeFound(Key id, InetSocketAddress address, String version);
+
+	/**
+	 * called after a range has been crawled completely, before its checkpoint is written
+	 */
+	default void rangeFinished(Prefix range, int nodes) {}
+
+	/**
+	 * Writes one tab-separated line per node: hex ID, IP, port, version with unprintable characters masked. The writer is flushed after every range.
+	 */
+	static CrawlSink lines(Writer out) {
+		return new CrawlSink() {
+			@Override
+			public void nodeFound(Key id, InetSocketAddress address, String version) {
+				String line = id.toString(false) + '\t' + address.getAddress().getHostAddress() + '\t' + address.getPort() + '\t' + (version != null ? version.replaceAll("[^\\x20-\\x7E]", "?") : "") + '\n';
+				try {
+					synchronized (out) {
+						out.write(line);
+					}
+				} catch (IOException e) {
+					DHT.log(e, LogLevel.Error);
+				}
+			}
+
+			@Override
+			public void rangeFinished(Prefix range, int nodes) {
+				try {
+					synchronized (out) {
+						out.flush();
+					}
+				} catch (IOException e) {
+					DHT.log(e, LogLevel.Error);
+				}
+			}
+		};
+	}
+}
@@ -1,188 +1,342 @@
 /*
  *    This file is part of mlDHT.
- * 
+ *
  *    mlDHT is free software: you can redistribute it and/or modify
  *    it under the terms of the GNU General Public License as published by
  *    the Free Software Foundation, either version 2 of the License, or
  *    (at your option) any later version.
- * 
+ *
  *    mlDHT is distributed in the hope that it will be useful,
  *    but WITHOUT ANY WARRANTY; without even the implied warranty of
  *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
  *    GNU General Public License for more details.
- * 
+ *
  *    You should have received a copy of the GNU General Public License
  *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
  */
 package lbms.plugins.mldht.kad.tasks;
 
-import java.net.InetSocketAddress;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import lbms.plugins.mldht.kad.DHT;
-import lbms.plugins.mldht.kad.DHT.DHTtype;
-import lbms.plugins.mldht.kad.DHTConstants;
-import lbms.plugins.mldht.kad.KBucketEntry;
-import lbms.plugins.mldht.kad.Key;
-import lbms.plugins.mldht.kad.Node;
-import lbms.plugins.mldht.kad.Node.RoutingTableEntry;
-import lbms.plugins.mldht.kad.RPCCall;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.Prefix;
 import lbms.plugins.mldht.kad.RPCServer;
-import lbms.plugins.mldht.kad.messages.FindNodeRequest;
-import lbms.plugins.mldht.kad.messages.FindNodeResponse;
-import lbms.plugins.mldht.kad.messages.MessageBase;
-import lbms.plugins.mldht.kad.messages.MessageBase.Method;
-import lbms.plugins.mldht.kad.messages.MessageBase.Type;
-import lbms.plugins.mldht.kad.utils.PackUtil;
+import lbms.plugins.mldht.utils.RateLimiter;
 
 /**
- * @author The 8472
+ * Exhaustive crawl of the keyspace.
  *
+ * The keyspace is split into 2^prefixBits ranges which are crawled independently by {@link RangeCrawlTask}s, a few at a time.
+ * Responding nodes are streamed to a {@link CrawlSink}. Completed ranges are recorded in a checkpoint file so that a restarted
+ * crawl resumes with the ranges that are still missing. Ranges that were interrupted are crawled again from scratch.
+ *
+ * All requests are accounted against a packets-per-second budget.
  */
-public class KeyspaceCrawler extends Task {
-	
-	Set<InetSocketAddress> responded = new HashSet<InetSocketAddress>();
-	
-	KeyspaceCrawler(RPCServer rpc, Node node) {
-		super(Key.createRandomKey(),rpc, node);
-		setInfo("Exhaustive Keyspace Crawl");
-		//addListener(t -> done());
-		addListener(new TaskListener() {
-			@Override
-			public void finished(Task t) {
-				done();
-			}
-		});
+public class KeyspaceCrawler {
+
+	public static final int				DEFAULT_PARALLEL_RANGES	= 2;
+	private static final int			MAX_PREFIX_BITS			= 16;
+	private static final int			MIN_EXPECTED_NODES		= 1024;
+	private static final long			TICK_INTERVAL			= 250;
+	private static final String			CHECKPOINT_HEADER		= "# mldht keyspace crawl, completed ranges as <index> <nodes>";
+
+	private final DHT					dht;
+	private final int					prefixBits;
+	private final int					numRanges;
+	private final RateLimiter			budget;
+	private final CrawlSink				sink;
+	private final Path					checkpoint;
+
+	// guarded by this
+	private final BitSet				completed;
+	// guarded by this
+	private final Map<Integer, Integer>	nodesPerRange			= new HashMap<Integer, Integer>();
+	// guarded by this
+	private final Map<Integer, RangeCrawlTask>	active			= new HashMap<Integer, RangeCrawlTask>();
+	// guarded by this, todo capacities for ranges that overflowed on a previous attempt
+	private final Map<Integer, Integer>	raisedCapacity			= new HashMap<Integer, Integer>();
+	private int							nextRange;
+	private int							parallelRanges			= DEFAULT_PARALLEL_RANGES;
+	private ScheduledFuture<?>			timer;
+	private volatile boolean			stopped;
+
+	private final AtomicLong			nodesFound				= new AtomicLong();
+	private final AtomicLong			packetsSent				= new AtomicLong();
+	private final AtomicLong			restartedRanges			= new AtomicLong();
+
+	/**
+	 * @param prefixBits the keyspace is split into 2^prefixBits ranges
+	 * @param checkpoint file recording completed ranges, may be null to disable checkpointing
+	 */
+	public KeyspaceCrawler(DHT dht, int prefixBits, double packetsPerSecond, CrawlSink sink, Path checkpoint) {
+		if (prefixBits < 0 || prefixBits > MAX_PREFIX_BITS)
+			throw new IllegalArgumentException("prefix bits must be within 0.." + MAX_PREFIX_BITS);
+		this.dht = dht;
+		this.prefixBits = prefixBits;
+		this.numRanges = 1 << prefixBits;
+		this.budget = new RateLimiter(packetsPerSecond);
+		this.sink = sink;
+		this.checkpoint = checkpoint;
+		this.completed = new BitSet(numRanges);
 	}
 
-	@Override
-	synchronized void update () {
-		// go over the todo list and send find node calls
-		// until we have nothing left
-		synchronized (todo) {
-
-			while (canDoRequest()) {
-				KBucketEntry e;
-				synchronized (todo) {
-					e = todo.pollFirst();
-				}
-				
-				// only send a findNode if we haven't allready visited the node
-				if (hasVisited(e))
-					continue;
-				
-				// send a findNode to the node
-				FindNodeRequest fnr;
-
-				fnr = new FindNodeRequest(Key.createRandomKey());
-				fnr.setWant4(rpc.getDHT().getType() == DHTtype.IPV4_DHT || DHT.getDHT(DHTtype.IPV4_DHT).getNode().getNumEntriesInRoutingTable() < DHTConstants.BOOTSTRAP_IF_LESS_THAN_X_PEERS);
-				fnr.setWant6(rpc.getDHT().getType() == DHTtype.IPV6_DHT || DHT.getDHT(DHTtype.IPV6_DHT).getNode().getNumEntriesInRoutingTable() < DHTConstants.BOOTSTRAP_IF_LESS_THAN_X_PEERS);
-				fnr.setDestination(e.getAddress());
-				rpcCall(fnr,e.getID(),null);
-
-
-				if (canDoRequest()) {
-					fnr = new FindNodeRequest(e.getID());
-					fnr.setWant4(rpc.getDHT().getType() == DHTtype.IPV4_DHT || DHT.getDHT(DHTtype.IPV4_DHT).getNode().getNumEntriesInRoutingTable() < DHTConstants.BOOTSTRAP_IF_LESS_THAN_X_PEERS);
-					fnr.setWant6(rpc.getDHT().getType() == DHTtype.IPV6_DHT || DHT.getDHT(DHTtype.IPV6_DHT).getNode().getNumEntriesInRoutingTable() < DHTConstants.BOOTSTRAP_IF_LESS_THAN_X_PEERS);
-					fnr.setDestination(e.getAddress());
-					rpcCall(fnr,e.getID(),null);
-				}
+	public synchronized void setParallelRanges(int parallelRanges) {
+		if (parallelRanges < 1)
+			throw new IllegalArgumentException("at least one range has to be crawled at a time");
+		this.parallelRanges = parallelRanges;
+	}
+
+	public void setPacketsPerSecond(double pps) {
+		budget.setRate(pps);
+	}
 
-				visited(e);
-				
+	/**
+	 * Loads the checkpoint, if any, and starts crawling the remaining ranges
+	 */
+	public void start() throws IOException {
+		if (checkpoint != null && Files.exists(checkpoint))
+			loadCheckpoint();
+		stopped = false;
+		timer = DHT.getScheduler().scheduleWithFixedDelay(() -> {
+			try {
+				tick();
+			} catch (Exception e) {
+				DHT.log(e, LogLevel.Error);
 			}
+		}, 0, TICK_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Aborts the running ranges, they will be crawled again on the next start
+	 */
+	public void stop() {
+		stopped = true;
+		if (timer != null)
+			timer.cancel(false);
+		List<RangeCrawlTask> running;
+		synchronized (this) {
+			running = new ArrayList<RangeCrawlTask>(active.values());
 		}
+		for (RangeCrawlTask t : running)
+			t.kill();
 	}
 
-	@Override
-	void callFinished(RPCCall c, MessageBase rsp) {
-		if (isFinished()) {
+	static Prefix rangePrefix(int index, int prefixBits) {
+		Prefix p = Prefix.WHOLE_KEYSPACE;
+		for (int i = prefixBits - 1; i >= 0; i--)
+			p = p.splitPrefixBranch((index >>> i & 1) != 0);
+		return p;
+	}
+
+	private void tick() {
+		if (stopped || !dht.isRunning())
 			return;
+
+		List<RangeCrawlTask> running;
+		synchronized (this) {
+			running = new ArrayList<RangeCrawlTask>(active.values());
 		}
 
-		// check the response and see if it is a good one
-		if (rsp.getMethod() == Method.FIND_NODE
-				&& rsp.getType() == Type.RSP_MSG) {
+		// tasks that ran out of budget have nothing in flight that would continue them
+		for (RangeCrawlTask t : running) {
+			if (t.isQueued() || t.isFinished())
+				continue;
+			// no point in finishing the attempt, the range has to be crawled again with a larger todo list
+			if (t.hasOverflowed() && t.getTodoCapacity() < RangeCrawlTask.MAX_RETRY_CAPACITY)
+				t.kill();
+			else if (t.isDone())
+				t.finishDrained();
+			else if (t.canDoRequest())
+				t.update();
+		}
 
-			FindNodeResponse fnr = (FindNodeResponse) rsp;
-			
-			responded.add(fnr.getOrigin());
-			
-			for (DHTtype type : DHTtype.values()) {
-				byte[] nodes = fnr.getNodes(type);
-				if (nodes == null)
-					continue;
-				int nval = nodes.length / type.NODES_ENTRY_LENGTH;
-				if (type == rpc.getDHT().getType()) {
-					synchronized (todo) {
-						for (int i = 0; i < nval; i++) {
-							// add node to todo list
-							KBucketEntry e = PackUtil.UnpackBucketEntry(nodes, i * type.NODES_ENTRY_LENGTH, type);
-							if (!node.isLocalId(e.getID()) && !todo.contains(e) && !hasVisited(e)) {
-								todo.add(e);
-							}
-						}
-					}
-				} else
-				{
-					for (int i = 0; i < nval; i++) {
-						KBucketEntry e = PackUtil.UnpackBucketEntry(nodes, i * type.NODES_ENTRY_LENGTH, type);
-						DHT.getDHT(type).addDHTNode(e.getAddress().getAddress().getHostAddress(), e.getAddress().getPort());
-					}
-				}
+		while (true) {
+			int index;
+			synchronized (this) {
+				if (active.size() >= parallelRanges)
+					break;
+				index = nextPendingRange();
+				if (index < 0)
+					break;
 			}
+			if (!startRange(index))
+				break;
+		}
 
+		synchronized (this) {
+			if (completed.cardinality() == numRanges && active.isEmpty() && timer != null) {
+				timer.cancel(false);
+				DHT.logInfo("keyspace crawl complete: " + this);
+			}
+		}
+	}
 
+	/**
+	 * @return the next range after the most recently started one that is neither completed nor running, -1 if there is none
+	 */
+	private int nextPendingRange() {
+		for (int i = 0; i < numRanges; i++) {
+			int candidate = (nextRange + i) % numRanges;
+			if (!completed.get(candidate) && !active.containsKey(candidate))
+				return candidate;
 		}
+		return -1;
 	}
-	
-	@Override
-	boolean canDoRequest() {
-		return getNumOutstandingRequestsExcludingStalled() < DHTConstants.MAX_CONCURRENT_REQUESTS * 5;
+
+	private boolean startRange(int index) {
+		RPCServer srv = dht.getServerManager().getRandomServer();
+		if (srv == null)
+			return false;
+
+		Prefix range = rangePrefix(index, prefixBits);
+		int expected = (int) Math.min(Integer.MAX_VALUE / 4, Math.max(MIN_EXPECTED_NODES, 2 * dht.getEstimator().getEstimate() / numRanges));
+		Integer raised;
+		synchronized (this) {
+			raised = raisedCapacity.get(index);
+		}
+		int capacity = raised != null ? raised : RangeCrawlTask.todoCapacityFor(expected);
+		// the range is denser than estimated, size the bloom filters accordingly
+		expected = Math.max(expected, capacity);
+		RangeCrawlTask task = new RangeCrawlTask(srv, dht.getNode(), range, expected, capacity, budget, sink);
+
+		task.addListener(t -> rangeDone(index, task));
+
+		synchronized (this) {
+			active.put(index, task);
+			nextRange = (index + 1) % numRanges;
+		}
+		dht.getTaskManager().addTask(task);
+		return true;
 	}
-	
-	@Override
-	public
-	void kill() {
-		// do nothing to evade safeties
+
+	private void rangeDone(int index, RangeCrawlTask task) {
+		packetsSent.addAndGet(task.getSentReqs());
+		nodesFound.addAndGet(task.getRespondedCount());
+
+		// the todo list can't grow any further, take what we got instead of retrying forever
+		boolean partial = task.isDrained() && task.hasOverflowed() && task.getTodoCapacity() >= RangeCrawlTask.MAX_RETRY_CAPACITY;
+		if (partial)
+			DHT.logInfo("crawl range " + task.getRange() + " overflowed the maximum todo list capacity, some nodes in it were not queried");
+
+		if (task.hasOverflowed() && !partial) {
+			// retrying with the same todo list would only overflow again
+			int capacity = RangeCrawlTask.raiseTodoCapacity(task.getTodoCapacity());
+			synchronized (this) {
+				raisedCapacity.put(index, capacity);
+			}
+			DHT.logInfo("crawl range " + task.getRange() + " overflowed its todo list, retrying with capacity " + capacity);
+		}
+
+		// killed by stop() or a DHT shutdown, or in-range candidates didn't fit into the todo list
+		if (!task.isComplete() && !partial) {
+			synchronized (this) {
+				active.remove(index);
+				// resume with this range
+				nextRange = index;
+			}
+			restartedRanges.incrementAndGet();
+			return;
+		}
+
+		try {
+			sink.rangeFinished(task.getRange(), task.getRespondedCount());
+		} catch (Exception e) {
+			DHT.log(e, LogLevel.Error);
+		}
+
+		synchronized (this) {
+			active.remove(index);
+			raisedCapacity.remove(index);
+			completed.set(index);
+			nodesPerRange.put(index, task.getRespondedCount());
+		}
+
+		if (checkpoint != null) {
+			try {
+				writeCheckpoint();
+			} catch (IOException e) {
+				DHT.log(e, LogLevel.Error);
+			}
+		}
 	}
-	
-	@Override
-	protected boolean isDone() {
-		if (todo.size() == 0 && getNumOutstandingRequests() == 0 && !isFinished()) {
-			return true;
+
+	private void loadCheckpoint() throws IOException {
+		List<String> lines = Files.readAllLines(checkpoint, StandardCharsets.UTF_8);
+		synchronized (this) {
+			for (String line : lines) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				String[] fields = line.split("\\s+");
+				if (fields[0].equals("bits")) {
+					if (Integer.parseInt(fields[1]) != prefixBits) {
+						DHT.logInfo("ignoring crawl checkpoint " + checkpoint + ", it was created with a different range size");
+						completed.clear();
+						nodesPerRange.clear();
+						return;
+					}
+					continue;
+				}
+				int index = Integer.parseInt(fields[0]);
+				if (index < 0 || index >= numRanges)
+					throw new IOException("invalid range index in crawl checkpoint: " + line);
+				completed.set(index);
+				nodesPerRange.put(index, fields.length > 1 ? Integer.parseInt(fields[1]) : 0);
+			}
 		}
-		return false;
 	}
 
-	@Override
-	void callTimeout (RPCCall c) {
+	private void writeCheckpoint() throws IOException {
+		List<String> lines = new ArrayList<String>();
+		lines.add(CHECKPOINT_HEADER);
+		lines.add("bits " + prefixBits);
+		synchronized (this) {
+			for (int i = completed.nextSetBit(0); i >= 0; i = completed.nextSetBit(i + 1))
+				lines.add(i + " " + nodesPerRange.getOrDefault(i, 0));
+		}
+		// write-then-rename so that a crash never leaves a truncated checkpoint behind
+		synchronized (checkpoint) {
+			Path tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+			Files.write(tmp, lines, StandardCharsets.UTF_8);
+			Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
 
+	public int getRangeCount() {
+		return numRanges;
 	}
 
-	/* (non-Javadoc)
-	 * @see lbms.plugins.mldht.kad.Task#start()
+	public synchronized int getCompletedRanges() {
+		return completed.cardinality();
+	}
+
+	public synchronized boolean isComplete() {
+		return completed.cardinality() == numRanges;
+	}
+
+	/**
+	 * @return responding nodes reported to the sink by ranges that finished or were aborted during this session
 	 */
-	@Override
-	public
-	void start() {
-		int added = 0;
-
-		// delay the filling of the todo list until we actually start the task
-		
-		outer: for (RoutingTableEntry bucket : node.getBuckets())
-			for (KBucketEntry e : bucket.getBucket().getEntries())
-				if (!e.isBad()) {
-					todo.add(e);
-					added++;
-				}
-		super.start();
+	public long getNodesFound() {
+		return nodesFound.get();
 	}
 
-	
-	private void done () {
-		System.out.println("crawler done, seen "+responded.size());
+	@Override
+	public synchronized String toString() {
+		return "keyspace crawler: ranges:" + completed.cardinality() + "/" + numRanges + " active:" + active.keySet() + " restarted:" + restartedRanges +
+				" nodes:" + nodesFound + " packets:" + packetsSent + " budget:" + budget.getRate() + "pps";
 	}
 }
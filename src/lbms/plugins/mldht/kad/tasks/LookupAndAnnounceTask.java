@@ -0,0 +1,242 @@
+/*
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad.tasks;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lbms.plugins.mldht.kad.KBucketEntry;
+import lbms.plugins.mldht.kad.KBucketEntryAndToken;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.Node;
+import lbms.plugins.mldht.kad.RPCCall;
+import lbms.plugins.mldht.kad.RPCCallListener;
+import lbms.plugins.mldht.kad.RPCServer;
+import lbms.plugins.mldht.kad.messages.AnnounceRequest;
+import lbms.plugins.mldht.kad.messages.MessageBase;
+import lbms.plugins.mldht.kad.messages.MessageBase.Method;
+
+/**
+ * A get_peers lookup that announces while it is still running instead of handing off to an {@link AnnounceTask} afterwards.
+ *
+ * A member of the closest set is considered stable once neither the todo list nor the get_peers requests still in flight
+ * contain a node that is closer to the target. Stable members are announced to immediately, while their token is fresh.
+ * If a closer node shows up later anyway it is announced to as well, the displaced node's announce is counted as wasted.
+ * Members that never become stable are never announced to.
+ */
+public class LookupAndAnnounceTask extends PeerLookupTask {
+
+	private final int						port;
+	private final boolean					isSeed;
+
+	// ID -> node, guarded by itself
+	private final Map<Key, KBucketEntry>	announced		= new HashMap<Key, KBucketEntry>();
+	// IDs of nodes with non-stalled get_peers requests, guarded by itself
+	private final Set<Key>					lookupsInFlight	= new HashSet<Key>();
+
+	private int								speculativeAnnounces;
+	private int								announceResponses;
+	private int								announceFailures;
+	private int								wastedAnnounces;
+
+	public LookupAndAnnounceTask(RPCServer rpc, Node node, Key infoHash, int port, boolean isSeed) {
+		super(rpc, node, infoHash);
+		this.port = port;
+		this.isSeed = isSeed;
+		addListener(t -> countWasted());
+	}
+
+	@Override
+	public void setNoAnnounce(boolean noAnnounce) {
+		if (noAnnounce)
+			throw new IllegalStateException("this task always announces");
+	}
+
+	/**
+	 * Only stops waiting for stalled requests, announces are still made
+	 */
+	@Override
+	public void setFastTerminate(boolean fastTerminate) {
+		applyFastTerminate(fastTerminate);
+	}
+
+	@Override
+	boolean rpcCall(MessageBase req, Key expectedID, RPCCallListener listener) {
+		boolean isLookup = req.getMethod() == Method.GET_PEERS;
+		// register before sending, the response might arrive before rpcCall returns
+		if (isLookup)
+			synchronized (lookupsInFlight) {
+				lookupsInFlight.add(expectedID);
+			}
+		boolean sent = super.rpcCall(req, expectedID, listener);
+		if (!sent && isLookup)
+			synchronized (lookupsInFlight) {
+				lookupsInFlight.remove(expectedID);
+			}
+		return sent;
+	}
+
+	private void callDone(RPCCall c) {
+		if (c.getExpectedID() != null)
+			synchronized (lookupsInFlight) {
+				lookupsInFlight.remove(c.getExpectedID());
+			}
+	}
+
+	@Override
+	void callFinished(RPCCall c, MessageBase rsp) {
+		if (c.getMessageMethod() == Method.ANNOUNCE_PEER) {
+			synchronized (announced) {
+				announceResponses++;
+			}
+			return;
+		}
+		super.callFinished(c, rsp);
+		callDone(c);
+		announceStable();
+	}
+
+	@Override
+	void callStalled(RPCCall c) {
+		// a stalled request is unlikely to produce anything, don't let it hold back announces
+		if (c.getMessageMethod() == Method.GET_PEERS)
+			callDone(c);
+	}
+
+	@Override
+	void callTimeout(RPCCall c) {
+		if (c.getMessageMethod() == Method.ANNOUNCE_PEER) {
+			synchronized (announced) {
+				announceFailures++;
+			}
+			return;
+		}
+		callDone(c);
+	}
+
+	@Override
+	void update() {
+		announceStable();
+		super.update();
+	}
+
+	private Key closestInFlight() {
+		Key closest = null;
+		synchronized (lookupsInFlight) {
+			for (Key k : lookupsInFlight)
+				if (closest == null || targetKey.threeWayDistance(k, closest) < 0)
+					closest = k;
+		}
+		return closest;
+	}
+
+	private void announceStable() {
+		if (isFinished())
+			return;
+		List<KBucketEntryAndToken> closest = getClosestSet();
+		KBucketEntry closestCandidate = todo.first();
+		Key closestPending = closestInFlight();
+		boolean lookupConverged = isClosestSetStable() && closestPending == null;
+
+		for (KBucketEntryAndToken e : closest) {
+			// the closest set is sorted, everything after the first unstable entry is unstable too
+			if (closestCandidate != null && targetKey.threeWayDistance(closestCandidate.getID(), e.getID()) <= 0)
+				break;
+			if (closestPending != null && targetKey.threeWayDistance(closestPending, e.getID()) <= 0)
+				break;
+
+			synchronized (announced) {
+				if (announced.containsKey(e.getID()))
+					continue;
+				announced.put(e.getID(), e);
+			}
+
+			AnnounceRequest anr = new AnnounceRequest(targetKey, port, e.getToken());
+			anr.setDestination(e.getAddress());
+			anr.setSeed(isSeed);
+			if (rpcCall(anr, e.getID(), null)) {
+				if (!lookupConverged)
+					synchronized (announced) {
+						speculativeAnnounces++;
+					}
+			} else {
+				// out of request slots, retry on the next update
+				synchronized (announced) {
+					announced.remove(e.getID());
+				}
+				break;
+			}
+		}
+	}
+
+	private boolean allAnnounced() {
+		List<KBucketEntryAndToken> closest = getClosestSet();
+		synchronized (announced) {
+			for (KBucketEntryAndToken e : closest)
+				if (!announced.containsKey(e.getID()))
+					return false;
+		}
+		return true;
+	}
+
+	@Override
+	protected boolean isDone() {
+		// once the lookup has converged every member of the closest set is stable and will be announced to by the next update.
+		// fast termination doesn't wait for stalled calls, lookups or announces, same as the plain lookup
+		int waitingFor = isFastTerminate() ? getNumOutstandingRequestsExcludingStalled() : getNumOutstandingRequests();
+		return super.isDone() && waitingFor == 0 && allAnnounced();
+	}
+
+	private void countWasted() {
+		Set<Key> finalSet = new HashSet<Key>();
+		for (KBucketEntryAndToken e : getClosestSet())
+			finalSet.add(e.getID());
+		synchronized (announced) {
+			for (Key k : announced.keySet())
+				if (!finalSet.contains(k))
+					wastedAnnounces++;
+		}
+	}
+
+	public int getAnnounceCount() {
+		synchronized (announced) {
+			return announced.size();
+		}
+	}
+
+	/**
+	 * @return announces sent to nodes that were not part of the final closest set
+	 */
+	public int getWastedAnnounces() {
+		synchronized (announced) {
+			return wastedAnnounces;
+		}
+	}
+
+	@Override
+	public String toString() {
+		String announceInfo;
+		synchronized (announced) {
+			announceInfo = " announced:" + announced.size() + " speculative:" + speculativeAnnounces + " acked:" + announceResponses + " failed:" + announceFailures + " wasted:" + wastedAnnounces;
+		}
+		String base = super.toString();
+		return base.substring(0, base.length() - 1) + announceInfo + "\n";
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad.tasks;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import lbms.plugins.mldht.kad.KBucketEntry;
+import lbms.plugins.mldht.kad.Key;
+
+/**
+ * Remembers the final closest sets of the most recent lookups so that lookups for nearby targets
+ * can start from there instead of the routing table.
+ */
+class LookupSeeds {
+
+	private final int											capacity;
+	private final ConcurrentSkipListMap<Key, List<KBucketEntry>>	sets	= new ConcurrentSkipListMap<Key, List<KBucketEntry>>();
+	private final ArrayDeque<Key>								order	= new ArrayDeque<Key>();
+
+	LookupSeeds(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return the closest set of the nearest remembered target, or null if there is none
+	 */
+	List<KBucketEntry> nearest(Key target) {
+		Map.Entry<Key, List<KBucketEntry>> lower = sets.floorEntry(target);
+		Map.Entry<Key, List<KBucketEntry>> higher = sets.ceilingEntry(target);
+		if (lower == null)
+			return higher == null ? null : higher.getValue();
+		if (higher == null)
+			return lower.getValue();
+		return target.threeWayDistance(lower.getKey(), higher.getKey()) <= 0 ? lower.getValue() : higher.getValue();
+	}
+
+	/**
+	 * seeds the task with the nearest remembered closest set
+	 * @return true if any entries were added
+	 */
+	boolean seed(Task t) {
+		List<KBucketEntry> seeds = nearest(t.getTargetKey());
+		if (seeds == null)
+			return false;
+		for (KBucketEntry e : seeds)
+			t.addToTodo(e);
+		return true;
+	}
+
+	void remember(Key target, List<KBucketEntry> closestSet) {
+		if (closestSet.isEmpty())
+			return;
+		synchronized (order) {
+			// refreshed targets move to the end instead of occupying a second slot
+			if (sets.put(target, closestSet) != null)
+				order.remove(target);
+			order.add(target);
+			while (order.size() > capacity)
+				sets.remove(order.poll());
+		}
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad.tasks;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Locale;
+
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.messages.MessageBase.Method;
+
+/**
+ * Timeline of a single lookup, recorded by {@link Task} when the lookup was picked by the {@link LookupTracer}.
+ *
+ * Every event carries the time since the start of the trace and the distance of the involved node to the target.
+ * Distances are the leading 64 bits of the XOR metric, which is enough to tell hops apart.
+ *
+ * Binary format, big endian: magic "LTR1", 20 byte target, start time (epoch millis, 8 bytes), event count (4 bytes), then per event:
+ * type (1 byte), method ordinal (1 byte), time delta to the previous event in microseconds (unsigned varint), distance (8 bytes, all bits set if unknown),
+ * address length (1 byte, 0 if unknown), address, port (2 bytes), value (signed varint, RTT in milliseconds for responses, -1 otherwise)
+ */
+public class LookupTrace {
+
+	public enum EventType {
+		REQUEST, RESPONSE, STALL, TIMEOUT, CLOSEST_SET_CHANGED
+	}
+
+	private static final int			MAX_EVENTS	= 4096;
+	private static final EventType[]	TYPES		= EventType.values();
+	private static final Method[]		METHODS		= Method.values();
+
+	private final Key					target;
+	private final String				taskType;
+	private final long					startMillis	= System.currentTimeMillis();
+	private final long					startNanos	= System.nanoTime();
+
+	// struct-of-arrays, guarded by this
+	private byte[]						types		= new byte[64];
+	private byte[]						methods		= new byte[64];
+	private long[]						times		= new long[64];
+	private long[]						distances	= new long[64];
+	private int[]						values		= new int[64];
+	private InetSocketAddress[]			addresses	= new InetSocketAddress[64];
+	private int							size;
+	private int							dropped;
+	private long						convergedNanos	= -1;
+	private long						finishNanos		= -1;
+
+	LookupTrace(Key target, String taskType) {
+		this.target = target;
+		this.taskType = taskType;
+	}
+
+	synchronized void record(EventType type, Method method, InetSocketAddress addr, Key id, int value) {
+		if (finishNanos >= 0)
+			return;
+		long now = System.nanoTime() - startNanos;
+		if (type == EventType.CLOSEST_SET_CHANGED)
+			convergedNanos = now;
+		if (size == MAX_EVENTS) {
+			dropped++;
+			return;
+		}
+		if (size == types.length) {
+			int newCapacity = Math.min(MAX_EVENTS, size * 2);
+			types = Arrays.copyOf(types, newCapacity);
+			methods = Arrays.copyOf(methods, newCapacity);
+			times = Arrays.copyOf(times, newCapacity);
+			distances = Arrays.copyOf(distances, newCapacity);
+			values = Arrays.copyOf(values, newCapacity);
+			addresses = Arrays.copyOf(addresses, newCapacity);
+		}
+		types[size] = (byte) type.ordinal();
+		methods[size] = (byte) (method != null ? method.ordinal() : Method.UNKNOWN.ordinal());
+		times[size] = now;
+		distances[size] = id != null ? target.leadingDistanceBits(id) : -1;
+		values[size] = value;
+		addresses[size] = addr;
+		size++;
+	}
+
+	synchronized void finish() {
+		if (finishNanos < 0)
+			finishNanos = System.nanoTime() - startNanos;
+	}
+
+	public Key getTarget() {
+		return target;
+	}
+
+	public synchronized int getEventCount() {
+		return size;
+	}
+
+	/**
+	 * @return milliseconds from start until the closest set changed for the last time, -1 if it never did
+	 */
+	public synchronized long getConvergenceTime() {
+		return convergedNanos < 0 ? -1 : convergedNanos / 1000000;
+	}
+
+	/**
+	 * @return milliseconds from start until the task finished, -1 if it is still running
+	 */
+	public synchronized long getDuration() {
+		return finishNanos < 0 ? -1 : finishNanos / 1000000;
+	}
+
+	private int count(EventType type) {
+		int n = 0;
+		for (int i = 0; i < size; i++)
+			if (types[i] == type.ordinal())
+				n++;
+		return n;
+	}
+
+	private static void appendAddress(StringBuilder b, InetSocketAddress addr) {
+		if (addr == null) {
+			b.append("null");
+			return;
+		}
+		b.append('"');
+		if (addr.getAddress().getAddress().length == 16)
+			b.append('[').append(addr.getAddress().getHostAddress()).append(']');
+		else
+			b.append(addr.getAddress().getHostAddress());
+		b.append(':').append(addr.getPort()).append('"');
+	}
+
+	public synchronized String toJSON() {
+		StringBuilder b = new StringBuilder(128 + size * 96);
+		b.append("{\"target\":\"").append(target.toString(false)).append('"');
+		b.append(",\"task\":\"").append(taskType).append('"');
+		b.append(",\"start\":").append(startMillis);
+		b.append(",\"duration_ms\":").append(getDuration());
+		b.append(",\"converged_ms\":").append(getConvergenceTime());
+		b.append(",\"requests\":").append(count(EventType.REQUEST));
+		b.append(",\"responses\":").append(count(EventType.RESPONSE));
+		b.append(",\"stalls\":").append(count(EventType.STALL));
+		b.append(",\"timeouts\":").append(count(EventType.TIMEOUT));
+		b.append(",\"dropped_events\":").append(dropped);
+		b.append(",\"events\":[");
+		for (int i = 0; i < size; i++) {
+			if (i > 0)
+				b.append(',');
+			b.append("{\"t_us\":").append(times[i] / 1000);
+			b.append(",\"type\":\"").append(TYPES[types[i]].name().toLowerCase(Locale.ROOT)).append('"');
+			b.append(",\"method\":\"").append(METHODS[methods[i]].name().toLowerCase(Locale.ROOT)).append('"');
+			b.append(",\"addr\":");
+			appendAddress(b, addresses[i]);
+			if (distances[i] != -1) {
+				// hex for exact comparison, log2 for eyeballing. floor(log2) of the 160 bit distance is 159 - leading zeros,
+				// it can't be derived from the recorded bits when they are all zero
+				b.append(",\"distance\":\"").append(String.format(Locale.ROOT, "%016x", distances[i])).append('"');
+				b.append(",\"log2_distance\":").append(distances[i] == 0 ? "null" : String.valueOf(Key.KEY_BITS - 1 - Long.numberOfLeadingZeros(distances[i])));
+			}
+			if (values[i] >= 0)
+				b.append(",\"rtt_ms\":").append(values[i]);
+			b.append('}');
+		}
+		b.append("]}");
+		return b.toString();
+	}
+
+	private static void writeVarLong(DataOutputStream out, long v) throws IOException {
+		while ((v & ~0x7FL) != 0) {
+			out.writeByte((int) (v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.writeByte((int) v);
+	}
+
+	public synchronized void writeBinary(OutputStream os) throws IOException {
+		DataOutputStream out = new DataOutputStream(os);
+		out.writeBytes("LTR1");
+		out.write(target.getHash());
+		out.writeLong(startMillis);
+		out.writeInt(size);
+		long last = 0;
+		for (int i = 0; i < size; i++) {
+			out.writeByte(types[i]);
+			out.writeByte(methods[i]);
+			writeVarLong(out, times[i] / 1000 - last / 1000);
+			last = times[i];
+			out.writeLong(distances[i]);
+			InetSocketAddress addr = addresses[i];
+			if (addr == null) {
+				out.writeByte(0);
+				out.writeShort(0);
+			} else {
+				byte[] raw = addr.getAddress().getAddress();
+				out.writeByte(raw.length);
+				out.write(raw);
+				out.writeShort(addr.getPort());
+			}
+			// zigzag so that -1 stays a single byte
+			writeVarLong(out, ((values[i] << 1) ^ (values[i] >> 31)) & 0xFFFFFFFFL);
+		}
+		out.flush();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "trace " + taskType + " " + target.toString(false) + " events:" + size + " duration:" + getDuration() + "ms converged:" + getConvergenceTime() + "ms";
+	}
+}
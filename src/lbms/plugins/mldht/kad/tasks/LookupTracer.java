@@ -0,0 +1,109 @@
+/*
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad.tasks;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+
+/**
+ * Decides which lookups of a DHT get a {@link LookupTrace} and collects the finished traces.
+ *
+ * Tracing is disabled by default. Untraced lookups only pay for a null check per event.
+ */
+public class LookupTracer {
+
+	private static final int					RECENT_TRACES	= 32;
+
+	private volatile double						sampleRate;
+	private volatile Consumer<LookupTrace>		listener;
+	// guarded by itself
+	private final ArrayDeque<LookupTrace>		recent			= new ArrayDeque<LookupTrace>(RECENT_TRACES);
+	private final AtomicLong					traced			= new AtomicLong();
+
+	/**
+	 * @param sampleRate fraction of lookups to trace, 0 disables tracing, 1 traces every lookup
+	 */
+	public void setSampleRate(double sampleRate) {
+		if (!(sampleRate >= 0 && sampleRate <= 1))
+			throw new IllegalArgumentException("sample rate must be within [0,1]");
+		this.sampleRate = sampleRate;
+	}
+
+	public double getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * @param listener invoked with every finished trace, e.g. to write it to a log. null to only keep the most recent traces
+	 */
+	public void setListener(Consumer<LookupTrace> listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @return a new trace if the task was picked, null otherwise
+	 */
+	LookupTrace sample(Task t) {
+		double rate = sampleRate;
+		if (rate <= 0 || (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate))
+			return null;
+		traced.incrementAndGet();
+		return new LookupTrace(t.getTargetKey(), t.getClass().getSimpleName());
+	}
+
+	void finished(LookupTrace trace) {
+		trace.finish();
+		synchronized (recent) {
+			if (recent.size() == RECENT_TRACES)
+				recent.removeFirst();
+			recent.addLast(trace);
+		}
+		Consumer<LookupTrace> l = listener;
+		if (l != null) {
+			try {
+				l.accept(trace);
+			} catch (Exception e) {
+				DHT.log(e, LogLevel.Error);
+			}
+		}
+	}
+
+	/**
+	 * @return the most recently finished traces, oldest first
+	 */
+	public List<LookupTrace> getRecentTraces() {
+		synchronized (recent) {
+			return new ArrayList<LookupTrace>(recent);
+		}
+	}
+
+	public long getTracedCount() {
+		return traced.get();
+	}
+
+	@Override
+	public String toString() {
+		return "lookup tracer: rate:" + sampleRate + " traced:" + traced;
+	}
+}
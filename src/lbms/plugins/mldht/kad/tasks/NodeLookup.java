@@ -17,6 +17,8 @@
 package lbms.plugins.mldht.kad.tasks;
 
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
@@ -43,47 +45,63 @@ import lbms.plugins.mldht.kad.utils.PackUtil;
  */
 public class NodeLookup extends Task {
 	private int						validReponsesSinceLastClosestSetModification;
-	SortedSet<Key>			closestSet;
+	SortedSet<KBucketEntry>			closestSet;
 	private boolean forBootstrap = false;
+	private ResultStream<KBucketEntry>	resultStream;
 	
 	public NodeLookup (Key node_id, RPCServer rpc, Node node, boolean isBootstrap) {
 		super(node_id, rpc, node);
 		forBootstrap = isBootstrap;
-		this.closestSet = new TreeSet<Key>(new Key.DistanceOrder(targetKey));
-		addListener(t -> updatedPopulationEstimates());
+		this.closestSet = new TreeSet<KBucketEntry>(new KBucketEntry.DistanceOrder(targetKey));
+		addListener(t -> lookupFinished());
+		startTrace();
+	}
+	
+	/**
+	 * Nodes will be passed to the stream as soon as they respond. Must be set before the task is started.
+	 */
+	public void setResultStream(ResultStream<KBucketEntry> stream) {
+		attachResultStream(stream);
+		resultStream = stream;
 	}
 
 	@Override
 	void update () {
 		// go over the todo list and send find node calls
 		// until we have nothing left
+		DHT dht4 = rpc.getDHT().getSiblingDHT(DHTtype.IPV4_DHT);
+		DHT dht6 = rpc.getDHT().getSiblingDHT(DHTtype.IPV6_DHT);
+		boolean want4 = rpc.getDHT().getType() == DHTtype.IPV4_DHT || dht4 != null && dht4.getNode() != null && dht4.getNode().getNumEntriesInRoutingTable() < DHTConstants.BOOTSTRAP_IF_LESS_THAN_X_PEERS;
+		boolean want6 = rpc.getDHT().getType() == DHTtype.IPV6_DHT || dht6 != null && dht6.getNode() != null && dht6.getNode().getNumEntriesInRoutingTable() < DHTConstants.BOOTSTRAP_IF_LESS_THAN_X_PEERS;
+
+		// pick candidates under the lock, each one backed by a reserved request slot. concurrent updates
+		// therefore can't pick the same node or exceed the request limit, but nobody waits on the dispatch
+		List<KBucketEntry> picked = new ArrayList<KBucketEntry>(DHTConstants.MAX_CONCURRENT_REQUESTS);
 		synchronized (todo) {
-
-			while (canDoRequest() && validReponsesSinceLastClosestSetModification < DHTConstants.MAX_CONCURRENT_REQUESTS) {
+			while (validReponsesSinceLastClosestSetModification < DHTConstants.MAX_CONCURRENT_REQUESTS && reserveRequest()) {
 				KBucketEntry e = todo.pollFirst();
-				
-				if (e == null)
-					break;
-				
 				// only send a findNode if we haven't already visited the node
-				if (hasVisited(e))
-					continue;
+				while (e != null && hasVisited(e))
+					e = todo.pollFirst();
 				
-					
-				// send a findNode to the node
-				FindNodeRequest fnr = new FindNodeRequest(targetKey);
-				fnr.setWant4(rpc.getDHT().getType() == DHTtype.IPV4_DHT || DHT.getDHT(DHTtype.IPV4_DHT).getNode() != null && DHT.getDHT(DHTtype.IPV4_DHT).getNode().getNumEntriesInRoutingTable() < DHTConstants.BOOTSTRAP_IF_LESS_THAN_X_PEERS);
-				fnr.setWant6(rpc.getDHT().getType() == DHTtype.IPV6_DHT || DHT.getDHT(DHTtype.IPV6_DHT).getNode() != null && DHT.getDHT(DHTtype.IPV6_DHT).getNode().getNumEntriesInRoutingTable() < DHTConstants.BOOTSTRAP_IF_LESS_THAN_X_PEERS);
-				fnr.setDestination(e.getAddress());
-				if (rpcCall(fnr,e.getID(),null))
-					visited(e);
-				else
-					todo.add(e);
+				if (e == null) {
+					releaseRequest();
+					break;
+				}
 				
+				visited(e);
+				picked.add(e);
 			}
 		}
-
-
+		
+		for (KBucketEntry e : picked) {
+			// send a findNode to the node
+			FindNodeRequest fnr = new FindNodeRequest(targetKey);
+			fnr.setWant4(want4);
+			fnr.setWant6(want6);
+			fnr.setDestination(e.getAddress());
+			sendReserved(fnr, e.getID(), null);
+		}
 	}
 	
 	@Override
@@ -103,19 +121,26 @@ public class NodeLookup extends Task {
 		if (rsp.getMethod() != Method.FIND_NODE || rsp.getType() != Type.RSP_MSG)
 			return;
 
+		KBucketEntry toAdd = new KBucketEntry(rsp.getOrigin(), rsp.getID());
+		boolean inserted;
 		synchronized (closestSet) {
-			Key toAdd = rsp.getID();
-			closestSet.add(toAdd);
+			inserted = closestSet.add(toAdd);
 			if (closestSet.size() > DHTConstants.MAX_ENTRIES_PER_BUCKET) {
-				Key last = closestSet.last();
+				KBucketEntry last = closestSet.last();
 				closestSet.remove(last);
 				if (toAdd == last) {
 					validReponsesSinceLastClosestSetModification++;
+					inserted = false;
 				} else {
 					validReponsesSinceLastClosestSetModification = 0;
 				}
 			}
 		}
+		if (inserted)
+			traceClosestSetChanged(toAdd);
+
+		if (resultStream != null)
+			resultStream.offer(toAdd);
 
 		FindNodeResponse fnr = (FindNodeResponse) rsp;
 
@@ -125,17 +150,16 @@ public class NodeLookup extends Task {
 				continue;
 			int nval = nodes.length / type.NODES_ENTRY_LENGTH;
 			if (type == rpc.getDHT().getType()) {
-				synchronized (todo) {
-					for (int i = 0; i < nval; i++) {
-						KBucketEntry e = PackUtil.UnpackBucketEntry(nodes, i * type.NODES_ENTRY_LENGTH, type);
-						if (!AddressUtils.isBogon(e.getAddress()) && !node.isLocalId(e.getID()) && !todo.contains(e) && !hasVisited(e))
-							todo.add(e);
-					}
+				for (int i = 0; i < nval; i++) {
+					KBucketEntry e = PackUtil.UnpackBucketEntry(nodes, i * type.NODES_ENTRY_LENGTH, type);
+					if (!AddressUtils.isBogon(e.getAddress()) && !node.isLocalId(e.getID()) && !hasVisited(e))
+						todo.add(e);
 				}
 			} else {
-				for (int i = 0; i < nval; i++) {
+				DHT other = rpc.getDHT().getSiblingDHT(type);
+				for (int i = 0; other != null && i < nval; i++) {
 					KBucketEntry e = PackUtil.UnpackBucketEntry(nodes, i * type.NODES_ENTRY_LENGTH, type);
-					DHT.getDHT(type).addDHTNode(e.getAddress().getAddress().getHostAddress(), e.getAddress().getPort());
+					other.addDHTNode(e.getAddress().getAddress().getHostAddress(), e.getAddress().getPort());
 				}
 			}
 		}
@@ -166,9 +190,14 @@ public class NodeLookup extends Task {
 		super.start();
 	}
 
-	private void updatedPopulationEstimates () {
+	private void lookupFinished () {
 		synchronized (closestSet) {
-			rpc.getDHT().getEstimator().update(closestSet,targetKey);
+			SortedSet<Key> toEstimate = new TreeSet<Key>();
+			for (KBucketEntry e : closestSet)
+				toEstimate.add(e.getID());
+			rpc.getDHT().getEstimator().update(toEstimate,targetKey);
+			if (resultStream != null)
+				resultStream.complete(new ArrayList<KBucketEntry>(closestSet));
 		}
 	}
 }
@@ -39,6 +39,7 @@ import lbms.plugins.mldht.kad.PeerAddressDBItem;
 import lbms.plugins.mldht.kad.RPCCall;
 import lbms.plugins.mldht.kad.RPCServer;
 import lbms.plugins.mldht.kad.ScrapeResponseHandler;
+import lbms.plugins.mldht.kad.SendPriority;
 import lbms.plugins.mldht.kad.messages.GetPeersRequest;
 import lbms.plugins.mldht.kad.messages.GetPeersResponse;
 import lbms.plugins.mldht.kad.messages.MessageBase;
@@ -63,8 +64,10 @@ public class PeerLookupTask extends Task {
 
 	private Set<PeerAddressDBItem>			returnedItems;
 	private SortedSet<KBucketEntryAndToken>	closestSet;
+	private ResultStream<PeerAddressDBItem>	resultStream;
 	
 	AnnounceNodeCache						cache;
+	private int								cacheBitsGained;
 
 
 
@@ -82,7 +85,7 @@ public class PeerLookupTask extends Task {
 		DHT.logDebug("PeerLookupTask started: " + getTaskID());
 		
 		addListener(t -> done());
-		
+		startTrace();
 	}
 
 	public void setScrapeHandler(ScrapeResponseHandler scrapeHandler) {
@@ -97,15 +100,35 @@ public class PeerLookupTask extends Task {
 	 * enabling this also enables noAnnounce
 	 */
 	public void setFastTerminate(boolean fastTerminate) {
+		applyFastTerminate(fastTerminate);
+		if (fastTerminate)
+			setNoAnnounce(true);
+	}
+	
+	/**
+	 * only changes the termination condition, for subclasses that keep announcing
+	 */
+	void applyFastTerminate(boolean fastTerminate) {
 		if (!isQueued())
 			throw new IllegalStateException("cannot change lookup mode after startup");
 		this.fastTerminate = fastTerminate;
-		if (fastTerminate)
-			setNoAnnounce(true);
+	}
+	
+	boolean isFastTerminate() {
+		return fastTerminate;
+	}
+	
+	/**
+	 * Peers will be passed to the stream as soon as they are received. Must be set before the task is started.
+	 */
+	public void setResultStream(ResultStream<PeerAddressDBItem> stream) {
+		attachResultStream(stream);
+		resultStream = stream;
 	}
 	
 	public void setLowPriority(boolean lowPriority) {
 		this.lowPriority = lowPriority;
+		setPriority(lowPriority ? SendPriority.BULK : SendPriority.LOOKUP);
 	}
 
 	public void setNoAnnounce(boolean noAnnounce) {
@@ -133,20 +156,19 @@ public class PeerLookupTask extends Task {
 				continue;
 			int nval = nodes.length / type.NODES_ENTRY_LENGTH;
 			if (type == rpc.getDHT().getType()) {
-				synchronized (this) {
-					for (int i = 0; i < nval; i++) {
-						// add node to todo list
-						KBucketEntry e = PackUtil.UnpackBucketEntry(nodes, i * type.NODES_ENTRY_LENGTH, type);
-						if (!AddressUtils.isBogon(e.getAddress()) && !node.isLocalId(e.getID()) && !hasVisited(e))
-							todo.add(e);
-					}
+				for (int i = 0; i < nval; i++) {
+					// add node to todo list
+					KBucketEntry e = PackUtil.UnpackBucketEntry(nodes, i * type.NODES_ENTRY_LENGTH, type);
+					if (!AddressUtils.isBogon(e.getAddress()) && !node.isLocalId(e.getID()) && !hasVisited(e))
+						todo.add(e);
 				}
 
 			} else
 			{
-				for (int i = 0; i < nval; i++) {
+				DHT other = rpc.getDHT().getSiblingDHT(type);
+				for (int i = 0; other != null && i < nval; i++) {
 					KBucketEntry e = PackUtil.UnpackBucketEntry(nodes, i * type.NODES_ENTRY_LENGTH, type);
-					DHT.getDHT(type).addDHTNode(e.getAddress().getAddress().getHostAddress(), e.getAddress().getPort());
+					other.addDHTNode(e.getAddress().getAddress().getHostAddress(), e.getAddress().getPort());
 				}
 			}
 		}
@@ -159,8 +181,8 @@ public class PeerLookupTask extends Task {
 				continue;
 			PeerAddressDBItem it = (PeerAddressDBItem) item;
 			// also add the items to the returned_items list
-			if (!AddressUtils.isBogon(it))
-				returnedItems.add(it);
+			if (!AddressUtils.isBogon(it) && returnedItems.add(it) && resultStream != null)
+				resultStream.offer(it);
 		}
 		
 		if (returnedItems.size() > 0 && firstResultTime == 0)
@@ -182,11 +204,15 @@ public class PeerLookupTask extends Task {
 			// if we scrape we don't care about tokens.
 			// otherwise we're only done if we have found the closest nodes that also returned tokens
 			if (noAnnounce || gpr.getToken() != null) {
-				closestSet.add(toAdd);
+				boolean inserted = closestSet.add(toAdd);
 				if (closestSet.size() > DHTConstants.MAX_ENTRIES_PER_BUCKET) {
 					KBucketEntryAndToken last = closestSet.last();
 					closestSet.remove(last);
+					if (last == toAdd)
+						inserted = false;
 				}
+				if (inserted)
+					traceClosestSetChanged(toAdd);
 			}
 		}
 	}
@@ -201,7 +227,7 @@ public class PeerLookupTask extends Task {
 	@Override
 	boolean canDoRequest() {
 		if (lowPriority)
-			return getNumOutstandingRequestsExcludingStalled() < DHTConstants.MAX_CONCURRENT_REQUESTS_LOWPRIO;
+			return getNumOutstandingRequestsExcludingStalled() < DHTConstants.MAX_CONCURRENT_REQUESTS_LOWPRIO && !isBackpressured();
 		return super.canDoRequest();
 	}
 
@@ -212,47 +238,46 @@ public class PeerLookupTask extends Task {
 	void update () {
 		// check if the cache has any closer nodes after the initial query
 		Collection<KBucketEntry> cacheResults = cache.get(targetKey, lowPriority ? DHTConstants.MAX_CONCURRENT_REQUESTS_LOWPRIO : DHTConstants.MAX_CONCURRENT_REQUESTS);
-		
-		synchronized (this) {
-			todo.addAll(cacheResults);
-		}
+		todo.addAll(cacheResults);
+
+		DHT dht4 = rpc.getDHT().getSiblingDHT(DHTtype.IPV4_DHT);
+		DHT dht6 = rpc.getDHT().getSiblingDHT(DHTtype.IPV6_DHT);
+		boolean want4 = rpc.getDHT().getType() == DHTtype.IPV4_DHT || dht4 != null && dht4.getNode() != null && dht4.getNode().getNumEntriesInRoutingTable() < DHTConstants.BOOTSTRAP_IF_LESS_THAN_X_PEERS;
+		boolean want6 = rpc.getDHT().getType() == DHTtype.IPV6_DHT || dht6 != null && dht6.getNode() != null && dht6.getNode().getNumEntriesInRoutingTable() < DHTConstants.BOOTSTRAP_IF_LESS_THAN_X_PEERS;
 
 		// go over the todo list and send get_peers requests
 		// until we have nothing left
 		while (canDoRequest() && !isClosestSetStable()) {
-			KBucketEntry e;
-			synchronized (this) {
-				e = todo.pollFirst();
-			}
+			KBucketEntry e = todo.pollFirst();
+
+			if (e == null)
+				break;
 
 			// only send a getPeers if we haven't already visited the node
-			if (e == null || hasVisited(e))
+			if (hasVisited(e))
 				continue;
 			
-			// send a findNode to the node
+			// send a getPeers to the node, outside of any lock
 			GetPeersRequest gpr = new GetPeersRequest(targetKey);
-			gpr.setWant4(rpc.getDHT().getType() == DHTtype.IPV4_DHT || DHT.getDHT(DHTtype.IPV4_DHT).getNode().getNumEntriesInRoutingTable() < DHTConstants.BOOTSTRAP_IF_LESS_THAN_X_PEERS);
-			gpr.setWant6(rpc.getDHT().getType() == DHTtype.IPV6_DHT || DHT.getDHT(DHTtype.IPV6_DHT).getNode().getNumEntriesInRoutingTable() < DHTConstants.BOOTSTRAP_IF_LESS_THAN_X_PEERS);
+			gpr.setWant4(want4);
+			gpr.setWant6(want6);
 			gpr.setDestination(e.getAddress());
 			gpr.setScrape(true);
 			gpr.setNoSeeds(noSeeds);
 			if (rpcCall(gpr,e.getID(),cache.getRPCListener()))
 				visited(e);
 			else
-			{
-				synchronized (this) {
-					todo.add(e);
-				}
-			}
+				todo.add(e);
 		}
 		
 
 	}
 	
-	private synchronized boolean isClosestSetStable() {
-		if (todo.isEmpty())
+	synchronized boolean isClosestSetStable() {
+		KBucketEntry closestCandidate = todo.first();
+		if (closestCandidate == null)
 			return true;
-		return closestSet.size() >= DHTConstants.MAX_ENTRIES_PER_BUCKET && targetKey.threeWayDistance(todo.first().getID(), closestSet.last().getID()) > 0;
+		return closestSet.size() >= DHTConstants.MAX_ENTRIES_PER_BUCKET && targetKey.threeWayDistance(closestCandidate.getID(), closestSet.last().getID()) > 0;
 	}
 	
 	@Override
@@ -277,12 +302,22 @@ public class PeerLookupTask extends Task {
 				rpc.getDHT().getEstimator().update(toEstimate,targetKey);
 			}
 			
+			if (resultStream != null)
+				resultStream.complete(new ArrayList<KBucketEntry>(closestSet));
+			
 		}
 	
 		//System.out.println(returned_items);
 		//System.out.println("overall:"+returnedItems.size());
 	}
 	
+	/**
+	 * @return snapshot of the current closest set, sorted by distance to the target
+	 */
+	synchronized List<KBucketEntryAndToken> getClosestSet() {
+		return new ArrayList<KBucketEntryAndToken>(closestSet);
+	}
+	
 	public List<KBucketEntryAndToken> getAnnounceCanidates() {
 		if (fastTerminate || noAnnounce)
 			throw new IllegalStateException("cannot use fast lookups for announces");
@@ -290,6 +325,19 @@ public class PeerLookupTask extends Task {
 	}
 
 
+	/**
+	 * @return estimated number of hops the announce node cache saved this lookup
+	 */
+	public double getCacheHopsSaved() {
+		return AnnounceNodeCache.hopsSaved(cacheBitsGained);
+	}
+
+	@Override
+	public String toString() {
+		String base = super.toString();
+		return base.substring(0, base.length() - 1) + " cache hops saved:" + String.format("%.1f", getCacheHopsSaved()) + "\n";
+	}
+
 	/**
 	 * @return the returned_items
 	 */
@@ -314,11 +362,24 @@ public class PeerLookupTask extends Task {
 				DHTConstants.MAX_ENTRIES_PER_BUCKET * 4,rpc.getDHT());
 
 		kns.fill();
-		todo.addAll(kns.getEntries());
+		// the todo list may already hold externally seeded nodes, only the routing table counts as baseline for the cache
+		KBucketEntry closestFromTable = null;
+		for (KBucketEntry e : kns.getEntries()) {
+			todo.add(e);
+			if (closestFromTable == null || targetKey.threeWayDistance(e.getID(), closestFromTable.getID()) < 0)
+				closestFromTable = e;
+		}
 		
 		// re-register once we actually started
 		cache.register(targetKey,fastTerminate);
-		todo.addAll(cache.get(targetKey,DHTConstants.MAX_CONCURRENT_REQUESTS * 2));
+		KBucketEntry closestFromCache = null;
+		for (KBucketEntry e : cache.get(targetKey,DHTConstants.MAX_CONCURRENT_REQUESTS * 2)) {
+			todo.add(e);
+			if (closestFromCache == null || targetKey.threeWayDistance(e.getID(), closestFromCache.getID()) < 0)
+				closestFromCache = e;
+		}
+		cache.recordSeeding(targetKey, closestFromTable, closestFromCache);
+		cacheBitsGained = AnnounceNodeCache.bitsGained(targetKey, closestFromTable, closestFromCache);
 
 		super.start();
 	}
@@ -25,6 +25,7 @@ import lbms.plugins.mldht.kad.KBucketEntry;
 import lbms.plugins.mldht.kad.Node;
 import lbms.plugins.mldht.kad.RPCCall;
 import lbms.plugins.mldht.kad.RPCServer;
+import lbms.plugins.mldht.kad.SendPriority;
 import lbms.plugins.mldht.kad.messages.MessageBase;
 import lbms.plugins.mldht.kad.messages.PingRequest;
 
@@ -47,6 +48,7 @@ public class PingRefreshTask extends Task {
 			boolean cleanOnTimeout) {
 		super(node.getRootID(),rpc, node);
 		this.cleanOnTimeout = cleanOnTimeout;
+		setPriority(SendPriority.MAINTENANCE);
 		if (cleanOnTimeout) {
 			lookupMap = new HashMap<MessageBase, KBucketEntry>();
 		}
@@ -101,25 +103,21 @@ public class PingRefreshTask extends Task {
 	void update () {
 		// go over the todo list and send ping
 		// until we have nothing left
-		synchronized (todo) {
-			while (!todo.isEmpty() && canDoRequest()) {
-				KBucketEntry e = todo.first();
-				todo.remove(e);
-
-				if (e.isGood()) {
-					//Node responded in the meantime
-					continue;
-				}
+		KBucketEntry e;
+		while (canDoRequest() && (e = todo.pollFirst()) != null) {
+			if (e.isGood()) {
+				//Node responded in the meantime
+				continue;
+			}
 
-				PingRequest pr = new PingRequest();
-				pr.setDestination(e.getAddress());
-				if (cleanOnTimeout) {
-					synchronized (lookupMap) {
-						lookupMap.put(pr, e);
-					}
+			PingRequest pr = new PingRequest();
+			pr.setDestination(e.getAddress());
+			if (cleanOnTimeout) {
+				synchronized (lookupMap) {
+					lookupMap.put(pr, e);
 				}
-				rpcCall(pr,e.getID(),null);
 			}
+			rpcCall(pr,e.getID(),null);
 		}
 	}
 	
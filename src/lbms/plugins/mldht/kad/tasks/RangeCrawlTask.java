@@ -0,0 +1,304 @@
+/*
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad.tasks;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.DHTConstants;
+import lbms.plugins.mldht.kad.KBucketEntry;
+import lbms.plugins.mldht.kad.KClosestNodesSearch;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.Node;
+import lbms.plugins.mldht.kad.Prefix;
+import lbms.plugins.mldht.kad.RPCCall;
+import lbms.plugins.mldht.kad.RPCServer;
+import lbms.plugins.mldht.kad.SendPriority;
+import lbms.plugins.mldht.kad.messages.FindNodeRequest;
+import lbms.plugins.mldht.kad.messages.FindNodeResponse;
+import lbms.plugins.mldht.kad.messages.MessageBase;
+import lbms.plugins.mldht.kad.messages.MessageBase.Method;
+import lbms.plugins.mldht.kad.messages.MessageBase.Type;
+import lbms.plugins.mldht.kad.utils.BloomFilter;
+import lbms.plugins.mldht.kad.utils.PackUtil;
+import lbms.plugins.mldht.utils.RateLimiter;
+
+/**
+ * Enumerates the nodes within a single prefix range for the {@link KeyspaceCrawler}.
+ *
+ * The target lies within the range, so every in-range node sorts before every out-of-range node in the todo list.
+ * Out-of-range nodes are only queried to route into the range and are dropped once enough in-range nodes are known.
+ * In-range nodes are asked for a random key of the range and for their own neighborhood.
+ *
+ * Visited nodes are tracked in a bloom filter, a false positive only means a node is skipped.
+ *
+ * The task timeout does not apply, ranges may take much longer when the budget is tight. A range only counts as complete if the
+ * task drained its todo list without being killed and without losing in-range candidates to the capacity limit. Losing out-of-range
+ * candidates is harmless, they only serve to find the range.
+ */
+class RangeCrawlTask extends Task {
+
+	private static final int	TODO_CAPACITY		= 1 << 12;
+	private static final int	MAX_TODO_CAPACITY	= 1 << 16;
+	// ranges that overflow get retried with a larger todo list, up to this size
+	static final int			MAX_RETRY_CAPACITY	= 1 << 20;
+	// in-range nodes that have to be known before the task stops querying nodes outside the range
+	private static final int	ENTRY_THRESHOLD		= DHTConstants.MAX_ENTRIES_PER_BUCKET;
+	private static final int	SEED_NODES			= DHTConstants.MAX_ENTRIES_PER_BUCKET * 4;
+	// keeps address fingerprints apart from ID fingerprints
+	private static final long	ADDRESS_SALT		= 0x5DEECE66DL;
+
+	private final Prefix		range;
+	private final RateLimiter	budget;
+	private final CrawlSink		sink;
+	// guarded by itself
+	private final BloomFilter	visitedNodes;
+	// guarded by itself
+	private final BloomFilter	reported;
+
+	private final AtomicInteger	inRangeSeen			= new AtomicInteger();
+	private final AtomicInteger	responded			= new AtomicInteger();
+	private final AtomicInteger	inRangeDropped		= new AtomicInteger();
+	private volatile boolean	killed;
+
+	/**
+	 * @param todoCapacity unvisited in-range nodes must fit, they all sort before the out-of-range ones
+	 */
+	RangeCrawlTask(RPCServer rpc, Node node, Prefix range, int expectedNodes, int todoCapacity, RateLimiter budget, CrawlSink sink) {
+		super(range.createRandomKeyFromPrefix(), rpc, node, todoCapacity);
+		this.range = range;
+		this.budget = budget;
+		this.sink = sink;
+		// each node is entered with ID and address
+		this.visitedNodes = new BloomFilter(expectedNodes * 2, 0.001);
+		this.reported = new BloomFilter(expectedNodes, 0.001);
+		setInfo("Crawl " + range);
+		setPriority(SendPriority.BULK);
+	}
+
+	/**
+	 * @return todo capacity for a first attempt at a range
+	 */
+	static int todoCapacityFor(int expectedNodes) {
+		return Math.max(TODO_CAPACITY, Math.min(expectedNodes, MAX_TODO_CAPACITY));
+	}
+
+	/**
+	 * @return todo capacity for the next attempt at a range that overflowed with the given one
+	 */
+	static int raiseTodoCapacity(int capacity) {
+		return (int) Math.min(MAX_RETRY_CAPACITY, 2L * capacity);
+	}
+
+	Prefix getRange() {
+		return range;
+	}
+
+	int getRespondedCount() {
+		return responded.get();
+	}
+
+	@Override
+	protected void visited(KBucketEntry e) {
+		synchronized (visitedNodes) {
+			visitedNodes.add(e.getID().leadingBits());
+			visitedNodes.add(VisitedSet.addressBits(e.getAddress().getAddress()) ^ ADDRESS_SALT);
+		}
+	}
+
+	@Override
+	protected boolean hasVisited(KBucketEntry e) {
+		synchronized (visitedNodes) {
+			return visitedNodes.mightContain(e.getID().leadingBits()) || visitedNodes.mightContain(VisitedSet.addressBits(e.getAddress().getAddress()) ^ ADDRESS_SALT);
+		}
+	}
+
+	@Override
+	void update() {
+		while (canDoRequest()) {
+			// permits for both requests, one is handed back if only one is sent
+			if (!budget.tryAcquire(2))
+				break;
+
+			KBucketEntry e;
+			do {
+				e = todo.pollFirst();
+			} while (e != null && (hasVisited(e) || (!range.isPrefixOf(e.getID()) && inRangeSeen.get() >= ENTRY_THRESHOLD)));
+
+			if (e == null) {
+				budget.consume(-2);
+				break;
+			}
+
+			visited(e);
+
+			FindNodeRequest fnr = new FindNodeRequest(range.createRandomKeyFromPrefix());
+			fnr.setWant4(rpc.getDHT().getType() == DHTtype.IPV4_DHT);
+			fnr.setWant6(rpc.getDHT().getType() == DHTtype.IPV6_DHT);
+			fnr.setDestination(e.getAddress());
+			if (!rpcCall(fnr, e.getID(), null)) {
+				budget.consume(-2);
+				break;
+			}
+
+			boolean sentSecond = false;
+			if (range.isPrefixOf(e.getID())) {
+				fnr = new FindNodeRequest(e.getID());
+				fnr.setWant4(rpc.getDHT().getType() == DHTtype.IPV4_DHT);
+				fnr.setWant6(rpc.getDHT().getType() == DHTtype.IPV6_DHT);
+				fnr.setDestination(e.getAddress());
+				sentSecond = rpcCall(fnr, e.getID(), null);
+			}
+			if (!sentSecond)
+				budget.consume(-1);
+		}
+	}
+
+	@Override
+	void callFinished(RPCCall c, MessageBase rsp) {
+		if (isFinished() || rsp.getMethod() != Method.FIND_NODE || rsp.getType() != Type.RSP_MSG)
+			return;
+
+		FindNodeResponse fnr = (FindNodeResponse) rsp;
+		Key id = fnr.getID();
+
+		if (range.isPrefixOf(id)) {
+			boolean isNew;
+			synchronized (reported) {
+				isNew = reported.add(id.leadingBits());
+			}
+			if (isNew) {
+				responded.incrementAndGet();
+				try {
+					sink.nodeFound(id, fnr.getOrigin(), fnr.getVersion());
+				} catch (Exception e) {
+					DHT.log(e, LogLevel.Error);
+				}
+			}
+		}
+
+		DHTtype type = rpc.getDHT().getType();
+		byte[] nodes = fnr.getNodes(type);
+		if (nodes == null)
+			return;
+		int nval = nodes.length / type.NODES_ENTRY_LENGTH;
+		for (int i = 0; i < nval; i++) {
+			KBucketEntry e = PackUtil.UnpackBucketEntry(nodes, i * type.NODES_ENTRY_LENGTH, type);
+			if (node.isLocalId(e.getID()) || hasVisited(e))
+				continue;
+			if (range.isPrefixOf(e.getID()))
+				inRangeSeen.incrementAndGet();
+			else if (inRangeSeen.get() >= ENTRY_THRESHOLD)
+				// would be skipped by update() anyway
+				continue;
+			addCandidate(e);
+		}
+	}
+
+	private void addCandidate(KBucketEntry e) {
+		synchronized (todo) {
+			if (todo.size() == todo.capacity() && !todo.contains(e)) {
+				// either the new entry or the current tail won't fit
+				KBucketEntry last = todo.last();
+				KBucketEntry lost = targetKey.threeWayDistance(e.getID(), last.getID()) < 0 ? last : e;
+				if (range.isPrefixOf(lost.getID()))
+					inRangeDropped.incrementAndGet();
+			}
+			todo.add(e);
+		}
+	}
+
+	@Override
+	void callTimeout(RPCCall c) {}
+
+	@Override
+	boolean canDoRequest() {
+		return getNumOutstandingRequestsExcludingStalled() < DHTConstants.MAX_CONCURRENT_REQUESTS * 3;
+	}
+
+	@Override
+	void timeout() {
+		// ranges may take longer than the task timeout when the budget is tight, only the crawler or a DHT shutdown stops them
+	}
+
+	@Override
+	public void kill() {
+		killed = true;
+		super.kill();
+	}
+
+	/**
+	 * finishes a task that drained its todo list but has no callback left that would notice
+	 */
+	void finishDrained() {
+		super.kill();
+	}
+
+	/**
+	 * @return true if every node found within the range was queried
+	 */
+	boolean isComplete() {
+		return isDrained() && !hasOverflowed();
+	}
+
+	/**
+	 * @return true if the task ran out of candidates instead of being killed
+	 */
+	boolean isDrained() {
+		return isFinished() && !killed && isDone();
+	}
+
+	/**
+	 * @return true if in-range nodes were lost because the todo list was too small, the range has to be crawled again with a larger one
+	 */
+	boolean hasOverflowed() {
+		return inRangeDropped.get() > 0;
+	}
+
+	int getTodoCapacity() {
+		return todo.capacity();
+	}
+
+	/**
+	 * polled by the crawler as well, update() may drain the todo list without sending anything and then no callback would finish the task
+	 */
+	@Override
+	protected boolean isDone() {
+		return !isQueued() && todo.isEmpty() && getNumOutstandingRequests() == 0;
+	}
+
+	@Override
+	public void start() {
+		// delay the filling of the todo list until we actually start the task
+		KClosestNodesSearch kns = new KClosestNodesSearch(targetKey, SEED_NODES, rpc.getDHT());
+		kns.fill();
+		for (KBucketEntry e : kns.getEntries()) {
+			if (range.isPrefixOf(e.getID()))
+				inRangeSeen.incrementAndGet();
+			addCandidate(e);
+		}
+		super.start();
+	}
+
+	@Override
+	public String toString() {
+		String base = super.toString();
+		return base.substring(0, base.length() - 1) + " responded:" + responded + " " + visitedNodes + "\n";
+	}
+}
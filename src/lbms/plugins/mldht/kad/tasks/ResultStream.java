@@ -0,0 +1,191 @@
+/*
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad.tasks;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.KBucketEntry;
+
+/**
+ * Hands out the results of a running lookup as they arrive.
+ *
+ * Items are only delivered to the subscriber as far as they have been {@link #request(long) requested}. Undelivered items are buffered,
+ * once the buffer is full the lookup stops issuing new requests until the subscriber catches up.
+ * Items from requests that were already in flight are still accepted, so the buffer limit is soft.
+ *
+ * Delivery is serialized, i.e. the subscriber is never invoked concurrently, but it may be invoked from any thread,
+ * including the one calling {@link #request(long)}.
+ *
+ * The {@link #getCompletion() completion future} is completed with the final closest set when the lookup terminates,
+ * independent of whether all buffered items have been consumed yet.
+ */
+public class ResultStream<T> {
+
+	private final int										bufferCapacity;
+	private final Queue<T>									buffer		= new ConcurrentLinkedQueue<T>();
+	private final AtomicInteger								buffered	= new AtomicInteger();
+	private final AtomicLong								demand		= new AtomicLong();
+	private final AtomicInteger								wip			= new AtomicInteger();
+	private final CompletableFuture<List<KBucketEntry>>	completion	= new CompletableFuture<List<KBucketEntry>>();
+	private volatile Consumer<? super T>					subscriber;
+	private volatile boolean								cancelled;
+	private final AtomicBoolean								throttled	= new AtomicBoolean();
+	private volatile Runnable								resumeHandler;
+	private volatile Runnable								cancelHandler;
+	private long											delivered;
+
+	public ResultStream(int bufferCapacity) {
+		if (bufferCapacity < 1)
+			throw new IllegalArgumentException("buffer capacity must be positive");
+		this.bufferCapacity = bufferCapacity;
+	}
+
+	/**
+	 * Sets the consumer for the results. Nothing will be delivered until {@link #request(long)} is called.
+	 */
+	public ResultStream<T> subscribe(Consumer<? super T> subscriber) {
+		if (this.subscriber != null)
+			throw new IllegalStateException("already subscribed");
+		this.subscriber = subscriber;
+		drain();
+		return this;
+	}
+
+	/**
+	 * Allows n more items to be delivered. Long.MAX_VALUE effectively disables backpressure.
+	 */
+	public void request(long n) {
+		if (n <= 0)
+			throw new IllegalArgumentException("must request a positive number of items");
+		demand.accumulateAndGet(n, (current, add) -> current + add < 0 ? Long.MAX_VALUE : current + add);
+		drain();
+		// only one of request() and throttle() can clear the flag, so the producer is either resumed or doesn't hold back
+		if (!isSaturated() && throttled.compareAndSet(true, false)) {
+			Runnable resume = resumeHandler;
+			if (resume != null)
+				resume.run();
+		}
+	}
+
+	/**
+	 * Stops the lookup and discards buffered items. The completion future will be cancelled
+	 */
+	public void cancel() {
+		if (cancelled)
+			return;
+		cancelled = true;
+		buffer.clear();
+		buffered.set(0);
+		completion.cancel(false);
+		Runnable onCancel = cancelHandler;
+		if (onCancel != null)
+			onCancel.run();
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public CompletableFuture<List<KBucketEntry>> getCompletion() {
+		return completion;
+	}
+
+	/**
+	 * @return number of items that have been received but not yet delivered
+	 */
+	public int getBuffered() {
+		return buffered.get();
+	}
+
+	void onResume(Runnable r) {
+		resumeHandler = r;
+	}
+
+	void onCancel(Runnable r) {
+		cancelHandler = r;
+	}
+
+	boolean isSaturated() {
+		return buffered.get() >= bufferCapacity;
+	}
+
+	/**
+	 * Called by the producer before issuing more work. If it has to hold back it will be resumed by a later {@link #request(long)}.
+	 *
+	 * @return true if the producer should hold back until more items have been requested
+	 */
+	boolean throttle() {
+		if (!isSaturated())
+			return false;
+		throttled.set(true);
+		// the subscriber may have caught up before the flag was visible to it
+		return isSaturated() || !throttled.compareAndSet(true, false);
+	}
+
+	void offer(T item) {
+		if (cancelled)
+			return;
+		buffer.add(item);
+		buffered.incrementAndGet();
+		drain();
+	}
+
+	void complete(List<KBucketEntry> closestSet) {
+		completion.complete(Collections.unmodifiableList(closestSet));
+	}
+
+	private void drain() {
+		if (wip.getAndIncrement() != 0)
+			return;
+		int missed = 1;
+		do {
+			Consumer<? super T> s = subscriber;
+			if (s != null) {
+				while (!cancelled && demand.get() > 0) {
+					T item = buffer.poll();
+					if (item == null)
+						break;
+					buffered.decrementAndGet();
+					if (demand.get() != Long.MAX_VALUE)
+						demand.decrementAndGet();
+					delivered++;
+					try {
+						s.accept(item);
+					} catch (Exception e) {
+						DHT.log(e, LogLevel.Error);
+					}
+				}
+			}
+			missed = wip.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+	@Override
+	public String toString() {
+		return "delivered:" + delivered + " buffered:" + buffered.get() + " demand:" + demand.get() + (cancelled ? " cancelled" : "") + (completion.isDone() ? " done" : "");
+	}
+}
@@ -19,10 +19,7 @@ package lbms.plugins.mldht.kad.tasks;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.NavigableSet;
-import java.util.TreeSet;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -36,7 +33,10 @@ import lbms.plugins.mldht.kad.Node;
 import lbms.plugins.mldht.kad.RPCCall;
 import lbms.plugins.mldht.kad.RPCCallListener;
 import lbms.plugins.mldht.kad.RPCServer;
+import lbms.plugins.mldht.kad.SendPriority;
+import lbms.plugins.mldht.kad.jfr.FlightRecorderEvents;
 import lbms.plugins.mldht.kad.messages.MessageBase;
+import lbms.plugins.mldht.kad.tasks.LookupTrace.EventType;
 
 /**
  * Performs a task on K nodes provided by a KClosestNodesSearch.
@@ -46,7 +46,7 @@ import lbms.plugins.mldht.kad.messages.MessageBase;
  */
 public abstract class Task implements RPCCallListener, Comparable<Task> {
 
-	protected NavigableSet<KBucketEntry>	todo;			// nodes todo
+	protected CandidateQueue			todo;			// nodes todo
 	protected Node						node;
 
 	protected Key						targetKey;
@@ -54,10 +54,10 @@ public abstract class Task implements RPCCallListener, Comparable<Task> {
 	protected String					info;
 	protected RPCServer					rpc;
 	
-	private HashSet						visited = new HashSet();
+	private VisitedSet					visited = new VisitedSet();
 	private AtomicInteger				outstandingRequestsExcludingStalled = new AtomicInteger();
 	private AtomicInteger				outstandingRequests = new AtomicInteger();
-	private int							sentReqs;
+	private AtomicInteger				sentReqs = new AtomicInteger();
 	private int							recvResponses;
 	long 								startTime;
 	long								firstResultTime;
@@ -68,6 +68,9 @@ public abstract class Task implements RPCCallListener, Comparable<Task> {
 	private boolean						queued;
 	private List<TaskListener>			listeners;
 	private ScheduledFuture<?>			timeoutTimer;
+	private ResultStream<?>				resultStream;
+	private LookupTrace					trace;
+	private SendPriority				priority = SendPriority.LOOKUP;
 
 	/**
 	 * Create a task.
@@ -75,13 +78,20 @@ public abstract class Task implements RPCCallListener, Comparable<Task> {
 	 * @param node The node
 	 */
 	Task (Key target, RPCServer rpc, Node node) {
+		this(target, rpc, node, DHTConstants.MAX_LOOKUP_CANDIDATES);
+	}
+
+	/**
+	 * @param todoCapacity maximum number of not yet contacted nodes, more distant ones will be dropped
+	 */
+	Task (Key target, RPCServer rpc, Node node, int todoCapacity) {
 		if (rpc == null)
 			throw new IllegalArgumentException("RPC must not be null");
 		this.targetKey = target;
 		this.rpc = rpc;
 		this.node = node;
 		queued = true;
-		todo = new TreeSet<KBucketEntry>(new KBucketEntry.DistanceOrder(targetKey));
+		todo = new CandidateQueue(targetKey, todoCapacity);
 		taskFinished = false;
 	}
 
@@ -95,18 +105,34 @@ public abstract class Task implements RPCCallListener, Comparable<Task> {
 		this.info = info;
 	}
 	
+	/**
+	 * Lets the tracer of the DHT decide whether this task is traced. Has to be called before the task is queued
+	 */
+	void startTrace() {
+		trace = rpc.getDHT().getLookupTracer().sample(this);
+	}
+
+	/**
+	 * @return the trace of this task or null if it is not traced
+	 */
+	public LookupTrace getTrace() {
+		return trace;
+	}
+
+	/**
+	 * To be called by lookups when a node entered their closest set
+	 */
+	void traceClosestSetChanged(KBucketEntry e) {
+		if (trace != null)
+			trace.record(EventType.CLOSEST_SET_CHANGED, null, e.getAddress(), e.getID(), -1);
+	}
+
 	protected void visited(KBucketEntry e) {
-		synchronized (visited) {
-			visited.add(e.getAddress().getAddress());
-			visited.add(e.getID());
-			
-		}
+		visited.add(e);
 	}
 	
 	protected boolean hasVisited(KBucketEntry e) {
-		synchronized (visited) {
-			return visited.contains(e.getAddress().getAddress()) || visited.contains(e.getID());
-		}
+		return visited.contains(e);
 	}
 	
 	
@@ -129,6 +155,9 @@ public abstract class Task implements RPCCallListener, Comparable<Task> {
 
 		recvResponses++;
 
+		if (trace != null)
+			trace.record(EventType.RESPONSE, c.getMessageMethod(), rsp.getOrigin(), rsp.getID(), (int) c.getRTT());
+
 		if (!isFinished()) {
 			callFinished(c, rsp);
 			
@@ -144,6 +173,9 @@ public abstract class Task implements RPCCallListener, Comparable<Task> {
 	public void onStall(RPCCall c) {
 		outstandingRequestsExcludingStalled.decrementAndGet();
 		
+		if (trace != null)
+			trace.record(EventType.STALL, c.getMessageMethod(), c.getRequest().getDestination(), c.getExpectedID(), -1);
+
 		if (!isFinished())
 			callStalled(c);
 		
@@ -166,6 +198,9 @@ public abstract class Task implements RPCCallListener, Comparable<Task> {
 
 		failedReqs++;
 
+		if (trace != null)
+			trace.record(EventType.TIMEOUT, c.getMessageMethod(), c.getRequest().getDestination(), c.getExpectedID(), -1);
+
 		if (!isFinished())
 			callTimeout(c);
 
@@ -185,6 +220,8 @@ public abstract class Task implements RPCCallListener, Comparable<Task> {
 			DHT.logDebug("Starting Task taskID: " + toString());
 			queued = false;
 			startTimeout();
+			if (FlightRecorderEvents.ENABLED)
+				FlightRecorderEvents.taskStarted(this, taskID, targetKey);
 			try {
 				update();
 			} catch (Exception e) {
@@ -223,21 +260,74 @@ public abstract class Task implements RPCCallListener, Comparable<Task> {
 	 * @return true if call was made, false if not
 	 */
 	boolean rpcCall (MessageBase req, Key expectedID, RPCCallListener listener) {
-		if (!canDoRequest()) {
+		if (!reserveRequest()) {
 			return false;
 		}
-
-		new RPCCall(rpc,req).setExpectedID(expectedID).addListener(this).addListener(listener).start();
-		outstandingRequestsExcludingStalled.incrementAndGet();
+		sendReserved(req, expectedID, listener);
+		return true;
+	}
+	
+	/**
+	 * Claims a request slot. Concurrent callers can't exceed the request limit since the check and the increment are a single CAS.
+	 * Every successful reservation has to be followed by either {@link #sendReserved(MessageBase, Key, RPCCallListener)} or {@link #releaseRequest()}.
+	 * @return false if the task can't do another request right now
+	 */
+	boolean reserveRequest () {
+		if (isBackpressured())
+			return false;
+		int current;
+		do {
+			current = outstandingRequestsExcludingStalled.get();
+			if (current >= DHTConstants.MAX_CONCURRENT_REQUESTS)
+				return false;
+		} while (!outstandingRequestsExcludingStalled.compareAndSet(current, current + 1));
 		outstandingRequests.incrementAndGet();
-		
-		sentReqs++;
 		return true;
 	}
+	
+	/**
+	 * Returns a reserved slot that wasn't used for a request
+	 */
+	void releaseRequest () {
+		outstandingRequestsExcludingStalled.decrementAndGet();
+		outstandingRequests.decrementAndGet();
+	}
+	
+	/**
+	 * Sends a request on a slot obtained from {@link #reserveRequest()}. Doesn't need any lock to be held.
+	 */
+	void sendReserved (MessageBase req, Key expectedID, RPCCallListener listener) {
+		// record before sending, the response may arrive before start() returns
+		if (trace != null)
+			trace.record(EventType.REQUEST, req.getMethod(), req.getDestination(), expectedID, -1);
+		sentReqs.incrementAndGet();
+		new RPCCall(rpc,req).setExpectedID(expectedID).setPriority(priority).addListener(this).addListener(listener).start();
+	}
 
 	/// See if we can do a request
 	boolean canDoRequest () {
-		return outstandingRequestsExcludingStalled.get() < DHTConstants.MAX_CONCURRENT_REQUESTS;
+		return outstandingRequestsExcludingStalled.get() < DHTConstants.MAX_CONCURRENT_REQUESTS && !isBackpressured();
+	}
+	
+	/**
+	 * @return true if the consumer of the result stream has fallen behind and no further requests should be issued for now
+	 */
+	boolean isBackpressured() {
+		return resultStream != null && resultStream.throttle();
+	}
+	
+	/**
+	 * Hooks up cancellation and flow control of a stream. Subclasses are responsible for feeding it.
+	 */
+	void attachResultStream(ResultStream<?> stream) {
+		if (!queued)
+			throw new IllegalStateException("cannot attach a result stream after startup");
+		resultStream = stream;
+		stream.onCancel(this::kill);
+		stream.onResume(() -> DHT.getScheduler().execute(() -> {
+			if (!isFinished() && canDoRequest())
+				update();
+		}));
 	}
 	
 	boolean hasUnfinishedRequests() {
@@ -277,7 +367,7 @@ public abstract class Task implements RPCCallListener, Comparable<Task> {
 	 * @return the Count of Sent Requests
 	 */
 	public int getSentReqs () {
-		return sentReqs;
+		return sentReqs.get();
 	}
 
 	public int getTodoCount () {
@@ -316,11 +406,20 @@ public abstract class Task implements RPCCallListener, Comparable<Task> {
 	public void setInfo (String info) {
 		this.info = info;
 	}
+	
+	/**
+	 * @param priority traffic class of the requests of this task in the outbound queues of the server
+	 */
+	public void setPriority(SendPriority priority) {
+		this.priority = priority;
+	}
+	
+	public SendPriority getPriority() {
+		return priority;
+	}
 
 	public void addToTodo (KBucketEntry e) {
-		synchronized (todo) {
-			todo.add(e);
-		}
+		todo.add(e);
 	}
 
 	/**
@@ -353,13 +452,19 @@ public abstract class Task implements RPCCallListener, Comparable<Task> {
 	private void startTimeout () {
 		startTime = System.currentTimeMillis();
 		timeoutTimer = DHT.getScheduler().schedule(() -> {
-			if (!taskFinished) {
-				DHT.logDebug("Task "+taskID+" was Killed by Timeout.");
-				kill();
-			}
+			if (!taskFinished)
+				timeout();
 		}, DHTConstants.TASK_TIMEOUT, TimeUnit.MILLISECONDS);
 	}
 
+	/**
+	 * Called when the task timeout expires, kills the task by default
+	 */
+	void timeout () {
+		DHT.logDebug("Task "+taskID+" was Killed by Timeout.");
+		kill();
+	}
+
 	/**
 	 * Add a node to the todo list
 	 * @param ip The ip or hostname of the node
@@ -367,9 +472,7 @@ public abstract class Task implements RPCCallListener, Comparable<Task> {
 	 */
 	public void addDHTNode (InetAddress ip, int port) {
 		InetSocketAddress addr = new InetSocketAddress(ip, port);
-		synchronized (todo) {
-			todo.add(new KBucketEntry(addr, Key.createRandomKey()));
-		}
+		todo.add(new KBucketEntry(addr, Key.createRandomKey()));
 	}
 
 	/**
@@ -390,6 +493,10 @@ public abstract class Task implements RPCCallListener, Comparable<Task> {
 		if (timeoutTimer != null) {
 			timeoutTimer.cancel(false);
 		}
+		if (trace != null)
+			rpc.getDHT().getLookupTracer().finished(trace);
+		if (FlightRecorderEvents.ENABLED)
+			FlightRecorderEvents.taskFinished(this, taskID, targetKey, System.currentTimeMillis() - startTime, sentReqs.get(), recvResponses, failedReqs);
 		if (listeners != null) {
 			for (TaskListener tl : listeners) {
 				tl.finished(this);
@@ -417,6 +524,6 @@ public abstract class Task implements RPCCallListener, Comparable<Task> {
 	
 	@Override
 	public String toString() {
-		return this.getClass().getSimpleName() + " target:"+targetKey+" todo:"+todo.size()+" sent:"+sentReqs+" recv:"+recvResponses+" srv:"+rpc.getDerivedID()+ " name: "+info+"\n";
+		return this.getClass().getSimpleName() + " target:"+targetKey+" todo:"+todo+" sent:"+sentReqs+" recv:"+recvResponses+" srv:"+rpc.getDerivedID()+ " name: "+info+"\n";
 	}
 }
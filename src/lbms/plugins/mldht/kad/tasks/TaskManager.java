@@ -33,6 +33,8 @@ import lbms.plugins.mldht.kad.RPCServer;
  */
 public class TaskManager {
 
+	private static final long	TASK_DURATION_LIMIT = 10 * 60 * 1000;
+
 	private ConcurrentHashMap<Key, Deque<Task>> queued;
 	private ConcurrentSkipListSet<Task>	tasks;
 	private DHT					dht;
@@ -41,6 +43,8 @@ public class TaskManager {
 		public void finished(Task t) {
 			tasks.remove(t);				
 			dht.getStats().taskFinished(t);
+			if (t.getStartTime() > 0)
+				dht.getMetrics().histogram("mldht_task_duration_seconds", "Time from start to finish of tasks", TASK_DURATION_LIMIT, 0.001, "task", t.getClass().getSimpleName()).record(System.currentTimeMillis() - t.getStartTime());
 			dequeue(t.getRPC().getDerivedID());
 		}
 	};
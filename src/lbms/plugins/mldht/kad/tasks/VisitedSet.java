@@ -0,0 +1,120 @@
+/*
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad.tasks;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import lbms.plugins.mldht.kad.KBucketEntry;
+
+/**
+ * Tracks which nodes a task has already contacted, matching either on IP or on node ID.
+ *
+ * Instead of boxed addresses and keys it only stores 64bit fingerprints in open-addressing tables:
+ * the full address for IPv4, a folded address for IPv6 and the leading 64 bits of the node ID.
+ * Collisions are possible in theory but irrelevant in practice since they would only cause a single node to be skipped.
+ */
+public class VisitedSet {
+
+	private final LongSet addresses = new LongSet();
+	private final LongSet ids = new LongSet();
+
+	public synchronized void add(KBucketEntry e) {
+		addresses.add(addressBits(e.getAddress().getAddress()));
+		ids.add(e.getID().leadingBits());
+	}
+
+	public synchronized boolean contains(KBucketEntry e) {
+		return addresses.contains(addressBits(e.getAddress().getAddress())) || ids.contains(e.getID().leadingBits());
+	}
+
+	public synchronized int size() {
+		return ids.size;
+	}
+
+	static long addressBits(InetAddress addr) {
+		if (addr instanceof Inet4Address)
+			return addr.hashCode() & 0xFFFFFFFFL;
+		ByteBuffer buf = ByteBuffer.wrap(addr.getAddress());
+		long hi = buf.getLong();
+		long lo = buf.getLong();
+		// keep the (usually distinct) network prefix intact and mix in the interface ID
+		return hi ^ (lo * 0x9E3779B97F4A7C15L) ^ (1L << 63);
+	}
+
+	/**
+	 * linear probing, zero is used as empty marker and tracked separately
+	 */
+	static final class LongSet {
+		long[] table = new long[16];
+		int size;
+		boolean containsZero;
+
+		private static int slot(long v, int mask) {
+			long h = v * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ h >>> 32) & mask;
+		}
+
+		boolean contains(long v) {
+			if (v == 0)
+				return containsZero;
+			int mask = table.length - 1;
+			for (int i = slot(v, mask);; i = (i + 1) & mask) {
+				long current = table[i];
+				if (current == v)
+					return true;
+				if (current == 0)
+					return false;
+			}
+		}
+
+		void add(long v) {
+			if (v == 0) {
+				if (!containsZero)
+					size++;
+				containsZero = true;
+				return;
+			}
+			if ((size + 1) * 2 > table.length)
+				grow();
+			if (insert(table, v))
+				size++;
+		}
+
+		private static boolean insert(long[] table, long v) {
+			int mask = table.length - 1;
+			for (int i = slot(v, mask);; i = (i + 1) & mask) {
+				long current = table[i];
+				if (current == v)
+					return false;
+				if (current == 0) {
+					table[i] = v;
+					return true;
+				}
+			}
+		}
+
+		private void grow() {
+			long[] newTable = new long[table.length * 2];
+			for (long v : table)
+				if (v != 0)
+					insert(newTable, v);
+			table = newTable;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad.utils;
+
+/**
+ * Plain bloom filter over 64bit fingerprints. The probe positions are derived from a single fingerprint by double hashing,
+ * so callers only have to supply reasonably unique values, they do not need to be well distributed.
+ *
+ * Not thread-safe.
+ */
+public final class BloomFilter {
+
+	private final long[]	bits;
+	private final int		numBits;
+	private final int		numHashes;
+	private int				inserted;
+
+	/**
+	 * @param expectedInsertions number of elements at which the false positive rate should be reached
+	 * @param falsePositiveRate target rate, e.g. 0.01
+	 */
+	public BloomFilter(int expectedInsertions, double falsePositiveRate) {
+		if (expectedInsertions < 1 || !(falsePositiveRate > 0 && falsePositiveRate < 1))
+			throw new IllegalArgumentException("invalid bloom filter parameters");
+		double ln2 = Math.log(2);
+		long m = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (ln2 * ln2));
+		// round up to whole words, cap at what an int index can address
+		m = Math.min((m + 63) & ~63L, Integer.MAX_VALUE & ~63L);
+		numBits = (int) m;
+		numHashes = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * ln2));
+		bits = new long[numBits >>> 6];
+	}
+
+	private static long mix(long x) {
+		// murmur3 finalizer
+		x ^= x >>> 33;
+		x *= 0xff51afd7ed558ccdL;
+		x ^= x >>> 33;
+		x *= 0xc4ceb9fe1a85ec53L;
+		x ^= x >>> 33;
+		return x;
+	}
+
+	/**
+	 * @return true if the element was not present before, i.e. at least one bit had to be set
+	 */
+	public boolean add(long fingerprint) {
+		long h = mix(fingerprint);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32);
+		boolean changed = false;
+		for (int i = 0; i < numHashes; i++) {
+			int idx = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+			long mask = 1L << idx;
+			long old = bits[idx >>> 6];
+			if ((old & mask) == 0) {
+				bits[idx >>> 6] = old | mask;
+				changed = true;
+			}
+		}
+		if (changed)
+			inserted++;
+		return changed;
+	}
+
+	public boolean mightContain(long fingerprint) {
+		long h = mix(fingerprint);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32);
+		for (int i = 0; i < numHashes; i++) {
+			int idx = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+			if ((bits[idx >>> 6] & 1L << idx) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of distinct elements added, may undercount slightly due to false positives
+	 */
+	public int getInsertions() {
+		return inserted;
+	}
+
+	/**
+	 * @return memory footprint of the bit array
+	 */
+	public int getSizeInBytes() {
+		return bits.length * 8;
+	}
+
+	@Override
+	public String toString() {
+		return "bloom: " + inserted + " entries in " + (bits.length * 8) + " bytes, k=" + numHashes;
+	}
+}
@@ -1,17 +1,26 @@
 package lbms.plugins.mldht.kad.utils;
 
 import java.io.PrintStream;
-import java.math.BigInteger;
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import lbms.plugins.mldht.kad.DHT;
 import lbms.plugins.mldht.kad.Key;
 import lbms.plugins.mldht.kad.Prefix;
 import lbms.plugins.mldht.kad.DHT.LogLevel;
-import lbms.plugins.mldht.kad.Key.DistanceOrder;
 
 /**
+ * Estimates the number of nodes in the DHT from the distances between the members of lookup closest sets.
+ *
+ * Each DHT has its own instance. Samples are written into a lock-free ring, the current estimate is the
+ * exponential average of the ring median in log2 space. Concurrent updates never block each other, a sample
+ * that is overwritten before an update gets to see it is simply lost.
+ *
  * @author The_8472, Damokles
  *
  */
@@ -19,155 +28,224 @@ public class PopulationEstimator {
 
 	static final int					KEYSPACE_BITS					= Key.KEY_BITS;
 	static final double					KEYSPACE_SIZE					= Math.pow(2, KEYSPACE_BITS);
-	
-	
+
+
 	static final double					DISTANCE_WEIGHT_INITIAL			= 0.3;
 	static final double					DISTANCE_WEIGHT					= 0.003;
-	private int							updateCount						= 0;
+	private final AtomicInteger			updateCount						= new AtomicInteger();
 	static final int					INITIAL_UPDATE_COUNT			= 25;
-	
-	
+
+
 	static final int					MAX_RAW_HISTORY					= 40;
-	LinkedList<Double> 					rawDistances					= new LinkedList<Double>();
+	// raw bits of the distance samples, NaN marks empty slots
+	private final AtomicLongArray		rawDistances					= new AtomicLongArray(MAX_RAW_HISTORY);
+	private final AtomicLong			rawDistanceWrites				= new AtomicLong();
+	private static final ThreadLocal<double[]> scratch					= ThreadLocal.withInitial(() -> new double[MAX_RAW_HISTORY]);
+	// two-sided 95% quantile of the standard normal distribution
+	private static final double			Z_95							= 1.96;
+
 
-	
-	private double						averageNodeDistanceExp2			= KEYSPACE_BITS;
-	private List<PopulationListener>	listeners						= new ArrayList<PopulationListener>(1);
+	// raw bits of a double
+	private final AtomicLong			averageNodeDistanceExp2			= new AtomicLong(Double.doubleToRawLongBits(KEYSPACE_BITS));
+	private volatile double				intervalLowExp2					= KEYSPACE_BITS;
+	private volatile double				intervalHighExp2				= KEYSPACE_BITS;
+	private final List<PopulationListener>	listeners					= new CopyOnWriteArrayList<PopulationListener>();
 	private static final int			MAX_RECENT_LOOKUP_CACHE_SIZE	= 40;
-	private Deque<Prefix>				recentlySeenPrefixes			= new LinkedList<Prefix>();
+	private final AtomicReferenceArray<Prefix>	recentlySeenPrefixes	= new AtomicReferenceArray<Prefix>(MAX_RECENT_LOOKUP_CACHE_SIZE);
+	private final AtomicInteger			recentPrefixWrites				= new AtomicInteger();
+
+	public PopulationEstimator() {
+		long empty = Double.doubleToRawLongBits(Double.NaN);
+		for (int i = 0; i < MAX_RAW_HISTORY; i++)
+			rawDistances.set(i, empty);
+	}
 
 	public long getEstimate () {
-		return (long) (Math.pow(2, KEYSPACE_BITS - averageNodeDistanceExp2));
+		return estimate(getRawDistanceEstimate());
 
 	}
 
-	
+
 	public double getRawDistanceEstimate() {
-		return averageNodeDistanceExp2;
+		return Double.longBitsToDouble(averageNodeDistanceExp2.get());
+	}
+
+	/**
+	 * @return lower end of the 95% confidence interval of the population, derived from the median of the current sample window.
+	 * The smoothed {@link #getEstimate() estimate} averages over many windows and is usually much more precise than this suggests.
+	 */
+	public long getEstimateLowerBound() {
+		// larger distances mean fewer nodes
+		return estimate(intervalHighExp2);
+	}
+
+	/**
+	 * @see #getEstimateLowerBound()
+	 */
+	public long getEstimateUpperBound() {
+		return estimate(intervalLowExp2);
 	}
 
 	public void setInitialRawDistanceEstimate(double initialValue) {
-		averageNodeDistanceExp2 = initialValue;
-		if (averageNodeDistanceExp2 > KEYSPACE_BITS)
-			averageNodeDistanceExp2 = KEYSPACE_BITS;
-	}
-	
-	private double distanceToDouble(Key a, Key b) {
-		byte[] rawDistance = a.distance(b).getHash();
-		double distance = 0;
-		
-		int nonZeroBytes = 0;
-		for (int j = 0; j < Key.SHA1_HASH_LENGTH; j++) {
-			if (rawDistance[j] == 0) {
-				continue;
+		averageNodeDistanceExp2.set(Double.doubleToRawLongBits(Math.min(initialValue, KEYSPACE_BITS)));
+	}
+
+	private static double distanceToDouble(Key a, Key b) {
+		// the leading 64 bits retain more precision than a double can hold
+		long bits = a.leadingDistanceBits(b);
+		double unsigned = (bits >>> 1) * 2.0 + (bits & 1);
+		return Math.scalb(unsigned, KEYSPACE_BITS - 64);
+	}
+
+	static double toLog2(double value) {
+		return Math.log(value)/Math.log(2);
+	}
+
+	static long estimate(double avg) {
+		return (long) (Math.pow(2, KEYSPACE_BITS - avg ));
+	}
+
+	/**
+	 * in-place quickselect, leaves the k-th smallest element at index k
+	 */
+	private static double select(double[] values, int n, int k) {
+		int left = 0;
+		int right = n - 1;
+		while (left < right) {
+			double pivot = values[(left + right) >>> 1];
+			int i = left;
+			int j = right;
+			while (i <= j) {
+				while (values[i] < pivot)
+					i++;
+				while (values[j] > pivot)
+					j--;
+				if (i <= j) {
+					double tmp = values[i];
+					values[i] = values[j];
+					values[j] = tmp;
+					i++;
+					j--;
+				}
 			}
-			if (nonZeroBytes == 8) {
+			if (k <= j)
+				right = j;
+			else if (k >= i)
+				left = i;
+			else
 				break;
-			}
-			nonZeroBytes++;
-			distance += (rawDistance[j] & 0xFF)
-					* Math.pow(2, KEYSPACE_BITS - (j + 1) * 8);
 		}
-		
-		return distance;
+		return values[k];
 	}
 
-	double toLog2(double value) {
-		return Math.log(value)/Math.log(2);
+	/**
+	 * weighted 2-element order statistic for fractional ranks
+	 */
+	private static double quantile(double[] values, int n, double rank) {
+		rank = Math.max(0, Math.min(n - 1, rank));
+		int idx1 = (int) Math.floor(rank);
+		int idx2 = (int) Math.ceil(rank);
+		double weight = rank - idx1;
+		double v1 = select(values, n, idx1);
+		double v2 = idx2 == idx1 ? v1 : select(values, n, idx2);
+		return v1 * (1.0 - weight) + v2 * weight;
 	}
-	
-	long estimate(double avg) {
-		return (long) (Math.pow(2, KEYSPACE_BITS - avg ));
+
+	/**
+	 * @return number of valid samples copied into the buffer
+	 */
+	private int snapshot(double[] buffer) {
+		int n = 0;
+		for (int i = 0; i < MAX_RAW_HISTORY; i++) {
+			double d = Double.longBitsToDouble(rawDistances.get(i));
+			if (!Double.isNaN(d))
+				buffer[n++] = d;
+		}
+		return n;
+	}
+
+	/**
+	 * @return true if the prefix is new or narrower than a known one
+	 */
+	private boolean registerPrefix(Prefix prefix) {
+		for (int i = 0; i < MAX_RECENT_LOOKUP_CACHE_SIZE; i++) {
+			Prefix oldPrefix = recentlySeenPrefixes.get(i);
+			if (oldPrefix == null)
+				continue;
+			if (oldPrefix.isPrefixOf(prefix)) {
+				/*
+				 * displace old entry, narrower entries will also replace
+				 * wider ones, to clean out accidents like prefixes covering
+				 * huge fractions of the keyspace
+				 */
+				recentlySeenPrefixes.compareAndSet(i, oldPrefix, prefix);
+				return false;
+			}
+			// new prefix is wider than the old one, return but do not displace
+			if (prefix.isPrefixOf(oldPrefix))
+				return false;
+		}
+
+		// no match found => add, overwriting the oldest entry
+		recentlySeenPrefixes.set(Math.floorMod(recentPrefixWrites.getAndIncrement(), MAX_RECENT_LOOKUP_CACHE_SIZE), prefix);
+		return true;
 	}
-	
-	
-	private double median() {
-		double values[] = new double[rawDistances.size()];
-		int i=0;
-		for (Double d : rawDistances)
-			values[i++] = d;
-		Arrays.sort(values);
-		// use a weighted 2-element median for max. accuracy 
-		double middle = (values.length - 1.0) / 2.0 ;
-		int idx1 = (int) Math.floor(middle);
-		int idx2 = (int) Math.ceil(middle);
-		double middleWeight = middle - idx1;
-		return values[idx1] * (1.0 - middleWeight) + values[idx2] * middleWeight;
-	}
-	
-	private double mean(double[] values) {
-		double result = 0.0;
-		for (int i=0;i<values.length;i++)
-			result += values[i];
-		return result / values.length;
-	}
-	
+
 	public void update (Set<Key> neighbors, Key target) {
 		// need at least 2 elements to calculate distances
 		if (neighbors.size() < 2)
 			return;
-		
-		DHT.log("Estimator: new node group of "+neighbors.size(), LogLevel.Debug);
-		Prefix prefix = Prefix.getCommonPrefix(neighbors);
-		
-		synchronized (recentlySeenPrefixes) {
-			for (Prefix oldPrefix : recentlySeenPrefixes) {
-				if (oldPrefix.isPrefixOf(prefix)) {
-					/*
-					 * displace old entry, narrower entries will also replace
-					 * wider ones, to clean out accidents like prefixes covering
-					 * huge fractions of the keyspace
-					 */
-					recentlySeenPrefixes.remove(oldPrefix);
-					recentlySeenPrefixes.addLast(prefix);
-					return;
-				}
-				// new prefix is wider than the old one, return but do not displace
-				if (prefix.isPrefixOf(oldPrefix))
-					return;
-			}
 
-			// no match found => add
-			recentlySeenPrefixes.addLast(prefix);
-			if (recentlySeenPrefixes.size() > MAX_RECENT_LOOKUP_CACHE_SIZE)
-				recentlySeenPrefixes.removeFirst();
-		}
-		
-		
-		ArrayList<Key> found = new ArrayList<Key>(neighbors);
-		Collections.sort(found,new Key.DistanceOrder(target));
+		if (DHT.isLogLevelEnabled(LogLevel.Debug))
+			DHT.log("Estimator: new node group of "+neighbors.size(), LogLevel.Debug);
 
-		synchronized (PopulationEstimator.class) {
+		if (!registerPrefix(Prefix.getCommonPrefix(neighbors)))
+			return;
 
-			for (int i=1;i<found.size();i++) {
-				rawDistances.add(distanceToDouble(target, found.get(i)) - distanceToDouble(target, found.get(i-1)));
-			}
+		Key[] found = neighbors.toArray(new Key[neighbors.size()]);
+		Arrays.sort(found,new Key.DistanceOrder(target));
 
-			// distances are exponentially distributed. since we're taking the median we need to compensate here
-			double median = median()/Math.log(2);
+		double previous = distanceToDouble(target, found[0]);
+		for (int i=1;i<found.length;i++) {
+			double current = distanceToDouble(target, found[i]);
+			int slot = (int) Math.floorMod(rawDistanceWrites.getAndIncrement(), (long) MAX_RAW_HISTORY);
+			rawDistances.lazySet(slot, Double.doubleToRawLongBits(current - previous));
+			previous = current;
+		}
 
-			// work in log2 space for better averaging
-			median = toLog2(median);
+		double[] values = scratch.get();
+		int n = snapshot(values);
 
-			DHT.log("Estimator: distance value: " + median + " avg:" + averageNodeDistanceExp2, LogLevel.Debug);
+		// distances are exponentially distributed. since we're taking the median we need to compensate here
+		// work in log2 space for better averaging
+		double median = toLog2(quantile(values, n, (n - 1) / 2.0) / Math.log(2));
 
+		// distribution-free interval for the median from the binomial distribution of the ranks
+		double halfWidth = Z_95 * Math.sqrt(n) / 2.0;
+		intervalLowExp2 = toLog2(quantile(values, n, (n - 1) / 2.0 - halfWidth) / Math.log(2));
+		intervalHighExp2 = toLog2(quantile(values, n, (n - 1) / 2.0 + halfWidth) / Math.log(2));
 
-			double weight = updateCount++ < INITIAL_UPDATE_COUNT ? DISTANCE_WEIGHT_INITIAL : DISTANCE_WEIGHT;
+		double weight = updateCount.getAndIncrement() < INITIAL_UPDATE_COUNT ? DISTANCE_WEIGHT_INITIAL : DISTANCE_WEIGHT;
 
-			// exponential average of the mean value
-			averageNodeDistanceExp2 = median * weight  + averageNodeDistanceExp2 * (1. - weight);
-			
-			
-			while (rawDistances.size() > MAX_RAW_HISTORY)
-				rawDistances.remove();
+		// exponential average of the median value
+		double average;
+		while (true) {
+			long currentBits = averageNodeDistanceExp2.get();
+			average = median * weight + Double.longBitsToDouble(currentBits) * (1. - weight);
+			if (averageNodeDistanceExp2.compareAndSet(currentBits, Double.doubleToRawLongBits(average)))
+				break;
 		}
-		DHT.log("Estimator: new estimate:"+getEstimate(), LogLevel.Info);
-		
+
+		if (DHT.isLogLevelEnabled(LogLevel.Debug))
+			DHT.log("Estimator: distance value: " + median + " avg:" + average, LogLevel.Debug);
+		if (DHT.isLogLevelEnabled(LogLevel.Info))
+			DHT.log("Estimator: new estimate:"+getEstimate(), LogLevel.Info);
+
 		fireUpdateEvent();
 
 	}
 
-	
+
 
 	public void addListener (PopulationListener l) {
 		listeners.add(l);
@@ -179,13 +257,16 @@ public class PopulationEstimator {
 
 	private void fireUpdateEvent () {
 		long estimated = getEstimate();
-		for (int i = 0; i < listeners.size(); i++) {
-			listeners.get(i).populationUpdated(estimated);
-		}
+		for (PopulationListener l : listeners)
+			l.populationUpdated(estimated);
 	}
-	
 
-	
+	@Override
+	public String toString() {
+		return "population estimate: " + getEstimate() + " (95% window interval " + getEstimateLowerBound() + " - " + getEstimateUpperBound() + ") log2 distance:" + getRawDistanceEstimate();
+	}
+
+
 	public static void main(String[] args) throws Exception {
 		PrintStream out;
 		NumberFormat formatter = NumberFormat.getNumberInstance(Locale.GERMANY);
@@ -193,40 +274,41 @@ public class PopulationEstimator {
 		int keyspaceSize = 1000000;
 
 		out = new PrintStream("dump.txt");
-		
+
 		Random rand = new Random();
-		
+
 		formatter.setMaximumFractionDigits(30);
-		
+
 		PopulationEstimator estimator = new PopulationEstimator();
-		
-		
-		
-		System.out.println(160-Math.log(keyspaceSize)/Math.log(2)); 
-		
+
+
+
+		System.out.println(160-Math.log(keyspaceSize)/Math.log(2));
+
 		Key[] keyspace = new Key[keyspaceSize];
 		for (int i = 0;i< keyspaceSize;i++)
 			keyspace[i] = Key.createRandomKey();
 		Arrays.sort(keyspace);
-		
+
 		Key[] targetSet = keyspace.clone();
-		
+
 		for (int i=0;i<1000;i++) {
 				Key target = Key.createRandomKey();
-				
+
 				Arrays.sort(targetSet, new Key.DistanceOrder(target));
-				
+
 
 				int sizeGoal = 8;
-				
+
 				TreeSet<Key> closestSet = new TreeSet<Key>();
 
 				for (int j=0;j<sizeGoal;j++)
 					closestSet.add(targetSet[j]);
-				
+
 				//estimator.update(closestSet);
 				estimator.update(closestSet,target);
 		}
-		
+
+		System.out.println(estimator);
 	}
 }
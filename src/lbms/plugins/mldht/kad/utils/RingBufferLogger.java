@@ -0,0 +1,284 @@
+package lbms.plugins.mldht.kad.utils;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import lbms.plugins.mldht.kad.DHTLogger;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+
+/**
+ * Asynchronous {@link DHTLogger} backed by a ring of preallocated records.
+ *
+ * Callers only claim a slot and store references: the level, subsystem, a <code>{}</code>-style template and up to three arguments.
+ * Formatting, <code>toString()</code> of the arguments and I/O happen on a single writer thread, so arguments must not be modified after
+ * they were logged. When the ring is full the message is dropped and counted instead of blocking the caller, the writer reports
+ * the number of lost messages once it catches up.
+ *
+ * Subsystems can be given their own threshold with {@link #setLevel(String, LogLevel)}, see {@link lbms.plugins.mldht.kad.DHT#isLogLevelEnabled(LogLevel, String)}.
+ */
+public class RingBufferLogger implements DHTLogger {
+
+	public static final int		DEFAULT_CAPACITY	= 8192;
+	private static final long	MAX_PARK_NANOS		= 1000000;
+
+	static final class Record {
+		long		timestamp;
+		LogLevel	level;
+		String		subsystem;
+		String		template;
+		Object		arg0;
+		Object		arg1;
+		Object		arg2;
+		int			argCount;
+		Throwable	throwable;
+
+		void clear() {
+			level = null;
+			subsystem = null;
+			template = null;
+			arg0 = arg1 = arg2 = null;
+			throwable = null;
+		}
+	}
+
+	private final Record[]					ring;
+	// sequence number of the record currently published in each slot
+	private final AtomicLongArray			published;
+	private final int						mask;
+	private final AtomicLong				head			= new AtomicLong();
+	// only advanced by the writer thread
+	private volatile long					tail;
+
+	private final LongAdder					dropped			= new LongAdder();
+	private long							reportedDrops;
+
+	private final Map<String, LogLevel>		levels			= new ConcurrentHashMap<String, LogLevel>();
+	private volatile boolean				hasLevels;
+
+	private final Writer					out;
+	private final PrintWriter				exceptionOut;
+	private final StringBuilder				line			= new StringBuilder(256);
+	private long							cachedSecond	= -1;
+	private String							cachedSecondText;
+
+	private final Thread					writer;
+	private volatile boolean				running			= true;
+
+	/**
+	 * @param capacity number of records, rounded up to a power of two
+	 * @param exceptionOut receives stack traces, may be the same as out
+	 */
+	public RingBufferLogger(int capacity, Writer out, PrintWriter exceptionOut) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		ring = new Record[size];
+		published = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			ring[i] = new Record();
+			// nothing published yet, slot i first receives sequence i
+			published.set(i, i - size);
+		}
+		mask = size - 1;
+		this.out = out;
+		this.exceptionOut = exceptionOut;
+		writer = new Thread(this::drain, "mlDHT LogWriter");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * @param level null removes the subsystem specific threshold
+	 */
+	public void setLevel(String subsystem, LogLevel level) {
+		if (level == null)
+			levels.remove(subsystem);
+		else
+			levels.put(subsystem, level);
+		hasLevels = !levels.isEmpty();
+	}
+
+	@Override
+	public LogLevel getLevel(String subsystem) {
+		if (!hasLevels || subsystem == null)
+			return null;
+		return levels.get(subsystem);
+	}
+
+	/**
+	 * @return messages lost because the ring was full
+	 */
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	private void enqueue(LogLevel level, String subsystem, String template, int argCount, Object a0, Object a1, Object a2, Throwable t) {
+		long seq;
+		while (true) {
+			seq = head.get();
+			if (seq - tail >= ring.length) {
+				dropped.increment();
+				return;
+			}
+			if (head.compareAndSet(seq, seq + 1))
+				break;
+		}
+		Record r = ring[(int) seq & mask];
+		r.timestamp = System.currentTimeMillis();
+		r.level = level;
+		r.subsystem = subsystem;
+		r.template = template;
+		r.argCount = argCount;
+		r.arg0 = a0;
+		r.arg1 = a1;
+		r.arg2 = a2;
+		r.throwable = t;
+		published.set((int) seq & mask, seq);
+	}
+
+	@Override
+	public void log(String message, LogLevel l) {
+		enqueue(l, null, message, 0, null, null, null, null);
+	}
+
+	@Override
+	public void log(Throwable t, LogLevel l) {
+		enqueue(l, null, null, 0, null, null, null, t);
+	}
+
+	@Override
+	public void log(LogLevel level, String subsystem, String template, Object arg0) {
+		enqueue(level, subsystem, template, 1, arg0, null, null, null);
+	}
+
+	@Override
+	public void log(LogLevel level, String subsystem, String template, Object arg0, Object arg1) {
+		enqueue(level, subsystem, template, 2, arg0, arg1, null, null);
+	}
+
+	@Override
+	public void log(LogLevel level, String subsystem, String template, Object arg0, Object arg1, Object arg2) {
+		enqueue(level, subsystem, template, 3, arg0, arg1, arg2, null);
+	}
+
+	private void drain() {
+		long parkNanos = 1000;
+		while (true) {
+			long seq = tail;
+			int slot = (int) seq & mask;
+			if (published.get(slot) != seq) {
+				if (!running)
+					break;
+				flushOutput();
+				LockSupport.parkNanos(parkNanos);
+				parkNanos = Math.min(MAX_PARK_NANOS, parkNanos * 2);
+				continue;
+			}
+			parkNanos = 1000;
+			Record r = ring[slot];
+			try {
+				write(r);
+			} catch (Exception e) {
+				// nowhere left to log to
+				e.printStackTrace();
+			}
+			r.clear();
+			tail = seq + 1;
+		}
+		flushOutput();
+	}
+
+	private void flushOutput() {
+		try {
+			long drops = dropped.sum();
+			if (drops != reportedDrops) {
+				line.setLength(0);
+				appendPrefix(System.currentTimeMillis(), LogLevel.Error, "log");
+				line.append(drops - reportedDrops).append(" log messages dropped, writer could not keep up\n");
+				out.append(line);
+				reportedDrops = drops;
+			}
+			out.flush();
+			exceptionOut.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void appendPrefix(long timestamp, LogLevel level, String subsystem) {
+		long second = timestamp / 1000;
+		if (second != cachedSecond) {
+			String full = Instant.ofEpochSecond(second).toString();
+			// strip the trailing Z, millis are appended below
+			cachedSecondText = full.substring(0, full.length() - 1);
+			cachedSecond = second;
+		}
+		int millis = (int) (timestamp % 1000);
+		line.append('[').append(cachedSecondText).append('.');
+		if (millis < 100)
+			line.append('0');
+		if (millis < 10)
+			line.append('0');
+		line.append(millis).append("Z][").append(level).append("] ");
+		if (subsystem != null)
+			line.append('[').append(subsystem).append("] ");
+	}
+
+	private void write(Record r) throws IOException {
+		line.setLength(0);
+		appendPrefix(r.timestamp, r.level, r.subsystem);
+		if (r.throwable != null) {
+			exceptionOut.append(line);
+			r.throwable.printStackTrace(exceptionOut);
+			return;
+		}
+		format(line, r);
+		line.append('\n');
+		out.append(line);
+	}
+
+	static void format(StringBuilder b, Record r) {
+		String t = r.template;
+		if (t == null) {
+			b.append("null");
+			return;
+		}
+		int arg = 0;
+		int start = 0;
+		while (true) {
+			int idx = arg < r.argCount ? t.indexOf("{}", start) : -1;
+			if (idx < 0) {
+				b.append(t, start, t.length());
+				return;
+			}
+			b.append(t, start, idx);
+			Object a = arg == 0 ? r.arg0 : arg == 1 ? r.arg1 : r.arg2;
+			try {
+				b.append(a);
+			} catch (RuntimeException e) {
+				b.append("[toString failed: ").append(e).append(']');
+			}
+			arg++;
+			start = idx + 2;
+		}
+	}
+
+	/**
+	 * writes out everything that was logged so far and stops the writer thread
+	 */
+	public void close() {
+		running = false;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package lbms.plugins.mldht.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Ring of equally sized buffers for data that is handed from one thread to another, e.g. encoded datagrams waiting for the socket.
+ *
+ * At most maxPooled buffers are kept, when the ring is empty a new buffer is allocated. Buffers must not be used after they have been released.
+ */
+public class ByteBufferPool {
+
+	private final int							bufferSize;
+	private final boolean						direct;
+	private final ArrayBlockingQueue<ByteBuffer>	free;
+
+	/**
+	 * @param direct direct buffers save the JDK a copy into a temporary direct buffer on every channel write
+	 */
+	public ByteBufferPool(int bufferSize, int maxPooled, boolean direct) {
+		this.bufferSize = bufferSize;
+		this.direct = direct;
+		free = new ArrayBlockingQueue<ByteBuffer>(maxPooled);
+	}
+
+	/**
+	 * @return a cleared buffer
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buf = free.poll();
+		if (buf == null)
+			return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+		buf.clear();
+		return buf;
+	}
+
+	public void release(ByteBuffer buf) {
+		if (buf.capacity() == bufferSize && buf.isDirect() == direct)
+			free.offer(buf);
+	}
+
+	public int getPooledCount() {
+		return free.size();
+	}
+}
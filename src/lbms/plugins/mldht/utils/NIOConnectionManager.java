@@ -19,148 +19,285 @@ package lbms.plugins.mldht.utils;
 import java.io.IOException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import lbms.plugins.mldht.kad.DHT;
 import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.utils.metrics.Histogram;
+import lbms.plugins.mldht.utils.metrics.MetricsRegistry;
 
+/**
+ * Runs {@link Selectable}s on a fixed set of selector threads. Each connection is assigned to the selector with the fewest connections
+ * when it is registered and stays there.
+ * 
+ * Selector threads are started on the first registration and exit when their selector has been idle for a second.
+ * Interest op changes from other threads are queued to the owning selector instead of touching its keys concurrently.
+ * State checks run once per {@link #STATE_CHECK_INTERVAL} for each connection, the selector sleeps until the earliest one is due.
+ */
 public class NIOConnectionManager {
 	
-	ConcurrentLinkedQueue<Selectable> registrations = new ConcurrentLinkedQueue<>();
-	ConcurrentLinkedQueue<Selectable> updateInterestOps = new ConcurrentLinkedQueue<>();
-	List<Selectable> connections = new ArrayList<Selectable>();
-	//Thread workerThread;
-	AtomicReference<Thread> workerThread = new AtomicReference<Thread>();
+	public static final int		DEFAULT_SELECTORS		= Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	// idle timeouts of the connections are in the tens of seconds, closed sockets are not urgent either
+	public static final long	STATE_CHECK_INTERVAL	= 1000;
+	private static final long	IDLE_SELECT_TIMEOUT		= 100;
 	
-	String name;
-	Selector selector;
-	volatile boolean wakeupCalled;
+	private static final ThreadLocal<SelectorLoop> currentLoop = new ThreadLocal<>();
 	
-	public NIOConnectionManager(String name) {
-		this.name = name;
-		try {
-			selector = Selector.open();
-		} catch (IOException e) {
-			e.printStackTrace();
+	private static final class StateCheck implements Comparable<StateCheck> {
+		final Selectable	connection;
+		long				deadline;
+		
+		StateCheck(Selectable connection, long deadline) {
+			this.connection = connection;
+			this.deadline = deadline;
+		}
+		
+		@Override
+		public int compareTo(StateCheck o) {
+			return Long.compare(deadline, o.deadline);
 		}
 	}
 	
-	Runnable run = () -> {
+	private class SelectorLoop implements Runnable {
+		final String								threadName;
+		Selector									selector;
+		final ConcurrentLinkedQueue<Selectable>		registrations	= new ConcurrentLinkedQueue<>();
+		// interest op changes and anything else that must happen on the selector thread
+		final ConcurrentLinkedQueue<Runnable>		commands		= new ConcurrentLinkedQueue<>();
+		final Set<Selectable>						connections		= ConcurrentHashMap.newKeySet();
+		// registered or about to be, used for load balancing
+		final AtomicInteger							assigned		= new AtomicInteger();
+		final AtomicReference<Thread>				workerThread	= new AtomicReference<Thread>();
+		// only accessed on the worker thread
+		final PriorityQueue<StateCheck>				stateChecks		= new PriorityQueue<>();
+		final Histogram								loopTime;
+		volatile boolean							wakeupCalled;
+		// only written and read on the worker thread
+		long										wakeupTime;
 		
-		int iterations = 0;
+		SelectorLoop(int index, MetricsRegistry metrics) {
+			threadName = selectorCount > 1 ? name + " #" + index : name;
+			String label = Integer.toString(index);
+			if (metrics != null) {
+				loopTime = metrics.histogram("mldht_selector_loop_seconds", "Time a selector thread spends on events, registrations and state checks per wakeup", 10_000_000, 1e-6, "selector", label);
+				metrics.gauge("mldht_selector_connections", "Connections assigned to the selector thread", () -> assigned.get(), "selector", label);
+			} else {
+				loopTime = new Histogram(10_000_000, 1e-6);
+			}
+			try {
+				selector = Selector.open();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 		
-		HashSet<Selectable> toUpdate = new HashSet<>();
+		boolean isCurrentThread() {
+			return Thread.currentThread() == workerThread.get();
+		}
 		
-		while (true) {
-			try {
-				wakeupCalled = false;
-				selector.select(100);
-				wakeupCalled = false;
-				
-				// handle active connections
-				Set<SelectionKey> keys = selector.selectedKeys();
-				for (SelectionKey selKey : keys) {
-					Selectable connection = (Selectable) selKey.attachment();
-					connection.selectionEvent(selKey);
-				}
-				keys.clear();
-				
-				// check existing connections
-				long now = System.currentTimeMillis();
-				for (Selectable conn : new ArrayList<Selectable>(connections)) {
-					conn.doStateChecks(now);
-				}
+		void submit(Runnable command) {
+			commands.add(command);
+			if (!isCurrentThread() && !wakeupCalled) {
+				wakeupCalled = true;
+				selector.wakeup();
+			}
+		}
+		
+		@Override
+		public void run() {
+			currentLoop.set(this);
+			int iterations = 0;
+			
+			while (true) {
+				try {
+					StateCheck next = stateChecks.peek();
+					long timeout = next == null ? IDLE_SELECT_TIMEOUT : Math.max(1, next.deadline - System.currentTimeMillis());
 					
-				
-				// register new connections
-				Selectable toRegister = null;
-				while ((toRegister = registrations.poll()) != null) {
-					connections.add(toRegister);
-					toRegister.registrationEvent(NIOConnectionManager.this,toRegister.getChannel().register(selector, 0,toRegister));
+					wakeupCalled = false;
+					selector.select(timeout);
+					wakeupCalled = false;
+					wakeupTime = System.nanoTime();
+					
+					// handle active connections
+					Set<SelectionKey> keys = selector.selectedKeys();
+					for (SelectionKey selKey : keys) {
+						Selectable connection = (Selectable) selKey.attachment();
+						connection.selectionEvent(selKey);
+					}
+					keys.clear();
+					
+					// check connections whose deadline has passed
+					long now = System.currentTimeMillis();
+					while ((next = stateChecks.peek()) != null && next.deadline <= now) {
+						stateChecks.poll();
+						if (!connections.contains(next.connection))
+							continue;
+						try {
+							next.connection.doStateChecks(now);
+						} catch (Exception e) {
+							DHT.log(e, LogLevel.Error);
+						}
+						if (connections.contains(next.connection)) {
+							next.deadline = now + STATE_CHECK_INTERVAL;
+							stateChecks.add(next);
+						}
+					}
+					
+					// register new connections
+					Selectable toRegister = null;
+					while ((toRegister = registrations.poll()) != null) {
+						// deregistered before it got here
+						if (owners.get(toRegister) != this)
+							continue;
+						SelectionKey key = toRegister.getChannel().register(selector, 0, toRegister);
+						connections.add(toRegister);
+						stateChecks.add(new StateCheck(toRegister, now + STATE_CHECK_INTERVAL));
+						toRegister.registrationEvent(NIOConnectionManager.this, key);
+					}
+					
+					Runnable command;
+					while ((command = commands.poll()) != null)
+						command.run();
+					
+					loopTime.record((System.nanoTime() - wakeupTime) / 1000);
+				} catch (Exception e) {
+					DHT.log(e, LogLevel.Error);
 				}
 				
-				while (true) {
-					Selectable t = updateInterestOps.poll();
-					if (t == null)
-						break;
-					toUpdate.add(t);
-				}
+				iterations++;
 				
-				toUpdate.forEach(Selectable::updateSelection);
-				toUpdate.clear();
-					
-			} catch (Exception e) {
-				DHT.log(e, LogLevel.Error);
-			}
-			
-			iterations++;
-			
-			if (connections.size() == 0 && registrations.peek() == null) {
-				if (iterations > 10) {
-					workerThread.set(null);
-					ensureRunning();
-					break;
+				if (connections.isEmpty() && registrations.peek() == null && commands.peek() == null) {
+					if (iterations > 10) {
+						stateChecks.clear();
+						workerThread.set(null);
+						ensureRunning();
+						break;
+					}
+				} else {
+					iterations = 0;
 				}
-			} else {
-				iterations = 0;
 			}
-				
 		}
-	};
-	
-	private void ensureRunning() {
-		while (true) {
-			Thread current = workerThread.get();
-			if (current == null && registrations.peek() != null) {
-				current = new Thread(run);
-				current.setName(name);
-				current.setDaemon(true);
-				if (workerThread.compareAndSet(null, current)) {
-					current.start();
+		
+		void ensureRunning() {
+			while (true) {
+				Thread current = workerThread.get();
+				if (current == null && registrations.peek() != null) {
+					current = new Thread(this);
+					current.setName(threadName);
+					current.setDaemon(true);
+					if (workerThread.compareAndSet(null, current)) {
+						current.start();
+						break;
+					}
+				} else {
 					break;
 				}
-			} else {
-				break;
 			}
 		}
 	}
 	
+	final String									name;
+	private final int								selectorCount;
+	private final SelectorLoop[]					loops;
+	private final ConcurrentHashMap<Selectable, SelectorLoop>	owners	= new ConcurrentHashMap<>();
+	
+	public NIOConnectionManager(String name) {
+		this(name, 1, null);
+	}
+	
+	/**
+	 * @param metrics registry for the per-selector loop times and connection counts, may be null
+	 */
+	public NIOConnectionManager(String name, int selectors, MetricsRegistry metrics) {
+		if (selectors < 1)
+			throw new IllegalArgumentException("need at least one selector");
+		this.name = name;
+		this.selectorCount = selectors;
+		loops = new SelectorLoop[selectors];
+		for (int i = 0; i < selectors; i++)
+			loops[i] = new SelectorLoop(i, metrics);
+	}
+	
+	private SelectorLoop leastLoaded() {
+		SelectorLoop best = loops[0];
+		for (int i = 1; i < loops.length; i++)
+			if (loops[i].assigned.get() < best.assigned.get())
+				best = loops[i];
+		return best;
+	}
+	
+	/**
+	 * @return {@link System#nanoTime()} of the last return from the select call, only meaningful when called from within a {@link Selectable#selectionEvent(SelectionKey)}
+	 */
+	public long getWakeupTime() {
+		SelectorLoop loop = currentLoop.get();
+		return loop != null ? loop.wakeupTime : System.nanoTime();
+	}
+	
+	public int getSelectorCount() {
+		return selectorCount;
+	}
+	
+	/**
+	 * @return handling time per wakeup in microseconds of each selector
+	 */
+	public Histogram getLoopTime(int selector) {
+		return loops[selector].loopTime;
+	}
+	
 	public void deRegister(Selectable connection) {
-		connections.remove(connection);
+		SelectorLoop loop = owners.remove(connection);
+		if (loop == null)
+			return;
+		loop.assigned.decrementAndGet();
+		loop.connections.remove(connection);
 	}
 	
 	public void register(Selectable connection) {
-		registrations.add(connection);
-		ensureRunning();
-		selector.wakeup();
+		SelectorLoop loop = leastLoaded();
+		if (owners.putIfAbsent(connection, loop) != null)
+			return;
+		loop.assigned.incrementAndGet();
+		loop.registrations.add(connection);
+		loop.ensureRunning();
+		loop.selector.wakeup();
 	}
 	
+	/**
+	 * schedules {@link Selectable#updateSelection()} on the selector thread of the connection
+	 */
 	public void interestOpsChanged(Selectable sel) {
-		updateInterestOps.add(sel);
-		if (Thread.currentThread() != workerThread.get() && !wakeupCalled) {
-			wakeupCalled = true;
-			selector.wakeup();
-		}
+		SelectorLoop loop = owners.get(sel);
+		if (loop != null)
+			loop.submit(sel::updateSelection);
 	}
 	
-	public Selector getSelector() {
-		return selector;
-	}
-
 	/**
-	 * note: this method is not thread-safe
+	 * applied immediately on the selector thread of the connection, queued to it when called from any other thread
 	 */
 	public void setSelection(Selectable connection, int mask, boolean onOff) {
-		SelectionKey key = connection.getChannel().keyFor(selector);
+		SelectorLoop loop = owners.get(connection);
+		if (loop == null)
+			return;
+		if (loop.isCurrentThread())
+			applySelection(loop, connection, mask, onOff);
+		else
+			loop.submit(() -> applySelection(loop, connection, mask, onOff));
+	}
+	
+	private static void applySelection(SelectorLoop loop, Selectable connection, int mask, boolean onOff) {
+		SelectionKey key = connection.getChannel().keyFor(loop.selector);
+		if (key == null || !key.isValid())
+			return;
 		if (onOff)
 			key.interestOps(key.interestOps() | mask);
 		else
 			key.interestOps(key.interestOps() & ~mask);
-		//wakeup();
 	}
 }
@@ -0,0 +1,71 @@
+package lbms.plugins.mldht.utils;
+
+/**
+ * Token bucket. Permits accumulate at a fixed rate up to one second worth of burst.
+ *
+ * {@link #consume(int)} may push the balance below zero to account for costs that are only known after the fact,
+ * the debt has to be paid off before {@link #tryAcquire(int)} succeeds again.
+ *
+ * {@link #tryBorrow(int)} is meant for units of work that cost more than the burst size, it succeeds whenever the balance is positive.
+ */
+public class RateLimiter {
+
+	private volatile double permitsPerSecond;
+	private double available;
+	private long lastRefill = System.nanoTime();
+
+	public RateLimiter(double permitsPerSecond) {
+		setRate(permitsPerSecond);
+		available = permitsPerSecond;
+	}
+
+	public void setRate(double permitsPerSecond) {
+		if (!(permitsPerSecond > 0))
+			throw new IllegalArgumentException("rate must be positive");
+		this.permitsPerSecond = permitsPerSecond;
+	}
+
+	public double getRate() {
+		return permitsPerSecond;
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		double rate = permitsPerSecond;
+		available = Math.min(rate, available + (now - lastRefill) / 1e9 * rate);
+		lastRefill = now;
+	}
+
+	public synchronized boolean tryAcquire(int permits) {
+		refill();
+		if (available < permits)
+			return false;
+		available -= permits;
+		return true;
+	}
+
+	/**
+	 * takes permits if the balance is positive, even if that leaves it in debt
+	 */
+	public synchronized boolean tryBorrow(int permits) {
+		refill();
+		if (available <= 0)
+			return false;
+		available -= permits;
+		return true;
+	}
+
+	/**
+	 * unconditionally takes permits (or returns them if negative), possibly going into debt
+	 */
+	public synchronized void consume(int permits) {
+		refill();
+		available -= permits;
+	}
+
+	public synchronized double getAvailable() {
+		refill();
+		return available;
+	}
+
+}
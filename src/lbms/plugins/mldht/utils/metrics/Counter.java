@@ -0,0 +1,28 @@
+package lbms.plugins.mldht.utils.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic counter, cheap to increment from many threads at once.
+ */
+public class Counter {
+
+	private final LongAdder value = new LongAdder();
+
+	public void inc() {
+		value.increment();
+	}
+
+	public void add(long delta) {
+		value.add(delta);
+	}
+
+	public long get() {
+		return value.sum();
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(get());
+	}
+}
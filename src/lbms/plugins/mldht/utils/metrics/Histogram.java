@@ -0,0 +1,126 @@
+package lbms.plugins.mldht.utils.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-bucket histogram for non-negative integer values, e.g. milliseconds.
+ *
+ * Buckets follow the HDR layout: every power of two is split into {@value #SUB_BUCKETS} linear sub-buckets,
+ * which bounds the relative error of a reported value to 25% at constant memory and without any locking.
+ * Values above the configured maximum are counted in the last bucket.
+ */
+public class Histogram {
+
+	static final int			SUB_BUCKET_BITS	= 2;
+	static final int			SUB_BUCKETS		= 1 << SUB_BUCKET_BITS;
+
+	private final LongAdder[]	buckets;
+	private final LongAdder		count	= new LongAdder();
+	private final LongAdder		sum		= new LongAdder();
+	private final double		unitScale;
+
+	/**
+	 * @param maxValue largest value that is tracked with full precision
+	 * @param unitScale factor that converts recorded values to the exported base unit, e.g. 0.001 for milliseconds exported as seconds
+	 */
+	public Histogram(long maxValue, double unitScale) {
+		if (maxValue < 1)
+			throw new IllegalArgumentException("maximum value must be positive");
+		buckets = new LongAdder[bucketIndex(maxValue) + 1];
+		for (int i = 0; i < buckets.length; i++)
+			buckets[i] = new LongAdder();
+		this.unitScale = unitScale;
+	}
+
+	static int bucketIndex(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return largest value that falls into the bucket
+	 */
+	static long bucketUpperBound(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long sub = index % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		buckets[Math.min(bucketIndex(value), buckets.length - 1)].increment();
+		count.increment();
+		sum.add(value);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return sum of all recorded values, in recorded units
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	public double getUnitScale() {
+		return unitScale;
+	}
+
+	public int getBucketCount() {
+		return buckets.length;
+	}
+
+	public long getBucketUpperBound(int index) {
+		return bucketUpperBound(index);
+	}
+
+	/**
+	 * @return a copy of the per-bucket counts, non-cumulative. The counts are read one by one and may be slightly
+	 * inconsistent with each other and with {@link #getCount()} while values are being recorded
+	 */
+	public long[] getBucketCounts() {
+		long[] result = new long[buckets.length];
+		for (int i = 0; i < buckets.length; i++)
+			result[i] = buckets[i].sum();
+		return result;
+	}
+
+	/**
+	 * @param quantile within [0,1]
+	 * @return upper bound of the bucket containing the quantile, in recorded units. 0 if nothing was recorded
+	 */
+	public long getQuantile(double quantile) {
+		long[] counts = getBucketCounts();
+		long total = 0;
+		for (long c : counts)
+			total += c;
+		if (total == 0)
+			return 0;
+		long rank = (long) Math.ceil(quantile * total);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0)
+				return bucketUpperBound(i);
+		}
+		return bucketUpperBound(counts.length - 1);
+	}
+
+	public double getMean() {
+		long n = getCount();
+		return n == 0 ? 0 : getSum() / (double) n;
+	}
+
+	@Override
+	public String toString() {
+		return "n:" + getCount() + " mean:" + String.format("%.1f", getMean()) + " p50:" + getQuantile(0.5) + " p90:" + getQuantile(0.9) + " p99:" + getQuantile(0.99) + " max:" + getQuantile(1.0);
+	}
+}
@@ -0,0 +1,215 @@
+package lbms.plugins.mldht.utils.metrics;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Named counters, gauges and histograms, each identified by a metric name and a set of label pairs.
+ *
+ * Metrics are created on first use and cached by the caller, so the hot paths only touch {@link Counter}s and {@link Histogram}s.
+ * Gauges are evaluated when the registry is written. Constant labels, e.g. the DHT type, are appended to every sample of the registry.
+ */
+public class MetricsRegistry {
+
+	enum Type {
+		COUNTER, GAUGE, HISTOGRAM;
+
+		String exposedName() {
+			return name().toLowerCase();
+		}
+	}
+
+	static class Family {
+		final String						name;
+		final String						help;
+		final Type							type;
+		// rendered label pairs -> Counter, DoubleSupplier or Histogram
+		final ConcurrentMap<String, Object>	children	= new ConcurrentHashMap<String, Object>();
+
+		Family(String name, String help, Type type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	private final ConcurrentMap<String, Family>	families	= new ConcurrentHashMap<String, Family>();
+	private final String						constantLabels;
+
+	/**
+	 * @param constantLabels alternating label names and values
+	 */
+	public MetricsRegistry(String... constantLabels) {
+		this.constantLabels = renderLabels(constantLabels);
+	}
+
+	private Family family(String name, String help, Type type) {
+		Family f = families.get(name);
+		if (f == null)
+			f = families.computeIfAbsent(name, n -> new Family(n, help, type));
+		if (f.type != type)
+			throw new IllegalArgumentException(name + " is already registered as " + f.type.exposedName());
+		return f;
+	}
+
+	private static Object child(Family f, String labels, Supplier<Object> factory) {
+		// plain get first, computeIfAbsent locks the bin even if the key is present
+		Object existing = f.children.get(labels);
+		return existing != null ? existing : f.children.computeIfAbsent(labels, k -> factory.get());
+	}
+
+	public Counter counter(String name, String help, String... labels) {
+		return (Counter) child(family(name, help, Type.COUNTER), renderLabels(labels), Counter::new);
+	}
+
+	/**
+	 * @param maxValue see {@link Histogram#Histogram(long, double)}
+	 * @param unitScale see {@link Histogram#Histogram(long, double)}
+	 */
+	public Histogram histogram(String name, String help, long maxValue, double unitScale, String... labels) {
+		return (Histogram) child(family(name, help, Type.HISTOGRAM), renderLabels(labels), () -> new Histogram(maxValue, unitScale));
+	}
+
+	/**
+	 * registers a gauge, replacing any previous gauge with the same name and labels
+	 */
+	public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+		family(name, help, Type.GAUGE).children.put(renderLabels(labels), value);
+	}
+
+	/**
+	 * removes a single labelled metric, e.g. when the object it describes goes away
+	 */
+	public void remove(String name, String... labels) {
+		Family f = families.get(name);
+		if (f != null)
+			f.children.remove(renderLabels(labels));
+	}
+
+	static String renderLabels(String... labels) {
+		if (labels.length % 2 != 0)
+			throw new IllegalArgumentException("labels must be name/value pairs: " + Arrays.toString(labels));
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < labels.length; i += 2) {
+			if (i > 0)
+				b.append(',');
+			b.append(labels[i]).append("=\"");
+			String value = labels[i + 1];
+			for (int j = 0; j < value.length(); j++) {
+				char c = value.charAt(j);
+				if (c == '\\' || c == '"')
+					b.append('\\').append(c);
+				else if (c == '\n')
+					b.append("\\n");
+				else
+					b.append(c);
+			}
+			b.append('"');
+		}
+		return b.toString();
+	}
+
+	/**
+	 * writes the metrics in the Prometheus text exposition format (version 0.0.4)
+	 */
+	public void writePrometheus(Appendable out) throws IOException {
+		writePrometheus(out, Arrays.asList(this));
+	}
+
+	/**
+	 * writes the metrics of several registries, samples of the same name are grouped under a single metric family
+	 */
+	public static void writePrometheus(Appendable out, Collection<MetricsRegistry> registries) throws IOException {
+		TreeSet<String> names = new TreeSet<String>();
+		for (MetricsRegistry r : registries)
+			names.addAll(r.families.keySet());
+
+		for (String name : names) {
+			boolean headerWritten = false;
+			for (MetricsRegistry r : registries) {
+				Family f = r.families.get(name);
+				if (f == null || f.children.isEmpty())
+					continue;
+				if (!headerWritten) {
+					out.append("# HELP ").append(name).append(' ').append(f.help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+					out.append("# TYPE ").append(name).append(' ').append(f.type.exposedName()).append('\n');
+					headerWritten = true;
+				}
+				for (Map.Entry<String, Object> e : f.children.entrySet())
+					r.writeSamples(out, f, e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	private String joinLabels(String labels, String extra) {
+		StringBuilder b = new StringBuilder();
+		for (String part : new String[] {labels, constantLabels, extra}) {
+			if (part.isEmpty())
+				continue;
+			if (b.length() > 0)
+				b.append(',');
+			b.append(part);
+		}
+		return b.length() == 0 ? "" : "{" + b + "}";
+	}
+
+	private void writeSamples(Appendable out, Family f, String labels, Object metric) throws IOException {
+		switch (f.type) {
+			case COUNTER:
+				out.append(f.name).append(joinLabels(labels, "")).append(' ').append(Long.toString(((Counter) metric).get())).append('\n');
+				break;
+			case GAUGE:
+				double value;
+				try {
+					value = ((DoubleSupplier) metric).getAsDouble();
+				} catch (RuntimeException e) {
+					// a broken gauge must not take down the whole scrape
+					value = Double.NaN;
+				}
+				out.append(f.name).append(joinLabels(labels, "")).append(' ').append(formatDouble(value)).append('\n');
+				break;
+			case HISTOGRAM:
+				Histogram h = (Histogram) metric;
+				long[] counts = h.getBucketCounts();
+				long cumulative = 0;
+				// only expose the power of two boundaries, the sub-buckets would bloat every scrape
+				for (int i = 0; i < counts.length - 1; i++) {
+					cumulative += counts[i];
+					if ((i + 1) % Histogram.SUB_BUCKETS != 0)
+						continue;
+					String le = "le=\"" + scale(Histogram.bucketUpperBound(i), h.getUnitScale()) + "\"";
+					out.append(f.name).append("_bucket").append(joinLabels(labels, le)).append(' ').append(Long.toString(cumulative)).append('\n');
+				}
+				cumulative += counts[counts.length - 1];
+				out.append(f.name).append("_bucket").append(joinLabels(labels, "le=\"+Inf\"")).append(' ').append(Long.toString(cumulative)).append('\n');
+				out.append(f.name).append("_sum").append(joinLabels(labels, "")).append(' ').append(scale(h.getSum(), h.getUnitScale())).append('\n');
+				// keep count consistent with the +Inf bucket
+				out.append(f.name).append("_count").append(joinLabels(labels, "")).append(' ').append(Long.toString(cumulative)).append('\n');
+				break;
+		}
+	}
+
+	private static String scale(long value, double unitScale) {
+		if (unitScale == 1.0)
+			return Long.toString(value);
+		return BigDecimal.valueOf(value).multiply(BigDecimal.valueOf(unitScale)).stripTrailingZeros().toPlainString();
+	}
+
+	private static String formatDouble(double value) {
+		if (Double.isNaN(value))
+			return "NaN";
+		if (Double.isInfinite(value))
+			return value > 0 ? "+Inf" : "-Inf";
+		if (value == Math.rint(value) && Math.abs(value) < 1e15)
+			return Long.toString((long) value);
+		return Double.toString(value);
+	}
+}
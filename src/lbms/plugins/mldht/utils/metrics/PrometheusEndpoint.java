@@ -0,0 +1,95 @@
+package lbms.plugins.mldht.utils.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal HTTP server that serves metrics registries on /metrics in the Prometheus text format.
+ *
+ * Scrapes are handled by a single daemon thread, they never run on the DHT scheduler.
+ */
+public class PrometheusEndpoint {
+
+	public static final String					PATH			= "/metrics";
+	static final String							CONTENT_TYPE	= "text/plain; version=0.0.4; charset=utf-8";
+
+	private final Supplier<Collection<MetricsRegistry>>	registries;
+	private HttpServer							server;
+	private ExecutorService						executor;
+
+	public PrometheusEndpoint(Supplier<Collection<MetricsRegistry>> registries) {
+		this.registries = registries;
+	}
+
+	/**
+	 * @param bindAddress port 0 picks an ephemeral port, see {@link #getAddress()}
+	 */
+	public synchronized void start(InetSocketAddress bindAddress) throws IOException {
+		if (server != null)
+			throw new IllegalStateException("already started");
+		server = HttpServer.create(bindAddress, 16);
+		executor = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "mlDHT metrics endpoint");
+			t.setDaemon(true);
+			return t;
+		});
+		server.setExecutor(executor);
+		server.createContext(PATH, this::handle);
+		server.start();
+	}
+
+	public synchronized void stop() {
+		if (server == null)
+			return;
+		server.stop(0);
+		executor.shutdownNow();
+		server = null;
+	}
+
+	public synchronized InetSocketAddress getAddress() {
+		return server == null ? null : server.getAddress();
+	}
+
+	private void handle(HttpExchange ex) throws IOException {
+		try {
+			if (!"GET".equals(ex.getRequestMethod()) && !"HEAD".equals(ex.getRequestMethod())) {
+				ex.sendResponseHeaders(405, -1);
+				return;
+			}
+			StringBuilder body = new StringBuilder(8192);
+			MetricsRegistry.writePrometheus(body, registries.get());
+			byte[] raw = body.toString().getBytes(StandardCharsets.UTF_8);
+			ex.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			if ("HEAD".equals(ex.getRequestMethod())) {
+				ex.sendResponseHeaders(200, -1);
+				return;
+			}
+			ex.sendResponseHeaders(200, raw.length);
+			try (OutputStream os = ex.getResponseBody()) {
+				os.write(raw);
+			}
+		} finally {
+			ex.close();
+		}
+	}
+
+	/**
+	 * writes the same output as the endpoint, e.g. for a textfile collector
+	 */
+	public void writeTo(OutputStream os) throws IOException {
+		Writer w = new OutputStreamWriter(os, StandardCharsets.UTF_8);
+		MetricsRegistry.writePrometheus(w, registries.get());
+		w.flush();
+	}
+}
@@ -17,6 +17,20 @@ public class BEncoder {
 		return buf;
 	}
 	
+	/**
+	 * encodes into the target buffer starting at its position, which is advanced past the encoded data
+	 * 
+	 * @throws java.nio.BufferOverflowException if the remaining space is not enough
+	 */
+	public void encodeInto(Map<String, Object> toEnc, ByteBuffer target) {
+		buf = target;
+		try {
+			encodeInternal(toEnc);
+		} finally {
+			buf = null;
+		}
+	}
+	
 	private void encodeInternal(Object o) {
 		if (o instanceof Map) {
 			encodeMap((Map<String, Object>) o);
@@ -2,6 +2,7 @@ package the8472.mldht;
 
 import java.io.File;
 import java.io.PrintWriter;
+import java.io.Writer;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
@@ -12,21 +13,19 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
-import java.time.Instant;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.LinkedTransferQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TransferQueue;
 
 import hello.util.Log;
 import lbms.plugins.mldht.DHTConfiguration;
 import lbms.plugins.mldht.kad.DHT;
 import lbms.plugins.mldht.kad.DHT.DHTtype;
 import lbms.plugins.mldht.kad.DHT.LogLevel;
-import lbms.plugins.mldht.kad.DHTLogger;
+import lbms.plugins.mldht.kad.ExecutionLane;
+import lbms.plugins.mldht.kad.utils.RingBufferLogger;
 import the8472.utils.ConfigReader;
 import the8472.utils.FilesystemNotifications;
 
@@ -98,6 +97,11 @@ public class Launcher {
 		public boolean allowMultiHoming() {
 			return configReader.getBoolean("//core/multihoming").orElse(true);
 		}
+		
+		@Override
+		public int getSocketShards() {
+			return configReader.getLong("//core/socketShards").orElse(1L).intValue();
+		}
 	};
 
 	protected Map<DHTtype, DHT> dhts = DHT.createDHTs();
@@ -113,6 +117,8 @@ public class Launcher {
 	
 	FilesystemNotifications notifications = new FilesystemNotifications();
 
+	RingBufferLogger logger;
+
 	protected void start() throws Exception {
 		
 		Path logDir = Paths.get("./logs/");
@@ -121,8 +127,8 @@ public class Launcher {
 		Path log = logDir.resolve("dht.log");
 		Path exLog = logDir.resolve("execptions.log");
 
-		final PrintWriter logWriter = new PrintWriter(Files.newBufferedWriter(log, StandardCharsets.UTF_8, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE, StandardOpenOption.WRITE), true);
-		final PrintWriter exWriter = new PrintWriter(Files.newBufferedWriter(exLog, StandardCharsets.UTF_8, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE, StandardOpenOption.WRITE), true);
+		final Writer logWriter = Files.newBufferedWriter(log, StandardCharsets.UTF_8, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		final PrintWriter exWriter = new PrintWriter(Files.newBufferedWriter(exLog, StandardCharsets.UTF_8, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE, StandardOpenOption.WRITE));
 		
 		configReader.getAll("//component/className").forEach(className -> {
 			try {
@@ -133,61 +139,30 @@ public class Launcher {
 			}
 		});
  
-		DHT.setLogger(new DHTLogger() {
-
-			private String timeFormat(LogLevel level) {
-				return "[" + Instant.now().toString() + "][" + level.toString() + "] ";
-			}
-
-			TransferQueue<String> toLog = new LinkedTransferQueue<>();
-
-			Thread writer = new Thread() {
-				@Override
-				public void run() {
-					while (true) {
-						try {
-							logWriter.println(toLog.take());
-						} catch (InterruptedException e) {
-							e.printStackTrace();
-						}
-					}
-				}
-			};
-
-			{
-				writer.setDaemon(true);
-				writer.setName("LogWriter");
-				writer.start();
-			}
-
-			public void log(String message, LogLevel l) {
-				try {
-					toLog.put(timeFormat(l) + message);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-			}
+		// formatting and I/O happen on the logger's own thread, the network threads only fill in a preallocated record
+		logger = new RingBufferLogger(RingBufferLogger.DEFAULT_CAPACITY, logWriter, exWriter);
+		DHT.setLogger(logger);
 
-			public void log(Throwable e, LogLevel l) {
-				exWriter.append(timeFormat(l));
-				e.printStackTrace(exWriter);
-			}
-		});
-
-		Path diagnostics = logDir.resolve("diagnostics.log");
+		Path diagnostics = logDir.resolve("diagnostics.json");
 
-		DHT.getScheduler().scheduleWithFixedDelay(
+		DHT.getMaintenanceScheduler().scheduleWithFixedDelay(
 			new Runnable() {
 				@Override
 				public void run() {
 					try {
 						Path tempFile = Files.createTempFile(diagnostics.getParent(), "diag", ".tmp");
 
-						try (PrintWriter statusWriter = new PrintWriter(Files.newBufferedWriter(tempFile,
-								StandardCharsets.UTF_8))) {
+						try (Writer statusWriter = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+							// one snapshot per DHT, streamed instead of concatenating large strings
+							statusWriter.write('[');
+							boolean first = true;
 							for (DHT dht : dhts.values()) {
-								dht.printDiagnostics(statusWriter);
+								if (!first)
+									statusWriter.write(",\n");
+								first = false;
+								dht.getDiagnostics().writeJSON(statusWriter);
 							}
+							statusWriter.write("]\n");
 
 							statusWriter.close();
 
@@ -203,8 +178,10 @@ public class Launcher {
 		);
 
 		setLogLevel();
+		configureLanes();
 		configReader.registerFsNotifications(notifications);
 		configReader.addChangeCallback(this::setLogLevel);
+		configReader.addChangeCallback(this::configureLanes);
 
 		Log.d(TAG, "dhts.size() = " + dhts.size());
 		for (DHT dht: dhts.values()) {
@@ -248,6 +225,15 @@ public class Launcher {
 		DHT.setLogLevel(level);
 	}
 	
+	private void configureLanes() {
+		for (ExecutionLane lane : DHT.getLanes()) {
+			String path = "//core/executors/lane[name='" + lane.getName() + "']/";
+			int threads = configReader.getLong(path + "threads").map(Long::intValue).orElse(lane.getDefaultThreads());
+			int queueBound = configReader.getLong(path + "queueBound").map(Long::intValue).orElse(lane.getDefaultQueueBound());
+			lane.configure(threads, queueBound);
+		}
+	}
+	
 	private boolean isIPVersionDisabled(Class<? extends InetAddress> type) {
 		long disabled = configReader.getLong("//core/disableIPVersion").orElse(-1L);
 		if (disabled == 6 && type.isAssignableFrom(Inet6Address.class))
@@ -265,6 +251,8 @@ public class Launcher {
 			running = false;
 			components.forEach(Component::stop);
 			dhts.values().forEach(DHT::stop);
+			if (logger != null)
+				logger.close();
 		}
 	}
 
@@ -0,0 +1,50 @@
+package the8472.mldht;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.utils.metrics.MetricsRegistry;
+import lbms.plugins.mldht.utils.metrics.PrometheusEndpoint;
+import the8472.utils.ConfigReader;
+
+/**
+ * Serves the metrics of all DHTs on http://address:port/metrics for Prometheus to scrape.
+ *
+ * Binds to the loopback address unless configured otherwise, the metrics reveal the node's traffic patterns.
+ */
+public class PrometheusExporter implements Component {
+
+	private static final String	CONFIG_PATH		= "//components/component[className='" + PrometheusExporter.class.getName() + "']/";
+	static final int			DEFAULT_PORT	= 9141;
+
+	private PrometheusEndpoint	endpoint;
+
+	@Override
+	public void start(Collection<DHT> dhts, ConfigReader config) {
+		List<MetricsRegistry> registries = dhts.stream().map(DHT::getMetrics).collect(Collectors.toList());
+		endpoint = new PrometheusEndpoint(() -> registries);
+
+		int port = config.getLong(CONFIG_PATH + "port").orElse((long) DEFAULT_PORT).intValue();
+		try {
+			InetAddress addr = config.get(CONFIG_PATH + "address").isPresent() ? InetAddress.getByName(config.get(CONFIG_PATH + "address").get()) : InetAddress.getLoopbackAddress();
+			endpoint.start(new InetSocketAddress(addr, port));
+		} catch (UnknownHostException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		DHT.logInfo("metrics endpoint listening on " + endpoint.getAddress());
+	}
+
+	@Override
+	public void stop() {
+		if (endpoint != null)
+			endpoint.stop();
+	}
+}
@@ -0,0 +1,42 @@
+package the8472.mldht;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.UdpDropMonitor;
+import the8472.utils.ConfigReader;
+
+/**
+ * Enlarges the UDP receive buffers of all DHT sockets when the kernel starts dropping datagrams, see {@link UdpDropMonitor}.
+ */
+public class UdpBufferTuner implements Component {
+
+	private static final String	CONFIG_PATH			= "//components/component[className='" + UdpBufferTuner.class.getName() + "']/";
+	static final long			DEFAULT_INTERVAL	= 10;
+
+	private final List<UdpDropMonitor>	monitors	= new ArrayList<>();
+
+	@Override
+	public void start(Collection<DHT> dhts, ConfigReader config) {
+		int min = config.getLong(CONFIG_PATH + "minBuffer").orElse((long) UdpDropMonitor.DEFAULT_MIN_BUFFER).intValue();
+		int max = config.getLong(CONFIG_PATH + "maxBuffer").orElse((long) UdpDropMonitor.DEFAULT_MAX_BUFFER).intValue();
+		long interval = config.getLong(CONFIG_PATH + "interval").orElse(DEFAULT_INTERVAL);
+
+		for (DHT dht : dhts) {
+			UdpDropMonitor monitor = new UdpDropMonitor(dht, config.get(CONFIG_PATH + "procNet").map(Paths::get).orElse(UdpDropMonitor.DEFAULT_PROC_NET), min, max);
+			if (!monitor.isProcfsAvailable())
+				DHT.logInfo("no kernel socket statistics available for " + dht.getType() + ", UDP buffer tuning falls back to backlog estimates");
+			monitor.start(interval * 1000);
+			monitors.add(monitor);
+		}
+	}
+
+	@Override
+	public void stop() {
+		monitors.forEach(UdpDropMonitor::stop);
+		monitors.clear();
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+import lbms.plugins.mldht.DHTConfiguration;
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+
+/**
+ * Shared setup of the main() benchmarks in this package
+ */
+class BenchmarkFixtures {
+
+	static final int	PORT	= 6881;
+
+	static final DHTConfiguration	CONFIG	= new DHTConfiguration() {
+		public boolean noRouterBootstrap() {
+			return true;
+		}
+
+		public boolean isPersistingID() {
+			return false;
+		}
+
+		public File getNodeCachePath() {
+			return null;
+		}
+
+		public int getListeningPort() {
+			return PORT;
+		}
+
+		public boolean allowMultiHoming() {
+			return false;
+		}
+	};
+
+	/**
+	 * @return a globally routable IPv4 address in 11.0.0.0/8 so that it does not get discarded as bogon
+	 */
+	static InetSocketAddress address(int n) {
+		byte[] raw = new byte[] {11, (byte) (n >>> 16), (byte) (n >>> 8), (byte) n};
+		try {
+			return new InetSocketAddress(InetAddress.getByAddress(raw), PORT);
+		} catch (UnknownHostException e) {
+			throw new Error(e);
+		}
+	}
+
+	/**
+	 * Starts a standalone IPv4 DHT with a single server that sends through the given transport instead of a socket.
+	 * Nothing is received unless it is fed to the server.
+	 */
+	static DHT startStandalone(DatagramTransport transport) throws Exception {
+		DHT dht = DHT.createStandalone(DHTtype.IPV4_DHT);
+		dht.start(CONFIG, address(0xFFFFFE), transport);
+		return dht;
+	}
+
+	static DatagramTransport discard() {
+		return (data, destination) -> data.remaining();
+	}
+
+	private static boolean bit(Key k, int idx) {
+		return (k.getHash()[idx / 8] & (0x80 >> (idx % 8))) != 0;
+	}
+
+	/**
+	 * @return a random key that shares exactly the first commonBits bits with the reference key
+	 */
+	static Key keyAtDepth(Key reference, int commonBits) {
+		Prefix p = Prefix.WHOLE_KEYSPACE;
+		for (int i = 0; i < commonBits; i++)
+			p = p.splitPrefixBranch(bit(reference, i));
+		p = p.splitPrefixBranch(!bit(reference, commonBits));
+		return p.createRandomKeyFromPrefix();
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad;
+
+import static lbms.plugins.mldht.kad.BenchmarkFixtures.address;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.utils.ByteWrapper;
+import the8472.test.bench.Microbenchmark;
+import the8472.test.bench.Microbenchmark.Operation;
+
+/**
+ * Throughput and allocation of the peer database operations.
+ *
+ * The database holds {@link #KEYS} infohashes with {@link #PEERS_PER_KEY} peers each, a third of them seeds.
+ * Usage: DatabaseBenchmark [name filter]
+ */
+public class DatabaseBenchmark {
+
+	static final int			KEYS			= 1 << 12;
+	static final int			PEERS_PER_KEY	= 100;
+	static final int			POOL_SIZE		= 1 << 14;
+	static final long			WARMUP			= 1000;
+	static final long			MEASURE			= 3000;
+
+	final Database				db				= new Database();
+	final Key[]					keys			= new Key[KEYS];
+	final PeerAddressDBItem[]	items			= new PeerAddressDBItem[POOL_SIZE];
+
+	DatabaseBenchmark() {
+		for (int i = 0; i < POOL_SIZE; i++) {
+			InetAddress addr = address(i + 1).getAddress();
+			items[i] = PeerAddressDBItem.createFromAddress(addr, 1024 + i % 50000, i % 3 == 0);
+		}
+		for (int i = 0; i < KEYS; i++) {
+			keys[i] = Key.createRandomKey();
+			for (int j = 0; j < PEERS_PER_KEY; j++)
+				db.store(keys[i], peerFor(i, j));
+		}
+	}
+
+	/**
+	 * @return the j-th peer of the swarm of key i
+	 */
+	PeerAddressDBItem peerFor(int i, int j) {
+		return items[(i * 37 + j) & (POOL_SIZE - 1)];
+	}
+
+	void run(Microbenchmark bench) throws Exception {
+		System.out.println("database: " + db.getStats().getKeyCount() + " keys, " + db.getStats().getItemCount() + " items");
+
+		// mostly re-announces of known peers, one in eleven stores adds a new peer to the swarm
+		bench.run("Database.store", new Operation() {
+			ThreadLocalRandom rnd = ThreadLocalRandom.current();
+
+			public Object run() {
+				int key = rnd.nextInt(KEYS);
+				PeerAddressDBItem item = peerFor(key, rnd.nextInt(PEERS_PER_KEY * 11 / 10));
+				db.store(keys[key], item);
+				return item;
+			}
+		});
+
+		bench.run("Database.sample", new Operation() {
+			int i;
+
+			public Object run() {
+				List<DBItem> sample = db.sample(keys[i++ & (KEYS - 1)], 50, DHTtype.IPV4_DHT, true);
+				return sample;
+			}
+		});
+
+		bench.run("Database.createScrapeFilter cached", new Operation() {
+			int i;
+
+			public Object run() {
+				return db.createScrapeFilter(keys[i++ & (KEYS - 1)], (i & 1) == 0);
+			}
+		});
+
+		// the database caches the filters until an item expires, so build them the same way ItemSet does to measure the generation cost
+		PeerAddressDBItem[] peers = new PeerAddressDBItem[PEERS_PER_KEY];
+		System.arraycopy(items, 0, peers, 0, peers.length);
+
+		bench.run("BloomFilterBEP33 build (" + PEERS_PER_KEY + " peers)", () -> {
+			BloomFilterBEP33 filter = new BloomFilterBEP33();
+			for (PeerAddressDBItem item : peers)
+				if (!item.isSeed())
+					filter.insert(item.getInetAddress());
+			return filter;
+		});
+
+		// nothing is old enough to expire, this is the cost of the periodic scan
+		bench.run("Database.expire", () -> {
+			db.expire(System.currentTimeMillis());
+			return db;
+		});
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		for (int threads : new int[] {1, cores}) {
+			bench.run("Database.genToken+checkToken", threads, () -> new Operation() {
+				int i = ThreadLocalRandom.current().nextInt(POOL_SIZE);
+
+				public Object run() {
+					int n = i++;
+					InetAddress ip = items[n & (POOL_SIZE - 1)].getInetAddress();
+					int port = 1024 + n % 50000;
+					Key k = keys[n & (KEYS - 1)];
+					ByteWrapper token = db.genToken(ip, port, k);
+					if (!db.checkToken(token, ip, port, k))
+						throw new IllegalStateException("token rejected");
+					return token;
+				}
+			});
+			if (cores == 1)
+				break;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		DHT.setLogLevel(LogLevel.Error);
+		Microbenchmark bench = new Microbenchmark(WARMUP, MEASURE);
+		if (args.length > 0)
+			bench.setFilter(args[0]);
+		new DatabaseBenchmark().run(bench);
+		System.exit(0);
+	}
+}
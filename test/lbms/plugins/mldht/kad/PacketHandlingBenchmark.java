@@ -0,0 +1,310 @@
+/*
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad;
+
+import static lbms.plugins.mldht.kad.BenchmarkFixtures.address;
+import static lbms.plugins.mldht.kad.BenchmarkFixtures.keyAtDepth;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.messages.AnnounceRequest;
+import lbms.plugins.mldht.kad.messages.FindNodeRequest;
+import lbms.plugins.mldht.kad.messages.FindNodeResponse;
+import lbms.plugins.mldht.kad.messages.GetPeersRequest;
+import lbms.plugins.mldht.kad.messages.GetPeersResponse;
+import lbms.plugins.mldht.kad.messages.MessageBase;
+import lbms.plugins.mldht.kad.messages.PingRequest;
+import lbms.plugins.mldht.kad.messages.PingResponse;
+import the8472.test.bench.Microbenchmark;
+
+/**
+ * Drives synthetic traffic through the complete receive path of a server: spam filters, bdecoding, message parsing, call matching,
+ * routing table updates, the DHT handlers and encoding of whatever is sent in reply.
+ *
+ * The server sits on a {@link DatagramTransport} that discards everything, incoming datagrams are processed on the benchmark thread,
+ * so the throughput is that of a single core. Requests are fed as pre-encoded datagrams. Each response first makes the server send the
+ * matching request through a new {@link RPCCall}, so those ops also include the cost of the outgoing call.
+ *
+ * Allocation is only counted on the benchmark thread, timers that fire on the scheduler threads are not included.
+ */
+public class PacketHandlingBenchmark {
+
+	public enum Kind {
+		PING, FIND_NODE, GET_PEERS, ANNOUNCE, PING_RESPONSE, FIND_NODE_RESPONSE, GET_PEERS_RESPONSE;
+
+		public boolean isResponse() {
+			return this == PING_RESPONSE || this == FIND_NODE_RESPONSE || this == GET_PEERS_RESPONSE;
+		}
+	}
+
+	/**
+	 * Relative frequencies of the datagram kinds
+	 */
+	public static class Mix {
+		public static final Mix	REQUESTS	= new Mix("requests").weight(Kind.PING, 10).weight(Kind.FIND_NODE, 30).weight(Kind.GET_PEERS, 50).weight(Kind.ANNOUNCE, 10);
+		public static final Mix	RESPONSES	= new Mix("responses").weight(Kind.PING_RESPONSE, 20).weight(Kind.FIND_NODE_RESPONSE, 40).weight(Kind.GET_PEERS_RESPONSE, 40);
+		// a node that runs lookups of its own while serving requests
+		public static final Mix	MIXED		= new Mix("mixed").weight(Kind.PING, 5).weight(Kind.FIND_NODE, 15).weight(Kind.GET_PEERS, 25).weight(Kind.ANNOUNCE, 5)
+				.weight(Kind.PING_RESPONSE, 10).weight(Kind.FIND_NODE_RESPONSE, 20).weight(Kind.GET_PEERS_RESPONSE, 20);
+
+		final String	name;
+		final int[]		weights	= new int[Kind.values().length];
+
+		public Mix(String name) {
+			this.name = name;
+		}
+
+		public Mix weight(Kind kind, int weight) {
+			if (weight < 0)
+				throw new IllegalArgumentException("weights must not be negative");
+			weights[kind.ordinal()] = weight;
+			return this;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		Kind[] schedule(int length) {
+			int total = 0;
+			for (int w : weights)
+				total += w;
+			if (total == 0)
+				throw new IllegalStateException("empty mix");
+			List<Kind> slots = new ArrayList<Kind>(length);
+			for (Kind k : Kind.values())
+				for (int i = 0, n = Math.round((float) weights[k.ordinal()] * length / total); i < n && slots.size() < length; i++)
+					slots.add(k);
+			while (slots.size() < length)
+				slots.add(slots.get(slots.size() - 1));
+			Collections.shuffle(slots);
+			return slots.toArray(new Kind[length]);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder b = new StringBuilder(name).append(" (");
+			for (Kind k : Kind.values())
+				if (weights[k.ordinal()] > 0)
+					b.append(k.name().toLowerCase()).append(':').append(weights[k.ordinal()]).append(' ');
+			b.setCharAt(b.length() - 1, ')');
+			return b.toString();
+		}
+	}
+
+	/*
+	 * every source sends one kind of datagram. the spam throttle allows 2 datagrams per second and IP in the long run,
+	 * so the pool has to be large enough that no source comes up again within a second
+	 */
+	static final int			SOURCES			= 1 << 18;
+	static final int			SCHEDULE_LENGTH	= 1 << 10;
+	static final int			SWARMS			= 1 << 10;
+	static final int			PEERS_PER_SWARM	= 50;
+	static final int			TABLE_ENTRIES	= 1 << 12;
+	static final int			TABLE_DEPTH		= 24;
+	// overwritten with the transaction ID of the outgoing call
+	static final byte[]			MTID_PLACEHOLDER	= {'#', 'M', 'T', 'I', 'D', '#'};
+
+	private final Mix			mix;
+	private final DHT			dht;
+	private final RPCServer		srv;
+	private final Kind[]		kinds			= new Kind[SOURCES];
+	private final InetSocketAddress[]	sources	= new InetSocketAddress[SOURCES];
+	private final Key[]			targets			= new Key[SOURCES];
+	private final ByteBuffer[]	datagrams		= new ByteBuffer[SOURCES];
+	private final int[]			mtidOffsets		= new int[SOURCES];
+	private final AtomicLong	sentDatagrams	= new AtomicLong();
+	private final AtomicLong	sentBytes		= new AtomicLong();
+	private long				fed;
+
+	public PacketHandlingBenchmark(Mix mix) throws Exception {
+		this.mix = mix;
+		dht = BenchmarkFixtures.startStandalone((data, destination) -> {
+			sentDatagrams.incrementAndGet();
+			sentBytes.addAndGet(data.remaining());
+			return data.remaining();
+		});
+		srv = dht.getServerManager().getAllServers().get(0);
+		// datagrams are handled inline, any queue delay is just the benchmark thread being descheduled
+		srv.getAdmissionControl().setTargetDelay(Long.MAX_VALUE);
+
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		Key localID = srv.getDerivedID();
+		for (int i = 0; i < TABLE_ENTRIES; i++)
+			dht.getNode().insertEntry(new KBucketEntry(address(SOURCES + i), keyAtDepth(localID, rnd.nextInt(TABLE_DEPTH))), false);
+
+		Key[] swarms = new Key[SWARMS];
+		for (int i = 0; i < SWARMS; i++) {
+			swarms[i] = Key.createRandomKey();
+			for (int j = 0; j < PEERS_PER_SWARM; j++)
+				dht.getDatabase().store(swarms[i], PeerAddressDBItem.createFromAddress(address(SOURCES + TABLE_ENTRIES + rnd.nextInt(1 << 16)).getAddress(), 1024 + j, j % 3 == 0));
+		}
+
+		KClosestNodesSearch kns = new KClosestNodesSearch(Key.createRandomKey(), DHTConstants.MAX_ENTRIES_PER_BUCKET, dht);
+		kns.fill();
+		byte[] nodes = kns.pack();
+		List<DBItem> values = dht.getDatabase().sample(swarms[0], 20, DHTtype.IPV4_DHT, false);
+
+		Kind[] schedule = mix.schedule(SCHEDULE_LENGTH);
+		for (int i = 0; i < SOURCES; i++) {
+			Kind kind = schedule[i & (SCHEDULE_LENGTH - 1)];
+			InetSocketAddress source = address(i + 1);
+			Key id = Key.createRandomKey();
+			// half of the lookups are for swarms we know about
+			Key target = rnd.nextBoolean() ? swarms[rnd.nextInt(SWARMS)] : Key.createRandomKey();
+			byte[] mtid = kind.isResponse() ? MTID_PLACEHOLDER : new byte[] {(byte) i, (byte) (i >>> 8), (byte) (i >>> 16), 0, 0, 1};
+
+			MessageBase msg;
+			switch (kind) {
+				case PING:
+					msg = new PingRequest();
+					break;
+				case FIND_NODE:
+					msg = new FindNodeRequest(target);
+					break;
+				case GET_PEERS:
+					msg = new GetPeersRequest(target);
+					break;
+				case ANNOUNCE:
+					byte[] token = dht.getDatabase().genToken(source.getAddress(), source.getPort(), target).arr;
+					msg = new AnnounceRequest(target, source.getPort(), token);
+					break;
+				case PING_RESPONSE:
+					msg = new PingResponse(mtid);
+					break;
+				case FIND_NODE_RESPONSE:
+					msg = new FindNodeResponse(mtid, nodes, null);
+					break;
+				case GET_PEERS_RESPONSE:
+					GetPeersResponse gpr = new GetPeersResponse(mtid, nodes, null, new byte[] {1, 2, 3, 4});
+					gpr.setPeerItems(values);
+					msg = gpr;
+					break;
+				default:
+					throw new IllegalStateException();
+			}
+			msg.setMTID(mtid);
+			msg.setID(id);
+
+			kinds[i] = kind;
+			sources[i] = source;
+			targets[i] = target;
+			datagrams[i] = ByteBuffer.wrap(msg.encode(dht.getType().MAX_PACKET_SIZE));
+			mtidOffsets[i] = kind.isResponse() ? indexOf(datagrams[i].array(), MTID_PLACEHOLDER) : -1;
+		}
+	}
+
+	private static int indexOf(byte[] haystack, byte[] needle) {
+		outer: for (int i = 0; i <= haystack.length - needle.length; i++) {
+			for (int j = 0; j < needle.length; j++)
+				if (haystack[i + j] != needle[j])
+					continue outer;
+			return i;
+		}
+		throw new IllegalStateException("transaction ID not found in encoded message");
+	}
+
+	private MessageBase requestFor(Kind kind, Key target) {
+		switch (kind) {
+			case PING_RESPONSE:
+				return new PingRequest();
+			case FIND_NODE_RESPONSE:
+				return new FindNodeRequest(target);
+			case GET_PEERS_RESPONSE:
+				return new GetPeersRequest(target);
+			default:
+				throw new IllegalArgumentException(kind.toString());
+		}
+	}
+
+	/**
+	 * Processes the next datagram of the mix
+	 */
+	void feed() {
+		int idx = (int) (fed++ & (SOURCES - 1));
+		Kind kind = kinds[idx];
+		ByteBuffer datagram = datagrams[idx];
+		InetSocketAddress source = sources[idx];
+
+		if (kind.isResponse()) {
+			MessageBase request = requestFor(kind, targets[idx]);
+			request.setID(srv.getDerivedID());
+			request.setDestination(source);
+			RPCCall call = new RPCCall(srv, request);
+			call.start();
+			System.arraycopy(request.getMTID(), 0, datagram.array(), mtidOffsets[idx], MTID_PLACEHOLDER.length);
+		}
+
+		datagram.rewind();
+		srv.received(datagram, source, Runnable::run);
+	}
+
+	/**
+	 * @return the result of the measurement, or null if the benchmark runner filtered it out
+	 */
+	public Microbenchmark.Result run(Microbenchmark bench) throws Exception {
+		return bench.run("handlePacket " + mix.getName(), () -> {
+			feed();
+			return srv;
+		});
+	}
+
+	public long getFedDatagrams() {
+		return fed;
+	}
+
+	public long getSentDatagrams() {
+		return sentDatagrams.get();
+	}
+
+	public long getSentBytes() {
+		return sentBytes.get();
+	}
+
+	public void stop() {
+		dht.stop();
+	}
+
+	public static void main(String[] args) throws Exception {
+		DHT.setLogLevel(LogLevel.Error);
+		Microbenchmark bench = new Microbenchmark(2000, 5000);
+		if (args.length > 0)
+			bench.setFilter(args[0]);
+		for (Mix mix : new Mix[] {Mix.REQUESTS, Mix.RESPONSES, Mix.MIXED}) {
+			if (!bench.isSelected("handlePacket " + mix.getName()))
+				continue;
+			PacketHandlingBenchmark b = new PacketHandlingBenchmark(mix);
+			try {
+				System.out.println(mix);
+				b.run(bench);
+				System.out.println("  fed " + b.getFedDatagrams() + " datagrams, sent " + b.getSentDatagrams() + " (" + b.getSentBytes() / Math.max(1, b.getSentDatagrams()) + " bytes avg)");
+			} finally {
+				b.stop();
+			}
+		}
+		System.exit(0);
+	}
+}
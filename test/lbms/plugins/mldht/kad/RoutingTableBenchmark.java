@@ -0,0 +1,193 @@
+/*
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad;
+
+import static lbms.plugins.mldht.kad.BenchmarkFixtures.address;
+import static lbms.plugins.mldht.kad.BenchmarkFixtures.keyAtDepth;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.Node.RoutingTableEntry;
+import lbms.plugins.mldht.kad.messages.MessageBase;
+import lbms.plugins.mldht.kad.messages.PingRequest;
+import the8472.test.bench.Microbenchmark;
+
+/**
+ * Throughput and allocation of the routing table operations.
+ *
+ * The table is populated with nodes at increasing distances from the local ID, which gives it the bucket count of a node in a network of
+ * millions of nodes. Usage: RoutingTableBenchmark [name filter]
+ */
+public class RoutingTableBenchmark {
+
+	static final int		POOL_SIZE		= 1 << 14;
+	// buckets along the path to our own ID, ~2^(depth+3) nodes in the network
+	static final int		TABLE_DEPTH		= 24;
+	static final long		WARMUP			= 1000;
+	static final long		MEASURE			= 3000;
+
+	final DHT				dht;
+	final Node				node;
+	final Key				localID;
+	final KBucketEntry[]	entries			= new KBucketEntry[POOL_SIZE];
+	final MessageBase[]		pings			= new MessageBase[POOL_SIZE];
+	final Key[]				randomKeys		= new Key[POOL_SIZE];
+
+	RoutingTableBenchmark() throws Exception {
+		dht = BenchmarkFixtures.startStandalone(BenchmarkFixtures.discard());
+		node = dht.getNode();
+		localID = dht.getServerManager().getAllServers().get(0).getDerivedID();
+
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		for (int i = 0; i < POOL_SIZE; i++) {
+			entries[i] = new KBucketEntry(address(i + 1), keyAtDepth(localID, rnd.nextInt(TABLE_DEPTH)));
+			PingRequest ping = new PingRequest();
+			ping.setOrigin(entries[i].getAddress());
+			ping.setID(entries[i].getID());
+			pings[i] = ping;
+			randomKeys[i] = Key.createRandomKey();
+		}
+
+		for (KBucketEntry e : entries)
+			node.insertEntry(new KBucketEntry(e.getAddress(), e.getID()), false);
+	}
+
+	/**
+	 * @return a bucket filled with entries that are not part of the pool
+	 */
+	KBucket fullBucket(KBucketEntry[] members) {
+		KBucket b = new KBucket(node);
+		for (int i = 0; i < members.length; i++) {
+			members[i] = new KBucketEntry(address(POOL_SIZE + 1 + i), Key.createRandomKey());
+			b.insertOrRefresh(members[i]);
+		}
+		return b;
+	}
+
+	void run(Microbenchmark bench) throws Exception {
+		System.out.println("routing table: " + node.getNumEntriesInRoutingTable() + " entries in " + node.getBuckets().size() + " buckets");
+
+		bench.run("Node.recieved", new Microbenchmark.Operation() {
+			int i;
+
+			public Object run() {
+				MessageBase msg = pings[i++ & (POOL_SIZE - 1)];
+				node.recieved(msg);
+				return msg;
+			}
+		});
+
+		bench.run("Node.findBucketForId", new Microbenchmark.Operation() {
+			int i;
+
+			public Object run() {
+				return node.findBucketForId(randomKeys[i++ & (POOL_SIZE - 1)]);
+			}
+		});
+
+		KBucketEntry[] members = new KBucketEntry[DHTConstants.MAX_ENTRIES_PER_BUCKET];
+		KBucket refreshed = fullBucket(members);
+		KBucketEntry[] refreshes = new KBucketEntry[members.length];
+		for (int i = 0; i < members.length; i++)
+			refreshes[i] = new KBucketEntry(members[i].getAddress(), members[i].getID());
+
+		bench.run("KBucket.insertOrRefresh refresh", new Microbenchmark.Operation() {
+			int i;
+
+			public Object run() {
+				KBucketEntry e = refreshes[i++ % refreshes.length];
+				refreshed.insertOrRefresh(e);
+				return e;
+			}
+		});
+
+		// fresh entries are not questionable, so this goes to the replacement bucket without pinging anyone
+		KBucket full = fullBucket(new KBucketEntry[DHTConstants.MAX_ENTRIES_PER_BUCKET]);
+
+		bench.run("KBucket.insertOrRefresh full bucket", new Microbenchmark.Operation() {
+			int i;
+
+			public Object run() {
+				KBucketEntry e = entries[i++ & (POOL_SIZE - 1)];
+				full.insertOrRefresh(e);
+				return e;
+			}
+		});
+
+		bench.run("KClosestNodesSearch.fill", new Microbenchmark.Operation() {
+			int i;
+
+			public Object run() {
+				KClosestNodesSearch kns = new KClosestNodesSearch(randomKeys[i++ & (POOL_SIZE - 1)], DHTConstants.MAX_ENTRIES_PER_BUCKET, dht);
+				kns.fill();
+				return kns;
+			}
+		});
+
+		bench.run("KClosestNodesSearch.fill+pack", new Microbenchmark.Operation() {
+			int i;
+
+			public Object run() {
+				KClosestNodesSearch kns = new KClosestNodesSearch(randomKeys[i++ & (POOL_SIZE - 1)], DHTConstants.MAX_ENTRIES_PER_BUCKET, dht);
+				kns.fill();
+				return kns.pack();
+			}
+		});
+
+		// each op grows a table from a single bucket and collapses it again
+		Node cycled = new Node(dht);
+		Key cycledID = cycled.registerServer(null);
+		KBucketEntry[] cycleEntries = new KBucketEntry[TABLE_DEPTH * DHTConstants.MAX_ENTRIES_PER_BUCKET * 2];
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		for (int i = 0; i < cycleEntries.length; i++)
+			cycleEntries[i] = new KBucketEntry(address(i + 1), keyAtDepth(cycledID, rnd.nextInt(TABLE_DEPTH)));
+
+		bench.run("Node split/merge cycle (" + cycleEntries.length + " inserts)", () -> {
+			for (KBucketEntry e : cycleEntries)
+				cycled.insertEntry(e, false);
+			int buckets = cycled.getBuckets().size();
+			for (RoutingTableEntry rte : cycled.getBuckets()) {
+				KBucket b = rte.getBucket();
+				while (b.getNumEntries() > 0)
+					b.removeEntryIfBad(b.getEntries().get(0), true);
+			}
+			// each check only merges the buckets it passes, so collapsing the table takes several rounds.
+			// there is no active server, a fixed timestamp keeps the survival mode throttle from skipping the checks
+			for (int round = 0; cycled.getBuckets().size() > 1; round++) {
+				if (round > Key.KEY_BITS)
+					throw new IllegalStateException("buckets were not merged");
+				cycled.doBucketChecks(0);
+			}
+			return buckets;
+		});
+	}
+
+	public static void main(String[] args) throws Exception {
+		DHT.setLogLevel(LogLevel.Error);
+		Microbenchmark bench = new Microbenchmark(WARMUP, MEASURE);
+		if (args.length > 0)
+			bench.setFilter(args[0]);
+		RoutingTableBenchmark b = new RoutingTableBenchmark();
+		try {
+			b.run(bench);
+		} finally {
+			b.dht.stop();
+		}
+		System.exit(0);
+	}
+}
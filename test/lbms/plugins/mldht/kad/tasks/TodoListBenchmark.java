@@ -0,0 +1,168 @@
+/*
+ *    This file is part of mlDHT.
+ *
+ *    mlDHT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    mlDHT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with mlDHT.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package lbms.plugins.mldht.kad.tasks;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+import lbms.plugins.mldht.kad.DHTConstants;
+import lbms.plugins.mldht.kad.KBucketEntry;
+import lbms.plugins.mldht.kad.Key;
+import the8472.test.bench.Microbenchmark;
+
+/**
+ * Throughput and allocation of the task todo list and visited set compared to the TreeSet and HashSet they replaced.
+ *
+ * Each operation replays the bookkeeping of one lookup without any networking: poll the closest unvisited candidate, mark it visited and
+ * insert the nodes of its response, until the request count of a typical lookup is reached. Usage: TodoListBenchmark [name filter]
+ */
+public class TodoListBenchmark {
+
+	static final int		POOL_SIZE			= 1 << 14;
+	static final int		REQUESTS_PER_LOOKUP	= 64;
+	static final long		WARMUP				= 1000;
+	static final long		MEASURE				= 3000;
+
+	final KBucketEntry[]	entries				= new KBucketEntry[POOL_SIZE];
+	final Key[]				targets				= new Key[POOL_SIZE];
+
+	TodoListBenchmark() throws UnknownHostException {
+		for (int i = 0; i < POOL_SIZE; i++) {
+			byte[] ip = {10, (byte) (i >> 16), (byte) (i >> 8), (byte) i};
+			entries[i] = new KBucketEntry(new InetSocketAddress(InetAddress.getByAddress(ip), 6881), Key.createRandomKey());
+			targets[i] = Key.createRandomKey();
+		}
+	}
+
+	/**
+	 * The structures of one engine, created fresh for every lookup like a task does
+	 */
+	interface Engine {
+		void reset(Key target);
+		void add(KBucketEntry e);
+		KBucketEntry pollFirst();
+		void visited(KBucketEntry e);
+		boolean hasVisited(KBucketEntry e);
+	}
+
+	static class TreeSetEngine implements Engine {
+		NavigableSet<KBucketEntry>	todo;
+		HashSet<Object>				visited;
+
+		public void reset(Key target) {
+			todo = new TreeSet<KBucketEntry>(new KBucketEntry.DistanceOrder(target));
+			visited = new HashSet<Object>();
+		}
+
+		public void add(KBucketEntry e) {
+			synchronized (todo) {
+				todo.add(e);
+			}
+		}
+
+		public KBucketEntry pollFirst() {
+			synchronized (todo) {
+				return todo.pollFirst();
+			}
+		}
+
+		public void visited(KBucketEntry e) {
+			synchronized (visited) {
+				visited.add(e.getAddress().getAddress());
+				visited.add(e.getID());
+			}
+		}
+
+		public boolean hasVisited(KBucketEntry e) {
+			synchronized (visited) {
+				return visited.contains(e.getAddress().getAddress()) || visited.contains(e.getID());
+			}
+		}
+	}
+
+	static class CandidateQueueEngine implements Engine {
+		CandidateQueue	todo;
+		VisitedSet		visited;
+
+		public void reset(Key target) {
+			todo = new CandidateQueue(target, DHTConstants.MAX_LOOKUP_CANDIDATES);
+			visited = new VisitedSet();
+		}
+
+		public void add(KBucketEntry e) {
+			todo.add(e);
+		}
+
+		public KBucketEntry pollFirst() {
+			return todo.pollFirst();
+		}
+
+		public void visited(KBucketEntry e) {
+			visited.add(e);
+		}
+
+		public boolean hasVisited(KBucketEntry e) {
+			return visited.contains(e);
+		}
+	}
+
+	Microbenchmark.Operation lookup(Engine engine) {
+		return new Microbenchmark.Operation() {
+			int i;
+
+			public Object run() {
+				ThreadLocalRandom rnd = ThreadLocalRandom.current();
+				engine.reset(targets[i++ & (POOL_SIZE - 1)]);
+				for (int j = 0; j < DHTConstants.MAX_ENTRIES_PER_BUCKET; j++)
+					engine.add(entries[rnd.nextInt(POOL_SIZE)]);
+				int sent = 0;
+				while (sent < REQUESTS_PER_LOOKUP) {
+					KBucketEntry e = engine.pollFirst();
+					if (e == null)
+						break;
+					if (engine.hasVisited(e))
+						continue;
+					engine.visited(e);
+					sent++;
+					// the response to the request
+					for (int j = 0; j < DHTConstants.MAX_ENTRIES_PER_BUCKET; j++)
+						engine.add(entries[rnd.nextInt(POOL_SIZE)]);
+				}
+				return sent;
+			}
+		};
+	}
+
+	void run(Microbenchmark bench) throws Exception {
+		bench.run("lookup TreeSet/HashSet", lookup(new TreeSetEngine()));
+		bench.run("lookup CandidateQueue", lookup(new CandidateQueueEngine()));
+		bench.run("lookup TreeSet/HashSet", 4, () -> lookup(new TreeSetEngine()));
+		bench.run("lookup CandidateQueue", 4, () -> lookup(new CandidateQueueEngine()));
+	}
+
+	public static void main(String[] args) throws Exception {
+		Microbenchmark bench = new Microbenchmark(WARMUP, MEASURE);
+		if (args.length > 0)
+			bench.setFilter(args[0]);
+		new TodoListBenchmark().run(bench);
+	}
+}
@@ -0,0 +1,204 @@
+package the8472.test.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Minimal time-boxed benchmark runner for the main() benchmarks in this tree.
+ *
+ * Each thread runs its operation for the warmup period and then for the measurement period. Allocation is taken from the per-thread
+ * allocation counters of the HotSpot {@link com.sun.management.ThreadMXBean}, JVMs without them report -1.
+ *
+ * Results of the operations are consumed so that the JIT can't eliminate them, but there is no protection against constant folding
+ * or loop hoisting beyond that. Operations should draw their inputs from pre-built pools.
+ */
+public class Microbenchmark {
+
+	public interface Operation {
+		/**
+		 * @return anything derived from the work done, it will be consumed
+		 */
+		Object run() throws Exception;
+	}
+
+	public static class Result {
+		public final String name;
+		public final int threads;
+		public final long operations;
+		public final long nanos;
+		public final long allocatedBytes;
+
+		Result(String name, int threads, long operations, long nanos, long allocatedBytes) {
+			this.name = name;
+			this.threads = threads;
+			this.operations = operations;
+			this.nanos = nanos;
+			this.allocatedBytes = allocatedBytes;
+		}
+
+		public double opsPerSecond() {
+			return operations * 1e9 / nanos;
+		}
+
+		public double nanosPerOp() {
+			return operations == 0 ? Double.NaN : (double) nanos * threads / operations;
+		}
+
+		/**
+		 * @return -1 if allocation counters are unavailable
+		 */
+		public double bytesPerOp() {
+			if (allocatedBytes < 0)
+				return -1;
+			return operations == 0 ? Double.NaN : (double) allocatedBytes / operations;
+		}
+
+		/**
+		 * @return allocation rate in MB/s summed over all threads, -1 if allocation counters are unavailable
+		 */
+		public double allocationRate() {
+			if (allocatedBytes < 0)
+				return -1;
+			return allocatedBytes * 1e9 / nanos / (1024 * 1024);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-40s threads:%2d %,14.0f ops/s %,12.1f ns/op %,10.1f B/op %,9.1f MB/s", name, threads, opsPerSecond(), nanosPerOp(), bytesPerOp(), allocationRate());
+		}
+	}
+
+	private static final com.sun.management.ThreadMXBean THREAD_BEAN;
+
+	static {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean hotspotBean = null;
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			hotspotBean = (com.sun.management.ThreadMXBean) bean;
+			if (hotspotBean.isThreadAllocatedMemorySupported())
+				hotspotBean.setThreadAllocatedMemoryEnabled(true);
+			else
+				hotspotBean = null;
+		}
+		THREAD_BEAN = hotspotBean;
+	}
+
+	/**
+	 * @return bytes allocated by the current thread so far, -1 if the JVM does not track them
+	 */
+	public static long currentThreadAllocatedBytes() {
+		if (THREAD_BEAN == null)
+			return -1;
+		return THREAD_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	// check the time only every so often so that nanoTime doesn't dominate cheap operations
+	private static final int	BATCH	= 64;
+
+	private final long			warmupNanos;
+	private final long			measureNanos;
+	private String				filter;
+	private volatile Object		sink;
+
+	public Microbenchmark(long warmupMillis, long measureMillis) {
+		this.warmupNanos = warmupMillis * 1000000L;
+		this.measureNanos = measureMillis * 1000000L;
+	}
+
+	/**
+	 * @param filter only benchmarks whose name contains this string are run, null runs all
+	 */
+	public void setFilter(String filter) {
+		this.filter = filter;
+	}
+
+	public boolean isSelected(String name) {
+		return filter == null || name.contains(filter);
+	}
+
+	private void consume(Object o) {
+		// a volatile write of every result would be measured too, the comparison against the last stored value is enough to keep it alive
+		if (o == sink)
+			sink = new Object();
+	}
+
+	public Result run(String name, Operation op) throws Exception {
+		return run(name, 1, () -> op);
+	}
+
+	/**
+	 * @param perThread creates the operation for each thread, so that threads can get their own input pools
+	 * @return null if the benchmark is filtered out
+	 */
+	public Result run(String name, int threads, Supplier<Operation> perThread) throws Exception {
+		if (!isSelected(name))
+			return null;
+
+		Operation[] ops = new Operation[threads];
+		for (int i = 0; i < threads; i++)
+			ops[i] = perThread.get();
+
+		long[] counts = new long[threads];
+		long[] allocated = new long[threads];
+		long[] elapsed = new long[threads];
+		AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+
+		for (int i = 0; i < threads; i++) {
+			int idx = i;
+			workers[i] = new Thread(() -> {
+				try {
+					Operation o = ops[idx];
+					start.await();
+					long warmupEnd = System.nanoTime() + warmupNanos;
+					while (System.nanoTime() < warmupEnd)
+						for (int j = 0; j < BATCH; j++)
+							consume(o.run());
+
+					long allocStart = currentThreadAllocatedBytes();
+					long begin = System.nanoTime();
+					long end = begin + measureNanos;
+					long n = 0;
+					long now;
+					do {
+						for (int j = 0; j < BATCH; j++)
+							consume(o.run());
+						n += BATCH;
+						now = System.nanoTime();
+					} while (now < end);
+
+					long allocEnd = currentThreadAllocatedBytes();
+					elapsed[idx] = now - begin;
+					counts[idx] = n;
+					allocated[idx] = allocStart < 0 ? -1 : allocEnd - allocStart;
+				} catch (Exception e) {
+					failure.compareAndSet(null, e);
+				}
+			}, "bench " + name + " #" + i);
+			workers[i].start();
+		}
+
+		start.countDown();
+		for (Thread t : workers)
+			t.join();
+
+		if (failure.get() != null)
+			throw failure.get();
+
+		long totalOps = 0;
+		long totalAlloc = 0;
+		long maxElapsed = 0;
+		for (int i = 0; i < threads; i++) {
+			totalOps += counts[i];
+			totalAlloc = totalAlloc < 0 || allocated[i] < 0 ? -1 : totalAlloc + allocated[i];
+			maxElapsed = Math.max(maxElapsed, elapsed[i]);
+		}
+
+		Result r = new Result(name, threads, totalOps, maxElapsed, totalAlloc);
+		System.out.println(r);
+		return r;
+	}
+}
@@ -0,0 +1,56 @@
+package the8472.test.bench;
+
+import static org.junit.Assert.assertTrue;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.PacketHandlingBenchmark;
+import lbms.plugins.mldht.kad.PacketHandlingBenchmark.Mix;
+import the8472.test.bench.Microbenchmark.Result;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Fails when the allocation per handled datagram exceeds its budget.
+ *
+ * Budgets are in bytes per datagram and can be overridden with -Dmldht.budget.&lt;mix&gt;=bytes, e.g. -Dmldht.budget.requests=15000
+ */
+public class PacketHandlingBudgetTest {
+
+	// roughly twice of what the mixes allocate at the time of writing
+	static final long	DEFAULT_BUDGET	= 20000;
+
+	private void checkBudget(Mix mix) throws Exception {
+		Assume.assumeTrue("allocation counters unavailable", Microbenchmark.currentThreadAllocatedBytes() >= 0);
+		long budget = Long.getLong("mldht.budget." + mix.getName(), DEFAULT_BUDGET);
+
+		LogLevel oldLevel = DHT.getLogLevel();
+		DHT.setLogLevel(LogLevel.Error);
+		PacketHandlingBenchmark bench = new PacketHandlingBenchmark(mix);
+		try {
+			Result r = bench.run(new Microbenchmark(500, 1000));
+			// every datagram should have made it through the filters and caused one datagram to be sent
+			assertTrue("datagrams were dropped: fed " + bench.getFedDatagrams() + " sent " + bench.getSentDatagrams(), bench.getSentDatagrams() >= bench.getFedDatagrams());
+			assertTrue(mix.getName() + " allocated " + r.bytesPerOp() + " bytes per datagram, budget is " + budget, r.bytesPerOp() <= budget);
+		} finally {
+			bench.stop();
+			DHT.setLogLevel(oldLevel);
+		}
+	}
+
+	@Test
+	public void requests() throws Exception {
+		checkBudget(Mix.REQUESTS);
+	}
+
+	@Test
+	public void responses() throws Exception {
+		checkBudget(Mix.RESPONSES);
+	}
+
+	@Test
+	public void mixed() throws Exception {
+		checkBudget(Mix.MIXED);
+	}
+}
@@ -0,0 +1,88 @@
+package the8472.test.capture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import lbms.plugins.mldht.kad.PacketCapture;
+import lbms.plugins.mldht.kad.PacketCapture.Direction;
+import lbms.plugins.mldht.kad.PacketCapture.Record;
+
+import org.junit.Test;
+
+public class PacketCaptureTest {
+
+	@Test
+	public void roundTrip() throws IOException {
+		Path file = Files.createTempFile("capture", ".mlpc");
+		try {
+			InetSocketAddress local = new InetSocketAddress(InetAddress.getByName("10.0.0.1"), 49001);
+			InetSocketAddress v4 = new InetSocketAddress(InetAddress.getByName("192.0.2.7"), 6881);
+			InetSocketAddress v6 = new InetSocketAddress(InetAddress.getByName("2001:db8::1"), 1);
+
+			ByteBuffer heap = ByteBuffer.wrap("xxd1:y1:qe".getBytes(StandardCharsets.ISO_8859_1));
+			heap.position(2);
+			ByteBuffer direct = ByteBuffer.allocateDirect(16);
+			direct.put("d1:y1:re".getBytes(StandardCharsets.ISO_8859_1)).flip();
+
+			try (PacketCapture capture = new PacketCapture(file, local)) {
+				capture.record(Direction.INCOMING, v4, heap);
+				capture.record(Direction.OUTGOING, v6, direct);
+				assertEquals(2, capture.getRecordCount());
+				assertEquals(16, capture.getByteCount());
+			}
+
+			// recording must not consume the buffers
+			assertEquals(2, heap.position());
+			assertEquals(0, direct.position());
+
+			try (PacketCapture.Reader reader = new PacketCapture.Reader(file)) {
+				assertEquals(local, reader.getLocalAddress());
+
+				Record first = reader.next();
+				assertEquals(Direction.INCOMING, first.direction);
+				assertEquals(v4, first.address);
+				assertEquals("d1:y1:qe", StandardCharsets.ISO_8859_1.decode(first.data).toString());
+
+				Record second = reader.next();
+				assertEquals(Direction.OUTGOING, second.direction);
+				assertEquals(v6, second.address);
+				assertEquals("d1:y1:re", StandardCharsets.ISO_8859_1.decode(second.data).toString());
+				assertTrue(second.time >= first.time);
+
+				assertNull(reader.next());
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void truncatedRecord() throws IOException {
+		Path file = Files.createTempFile("capture", ".mlpc");
+		try {
+			try (PacketCapture capture = new PacketCapture(file, null)) {
+				capture.record(Direction.INCOMING, new InetSocketAddress(InetAddress.getByName("192.0.2.7"), 6881), ByteBuffer.wrap(new byte[100]));
+			}
+			byte[] raw = Files.readAllBytes(file);
+			Files.write(file, Arrays.copyOf(raw, raw.length - 10), StandardOpenOption.TRUNCATE_EXISTING);
+
+			try (PacketCapture.Reader reader = new PacketCapture.Reader(file)) {
+				assertNull(reader.getLocalAddress());
+				assertNull(reader.next());
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+}
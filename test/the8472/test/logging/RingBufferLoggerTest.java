@@ -0,0 +1,77 @@
+package the8472.test.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.utils.RingBufferLogger;
+
+import org.junit.Test;
+
+public class RingBufferLoggerTest {
+
+	@Test
+	public void deferredFormatting() {
+		StringWriter out = new StringWriter();
+		StringWriter ex = new StringWriter();
+		RingBufferLogger logger = new RingBufferLogger(16, out, new PrintWriter(ex));
+		logger.log(LogLevel.Debug, "rpc", "a {} b {} c", 1, "two");
+		logger.log(LogLevel.Info, "rpc", "missing {} {}", "x");
+		logger.log("plain", LogLevel.Error);
+		logger.log(new IOException("boom"), LogLevel.Error);
+		logger.close();
+
+		String[] lines = out.toString().split("\n");
+		assertEquals(3, lines.length);
+		assertTrue(lines[0].endsWith("[Debug] [rpc] a 1 b two c"));
+		assertTrue(lines[1].endsWith("[Info] [rpc] missing x {}"));
+		assertTrue(lines[2].endsWith("[Error] plain"));
+		assertTrue(ex.toString().contains("java.io.IOException: boom"));
+	}
+
+	@Test
+	public void dropsWhenFull() throws InterruptedException {
+		CountDownLatch writing = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		StringWriter sink = new StringWriter();
+		Writer slow = new Writer() {
+			@Override
+			public void write(char[] cbuf, int off, int len) {
+				writing.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				sink.write(cbuf, off, len);
+			}
+
+			@Override
+			public void flush() {}
+
+			@Override
+			public void close() {}
+		};
+
+		RingBufferLogger logger = new RingBufferLogger(4, slow, new PrintWriter(new StringWriter()));
+		logger.log("first", LogLevel.Info);
+		assertTrue(writing.await(5, TimeUnit.SECONDS));
+		// the writer is stuck on the first record which still occupies its slot
+		for (int i = 0; i < 10; i++)
+			logger.log(LogLevel.Info, null, "msg {}", i);
+		assertEquals(7, logger.getDroppedCount());
+		release.countDown();
+		logger.close();
+
+		assertTrue(sink.toString().contains("msg 2"));
+		assertTrue(sink.toString().contains("7 log messages dropped"));
+	}
+
+}
@@ -0,0 +1,257 @@
+package the8472.test.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import lbms.plugins.mldht.DHTConfiguration;
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.DiagnosticsSnapshot;
+import the8472.bencode.BDecoder;
+
+import org.junit.Test;
+
+public class DiagnosticsJSONTest {
+
+	static final DHTConfiguration CONFIG = new DHTConfiguration() {
+		public boolean noRouterBootstrap() {
+			return true;
+		}
+
+		public boolean isPersistingID() {
+			return false;
+		}
+
+		public File getNodeCachePath() {
+			return null;
+		}
+
+		public int getListeningPort() {
+			return 6881;
+		}
+
+		public boolean allowMultiHoming() {
+			return false;
+		}
+	};
+
+	@Test
+	public void roundTripWithCommaLocale() throws Exception {
+		Locale oldLocale = Locale.getDefault();
+		LogLevel oldLevel = DHT.getLogLevel();
+		DHT.setLogLevel(LogLevel.Error);
+		// formats 0.5 as "0,500"
+		Locale.setDefault(Locale.GERMANY);
+		DHT dht = DHT.createStandalone(DHTtype.IPV4_DHT);
+		try {
+			dht.start(CONFIG, new InetSocketAddress(InetAddress.getByAddress(new byte[] {11, 0, 0, 1}), 6881), (data, destination) -> data.remaining());
+			DiagnosticsSnapshot snapshot = dht.getDiagnostics();
+			Map<String, Object> expected = snapshot.toMap();
+
+			Object parsed = new Parser(snapshot.toJSON()).parseDocument();
+			assertSameTree("", expected, parsed);
+
+			Map<String, Object> bencoded = new BDecoder().decode(snapshot.toBencoded());
+			@SuppressWarnings("unchecked")
+			Map<String, Object> cache = (Map<String, Object>) bencoded.get("cache");
+			String hopsSaved = new String((byte[]) cache.get("averageHopsSaved"), "ISO-8859-1");
+			assertEquals(snapshot.cache.averageHopsSaved, Double.parseDouble(hopsSaved), 0.0005);
+		} finally {
+			dht.stop();
+			Locale.setDefault(oldLocale);
+			DHT.setLogLevel(oldLevel);
+		}
+	}
+
+	static void assertSameTree(String path, Object expected, Object actual) {
+		if (expected instanceof Map) {
+			assertTrue(path, actual instanceof Map);
+			Map<?, ?> e = (Map<?, ?>) expected;
+			Map<?, ?> a = (Map<?, ?>) actual;
+			assertEquals(path, e.keySet(), a.keySet());
+			for (Object k : e.keySet())
+				assertSameTree(path + "." + k, e.get(k), a.get(k));
+		} else if (expected instanceof List) {
+			assertTrue(path, actual instanceof List);
+			List<?> e = (List<?>) expected;
+			List<?> a = (List<?>) actual;
+			assertEquals(path, e.size(), a.size());
+			for (int i = 0; i < e.size(); i++)
+				assertSameTree(path + "[" + i + "]", e.get(i), a.get(i));
+		} else if (expected instanceof Double) {
+			double d = (Double) expected;
+			if (Double.isNaN(d) || Double.isInfinite(d))
+				assertEquals(path, null, actual);
+			else
+				assertEquals(path, d, ((Number) actual).doubleValue(), 0.0005);
+		} else if (expected instanceof Number) {
+			assertEquals(path, ((Number) expected).longValue(), ((Number) actual).longValue());
+		} else if (expected instanceof Boolean || expected == null) {
+			assertEquals(path, expected, actual);
+		} else {
+			assertEquals(path, expected.toString(), actual);
+		}
+	}
+
+	/**
+	 * Strict parser for the subset of RFC 8259 the snapshot can produce, fails on anything else
+	 */
+	static class Parser {
+		final String	in;
+		int				pos;
+
+		Parser(String in) {
+			this.in = in;
+		}
+
+		Object parseDocument() {
+			Object o = parseValue();
+			if (pos != in.length())
+				fail("trailing data at " + pos + ": " + in.substring(pos));
+			return o;
+		}
+
+		Object parseValue() {
+			char c = peek();
+			if (c == '{')
+				return parseObject();
+			if (c == '[')
+				return parseArray();
+			if (c == '"')
+				return parseString();
+			if (in.startsWith("true", pos)) {
+				pos += 4;
+				return Boolean.TRUE;
+			}
+			if (in.startsWith("false", pos)) {
+				pos += 5;
+				return Boolean.FALSE;
+			}
+			if (in.startsWith("null", pos)) {
+				pos += 4;
+				return null;
+			}
+			return parseNumber();
+		}
+
+		Map<String, Object> parseObject() {
+			Map<String, Object> m = new LinkedHashMap<String, Object>();
+			expect('{');
+			if (peek() == '}') {
+				pos++;
+				return m;
+			}
+			while (true) {
+				String key = parseString();
+				expect(':');
+				m.put(key, parseValue());
+				if (peek() == '}') {
+					pos++;
+					return m;
+				}
+				expect(',');
+			}
+		}
+
+		List<Object> parseArray() {
+			List<Object> l = new ArrayList<Object>();
+			expect('[');
+			if (peek() == ']') {
+				pos++;
+				return l;
+			}
+			while (true) {
+				l.add(parseValue());
+				if (peek() == ']') {
+					pos++;
+					return l;
+				}
+				expect(',');
+			}
+		}
+
+		String parseString() {
+			expect('"');
+			StringBuilder b = new StringBuilder();
+			while (true) {
+				char c = in.charAt(pos++);
+				if (c == '"')
+					return b.toString();
+				if (c < 0x20)
+					fail("unescaped control character at " + (pos - 1));
+				if (c != '\\') {
+					b.append(c);
+					continue;
+				}
+				char esc = in.charAt(pos++);
+				switch (esc) {
+					case '"':
+					case '\\':
+					case '/':
+						b.append(esc);
+						break;
+					case 'n':
+						b.append('\n');
+						break;
+					case 'r':
+						b.append('\r');
+						break;
+					case 't':
+						b.append('\t');
+						break;
+					case 'u':
+						b.append((char) Integer.parseInt(in.substring(pos, pos + 4), 16));
+						pos += 4;
+						break;
+					default:
+						fail("bad escape at " + (pos - 1));
+				}
+			}
+		}
+
+		Number parseNumber() {
+			int start = pos;
+			if (peek() == '-')
+				pos++;
+			int digits = pos;
+			while (pos < in.length() && Character.isDigit(in.charAt(pos)))
+				pos++;
+			if (pos == digits)
+				fail("expected a value at " + start + ": " + in.substring(start, Math.min(in.length(), start + 20)));
+			boolean fraction = pos < in.length() && in.charAt(pos) == '.';
+			if (fraction) {
+				pos++;
+				int fractionDigits = pos;
+				while (pos < in.length() && Character.isDigit(in.charAt(pos)))
+					pos++;
+				if (pos == fractionDigits)
+					fail("expected fraction digits at " + pos);
+			}
+			String s = in.substring(start, pos);
+			return fraction ? (Number) Double.valueOf(s) : (Number) Long.valueOf(s);
+		}
+
+		char peek() {
+			if (pos >= in.length())
+				fail("unexpected end of input");
+			return in.charAt(pos);
+		}
+
+		void expect(char c) {
+			if (peek() != c)
+				fail("expected '" + c + "' at " + pos + " but found '" + in.charAt(pos) + "'");
+			pos++;
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package the8472.test.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import lbms.plugins.mldht.utils.metrics.Histogram;
+import lbms.plugins.mldht.utils.metrics.MetricsRegistry;
+import lbms.plugins.mldht.utils.metrics.PrometheusEndpoint;
+
+import org.junit.Test;
+
+public class PrometheusEndpointTest {
+
+	@Test
+	public void histogramBuckets() {
+		Histogram h = new Histogram(10000, 0.001);
+		for (int i = 1; i <= 100; i++)
+			h.record(i);
+		assertEquals(100, h.getCount());
+		assertEquals(5050, h.getSum());
+		// bucket bounds are within 25% of the true value
+		long p50 = h.getQuantile(0.5);
+		assertTrue(p50 >= 50 && p50 <= 63);
+		assertEquals(111, h.getQuantile(1.0));
+	}
+
+	@Test
+	public void scrape() throws IOException {
+		MetricsRegistry v4 = new MetricsRegistry("dht", "IPv4");
+		MetricsRegistry v6 = new MetricsRegistry("dht", "IPv6");
+		v4.counter("test_messages_total", "messages", "method", "ping").add(3);
+		v6.counter("test_messages_total", "messages", "method", "ping").inc();
+		v4.gauge("test_queue_length", "queue", () -> 7);
+		v4.histogram("test_rtt_seconds", "rtt", 1000, 0.001).record(5);
+
+		PrometheusEndpoint endpoint = new PrometheusEndpoint(() -> Arrays.asList(v4, v6));
+		endpoint.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		try {
+			InetSocketAddress addr = endpoint.getAddress();
+			HttpURLConnection con = (HttpURLConnection) new URL("http", addr.getAddress().getHostAddress(), addr.getPort(), PrometheusEndpoint.PATH).openConnection();
+			assertEquals(200, con.getResponseCode());
+			assertTrue(con.getContentType().startsWith("text/plain"));
+
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			try (InputStream in = con.getInputStream()) {
+				byte[] chunk = new byte[4096];
+				int read;
+				while ((read = in.read(chunk)) > 0)
+					buf.write(chunk, 0, read);
+			}
+			String body = new String(buf.toByteArray(), StandardCharsets.UTF_8);
+
+			// one header per family even though two registries contribute samples
+			assertEquals(body.indexOf("# TYPE test_messages_total counter"), body.lastIndexOf("# TYPE test_messages_total counter"));
+			assertTrue(body.contains("test_messages_total{method=\"ping\",dht=\"IPv4\"} 3\n"));
+			assertTrue(body.contains("test_messages_total{method=\"ping\",dht=\"IPv6\"} 1\n"));
+			assertTrue(body.contains("test_queue_length{dht=\"IPv4\"} 7\n"));
+			assertTrue(body.contains("test_rtt_seconds_bucket{dht=\"IPv4\",le=\"0.003\"} 0\n"));
+			assertTrue(body.contains("test_rtt_seconds_bucket{dht=\"IPv4\",le=\"0.007\"} 1\n"));
+			assertTrue(body.contains("test_rtt_seconds_bucket{dht=\"IPv4\",le=\"+Inf\"} 1\n"));
+			assertTrue(body.contains("test_rtt_seconds_sum{dht=\"IPv4\"} 0.005\n"));
+			assertTrue(body.contains("test_rtt_seconds_count{dht=\"IPv4\"} 1\n"));
+		} finally {
+			endpoint.stop();
+		}
+	}
+
+}
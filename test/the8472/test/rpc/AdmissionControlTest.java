@@ -0,0 +1,64 @@
+package the8472.test.rpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import lbms.plugins.mldht.kad.AdmissionControl;
+import lbms.plugins.mldht.kad.AdmissionControl.QueryClass;
+
+import org.junit.Test;
+
+public class AdmissionControlTest {
+
+	static final long	TARGET	= TimeUnit.MILLISECONDS.toNanos(50);
+	static final long	TICK	= TimeUnit.MILLISECONDS.toNanos(100);
+
+	@Test
+	public void shedsCheapestClassFirst() {
+		AdmissionControl ac = new AdmissionControl(TARGET);
+		long now = System.nanoTime();
+
+		// short of the target nothing happens
+		for (int i = 0; i < 100; i++)
+			ac.onQueueDelay(TARGET / 2, now += TICK);
+		assertFalse(ac.isShedding());
+		assertTrue(ac.admit(QueryClass.ANNOUNCE_FROM_UNKNOWN));
+
+		// sustained overload until announces from unknown nodes are dropped entirely
+		while (ac.getDropProbability(QueryClass.ANNOUNCE_FROM_UNKNOWN) < 1.0) {
+			ac.onQueueDelay(TARGET * 4, now += TICK);
+			assertEquals(0.0, ac.getDropProbability(QueryClass.QUERY), 0.0);
+		}
+		assertFalse(ac.admit(QueryClass.ANNOUNCE_FROM_UNKNOWN));
+		assertTrue(ac.admit(QueryClass.PING));
+
+		// then the other queries start losing, pings are still untouched
+		for (int i = 0; i < 10; i++)
+			ac.onQueueDelay(TARGET * 4, now += TICK);
+		assertTrue(ac.getDropProbability(QueryClass.QUERY) > 0.0);
+		assertEquals(0.0, ac.getDropProbability(QueryClass.PING), 0.0);
+	}
+
+	@Test
+	public void updatesAreRateLimitedAndDecay() {
+		AdmissionControl ac = new AdmissionControl(TARGET);
+		long now = System.nanoTime();
+
+		ac.onQueueDelay(TARGET * 4, now += TICK);
+		double afterOne = ac.getPressure();
+		assertTrue(afterOne > 0.0);
+
+		// a burst of slow packets within the freeze time only counts once
+		for (int i = 0; i < 100; i++)
+			ac.onQueueDelay(TARGET * 4, now + i);
+		assertEquals(afterOne, ac.getPressure(), 0.0);
+
+		// an idle lane brings the pressure back down
+		for (int i = 0; i < 1000 && ac.isShedding(); i++)
+			ac.onQueueDelay(0, now += TICK);
+		assertFalse(ac.isShedding());
+	}
+}
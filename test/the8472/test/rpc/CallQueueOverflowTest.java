@@ -0,0 +1,96 @@
+package the8472.test.rpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lbms.plugins.mldht.DHTConfiguration;
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.DHTConstants;
+import lbms.plugins.mldht.kad.RPCCall;
+import lbms.plugins.mldht.kad.RPCCallListener;
+import lbms.plugins.mldht.kad.RPCServer;
+import lbms.plugins.mldht.kad.SendPriority;
+import lbms.plugins.mldht.kad.messages.MessageBase;
+import lbms.plugins.mldht.kad.messages.PingRequest;
+
+import org.junit.Test;
+
+public class CallQueueOverflowTest {
+
+	static final DHTConfiguration CONFIG = new DHTConfiguration() {
+		public boolean noRouterBootstrap() {
+			return true;
+		}
+
+		public boolean isPersistingID() {
+			return false;
+		}
+
+		public File getNodeCachePath() {
+			return null;
+		}
+
+		public int getListeningPort() {
+			return 6881;
+		}
+
+		public boolean allowMultiHoming() {
+			return false;
+		}
+	};
+
+	static InetSocketAddress address(int n) throws Exception {
+		return new InetSocketAddress(InetAddress.getByAddress(new byte[] {11, (byte) (n >>> 16), (byte) (n >>> 8), (byte) n}), 6881);
+	}
+
+	@Test
+	public void overflowingCallsFailWithoutTransactionID() throws Exception {
+		LogLevel oldLevel = DHT.getLogLevel();
+		DHT.setLogLevel(LogLevel.Error);
+		DHT dht = DHT.createStandalone(DHTtype.IPV4_DHT);
+		try {
+			// requests go nowhere, so every dispatched call keeps its slot until it times out
+			dht.start(CONFIG, address(0xFFFFFE), (data, destination) -> data.remaining());
+			RPCServer srv = dht.getServerManager().getAllServers().get(0);
+
+			int overflow = 32;
+			int total = DHTConstants.MAX_ACTIVE_CALLS + SendPriority.BULK.bound + overflow;
+			CountDownLatch failed = new CountDownLatch(overflow);
+			AtomicInteger failedWithMTID = new AtomicInteger();
+			RPCCallListener listener = new RPCCallListener() {
+				public void onTimeout(RPCCall c) {
+					if (c.getRequest().getMTID() != null)
+						failedWithMTID.incrementAndGet();
+					failed.countDown();
+				}
+
+				public void onStall(RPCCall c) {}
+
+				public void onResponse(RPCCall c, MessageBase rsp) {}
+			};
+
+			for (int i = 0; i < total; i++) {
+				PingRequest req = new PingRequest();
+				req.setDestination(address(i + 1));
+				new RPCCall(srv, req).setPriority(SendPriority.BULK).addListener(listener).start();
+			}
+
+			// long before any of the dispatched calls could time out
+			assertTrue("calls beyond the queue bound should fail right away", failed.await(2, TimeUnit.SECONDS));
+			assertEquals(0, failedWithMTID.get());
+			assertEquals(SendPriority.BULK.bound, srv.getCallQueueLength(SendPriority.BULK));
+		} finally {
+			dht.stop();
+			DHT.setLogLevel(oldLevel);
+		}
+	}
+}
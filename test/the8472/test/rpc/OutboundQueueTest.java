@@ -0,0 +1,55 @@
+package the8472.test.rpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import lbms.plugins.mldht.kad.OutboundQueue;
+import lbms.plugins.mldht.kad.SendPriority;
+
+import org.junit.Test;
+
+public class OutboundQueueTest {
+
+	@Test
+	public void servesMostImportantClassFirst() {
+		OutboundQueue<String> q = new OutboundQueue<>();
+		q.offer("crawl", SendPriority.BULK);
+		q.offer("lookup 1", SendPriority.LOOKUP);
+		q.offer("ping", SendPriority.MAINTENANCE);
+		q.offer("lookup 2", SendPriority.LOOKUP);
+		q.offer("response", SendPriority.RESPONSE);
+
+		assertEquals(5, q.size());
+		assertEquals("response", q.poll());
+		assertEquals("ping", q.poll());
+		assertEquals("lookup 1", q.poll());
+		assertEquals("lookup 2", q.poll());
+		assertEquals("crawl", q.poll());
+		assertNull(q.poll());
+		assertTrue(q.isEmpty());
+	}
+
+	@Test
+	public void classesAreBoundedIndependently() {
+		OutboundQueue<Integer> q = new OutboundQueue<>();
+		for (int i = 0; i < SendPriority.BULK.bound; i++)
+			assertTrue(q.offer(i, SendPriority.BULK));
+
+		assertFalse(q.hasRoom(SendPriority.BULK));
+		assertFalse(q.offer(-1, SendPriority.BULK));
+		assertEquals(SendPriority.BULK.bound, q.size(SendPriority.BULK));
+
+		// a full class doesn't block the others
+		assertTrue(q.offer(-2, SendPriority.RESPONSE));
+		assertEquals(-2, (int) q.poll());
+
+		assertEquals(0, (int) q.poll(SendPriority.BULK));
+		assertTrue(q.hasRoom(SendPriority.BULK));
+
+		q.clear();
+		assertTrue(q.isEmpty());
+		assertEquals(0, q.size());
+	}
+}
@@ -0,0 +1,49 @@
+package the8472.test.sim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.DHTConstants;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.sim.SimulatedNetwork;
+import lbms.plugins.mldht.kad.sim.Simulation;
+import lbms.plugins.mldht.kad.tasks.AnnounceManager;
+
+import org.junit.Test;
+
+public class AnnounceBudgetTest {
+
+	@Test
+	public void announcesGoOutBelowLookupCost() throws Exception {
+		LogLevel oldLevel = DHT.getLogLevel();
+		DHT.setLogLevel(LogLevel.Error);
+		SimulatedNetwork network = new SimulatedNetwork();
+		network.setLatency(5, 10);
+		Simulation sim = new Simulation(network);
+		AnnounceManager manager = null;
+		try {
+			for (int i = 0; i < 24; i++)
+				sim.addNode(false);
+			assertEquals(0, sim.awaitBootstrap(DHTConstants.MAX_ENTRIES_PER_BUCKET, 30 * 1000));
+
+			// a single lookup + announce costs far more than 2 packets, i.e. more than the limiter can ever accumulate
+			manager = new AnnounceManager(sim.getNodes().get(0).getDHT(), 2, 1000);
+			manager.start();
+			for (int i = 0; i < 4; i++)
+				manager.register(Key.createRandomKey(), 6881, false);
+
+			long deadline = System.currentTimeMillis() + 30 * 1000;
+			while (manager.getAnnounceCount() == 0 && System.currentTimeMillis() < deadline)
+				Thread.sleep(100);
+
+			assertTrue(manager.toString(), manager.getAnnounceCount() > 0);
+		} finally {
+			if (manager != null)
+				manager.stop();
+			sim.close();
+			DHT.setLogLevel(oldLevel);
+		}
+	}
+}
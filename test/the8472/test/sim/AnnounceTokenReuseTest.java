@@ -0,0 +1,58 @@
+package the8472.test.sim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.DHTConstants;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.sim.SimulatedNetwork;
+import lbms.plugins.mldht.kad.sim.Simulation;
+import lbms.plugins.mldht.kad.tasks.AnnounceManager;
+
+import org.junit.Test;
+
+public class AnnounceTokenReuseTest {
+
+	@Test
+	public void changedRegistrationReusesTokensOfTheLastLookup() throws Exception {
+		LogLevel oldLevel = DHT.getLogLevel();
+		DHT.setLogLevel(LogLevel.Error);
+		SimulatedNetwork network = new SimulatedNetwork();
+		network.setLatency(5, 10);
+		Simulation sim = new Simulation(network);
+		AnnounceManager manager = null;
+		try {
+			for (int i = 0; i < 24; i++)
+				sim.addNode(false);
+			assertEquals(0, sim.awaitBootstrap(DHTConstants.MAX_ENTRIES_PER_BUCKET, 30 * 1000));
+
+			// the first announce happens at a random point within the interval, the next regular one about an interval later
+			manager = new AnnounceManager(sim.getNodes().get(0).getDHT(), 1000, 10 * 1000);
+			manager.start();
+			Key infoHash = Key.createRandomKey();
+			manager.register(infoHash, 6881, false);
+			awaitAnnounces(manager, 1);
+			assertEquals(1, manager.getLookupCount());
+
+			// becoming a seed is announced right away, with the tokens of the lookup that just finished
+			manager.register(infoHash, 6881, true);
+			awaitAnnounces(manager, 2);
+			assertEquals(manager.toString(), 1, manager.getLookupCount());
+			assertEquals(manager.toString(), 1, manager.getTokenReuseCount());
+		} finally {
+			if (manager != null)
+				manager.stop();
+			sim.close();
+			DHT.setLogLevel(oldLevel);
+		}
+	}
+
+	static void awaitAnnounces(AnnounceManager manager, long count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 30 * 1000;
+		while ((manager.getAnnounceCount() < count || manager.getActiveCount() > 0) && System.currentTimeMillis() < deadline)
+			Thread.sleep(50);
+		assertTrue(manager.toString(), manager.getAnnounceCount() >= count);
+	}
+}
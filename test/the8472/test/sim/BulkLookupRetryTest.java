@@ -0,0 +1,55 @@
+package the8472.test.sim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.DHTConstants;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.sim.SimulatedNetwork;
+import lbms.plugins.mldht.kad.sim.SimulatedNode;
+import lbms.plugins.mldht.kad.sim.Simulation;
+import lbms.plugins.mldht.kad.tasks.BulkPeerLookup;
+
+import org.junit.Test;
+
+public class BulkLookupRetryTest {
+
+	static final int TARGETS = 4;
+
+	@Test
+	public void pendingTargetsStartOnceTheNodeBecomesReachable() throws Exception {
+		LogLevel oldLevel = DHT.getLogLevel();
+		DHT.setLogLevel(LogLevel.Error);
+		SimulatedNetwork network = new SimulatedNetwork();
+		network.setLatency(5, 10);
+		Simulation sim = new Simulation(network);
+		BulkPeerLookup bulk = null;
+		try {
+			// the first node has nobody to talk to, so it has no active server and lookups can't be created
+			SimulatedNode first = sim.addNode(false);
+			bulk = new BulkPeerLookup(first.getDHT(), DHTConstants.MAX_CONCURRENT_REQUESTS_LOWPRIO * 2, (hash, peer) -> {});
+			for (int i = 0; i < TARGETS; i++)
+				bulk.add(Key.createRandomKey());
+			assertEquals(TARGETS, bulk.getPendingCount());
+			assertEquals(0, bulk.getActiveCount());
+
+			// no lookup is running whose completion would schedule the pending ones, only the retry picks them up
+			for (int i = 0; i < 23; i++)
+				sim.addNode(false);
+			assertEquals(0, sim.awaitBootstrap(DHTConstants.MAX_ENTRIES_PER_BUCKET, 30 * 1000));
+
+			long deadline = System.currentTimeMillis() + 60 * 1000;
+			while (bulk.getCompletedCount() < TARGETS && System.currentTimeMillis() < deadline)
+				Thread.sleep(100);
+
+			assertTrue(bulk.toString(), bulk.getCompletedCount() == TARGETS);
+		} finally {
+			if (bulk != null)
+				bulk.cancel();
+			sim.close();
+			DHT.setLogLevel(oldLevel);
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package the8472.test.sim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.DHTConstants;
+import lbms.plugins.mldht.kad.KBucketEntry;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.sim.SimulatedNetwork;
+import lbms.plugins.mldht.kad.sim.SimulatedNode;
+import lbms.plugins.mldht.kad.sim.Simulation;
+import lbms.plugins.mldht.kad.tasks.NodeLookup;
+import lbms.plugins.mldht.kad.tasks.ResultStream;
+
+import org.junit.Test;
+
+public class ResultStreamBackpressureTest {
+
+	@Test
+	public void saturatedLookupResumes() throws Exception {
+		LogLevel oldLevel = DHT.getLogLevel();
+		DHT.setLogLevel(LogLevel.Error);
+		SimulatedNetwork network = new SimulatedNetwork();
+		network.setLatency(5, 10);
+		Simulation sim = new Simulation(network);
+		try {
+			for (int i = 0; i < 48; i++)
+				sim.addNode(false);
+			assertEquals(0, sim.awaitBootstrap(DHTConstants.MAX_ENTRIES_PER_BUCKET, 30 * 1000));
+
+			int throttled = 0;
+			for (int round = 0; round < 5; round++) {
+				SimulatedNode from = sim.getNodes().get(round);
+				ResultStream<KBucketEntry> stream = new ResultStream<KBucketEntry>(1);
+				List<KBucketEntry> received = new CopyOnWriteArrayList<KBucketEntry>();
+				stream.subscribe(received::add);
+
+				NodeLookup lookup = new NodeLookup(Key.createRandomKey(), from.getServer(), from.getDHT().getNode(), false);
+				lookup.setResultStream(stream);
+				from.getDHT().getTaskManager().addTask(lookup);
+
+				long deadline = System.currentTimeMillis() + 10 * 1000;
+				while (stream.getBuffered() == 0 && System.currentTimeMillis() < deadline)
+					Thread.sleep(5);
+				assertTrue("lookup should have produced results", stream.getBuffered() > 0);
+
+				// in-flight requests may still complete, but nothing new is sent while the buffer is full
+				Thread.sleep(200);
+				int sent = lookup.getSentReqs();
+				Thread.sleep(200);
+				assertEquals(sent, lookup.getSentReqs());
+				if (!lookup.isFinished())
+					throttled++;
+
+				// a slow subscriber, every item it asks for lets the lookup continue a little further
+				deadline = System.currentTimeMillis() + DHTConstants.TASK_TIMEOUT / 2;
+				while (!lookup.isFinished() && System.currentTimeMillis() < deadline) {
+					stream.request(1);
+					Thread.sleep(5);
+				}
+
+				assertTrue("lookup stalled: " + stream + " " + lookup, lookup.isFinished());
+				assertTrue("lookup ran into the task timeout", lookup.getFinishedTime() != -1);
+				assertTrue(stream.getCompletion().get(1, TimeUnit.SECONDS).size() > 0);
+
+				stream.request(Long.MAX_VALUE);
+				assertEquals(0, stream.getBuffered());
+				assertTrue(received.size() > 1);
+			}
+			assertTrue("lookups should have been held back by the stream", throttled > 0);
+		} finally {
+			sim.close();
+			DHT.setLogLevel(oldLevel);
+		}
+	}
+}
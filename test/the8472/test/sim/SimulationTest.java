@@ -0,0 +1,46 @@
+package the8472.test.sim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.DHTConstants;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.sim.SimulatedNetwork;
+import lbms.plugins.mldht.kad.sim.SimulatedNode;
+import lbms.plugins.mldht.kad.sim.Simulation;
+import lbms.plugins.mldht.kad.sim.Simulation.LookupResult;
+
+import org.junit.Test;
+
+public class SimulationTest {
+
+	@Test
+	public void bootstrapAndLookup() throws Exception {
+		LogLevel oldLevel = DHT.getLogLevel();
+		DHT.setLogLevel(LogLevel.Error);
+		SimulatedNetwork network = new SimulatedNetwork();
+		network.setLatency(5, 10);
+		Simulation sim = new Simulation(network);
+		try {
+			for (int i = 0; i < 24; i++)
+				sim.addNode(false);
+
+			assertEquals(0, sim.awaitBootstrap(DHTConstants.MAX_ENTRIES_PER_BUCKET, 30 * 1000));
+
+			double accuracy = 0;
+			int lookups = 5;
+			for (int i = 0; i < lookups; i++) {
+				SimulatedNode from = sim.getNodes().get(i);
+				LookupResult result = sim.lookup(from, Key.createRandomKey(), DHTConstants.TASK_TIMEOUT);
+				assertTrue(result.responses > 0);
+				accuracy += result.accuracy;
+			}
+			assertTrue("lookups should find most of the closest nodes, got " + accuracy / lookups, accuracy / lookups >= 0.75);
+		} finally {
+			sim.close();
+			DHT.setLogLevel(oldLevel);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package the8472.test.tasks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.TreeSet;
+
+import lbms.plugins.mldht.kad.KBucketEntry;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.tasks.CandidateQueue;
+
+import org.junit.Test;
+
+public class CandidateQueueTest {
+
+	static int port = 1024;
+
+	static KBucketEntry entry(String hexID) {
+		return new KBucketEntry(new InetSocketAddress("127.0.0.1", port++), new Key(hexID));
+	}
+
+	@Test
+	public void ordersByUnsignedDistance() {
+		CandidateQueue q = new CandidateQueue(Key.MIN_KEY, 8);
+		// the first two have the top bit of the distance set, i.e. they would sort first if the distances were compared as signed longs
+		KBucketEntry farthest = entry("ff00000000000000000000000000000000000000");
+		KBucketEntry far = entry("8000000000000000000000000000000000000000");
+		KBucketEntry mid = entry("7fffffffffffffff000000000000000000000000");
+		// same leading 64 bits, only the full key comparison can tell them apart
+		KBucketEntry tieFar = entry("0000000000000001000000000000000000000002");
+		KBucketEntry tieNear = entry("0000000000000001000000000000000000000001");
+
+		for (KBucketEntry e : new KBucketEntry[] {far, tieFar, farthest, mid, tieNear})
+			assertTrue(q.add(e));
+
+		assertEquals(5, q.size());
+		assertSame(tieNear, q.first());
+		assertSame(tieNear, q.pollFirst());
+		assertSame(tieFar, q.pollFirst());
+		assertSame(mid, q.pollFirst());
+		assertSame(far, q.pollFirst());
+		assertSame(farthest, q.pollFirst());
+		assertNull(q.pollFirst());
+		assertTrue(q.isEmpty());
+	}
+
+	@Test
+	public void rejectsDuplicates() {
+		CandidateQueue q = new CandidateQueue(Key.MIN_KEY, 4);
+		KBucketEntry e = entry("0100000000000000000000000000000000000000");
+		assertTrue(q.add(e));
+		assertFalse(q.add(entry("0100000000000000000000000000000000000000")));
+		assertTrue(q.contains(e));
+		assertEquals(1, q.size());
+		assertEquals(0, q.getDropped());
+	}
+
+	@Test
+	public void evictsMostDistant() {
+		CandidateQueue q = new CandidateQueue(Key.MIN_KEY, 3);
+		KBucketEntry a = entry("1000000000000000000000000000000000000000");
+		KBucketEntry b = entry("2000000000000000000000000000000000000000");
+		KBucketEntry c = entry("f000000000000000000000000000000000000000");
+		KBucketEntry d = entry("0800000000000000000000000000000000000000");
+		KBucketEntry tooFar = entry("f100000000000000000000000000000000000000");
+
+		assertTrue(q.add(a));
+		assertTrue(q.add(b));
+		assertTrue(q.add(c));
+		assertSame(c, q.last());
+		// displaces c
+		assertTrue(q.add(d));
+		assertFalse(q.contains(c));
+		assertSame(b, q.last());
+		// more distant than everything in the full queue
+		assertFalse(q.add(tooFar));
+
+		assertEquals(3, q.size());
+		assertEquals(2, q.getDropped());
+		assertSame(d, q.pollFirst());
+		assertSame(a, q.pollFirst());
+		assertSame(b, q.pollFirst());
+	}
+
+	@Test
+	public void matchesSortedSetModel() {
+		Key target = Key.createRandomKey();
+		int capacity = 64;
+		CandidateQueue q = new CandidateQueue(target, capacity);
+		TreeSet<KBucketEntry> model = new TreeSet<KBucketEntry>(new KBucketEntry.DistanceOrder(target));
+		for (int i = 0; i < 1000; i++) {
+			KBucketEntry e = new KBucketEntry(new InetSocketAddress("127.0.0.1", port++), Key.createRandomKey());
+			boolean fits = model.size() < capacity || model.comparator().compare(e, model.last()) < 0;
+			if (fits) {
+				if (model.size() == capacity)
+					model.pollLast();
+				model.add(e);
+			}
+			assertEquals(fits, q.add(e));
+			// polling moves the head, later inserts have to compact the array
+			if (i % 3 == 0)
+				assertSame(model.pollFirst(), q.pollFirst());
+		}
+
+		assertEquals(model.size(), q.size());
+		for (KBucketEntry expected : model)
+			assertSame(expected, q.pollFirst());
+		assertTrue(q.isEmpty());
+	}
+}
@@ -0,0 +1,63 @@
+package the8472.test.tasks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import lbms.plugins.mldht.kad.KBucketEntry;
+import lbms.plugins.mldht.kad.Key;
+import lbms.plugins.mldht.kad.tasks.VisitedSet;
+
+import org.junit.Test;
+
+public class VisitedSetTest {
+
+	static KBucketEntry entry(String ip, int port, Key id) throws Exception {
+		return new KBucketEntry(new InetSocketAddress(InetAddress.getByName(ip), port), id);
+	}
+
+	@Test
+	public void matchesOnAddressOrID() throws Exception {
+		VisitedSet visited = new VisitedSet();
+		Key id = Key.createRandomKey();
+		visited.add(entry("10.0.0.1", 1000, id));
+
+		// same node after an ID change or a port change
+		assertTrue(visited.contains(entry("10.0.0.1", 2000, Key.createRandomKey())));
+		// same ID from another address
+		assertTrue(visited.contains(entry("10.0.0.2", 1000, id)));
+		assertFalse(visited.contains(entry("10.0.0.2", 1000, Key.createRandomKey())));
+	}
+
+	@Test
+	public void distinguishesIPv6Hosts() throws Exception {
+		VisitedSet visited = new VisitedSet();
+		visited.add(entry("2001:db8::1", 1000, Key.createRandomKey()));
+		assertTrue(visited.contains(entry("2001:db8::1", 1000, Key.createRandomKey())));
+		assertFalse(visited.contains(entry("2001:db8::2", 1000, Key.createRandomKey())));
+		assertFalse(visited.contains(entry("2001:db9::1", 1000, Key.createRandomKey())));
+	}
+
+	@Test
+	public void growsWithoutLosingEntries() throws Exception {
+		VisitedSet visited = new VisitedSet();
+		Key[] ids = new Key[5000];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = Key.createRandomKey();
+			visited.add(entry("10.1." + (i >>> 8) + "." + (i & 0xFF), 1000, ids[i]));
+		}
+		assertEquals(ids.length, visited.size());
+		for (int i = 0; i < ids.length; i++) {
+			assertTrue(visited.contains(entry("10.1." + (i >>> 8) + "." + (i & 0xFF), 1, Key.createRandomKey())));
+			assertTrue(visited.contains(entry("10.2.0.1", 1, ids[i])));
+		}
+		// zero is the empty marker of the tables, 0.0.0.0 and an all-zero ID prefix must still be tracked
+		assertFalse(visited.contains(entry("0.0.0.0", 1, Key.MIN_KEY)));
+		visited.add(entry("0.0.0.0", 1, Key.MIN_KEY));
+		assertTrue(visited.contains(entry("0.0.0.0", 2, Key.createRandomKey())));
+		assertTrue(visited.contains(entry("10.2.0.1", 1, Key.MIN_KEY)));
+	}
+}
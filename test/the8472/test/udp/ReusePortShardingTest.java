@@ -0,0 +1,125 @@
+package the8472.test.udp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import lbms.plugins.mldht.DHTConfiguration;
+import lbms.plugins.mldht.kad.DHT;
+import lbms.plugins.mldht.kad.DHT.DHTtype;
+import lbms.plugins.mldht.kad.DHT.LogLevel;
+import lbms.plugins.mldht.kad.RPCCall;
+import lbms.plugins.mldht.kad.RPCCallListener;
+import lbms.plugins.mldht.kad.RPCServer;
+import lbms.plugins.mldht.kad.messages.MessageBase;
+import lbms.plugins.mldht.kad.messages.PingRequest;
+
+import org.junit.Test;
+
+public class ReusePortShardingTest {
+
+	static class LoopbackConfig implements DHTConfiguration {
+		final int shards;
+
+		LoopbackConfig(int shards) {
+			this.shards = shards;
+		}
+
+		public boolean noRouterBootstrap() {
+			return true;
+		}
+
+		public boolean isPersistingID() {
+			return false;
+		}
+
+		public File getNodeCachePath() {
+			return null;
+		}
+
+		public int getListeningPort() {
+			return 0;
+		}
+
+		public boolean allowMultiHoming() {
+			return false;
+		}
+
+		public int getSocketShards() {
+			return shards;
+		}
+	}
+
+	static DHT startOnLoopback(int host, int shards) throws Exception {
+		DHT dht = DHT.createStandalone(DHTtype.IPV4_DHT);
+		InetAddress addr = InetAddress.getByAddress(new byte[] {127, 0, 0, (byte) host});
+		dht.start(new LoopbackConfig(shards), new InetSocketAddress(addr, 0), null);
+		return dht;
+	}
+
+	@Test
+	public void responsesMatchWhicheverShardReceivesThem() throws Exception {
+		assumeTrue(RPCServer.isReusePortSupported());
+
+		LogLevel oldLevel = DHT.getLogLevel();
+		DHT.setLogLevel(LogLevel.Error);
+		List<DHT> dhts = new ArrayList<>();
+		try {
+			DHT sharded = startOnLoopback(1, 4);
+			dhts.add(sharded);
+			RPCServer srv = sharded.getServerManager().getAllServers().get(0);
+			assertEquals(4, srv.getShardCount());
+
+			// the kernel picks the socket by hashing the remote address, so we need many peers to hit all of them.
+			// each one on its own address to stay below the spam throttle
+			List<InetSocketAddress> peers = new ArrayList<>();
+			for (int i = 0; i < 32; i++) {
+				DHT peer = startOnLoopback(2 + i, 1);
+				dhts.add(peer);
+				peers.add(peer.getServerManager().getAllServers().get(0).getLocalSocketAddress());
+			}
+
+			int pingsPerPeer = 8;
+			// responses may arrive after the stall timeout fired on a busy machine, they still have to find their call
+			CountDownLatch responses = new CountDownLatch(peers.size() * pingsPerPeer);
+			RPCCallListener listener = new RPCCallListener() {
+				public void onResponse(RPCCall c, MessageBase rsp) {
+					responses.countDown();
+				}
+
+				public void onStall(RPCCall c) {}
+
+				public void onTimeout(RPCCall c) {}
+			};
+
+			for (int i = 0; i < pingsPerPeer; i++) {
+				for (InetSocketAddress peer : peers) {
+					PingRequest req = new PingRequest();
+					req.setDestination(peer);
+					new RPCCall(srv, req).addListener(listener).start();
+				}
+			}
+
+			assertTrue(responses.await(30, TimeUnit.SECONDS));
+			assertEquals(0, sharded.getMetrics().counter("mldht_packets_dropped_total", "", "reason", "mtid_mismatch").get());
+			assertEquals(0, sharded.getMetrics().counter("mldht_packets_dropped_total", "", "reason", "unexpected_response").get());
+
+			long[] perShard = srv.getShardReceiveCounts();
+			assertEquals(peers.size() * pingsPerPeer, Arrays.stream(perShard).sum());
+			assertTrue("responses should be spread over several sockets " + Arrays.toString(perShard), Arrays.stream(perShard).filter(n -> n > 0).count() > 1);
+		} finally {
+			for (DHT dht : dhts)
+				dht.stop();
+			DHT.setLogLevel(oldLevel);
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package the8472.test.udp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URISyntaxException;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+
+import lbms.plugins.mldht.kad.UdpDropMonitor;
+import lbms.plugins.mldht.kad.UdpDropMonitor.SocketStats;
+
+import org.junit.Test;
+
+public class UdpDropMonitorTest {
+
+	private List<String> fixture(String name) throws IOException, URISyntaxException {
+		Path p = Paths.get(UdpDropMonitorTest.class.getResource("proc/" + name).toURI());
+		return Files.readAllLines(p, StandardCharsets.US_ASCII);
+	}
+
+	@Test
+	public void testSnmp() throws Exception {
+		Map<String, Long> udp = UdpDropMonitor.parseSnmp(fixture("snmp"), "Udp");
+		assertEquals(2197L, (long) udp.get("RcvbufErrors"));
+		assertEquals(45831205L, (long) udp.get("InDatagrams"));
+		// UdpLite must not bleed into Udp
+		assertEquals(9, udp.size());
+
+		Map<String, Long> udp6 = UdpDropMonitor.parseKeyValues(fixture("snmp6"));
+		assertEquals(305L, (long) udp6.get("Udp6RcvbufErrors"));
+	}
+
+	@Test
+	public void testSocketTable() throws Exception {
+		List<SocketStats> sockets = UdpDropMonitor.parseSocketTable(fixture("udp"), ByteOrder.LITTLE_ENDIAN);
+		assertEquals(3, sockets.size());
+		assertEquals(new InetSocketAddress(InetAddress.getByName("0.0.0.0"), 6881), sockets.get(0).local);
+		assertEquals(8000, sockets.get(0).rxQueue);
+		assertEquals(17, sockets.get(0).drops);
+		assertEquals(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6882), sockets.get(1).local);
+		assertEquals(new InetSocketAddress(InetAddress.getByName("10.0.0.10"), 6881), sockets.get(2).local);
+
+		List<SocketStats> sockets6 = UdpDropMonitor.parseSocketTable(fixture("udp6"), ByteOrder.LITTLE_ENDIAN);
+		assertEquals(1, sockets6.size());
+		assertEquals(new InetSocketAddress(InetAddress.getByName("2001:db8::1"), 6881), sockets6.get(0).local);
+		assertEquals(512, sockets6.get(0).rxQueue);
+		assertEquals(5, sockets6.get(0).drops);
+
+		List<SocketStats> old = UdpDropMonitor.parseSocketTable(fixture("udp-nodrops"), ByteOrder.LITTLE_ENDIAN);
+		assertEquals(-1, old.get(0).drops);
+		assertEquals(1024, old.get(0).rxQueue);
+	}
+
+	@Test
+	public void testFindSocket() throws Exception {
+		List<SocketStats> sockets = UdpDropMonitor.parseSocketTable(fixture("udp"), ByteOrder.LITTLE_ENDIAN);
+		// exact match wins over the wildcard socket on the same port
+		assertSame(sockets.get(2), UdpDropMonitor.findSocket(sockets, new InetSocketAddress(InetAddress.getByName("10.0.0.10"), 6881)));
+		assertSame(sockets.get(0), UdpDropMonitor.findSocket(sockets, new InetSocketAddress(InetAddress.getByName("192.168.1.2"), 6881)));
+		assertSame(sockets.get(1), UdpDropMonitor.findSocket(sockets, new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6882)));
+		assertNull(UdpDropMonitor.findSocket(sockets, new InetSocketAddress(InetAddress.getByName("127.0.0.2"), 6882)));
+		assertNull(UdpDropMonitor.findSocket(sockets, new InetSocketAddress(InetAddress.getByName("10.0.0.10"), 6883)));
+	}
+
+	@Test
+	public void testReusePortSocketsAreSummed() throws Exception {
+		List<SocketStats> sockets = UdpDropMonitor.parseSocketTable(fixture("udp-reuseport"), ByteOrder.LITTLE_ENDIAN);
+		SocketStats merged = UdpDropMonitor.findSocket(sockets, new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 6881));
+		assertEquals(4096, merged.rxQueue);
+		assertEquals(7, merged.drops);
+	}
+}